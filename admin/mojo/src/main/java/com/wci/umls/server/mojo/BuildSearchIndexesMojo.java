@@ -0,0 +1,74 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.mojo;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+
+import com.wci.umls.server.helpers.ConfigUtility;
+import com.wci.umls.server.jpa.services.helper.AcronymDictionary;
+import com.wci.umls.server.jpa.services.helper.SpellingIndex;
+
+/**
+ * Goal which builds the spelling index and acronym index used by the atom
+ * class search handler, from the files configured for it, so that the server
+ * does not build them at startup.
+ * 
+ * See admin/lucene/pom.xml for sample usage
+ */
+@Mojo(name = "build-search-indexes", defaultPhase = LifecyclePhase.PACKAGE)
+public class BuildSearchIndexesMojo extends AbstractMojo {
+
+  /**
+   * Instantiates a {@link BuildSearchIndexesMojo} from the specified
+   * parameters.
+   */
+  public BuildSearchIndexesMojo() {
+    // do nothing
+  }
+
+  /* see superclass */
+  @Override
+  public void execute() throws MojoFailureException {
+    try {
+      getLog().info("Build search indexes called via mojo.");
+      final Properties properties = ConfigUtility.getConfigProperties();
+      final String prefix = "search.handler." + ConfigUtility.ATOMCLASS + ".";
+
+      final String acronymsFile =
+          properties.getProperty(prefix + "acronymsFile");
+      if (acronymsFile != null) {
+        final String acronymsIndex = properties
+            .getProperty(prefix + "acronymsIndex", acronymsFile + ".fst");
+        getLog().info("  Acronyms file  : " + acronymsFile);
+        getLog().info("  Acronyms index : " + acronymsIndex);
+        AcronymDictionary.build(new File(acronymsFile),
+            new File(acronymsIndex));
+      }
+
+      final String spellingFile =
+          properties.getProperty(prefix + "spellingFile");
+      final String spellingIndex =
+          properties.getProperty(prefix + "spellingIndex");
+      if (spellingFile != null && spellingIndex != null) {
+        getLog().info("  Spelling file  : " + spellingFile);
+        getLog().info("  Spelling index : " + spellingIndex);
+        SpellingIndex.build(new File(spellingFile), new File(spellingIndex));
+      }
+
+      getLog().info("done ...");
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      throw new MojoFailureException("Unexpected exception:", e);
+    }
+
+  }
+
+}
@@ -3,7 +3,9 @@
  */
 package com.wci.umls.server.custom;
 
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Properties;
 
 import com.wci.umls.server.services.handlers.NormalizedStringHandler;
@@ -52,6 +54,17 @@ public class LvgNormalizedStringHandler implements NormalizedStringHandler {
     return api.Mutate(string);
   }
 
+  /* see superclass */
+  @Override
+  public List<String> getNormalizedStrings(List<String> strings)
+    throws Exception {
+    final List<String> results = new ArrayList<>(strings.size());
+    for (final String string : strings) {
+      results.add(getNormalizedString(string));
+    }
+    return results;
+  }
+
   /* see superclass */
   @Override
   public String getName() {
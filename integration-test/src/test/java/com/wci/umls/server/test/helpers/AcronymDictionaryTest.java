@@ -0,0 +1,145 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.wci.umls.server.jpa.services.helper.AcronymDictionary;
+
+/**
+ * Unit testing for {@link AcronymDictionary}.
+ */
+public class AcronymDictionaryTest extends IntegrationUnitSupport {
+
+  /** The temp dir. */
+  private File dir;
+
+  /**
+   * Setup.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setup() throws Exception {
+    dir = Files.createTempDirectory("acronyms").toFile();
+  }
+
+  /**
+   * Teardown.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void teardown() throws Exception {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  /**
+   * Test lookups against a map loaded from the same file.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final Random random = new Random(1234L);
+    final File acronymsFile = new File(dir, "acronyms.txt");
+    final Map<String, Set<String>> expected = new HashMap<>();
+    try (final PrintWriter out = new PrintWriter(acronymsFile, "UTF-8")) {
+      for (int i = 0; i < 10000; i++) {
+        final String acronym = "A" + random.nextInt(3000);
+        final String expansion = "expansion " + random.nextInt(10) + " é";
+        out.println(acronym + "\t" + expansion);
+        if (!expected.containsKey(acronym)) {
+          expected.put(acronym, new HashSet<String>(2));
+        }
+        expected.get(acronym).add(expansion);
+      }
+    }
+
+    final File indexFile = new File(dir, "acronyms.txt.fst");
+    final AcronymDictionary dictionary =
+        AcronymDictionary.getInstance(acronymsFile, indexFile);
+    assertTrue(indexFile.exists());
+    for (final Map.Entry<String, Set<String>> entry : expected.entrySet()) {
+      assertTrue(dictionary.containsKey(entry.getKey()));
+      // same iteration order too, as the set is rendered in queries
+      assertEquals(entry.getValue().toString(),
+          dictionary.get(entry.getKey()).toString());
+    }
+    assertFalse(dictionary.containsKey("A3000"));
+    assertFalse(dictionary.containsKey("A"));
+
+    // shared until the acronyms file changes
+    assertSame(dictionary,
+        AcronymDictionary.getInstance(acronymsFile, indexFile));
+    try (final PrintWriter out = new PrintWriter(acronymsFile, "UTF-8")) {
+      out.println("NEW\tnew expansion");
+    }
+    acronymsFile.setLastModified(acronymsFile.lastModified() + 2000);
+    final AcronymDictionary rebuilt =
+        AcronymDictionary.getInstance(acronymsFile, indexFile);
+    assertNotSame(dictionary, rebuilt);
+    assertTrue(rebuilt.containsKey("NEW"));
+    assertFalse(rebuilt.containsKey("A1"));
+  }
+
+  /**
+   * Test degenerate use.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    // empty acronyms file
+    final File acronymsFile = new File(dir, "empty.txt");
+    acronymsFile.createNewFile();
+    final File indexFile = new File(dir, "empty.fst");
+    final AcronymDictionary dictionary =
+        AcronymDictionary.getInstance(acronymsFile, indexFile);
+    assertFalse(dictionary.containsKey("A"));
+    assertNull(dictionary.get(""));
+
+    // corrupt index files are rebuilt
+    final File otherFile = new File(dir, "other.txt");
+    FileUtils.writeStringToFile(otherFile, "MI\tmyocardial infarction\n",
+        "UTF-8");
+    final File otherIndexFile = new File(dir, "other.fst");
+    FileUtils.writeStringToFile(otherIndexFile, "garbage", "UTF-8");
+    assertTrue(AcronymDictionary.getInstance(otherFile, otherIndexFile)
+        .containsKey("MI"));
+
+    // missing acronyms file
+    try {
+      AcronymDictionary.getInstance(new File(dir, "missing.txt"), indexFile);
+      fail("Expected exception for missing acronyms file");
+    } catch (Exception e) {
+      // n/a
+    }
+  }
+}
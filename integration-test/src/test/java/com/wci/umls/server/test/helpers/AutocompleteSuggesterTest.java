@@ -0,0 +1,228 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Test;
+
+import com.wci.umls.server.helpers.ConfigUtility;
+import com.wci.umls.server.helpers.StringList;
+import com.wci.umls.server.jpa.content.CodeJpa;
+import com.wci.umls.server.jpa.content.ConceptJpa;
+import com.wci.umls.server.jpa.services.helper.AutocompleteSuggester;
+
+/**
+ * Unit testing for {@link AutocompleteSuggester}.
+ */
+public class AutocompleteSuggesterTest extends IntegrationUnitSupport {
+
+  /** The index directories. */
+  private final List<File> indexDirs = new ArrayList<>();
+
+  /**
+   * Teardown.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void teardown() throws Exception {
+    AutocompleteSuggester.clear();
+    for (final File indexDir : indexDirs) {
+      ConfigUtility.deleteDirectory(indexDir);
+    }
+  }
+
+  /**
+   * Test lookups, ordering and edits.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final AutocompleteSuggester suggester = createSuggester();
+    suggester.update(1L, "Myocardial infarction",
+        Arrays.asList("Myocardial infarction", "Heart attack", "MI"));
+    suggester.update(2L, "Myocarditis", Arrays.asList("Myocarditis"));
+    suggester.update(3L, "Heart failure",
+        Arrays.asList("Heart failure", "Cardiac failure"));
+    suggester.update(4L, "Myocarditis", Arrays.asList("Inflamed myocardium"));
+    AutocompleteSuggester.put(ConceptJpa.class, "UMLS", "latest", suggester);
+    assertSame(suggester,
+        AutocompleteSuggester.get(ConceptJpa.class, "UMLS", "latest"));
+    assertNull(AutocompleteSuggester.get(CodeJpa.class, "UMLS", "latest"));
+    assertTrue(AutocompleteSuggester.exists(ConceptJpa.class, "UMLS"));
+    assertTrue(AutocompleteSuggester.exists(ConceptJpa.class, null));
+    assertFalse(AutocompleteSuggester.exists(ConceptJpa.class, "UMLS2"));
+    assertFalse(AutocompleteSuggester.exists(CodeJpa.class, null));
+    assertEquals(4, suggester.size());
+
+    // shorter names first, names are distinct
+    StringList list = suggester.lookup("myo", 20);
+    assertEquals(Arrays.asList("Myocarditis", "Myocardial infarction"),
+        list.getObjects());
+    assertEquals(3, list.getTotalCount());
+
+    // suggested by any atom name, words in any position, last word a prefix
+    assertEquals(Arrays.asList("Heart failure", "Myocardial infarction"),
+        suggester.lookup("HEART", 20).getObjects());
+    assertEquals(Arrays.asList("Myocardial infarction"),
+        suggester.lookup("attack hea", 20).getObjects());
+    assertEquals(Arrays.asList("Heart failure"),
+        suggester.lookup("cardiac fail", 20).getObjects());
+
+    // a trailing space completes the last word
+    assertEquals(0, suggester.lookup("hear ", 20).getObjects().size());
+    assertEquals(2, suggester.lookup("hear", 20).getObjects().size());
+
+    // edits replace the entry, after refresh, and are suggested in order
+    suggester.update(5L, "Heart", Arrays.asList("Heart", "Myocardium"));
+    suggester.update(3L, "Cardiac failure", Arrays.asList("Cardiac failure"));
+    suggester.remove(1L);
+    assertEquals(2, suggester.lookup("heart", 20).getObjects().size());
+    suggester.refresh();
+    assertEquals(Arrays.asList("Heart"),
+        suggester.lookup("heart", 20).getObjects());
+    assertEquals(Arrays.asList("Heart", "Myocarditis"),
+        suggester.lookup("myo", 20).getObjects());
+    assertEquals(Arrays.asList("Cardiac failure"),
+        suggester.lookup("card", 20).getObjects());
+    suggester.update(2L, "Myocarditis", Collections.emptyList());
+    suggester.refresh();
+    assertEquals(2, suggester.lookup("myo", 20).getTotalCount());
+    assertEquals(3, suggester.size());
+  }
+
+  /**
+   * Test degenerate use.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final AutocompleteSuggester suggester = createSuggester();
+    AutocompleteSuggester.put(CodeJpa.class, "SRC", "1", suggester);
+    assertEquals(0, suggester.lookup("anything", 20).getTotalCount());
+
+    suggester.update(1L, "Name", Arrays.asList("Name"));
+    suggester.update(2L, null, Arrays.asList("No name"));
+    suggester.update(3L, "No atoms", null);
+    suggester.remove(4L);
+    suggester.refresh();
+    assertEquals(1, suggester.size());
+    assertEquals(0, suggester.lookup("", 20).getTotalCount());
+    assertEquals(0, suggester.lookup("  ", 20).getTotalCount());
+    assertEquals(0, suggester.lookup("!?", 20).getTotalCount());
+    assertEquals(1, suggester.lookup("n", 20).getTotalCount());
+
+    // repeated names do not hide later suggestions
+    final AutocompleteSuggester repeated = createSuggester();
+    for (long id = 1; id <= 30; id++) {
+      repeated.update(id, "Dup", Arrays.asList("Dup"));
+    }
+    repeated.update(31L, "Dupes", Arrays.asList("Dupes"));
+    AutocompleteSuggester.put(CodeJpa.class, "SRC", "2", repeated);
+    StringList list = repeated.lookup("dup", 2);
+    assertEquals(Arrays.asList("Dup", "Dupes"), list.getObjects());
+    assertEquals(31, list.getTotalCount());
+    list = repeated.lookup("dup", 1);
+    assertEquals(Arrays.asList("Dup"), list.getObjects());
+    assertEquals(31, list.getTotalCount());
+
+    // discarded suggesters are gone
+    assertTrue(!AutocompleteSuggester.isEmpty());
+    AutocompleteSuggester.clear();
+    assertTrue(AutocompleteSuggester.isEmpty());
+    assertNull(AutocompleteSuggester.get(CodeJpa.class, "SRC", "1"));
+
+    // one build at a time
+    assertTrue(AutocompleteSuggester.startBuild(CodeJpa.class, "SRC", "1"));
+    assertFalse(AutocompleteSuggester.startBuild(CodeJpa.class, "SRC", "1"));
+    assertTrue(AutocompleteSuggester.startBuild(CodeJpa.class, "SRC", "2"));
+    AutocompleteSuggester.finishBuild(CodeJpa.class, "SRC", "1");
+    AutocompleteSuggester.finishBuild(CodeJpa.class, "SRC", "2");
+    assertTrue(AutocompleteSuggester.startBuild(CodeJpa.class, "SRC", "1"));
+    AutocompleteSuggester.finishBuild(CodeJpa.class, "SRC", "1");
+  }
+
+  /**
+   * Test lookup latency over many entries.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testBenchmark() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final String[] words = new String[] {
+        "acute", "chronic", "heart", "failure", "disease", "kidney", "liver",
+        "infection", "fracture", "femur", "tumor", "malignant", "benign",
+        "syndrome", "pain", "left", "right", "upper", "lower", "lobe"
+    };
+    final Random random = new Random(1234L);
+    final AutocompleteSuggester suggester = createSuggester();
+    for (long id = 1; id <= 100000; id++) {
+      final List<String> texts = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        final StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < 4; j++) {
+          sb.append(words[random.nextInt(words.length)]).append(j)
+              .append(random.nextInt(100)).append(' ');
+        }
+        texts.add(sb.toString().trim());
+      }
+      suggester.update(id, texts.get(0), texts);
+    }
+    AutocompleteSuggester.put(ConceptJpa.class, "BENCH", "1", suggester);
+
+    final String[] terms = new String[] {
+        "a", "he", "hea", "heart", "heart0", "kidney1 fail", "acute0 chronic",
+        "malignant3 tum", "lobe"
+    };
+    final List<Long> times = new ArrayList<>();
+    for (int i = 0; i < 3000; i++) {
+      final long start = System.nanoTime();
+      suggester.lookup(terms[i % terms.length], 20);
+      // skip warm up
+      if (i >= 1000) {
+        times.add(System.nanoTime() - start);
+      }
+    }
+    Collections.sort(times);
+    Logger.getLogger(getClass()).info("  entries = " + suggester.size()
+        + ", p50 = " + times.get(times.size() / 2) / 1000 + "us, p99 = "
+        + times.get(times.size() * 99 / 100) / 1000 + "us");
+  }
+
+  /**
+   * Returns an empty suggester with an index in a new temporary directory.
+   *
+   * @return the suggester
+   * @throws Exception the exception
+   */
+  private AutocompleteSuggester createSuggester() throws Exception {
+    final File indexDir =
+        Files.createTempDirectory("autocomplete").toFile();
+    indexDirs.add(indexDir);
+    return new AutocompleteSuggester(indexDir);
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.wci.umls.server.helpers.ConfigUtility;
+import com.wci.umls.server.jpa.services.helper.CompactIdMap;
+import com.wci.umls.server.jpa.services.helper.CompactStringMap;
+
+/**
+ * Unit testing for {@link CompactIdMap} and {@link CompactStringMap}.
+ */
+public class CompactIdMapTest extends IntegrationUnitSupport {
+
+  /** The number of entries for the benchmark (MRCONSO has ~15 million). */
+  private static final int BENCHMARK_ENTRIES =
+      Integer.getInteger("idmap.benchmark.entries", 1000000);
+
+  /** The spill directory. */
+  private File dir;
+
+  /**
+   * Setup.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setup() throws Exception {
+    dir = Files.createTempDirectory("idmap").toFile();
+  }
+
+  /**
+   * Teardown.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void teardown() throws Exception {
+    ConfigUtility.deleteDirectory(dir);
+  }
+
+  /**
+   * Test random puts against a {@link HashMap}, on the heap and spilled.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    for (final File spillDir : new File[] {
+        null, dir
+    }) {
+      final Random random = new Random(1234L);
+      final Map<String, Long> expectedIds = new HashMap<>();
+      final Map<String, String> expectedStrings = new HashMap<>();
+      try (final CompactIdMap ids = new CompactIdMap(spillDir, 16);
+          final CompactStringMap strings =
+              new CompactStringMap(spillDir, 16)) {
+        for (int i = 0; i < 200000; i++) {
+          final String key = "A" + random.nextInt(100000);
+          final long id = random.nextLong();
+          // few distinct values (interned) and many (decoded)
+          final String value = i % 2 == 0 ? "SAB" + random.nextInt(200)
+              : "C" + random.nextInt(50000);
+          expectedIds.put(key, id);
+          ids.put(key, id);
+          expectedStrings.put(key, value);
+          strings.put(key, value);
+        }
+
+        assertEquals(expectedIds.size(), ids.size());
+        assertEquals(expectedStrings.size(), strings.size());
+        for (final Map.Entry<String, Long> entry : expectedIds.entrySet()) {
+          assertEquals(entry.getValue(), ids.get(entry.getKey()));
+          assertTrue(ids.containsKey(entry.getKey()));
+          assertEquals(expectedStrings.get(entry.getKey()),
+              strings.get(entry.getKey()));
+        }
+        for (int i = 100000; i < 100100; i++) {
+          assertNull(ids.get("A" + i));
+          assertEquals(-1L, ids.get("A" + i, -1L));
+          assertFalse(strings.containsKey("A" + i));
+        }
+      }
+    }
+    // spill files are removed on close
+    assertEquals(0, dir.listFiles().length);
+  }
+
+  /**
+   * Test degenerate use.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    try (final CompactIdMap ids = new CompactIdMap();
+        final CompactStringMap strings = new CompactStringMap()) {
+      assertEquals(0, ids.size());
+      assertNull(ids.get("x"));
+      assertNull(ids.get(null));
+      assertFalse(ids.containsKey(null));
+
+      // empty, non-ASCII, and long keys
+      final StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 20000; i++) {
+        sb.append('é');
+      }
+      ids.put("", 1L);
+      ids.put("Ré", 2L);
+      ids.put(sb.toString(), 3L);
+      ids.put("Ré", 4L);
+      assertEquals(3, ids.size());
+      assertEquals(Long.valueOf(1L), ids.get(""));
+      assertEquals(Long.valueOf(4L), ids.get("Ré"));
+      assertEquals(Long.valueOf(3L), ids.get(sb.toString()));
+
+      // null values are kept as keys
+      strings.put("A1", null);
+      strings.put("A2", "");
+      strings.put("A3", "Ré");
+      assertTrue(strings.containsKey("A1"));
+      assertNull(strings.get("A1"));
+      assertEquals("", strings.get("A2"));
+      assertEquals("Ré", strings.get("A3"));
+      assertNull(strings.get(null));
+      assertEquals(2, strings.getValueCount());
+    }
+  }
+
+  /**
+   * Benchmark heap use against {@link HashMap} for AUI to id and AUI to CUI
+   * maps. Set -Didmap.benchmark.entries=15000000 for full MRCONSO size.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testBenchmark() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+    Logger.getLogger(getClass()).info("  entries = " + BENCHMARK_ENTRIES);
+
+    long before = getUsedMemory();
+    long start = System.currentTimeMillis();
+    Map<String, Long> hashIds = new HashMap<>(100000);
+    Map<String, String> hashCuis = new HashMap<>(100000);
+    for (int i = 0; i < BENCHMARK_ENTRIES; i++) {
+      hashIds.put("A" + (10000000 + i), (long) i);
+      hashCuis.put("A" + (10000000 + i), "C" + (1000000 + i / 4));
+    }
+    long used = getUsedMemory() - before;
+    Logger.getLogger(getClass()).info("  HashMap = " + (used / 1024 / 1024)
+        + "MB, " + (System.currentTimeMillis() - start) + "ms");
+    assertEquals(BENCHMARK_ENTRIES, hashIds.size());
+    assertEquals(BENCHMARK_ENTRIES, hashCuis.size());
+    hashIds = null;
+    hashCuis = null;
+
+    for (final File spillDir : new File[] {
+        null, dir
+    }) {
+      before = getUsedMemory();
+      start = System.currentTimeMillis();
+      try (final CompactIdMap ids = new CompactIdMap(spillDir, 100000);
+          final CompactStringMap cuis =
+              new CompactStringMap(spillDir, 100000)) {
+        for (int i = 0; i < BENCHMARK_ENTRIES; i++) {
+          ids.put("A" + (10000000 + i), i);
+          cuis.put("A" + (10000000 + i), "C" + (1000000 + i / 4));
+        }
+        used = getUsedMemory() - before;
+        Logger.getLogger(getClass())
+            .info("  Compact maps" + (spillDir == null ? "" : " (spilled)")
+                + " = " + (used / 1024 / 1024) + "MB (estimated "
+                + ((ids.getHeapSize() + cuis.getHeapSize()) / 1024 / 1024)
+                + "MB), " + (System.currentTimeMillis() - start) + "ms");
+        assertEquals(BENCHMARK_ENTRIES, ids.size());
+        assertEquals(Long.valueOf(7L), ids.get("A10000007"));
+        assertEquals("C1000001", cuis.get("A10000007"));
+      }
+    }
+  }
+
+  /**
+   * Returns the used heap after garbage collection.
+   *
+   * @return the used memory
+   * @throws Exception the exception
+   */
+  private static long getUsedMemory() throws Exception {
+    final Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
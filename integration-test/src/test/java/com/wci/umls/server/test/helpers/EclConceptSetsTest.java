@@ -0,0 +1,217 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+import com.wci.umls.server.jpa.services.handlers.expr.EclConceptFieldNames;
+import com.wci.umls.server.jpa.services.handlers.expr.EclConceptSets;
+
+/**
+ * Unit testing for {@link EclConceptSets}.
+ */
+public class EclConceptSetsTest extends IntegrationUnitSupport {
+
+  /**
+   * Test hierarchy and attribute sets on a small index spread over several
+   * segments.
+   *
+   * <pre>
+   * 1 - 2 - 4
+   *   \ 3 - 5 (finding site 2)
+   * </pre>
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final RAMDirectory directory = new RAMDirectory();
+    final IndexWriter writer = new IndexWriter(directory,
+        new IndexWriterConfig(Version.LATEST, new StandardAnalyzer()));
+    writer.addDocument(doc("1", 101L));
+    writer.addDocument(doc("2", 102L, "1"));
+    writer.commit();
+    writer.addDocument(doc("3", 103L, "1"));
+    writer.addDocument(doc("4", 104L, "1", "2"));
+    writer.commit();
+    final Document doc = doc("5", 105L, "1", "3");
+    doc.add(new StringField("363698007", "2", Field.Store.NO));
+    writer.addDocument(doc);
+    writer.close();
+
+    final DirectoryReader reader = DirectoryReader.open(directory);
+    assertTrue(reader.leaves().size() > 1);
+    final EclConceptSets sets = EclConceptSets.getInstance(reader);
+    assertTrue(sets == EclConceptSets.getInstance(reader));
+
+    assertEquals("2 3 4 5", ids(sets, sets.getDescendants("1", false)));
+    assertEquals("1 2 3 4 5", ids(sets, sets.getDescendants("1", true)));
+    assertEquals("", ids(sets, sets.getDescendants("4", false)));
+    assertEquals("1 3", ids(sets, sets.getAncestors("5", false)));
+    assertEquals("1 3 5", ids(sets, sets.getAncestors("5", true)));
+    assertEquals(105L, sets.getInternalId(sets.getDocId("5")));
+
+    // 363698007 = << 2
+    assertEquals("5", ids(sets,
+        sets.getAttributeMatches("363698007", sets.getDescendants("2", true))));
+    assertEquals("", ids(sets,
+        sets.getAttributeMatches("363698007", sets.getDescendants("3", true))));
+
+    // the filter across segments, intersected with a term query
+    final IndexSearcher searcher = new IndexSearcher(reader);
+    final BooleanQuery query = new BooleanQuery();
+    query.add(new TermQuery(new Term(EclConceptFieldNames.ANCESTOR, "1")),
+        Occur.MUST);
+    query.add(
+        new ConstantScoreQuery(new EclConceptSets.BitSetFilter(
+            sets.getAncestors("5", true))),
+        Occur.MUST);
+    assertEquals(2, searcher.search(query, 10).totalHits);
+
+    reader.close();
+    directory.close();
+  }
+
+  /**
+   * Test a large hierarchy and log the elapsed times.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testLargeHierarchy() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    // a complete binary tree, rooted at 1 (children of n are 2n and 2n+1)
+    final int ct = 100000;
+    final RAMDirectory directory = new RAMDirectory();
+    final IndexWriter writer = new IndexWriter(directory,
+        new IndexWriterConfig(Version.LATEST, new StandardAnalyzer()));
+    for (int i = 1; i <= ct; i++) {
+      final List<String> ancestors = new ArrayList<>();
+      for (int a = i / 2; a > 0; a /= 2) {
+        ancestors.add(String.valueOf(a));
+      }
+      writer.addDocument(doc(String.valueOf(i), i,
+          ancestors.toArray(new String[ancestors.size()])));
+    }
+    writer.close();
+
+    final DirectoryReader reader = DirectoryReader.open(directory);
+    long start = System.currentTimeMillis();
+    final EclConceptSets sets = EclConceptSets.getInstance(reader);
+    Logger.getLogger(getClass()).info(
+        "  compute sets = " + (System.currentTimeMillis() - start) + "ms");
+
+    start = System.currentTimeMillis();
+    final FixedBitSet descendants = sets.getDescendants("1", true);
+    Logger.getLogger(getClass()).info(
+        "  << root = " + (System.currentTimeMillis() - start) + "ms");
+    assertEquals(ct, descendants.cardinality());
+
+    start = System.currentTimeMillis();
+    assertEquals(16, sets.getAncestors(String.valueOf(ct), false)
+        .cardinality());
+    Logger.getLogger(getClass()).info(
+        "  > leaf = " + (System.currentTimeMillis() - start) + "ms");
+
+    reader.close();
+    directory.close();
+  }
+
+  /**
+   * Test degenerate use.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final RAMDirectory directory = new RAMDirectory();
+    final IndexWriter writer = new IndexWriter(directory,
+        new IndexWriterConfig(Version.LATEST, new StandardAnalyzer()));
+    writer.addDocument(doc("1", 1L));
+    writer.close();
+    final DirectoryReader reader = DirectoryReader.open(directory);
+    final EclConceptSets sets = EclConceptSets.getInstance(reader);
+
+    assertEquals(-1, sets.getDocId("2"));
+    assertEquals(0, sets.getDescendants("2", true).cardinality());
+    assertEquals(0, sets.getAttributeMatches("bogus",
+        sets.getDescendants("1", true)).cardinality());
+    try {
+      sets.getAncestors("2", false);
+      throw new Exception("Expected unknown concept to fail");
+    } catch (Exception e) {
+      assertEquals("2 has no index document", e.getMessage());
+    }
+
+    reader.close();
+    directory.close();
+  }
+
+  /**
+   * Returns a concept document.
+   *
+   * @param terminologyId the terminology id
+   * @param internalId the internal id
+   * @param ancestors the ancestors
+   * @return the document
+   */
+  private static Document doc(String terminologyId, long internalId,
+    String... ancestors) {
+    final Document doc = new Document();
+    doc.add(new LongField(EclConceptFieldNames.INTERNAL_ID, internalId,
+        Field.Store.YES));
+    doc.add(new StringField(EclConceptFieldNames.ID, terminologyId,
+        Field.Store.YES));
+    for (final String ancestor : ancestors) {
+      doc.add(new StringField(EclConceptFieldNames.ANCESTOR, ancestor,
+          Field.Store.NO));
+    }
+    return doc;
+  }
+
+  /**
+   * Returns the terminology ids of the set, in index order.
+   *
+   * @param sets the sets
+   * @param bits the bits
+   * @return the ids
+   */
+  private static String ids(EclConceptSets sets, FixedBitSet bits) {
+    final StringBuilder sb = new StringBuilder();
+    for (int doc = EclConceptSets.nextSetBit(bits, 0); doc != -1; doc =
+        EclConceptSets.nextSetBit(bits, doc + 1)) {
+      sb.append(sb.length() == 0 ? "" : " ").append(sets.getTerminologyId(doc));
+    }
+    return sb.toString();
+  }
+}
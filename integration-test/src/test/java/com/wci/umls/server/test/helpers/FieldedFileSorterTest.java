@@ -0,0 +1,187 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.helpers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.wci.umls.server.jpa.algo.FieldedFileSorter;
+import com.wci.umls.server.jpa.algo.FileSorter;
+
+/**
+ * Unit testing for {@link FieldedFileSorter}.
+ */
+public class FieldedFileSorterTest extends IntegrationUnitSupport {
+
+  /** The number of lines for the benchmark (MRCONSO has ~15 million). */
+  private static final int BENCHMARK_LINES =
+      Integer.getInteger("sort.benchmark.lines", 1000000);
+
+  /** The working directory. */
+  private File dir;
+
+  /**
+   * Setup.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setup() throws Exception {
+    dir = Files.createTempDirectory("sort").toFile();
+  }
+
+  /**
+   * Teardown.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void teardown() throws Exception {
+    FileSorter.deleteSortedFiles(dir);
+  }
+
+  /**
+   * Test sorting by fields across several chunks matches an in-memory sort.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final Random random = new Random(1234L);
+    final List<String> lines = new ArrayList<>();
+    for (int i = 0; i < 20000; i++) {
+      lines.add("C" + random.nextInt(5000) + "|ENG|" + (i % 7) + "|A" + i
+          + "|näme " + random.nextInt(100) + "|");
+    }
+    final File in = write("MRCONSO.RRF", lines, "\n");
+    final File out = new File(dir, "MRCONSO.RRF.sorted");
+
+    final FieldedFileSorter sorter = new FieldedFileSorter('|', 0, 4);
+    sorter.setChunkSize(64 * 1024);
+    sorter.setParallelism(3);
+    sorter.sortFile(in, out);
+
+    // stable, so equal to a stable in-memory sort by the same fields
+    lines.sort(Comparator.comparing((String s) -> s.split("\\|")[0])
+        .thenComparing(s -> s.split("\\|")[4]));
+    assertEquals(lines, read(out));
+    // only the input and output remain
+    assertEquals(2, dir.listFiles().length);
+
+    // whole lines
+    new FieldedFileSorter('|').sortFile(in, out);
+    final List<String> sorted = new ArrayList<>(lines);
+    sorted.sort(Comparator.naturalOrder());
+    assertEquals(sorted, read(out));
+  }
+
+  /**
+   * Test line terminators, short lines, and empty files.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    // CRLF terminated, no final terminator, missing fields sort first
+    final File in = write("sct2_Concept.txt",
+        Arrays.asList("3\t2", "1\t2\t9", "2", "", "0\t1"), "\r\n");
+    final File out = new File(dir, "sct2_Concept.txt.sorted");
+    new FieldedFileSorter('\t', 2, 0).sortFile(in, out);
+    assertEquals(Arrays.asList("", "0\t1", "2", "3\t2", "1\t2\t9"), read(out));
+
+    final File empty = write("empty.txt", new ArrayList<String>(), "\n");
+    new FieldedFileSorter('\t', 0).sortFile(empty, out);
+    assertEquals(0, out.length());
+  }
+
+  /**
+   * Benchmark against {@link FileSorter} on MRCONSO-like input. Set
+   * -Dsort.benchmark.lines=15000000 for full MRCONSO size.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testBenchmark() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final Random random = new Random(5678L);
+    final File in = new File(dir, "MRCONSO.RRF");
+    try (final BufferedWriter writer = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(in),
+            StandardCharsets.UTF_8))) {
+      for (int i = 0; i < BENCHMARK_LINES; i++) {
+        writer.write("C" + (1000000 + random.nextInt(BENCHMARK_LINES))
+            + "|ENG|P|L" + random.nextInt(1000000) + "|PF|S"
+            + random.nextInt(1000000) + "|Y|A" + (1000000 + i) + "||"
+            + random.nextInt(100000) + "||SRC|PT|" + random.nextInt(100000)
+            + "|Concept name number " + random.nextInt() + "|0|N|256|\n");
+      }
+    }
+    Logger.getLogger(getClass()).info("  input = "
+        + (in.length() / 1024 / 1024) + "MB, " + BENCHMARK_LINES + " lines");
+
+    final File out1 = new File(dir, "MRCONSO.RRF.1");
+    long start = System.currentTimeMillis();
+    FileSorter.sortFile(in.getPath(), out1.getPath(),
+        (s1, s2) -> s1.split("\\|")[0].compareTo(s2.split("\\|")[0]));
+    Logger.getLogger(getClass()).info("  FileSorter = "
+        + (System.currentTimeMillis() - start) + "ms");
+
+    final File out2 = new File(dir, "MRCONSO.RRF.2");
+    start = System.currentTimeMillis();
+    new FieldedFileSorter('|', 0).sortFile(in, out2);
+    Logger.getLogger(getClass()).info("  FieldedFileSorter = "
+        + (System.currentTimeMillis() - start) + "ms");
+
+    assertEquals(out1.length(), out2.length());
+  }
+
+  /**
+   * Writes the lines to a file.
+   *
+   * @param fileName the file name
+   * @param lines the lines
+   * @param terminator the terminator, omitted after the last line
+   * @return the file
+   * @throws Exception the exception
+   */
+  private File write(String fileName, List<String> lines, String terminator)
+    throws Exception {
+    final File file = new File(dir, fileName);
+    Files.write(file.toPath(),
+        String.join(terminator, lines).getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+  /**
+   * Reads the lines of a file.
+   *
+   * @param file the file
+   * @return the lines
+   * @throws Exception the exception
+   */
+  private static List<String> read(File file) throws Exception {
+    return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+  }
+}
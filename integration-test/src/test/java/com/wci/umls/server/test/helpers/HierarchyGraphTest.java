@@ -0,0 +1,131 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.helpers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.wci.umls.server.jpa.algo.HierarchyGraph;
+
+/**
+ * Unit testing for {@link HierarchyGraph}.
+ */
+public class HierarchyGraphTest extends IntegrationUnitSupport {
+
+  /**
+   * Test descendant computation on a small multi-parent hierarchy.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    // 100 -> 200, 300; 200 -> 400; 300 -> 400, 500; 400 -> 600
+    final HierarchyGraph graph = new HierarchyGraph.Builder()
+        .addEdge(100L, 200L).addEdge(100L, 300L).addEdge(200L, 400L)
+        .addEdge(300L, 400L).addEdge(300L, 500L).addEdge(400L, 600L)
+        .addEdge(400L, 600L).build();
+    assertEquals(6, graph.getNodeCount());
+    assertEquals(6, graph.getEdgeCount());
+    assertArrayEquals(new int[] {
+        graph.getNode(100L)
+    }, graph.getRoots());
+    assertEquals(-1, graph.getNode(999L));
+
+    final Map<Long, long[]> descendants = new HashMap<>();
+    graph.computeDescendants(false, (node, descs) -> {
+      final long[] ids = new long[descs.length];
+      for (int i = 0; i < descs.length; i++) {
+        ids[i] = graph.getId(descs[i]);
+      }
+      descendants.put(graph.getId(node), ids);
+    });
+    assertEquals(4, descendants.size());
+    assertArrayEquals(new long[] {
+        200L, 300L, 400L, 500L, 600L
+    }, descendants.get(100L));
+    assertArrayEquals(new long[] {
+        400L, 600L
+    }, descendants.get(200L));
+    assertArrayEquals(new long[] {
+        400L, 500L, 600L
+    }, descendants.get(300L));
+    assertArrayEquals(new long[] {
+        600L
+    }, descendants.get(400L));
+
+    assertTrue(graph.isChild(graph.getNode(300L), graph.getNode(500L)));
+    assertFalse(graph.isChild(graph.getNode(100L), graph.getNode(400L)));
+  }
+
+  /**
+   * Test cycle handling.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final HierarchyGraph graph = new HierarchyGraph.Builder()
+        .addEdge(1L, 2L).addEdge(2L, 3L).addEdge(3L, 1L).build();
+    try {
+      graph.computeDescendants(false, (node, descs) -> {
+        // n/a
+      });
+      fail("Expected cycle to be detected");
+    } catch (Exception e) {
+      assertTrue(e.getMessage().startsWith("Cycle detected"));
+    }
+
+    final int[] ct = new int[1];
+    graph.computeDescendants(true, (node, descs) -> ct[0]++);
+    assertEquals(3, ct[0]);
+  }
+
+  /**
+   * Test a synthetic hierarchy of a million nodes and log the elapsed time.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testLargeHierarchy() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final int n = 1000000;
+    final Random random = new Random(1234L);
+    long start = System.currentTimeMillis();
+    final HierarchyGraph.Builder builder = new HierarchyGraph.Builder();
+    for (int i = 1; i < n; i++) {
+      // one or two parents chosen among earlier nodes, ensuring a DAG
+      builder.addEdge(random.nextInt(i), i);
+      if (i > 1 && random.nextInt(4) == 0) {
+        builder.addEdge(random.nextInt(i), i);
+      }
+    }
+    final HierarchyGraph graph = builder.build();
+    Logger.getLogger(getClass())
+        .info("  build = " + (System.currentTimeMillis() - start) + "ms");
+    assertEquals(n, graph.getNodeCount());
+
+    start = System.currentTimeMillis();
+    final long[] ct = new long[1];
+    graph.computeDescendants(false, (node, descs) -> ct[0] += descs.length);
+    Logger.getLogger(getClass())
+        .info("  closure = " + (System.currentTimeMillis() - start) + "ms, "
+            + ct[0] + " rows");
+    assertTrue(ct[0] >= n - 1);
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.wci.umls.server.jpa.algo.LoaderTaskScheduler;
+
+/**
+ * Unit testing for {@link LoaderTaskScheduler}.
+ */
+public class LoaderTaskSchedulerTest extends IntegrationUnitSupport {
+
+  /**
+   * Test that dependencies and resource conflicts are respected and that
+   * independent tasks overlap.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final Set<String> running = Collections.synchronizedSet(new HashSet<>());
+    final List<String> finished =
+        Collections.synchronizedList(new ArrayList<>());
+    final List<Set<String>> overlaps =
+        Collections.synchronizedList(new ArrayList<>());
+
+    final LoaderTaskScheduler scheduler = new LoaderTaskScheduler();
+    // same shape as the RRF loader
+    add(scheduler, "HIER", new String[] {}, new String[] {}, new String[] {
+        "treePositions"
+    }, running, finished, overlaps);
+    add(scheduler, "DEF", new String[] {}, new String[] {}, new String[] {
+        "atoms"
+    }, running, finished, overlaps);
+    add(scheduler, "STY", new String[] {}, new String[] {}, new String[] {
+        "concepts"
+    }, running, finished, overlaps);
+    add(scheduler, "REL", new String[] {}, new String[] {}, new String[] {
+        "relationships", "relationshipMap"
+    }, running, finished, overlaps);
+    add(scheduler, "SAT", new String[] {
+        "REL"
+    }, new String[] {
+        "relationshipMap"
+    }, new String[] {
+        "atoms", "concepts", "relationships"
+    }, running, finished, overlaps);
+    add(scheduler, "MAP", new String[] {
+        "SAT", "MISSING"
+    }, new String[] {}, new String[] {}, running, finished, overlaps);
+
+    final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    scheduler.run(4, listener(events));
+
+    assertEquals(6, finished.size());
+    assertTrue(finished.indexOf("SAT") > finished.indexOf("REL"));
+    assertTrue(finished.indexOf("SAT") > finished.indexOf("DEF"));
+    assertTrue(finished.indexOf("SAT") > finished.indexOf("STY"));
+    assertEquals("MAP", finished.get(5));
+    for (final Set<String> overlap : overlaps) {
+      assertFalse(overlap.toString(), overlap.contains("SAT")
+          && (overlap.contains("DEF") || overlap.contains("STY")));
+    }
+    // the first four are independent and ran together
+    assertTrue(overlaps.stream().anyMatch(o -> o.size() == 4));
+    assertTrue(events.contains("finished MAP 6/6"));
+
+    // in order on the calling thread
+    finished.clear();
+    overlaps.clear();
+    scheduler.run(1, listener(events));
+    assertEquals(Arrays.asList("HIER", "DEF", "STY", "REL", "SAT", "MAP"),
+        finished);
+    assertTrue(overlaps.stream().allMatch(o -> o.size() == 1));
+  }
+
+  /**
+   * Test failures and unsatisfiable dependencies.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+    // a failure stops later tasks and is rethrown
+    LoaderTaskScheduler scheduler = new LoaderTaskScheduler();
+    scheduler.addTask("A", new String[] {}, new String[] {}, new String[] {},
+        () -> {
+          throw new Exception("A failed");
+        });
+    scheduler.addTask("B", new String[] {
+        "A"
+    }, new String[] {}, new String[] {}, () -> events.add("ran B"));
+    for (final int parallelism : new int[] {
+        1, 2
+    }) {
+      events.clear();
+      try {
+        scheduler.run(parallelism, listener(events));
+        fail("Expected failure");
+      } catch (Exception e) {
+        assertEquals("A failed", e.getMessage());
+      }
+      assertTrue(events.contains("failed A"));
+      assertFalse(events.contains("ran B"));
+    }
+
+    // dependency cycle
+    scheduler = new LoaderTaskScheduler();
+    scheduler.addTask("A", new String[] {
+        "B"
+    }, new String[] {}, new String[] {}, () -> events.add("ran A"));
+    scheduler.addTask("B", new String[] {
+        "A"
+    }, new String[] {}, new String[] {}, () -> events.add("ran B"));
+    try {
+      scheduler.run(2, listener(events));
+      fail("Expected failure");
+    } catch (Exception e) {
+      // n/a
+    }
+
+    // duplicate
+    try {
+      scheduler.addTask("A", new String[] {}, new String[] {},
+          new String[] {}, () -> events.add("ran A"));
+      fail("Expected failure");
+    } catch (Exception e) {
+      // n/a
+    }
+
+    // nothing to do
+    new LoaderTaskScheduler().run(4, listener(events));
+  }
+
+  /**
+   * Adds a task that records what else was running while it ran.
+   *
+   * @param scheduler the scheduler
+   * @param taskName the task name
+   * @param dependencies the dependencies
+   * @param reads the reads
+   * @param writes the writes
+   * @param running the running tasks
+   * @param finished the finished tasks
+   * @param overlaps the overlaps
+   * @throws Exception the exception
+   */
+  private static void add(LoaderTaskScheduler scheduler, String taskName,
+    String[] dependencies, String[] reads, String[] writes,
+    Set<String> running, List<String> finished, List<Set<String>> overlaps)
+    throws Exception {
+    scheduler.addTask(taskName, dependencies, reads, writes, () -> {
+      running.add(taskName);
+      Thread.sleep(100);
+      synchronized (running) {
+        overlaps.add(new HashSet<>(running));
+      }
+      running.remove(taskName);
+      finished.add(taskName);
+    });
+  }
+
+  /**
+   * Returns a listener recording events.
+   *
+   * @param events the events
+   * @return the listener
+   */
+  private static LoaderTaskScheduler.Listener listener(List<String> events) {
+    return new LoaderTaskScheduler.Listener() {
+
+      /* see superclass */
+      @Override
+      public void started(String taskName, Set<String> running)
+        throws Exception {
+        events.add("started " + taskName);
+      }
+
+      /* see superclass */
+      @Override
+      public void finished(String taskName, long elapsed, int finishedCt,
+        int totalCt) throws Exception {
+        events.add("finished " + taskName + " " + finishedCt + "/" + totalCt);
+      }
+
+      /* see superclass */
+      @Override
+      public void failed(String taskName, Exception e) throws Exception {
+        events.add("failed " + taskName);
+      }
+    };
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.junit.Test;
+
+import com.wci.umls.server.jpa.services.handlers.LuceneNormalizedStringHandler;
+
+/**
+ * Unit testing for {@link LuceneNormalizedStringHandler}.
+ */
+public class LuceneNormalizedStringHandlerTest extends IntegrationUnitSupport {
+
+  /** The number of strings for the benchmark. */
+  private static final int BENCHMARK_STRINGS =
+      Integer.getInteger("normalize.benchmark.strings", 200000);
+
+  /** The words used to build atom names. */
+  private static final String[] WORDS = new String[] {
+      "Acute", "chronic", "myocardial", "infarction", "of", "the", "Heart",
+      "left", "ventricle", "NOS", "type-2", "diabetes", "mellitus", "[X]",
+      "Fracture", "femur", "(disorder)", "Ré", "1,2-dichloroethane", "and"
+  };
+
+  /**
+   * Test that results match the previous implementation, with and without
+   * the cache, from several threads.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final List<String> names = getNames(20000, 100);
+    final List<String> expected = new ArrayList<>();
+    for (final String name : names) {
+      expected.add(getReferenceNormalizedString(name));
+    }
+
+    for (final String cacheSize : new String[] {
+        "0", "1000", "100000"
+    }) {
+      final LuceneNormalizedStringHandler handler =
+          new LuceneNormalizedStringHandler();
+      final Properties p = new Properties();
+      p.setProperty("cacheSize", cacheSize);
+      handler.setProperties(p);
+
+      final ExecutorService pool = Executors.newFixedThreadPool(4);
+      try {
+        final List<Future<List<String>>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+          futures.add(pool.submit(() -> {
+            final List<String> results = new ArrayList<>();
+            for (final String name : names) {
+              results.add(handler.getNormalizedString(name));
+            }
+            return results;
+          }));
+        }
+        for (final Future<List<String>> future : futures) {
+          assertEquals(expected, future.get());
+        }
+      } finally {
+        pool.shutdown();
+      }
+      assertEquals(expected, handler.getNormalizedStrings(names));
+    }
+  }
+
+  /**
+   * Test degenerate use.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final LuceneNormalizedStringHandler handler =
+        new LuceneNormalizedStringHandler();
+    assertNull(handler.getNormalizedString(null));
+    assertEquals("", handler.getNormalizedString(""));
+    // stop words and punctuation only
+    assertEquals("", handler.getNormalizedString("the, and of"));
+    assertEquals(getReferenceNormalizedString("the, and of"),
+        handler.getNormalizedString("the, and of"));
+    assertEquals("x y y", handler.getNormalizedString("Y y X"));
+    assertEquals(Arrays.asList("x y", null, "x y", ""),
+        handler.getNormalizedStrings(Arrays.asList("Y X", null, "X Y", "")));
+    assertEquals(new ArrayList<String>(),
+        handler.getNormalizedStrings(new ArrayList<String>()));
+  }
+
+  /**
+   * Benchmark throughput against the previous implementation. Names repeat
+   * as they do across terminologies. Set -Dnormalize.benchmark.strings to
+   * change the number of strings.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testBenchmark() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final List<String> names =
+        getNames(BENCHMARK_STRINGS, BENCHMARK_STRINGS / 4);
+
+    long start = System.currentTimeMillis();
+    int ct = 0;
+    for (final String name : names) {
+      ct += getReferenceNormalizedString(name).length();
+    }
+    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    Logger.getLogger(getClass()).info("  previous = "
+        + (names.size() * 1000L / elapsed) + " strings/s");
+
+    for (final String cacheSize : new String[] {
+        "0", "100000"
+    }) {
+      final LuceneNormalizedStringHandler handler =
+          new LuceneNormalizedStringHandler();
+      final Properties p = new Properties();
+      p.setProperty("cacheSize", cacheSize);
+      handler.setProperties(p);
+
+      start = System.currentTimeMillis();
+      int ct2 = 0;
+      for (final String name : names) {
+        ct2 += handler.getNormalizedString(name).length();
+      }
+      elapsed = Math.max(1, System.currentTimeMillis() - start);
+      Logger.getLogger(getClass())
+          .info("  pooled, cacheSize = " + cacheSize + " = "
+              + (names.size() * 1000L / elapsed) + " strings/s");
+      assertEquals(ct, ct2);
+    }
+  }
+
+  /**
+   * Returns random atom names, drawn from a pool of distinct names.
+   *
+   * @param ct the number of names
+   * @param distinctCt the number of distinct names
+   * @return the names
+   */
+  private static List<String> getNames(int ct, int distinctCt) {
+    final Random random = new Random(1234L);
+    final List<String> pool = new ArrayList<>();
+    for (int i = 0; i < distinctCt; i++) {
+      final StringBuilder sb = new StringBuilder();
+      final int words = 1 + random.nextInt(8);
+      for (int j = 0; j < words; j++) {
+        sb.append(j > 0 ? " " : "").append(WORDS[random.nextInt(WORDS.length)]);
+      }
+      sb.append(" ").append(random.nextInt(1000));
+      pool.add(sb.toString());
+    }
+    final List<String> names = new ArrayList<>();
+    for (int i = 0; i < ct; i++) {
+      names.add(pool.get(random.nextInt(pool.size())));
+    }
+    return names;
+  }
+
+  /**
+   * Returns the normalized string as computed by the previous implementation,
+   * with a new analyzer per call.
+   *
+   * @param string the string
+   * @return the normalized string
+   * @throws Exception the exception
+   */
+  private static String getReferenceNormalizedString(String string)
+    throws Exception {
+    final List<String> result = new ArrayList<String>();
+    try (final StandardAnalyzer analyzer = new StandardAnalyzer()) {
+      final TokenStream stream =
+          analyzer.tokenStream(null, new StringReader(string));
+      stream.reset();
+      while (stream.incrementToken()) {
+        result.add(stream.getAttribute(CharTermAttribute.class).toString());
+      }
+    }
+    Collections.sort(result);
+    final StringBuilder normalizedString = new StringBuilder();
+    final Iterator<String> iter = result.iterator();
+    while (iter.hasNext()) {
+      normalizedString.append(iter.next()).append(iter.hasNext() ? " " : "");
+    }
+    return normalizedString.toString();
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.wci.umls.server.jpa.services.helper.IdentityIndex;
+import com.wci.umls.server.jpa.services.helper.OffHeapIdentityIndex;
+
+/**
+ * Unit testing for {@link OffHeapIdentityIndex}.
+ */
+public class OffHeapIdentityIndexTest extends IntegrationUnitSupport {
+
+  /**
+   * Test put/get across resizes, in memory.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    try (final IdentityIndex index = new OffHeapIdentityIndex()) {
+      final int n = 200000;
+      for (int i = 0; i < n; i++) {
+        index.put("S" + i + "ENGMTHPT", i);
+      }
+      assertEquals(n, index.size());
+      assertEquals(n - 1, index.getMaxId());
+      for (int i = 0; i < n; i++) {
+        assertEquals(Long.valueOf(i), index.get("S" + i + "ENGMTHPT"));
+      }
+      assertNull(index.get("S" + n + "ENGMTHPT"));
+
+      // replace
+      index.put("S0ENGMTHPT", 0L);
+      assertEquals(n, index.size());
+
+      index.clear();
+      assertEquals(0, index.size());
+      assertNull(index.get("S1ENGMTHPT"));
+    }
+  }
+
+  /**
+   * Test that a file-backed index survives close and reopen.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testPersistence() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final File file = File.createTempFile("identity", ".idx");
+    file.delete();
+    try {
+      try (final IdentityIndex index = new OffHeapIdentityIndex(file)) {
+        assertTrue(index.isPersistent());
+        // small scopes stay small
+        index.put("code1", 2L);
+        assertTrue(file.length() < 4096);
+        for (int i = 2; i <= 100000; i++) {
+          index.put("code" + i, i * 2L);
+        }
+      }
+      try (final IdentityIndex index = new OffHeapIdentityIndex(file)) {
+        assertEquals(100000, index.size());
+        assertEquals(200000L, index.getMaxId());
+        assertEquals(Long.valueOf(2L), index.get("code1"));
+        assertEquals(Long.valueOf(200000L), index.get("code100000"));
+        assertNull(index.get("code0"));
+        // grows again after reopening
+        for (int i = 100001; i <= 200000; i++) {
+          index.put("code" + i, i * 2L);
+        }
+        assertEquals(Long.valueOf(2L), index.get("code1"));
+      }
+      try (final IdentityIndex index = new OffHeapIdentityIndex(file)) {
+        assertEquals(200000, index.size());
+        assertEquals(Long.valueOf(400000L), index.get("code200000"));
+      }
+      assertFalse(new File(file.getPath() + ".tmp").exists());
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Test degenerate use: null-valued identity fields, empty codes, id zero.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    try (final IdentityIndex index = new OffHeapIdentityIndex()) {
+      assertNull(index.get(""));
+      index.put("", 0L);
+      assertEquals(Long.valueOf(0L), index.get(""));
+      index.put("nullnull", 5L);
+      assertEquals(Long.valueOf(5L), index.get("nullnull"));
+      assertEquals(2, index.size());
+    }
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.helpers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.hibernate.search.annotations.Field;
+import org.junit.Test;
+
+import com.wci.umls.server.jpa.services.helper.PfsListUtility;
+
+/**
+ * Unit testing for {@link PfsListUtility}.
+ */
+public class PfsListUtilityTest extends IntegrationUnitSupport {
+
+  /**
+   * Test filtering and multi-field sorting.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final List<Item> items = Arrays.asList(new Item("b", 2L, new Date(20)),
+        new Item("a", 2L, new Date(10)), new Item("c", 1L, null),
+        new Item("A", 3L, new Date(30)));
+
+    // filter is case insensitive, across string and long fields
+    assertEquals(2, PfsListUtility.filter(items, "a").size());
+    assertEquals(2, PfsListUtility.filter(items, "2").size());
+    assertEquals(1, PfsListUtility.filter(items, "C 1").size());
+    assertEquals(0, PfsListUtility.filter(items, "d").size());
+    // primitive long fields are filtered too
+    assertEquals(1, PfsListUtility.filter(items, "30").size());
+
+    // sort by value then name
+    List<Item> sorted = PfsListUtility.sort(items,
+        Arrays.asList("value", "name"), true, items.size());
+    assertEquals("c a b A", names(sorted));
+    sorted = PfsListUtility.sort(items, Arrays.asList("value", "name"), false,
+        items.size());
+    assertEquals("A b a c", names(sorted));
+
+    // dates, nulls first ascending
+    sorted =
+        PfsListUtility.sort(items, Arrays.asList("date"), true, items.size());
+    assertEquals("c a b A", names(sorted));
+
+    // nested path and top-k selection
+    sorted = PfsListUtility.sort(items, Arrays.asList("self.name"), true, 2);
+    assertEquals("A a", names(sorted));
+  }
+
+  /**
+   * Test that top-k selection matches a full sort on a large list, and log
+   * the elapsed times.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testLargeList() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final Random random = new Random(1234L);
+    final List<Item> items = new ArrayList<>();
+    for (int i = 0; i < 200000; i++) {
+      items.add(new Item("name" + random.nextInt(50000),
+          (long) random.nextInt(100), new Date(random.nextInt(1000000))));
+    }
+    final List<String> sortFields = Arrays.asList("value", "name");
+
+    long start = System.currentTimeMillis();
+    final List<Item> all =
+        PfsListUtility.sort(items, sortFields, true, items.size());
+    Logger.getLogger(getClass()).info(
+        "  full sort = " + (System.currentTimeMillis() - start) + "ms");
+
+    start = System.currentTimeMillis();
+    final List<Item> page = PfsListUtility.sort(items, sortFields, true, 110);
+    Logger.getLogger(getClass())
+        .info("  top 110 = " + (System.currentTimeMillis() - start) + "ms");
+    assertEquals(all.subList(0, 110), page);
+
+    start = System.currentTimeMillis();
+    assertEquals(items.size(), PfsListUtility.filter(items, "NAME").size());
+    Logger.getLogger(getClass())
+        .info("  filter = " + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  /**
+   * Test degenerate use.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final List<Item> items =
+        Arrays.asList(new Item("b", 1L, null), new Item("a", 1L, null));
+    assertEquals(0,
+        PfsListUtility.sort(items, Arrays.asList("name"), true, 0).size());
+    // unknown fields leave the original order
+    assertEquals("b a", names(
+        PfsListUtility.sort(items, Arrays.asList("bogus"), true, 2)));
+    assertEquals(0, PfsListUtility
+        .sort(new ArrayList<Item>(), Arrays.asList("name"), true, 0).size());
+  }
+
+  /**
+   * Returns the names.
+   *
+   * @param items the items
+   * @return the names
+   */
+  private static String names(List<Item> items) {
+    final StringBuilder sb = new StringBuilder();
+    for (final Item item : items) {
+      sb.append(sb.length() == 0 ? "" : " ").append(item.getName());
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Test item.
+   */
+  public static class Item {
+
+    /** The name. */
+    private String name;
+
+    /** The value. */
+    private Long value;
+
+    /** The date. */
+    private Date date;
+
+    /**
+     * Instantiates a {@link Item} from the specified parameters.
+     *
+     * @param name the name
+     * @param value the value
+     * @param date the date
+     */
+    public Item(String name, Long value, Date date) {
+      this.name = name;
+      this.value = value;
+      this.date = date;
+    }
+
+    /**
+     * Returns the name.
+     *
+     * @return the name
+     */
+    @Field
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Returns the value.
+     *
+     * @return the value
+     */
+    @Field
+    public Long getValue() {
+      return value;
+    }
+
+    /**
+     * Returns the scaled value, as a primitive.
+     *
+     * @return the scaled value
+     */
+    @Field
+    public long getScaledValue() {
+      return value == null ? 0 : value * 10;
+    }
+
+    /**
+     * Returns the date.
+     *
+     * @return the date
+     */
+    public Date getDate() {
+      return date;
+    }
+
+    /**
+     * Returns this item.
+     *
+     * @return the self
+     */
+    public Item getSelf() {
+      return this;
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.wci.umls.server.jpa.services.helper.ReviewAtomSet;
+
+/**
+ * Unit testing for {@link ReviewAtomSet}.
+ */
+public class ReviewAtomSetTest extends IntegrationUnitSupport {
+
+  /**
+   * Test random concept updates against a {@link HashMap}.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final Random random = new Random(1234L);
+    final Map<Long, long[]> expected = new HashMap<>();
+    final ReviewAtomSet set = new ReviewAtomSet();
+    for (int i = 0; i < 100000; i++) {
+      final long conceptId = random.nextInt(5000);
+      long[] ids = null;
+      if (random.nextInt(4) != 0) {
+        ids = new long[1 + random.nextInt(5)];
+        for (int j = 0; j < ids.length; j++) {
+          ids[j] = random.nextInt(50000);
+        }
+      }
+      set.setConcept(conceptId, ids);
+      if (ids == null) {
+        expected.remove(conceptId);
+      } else {
+        expected.put(conceptId, ids);
+      }
+    }
+
+    final Set<Long> atomIds = new HashSet<>();
+    for (final long[] ids : expected.values()) {
+      for (final long id : ids) {
+        atomIds.add(id);
+      }
+    }
+    assertEquals(expected.size(), set.getConceptCount());
+    assertEquals(atomIds.size(), set.size());
+    for (long id = 0; id < 50000; id++) {
+      assertEquals(atomIds.contains(id), set.contains(id));
+    }
+  }
+
+  /**
+   * Test degenerate use.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final ReviewAtomSet set = new ReviewAtomSet();
+    assertEquals(0, set.size());
+    assertFalse(set.contains(0L));
+    assertFalse(set.containsAny(Collections.emptyList()));
+
+    // empty means not under review
+    set.setConcept(1L, new long[0]);
+    set.setConcept(2L, null);
+    assertEquals(0, set.getConceptCount());
+
+    // an atom shared by two concepts stays until both let go
+    set.setConcept(1L, new long[] {
+        0L, 7L
+    });
+    set.setConcept(2L, new long[] {
+        7L
+    });
+    assertEquals(2, set.size());
+    assertTrue(set.containsAny(Arrays.asList(5L, 0L)));
+    set.setConcept(1L, null);
+    assertTrue(set.contains(7L));
+    assertFalse(set.contains(0L));
+    set.setConcept(2L, null);
+    assertFalse(set.contains(7L));
+    assertEquals(0, set.size());
+
+    // registry
+    ReviewAtomSet.put("TEST", set);
+    assertEquals(set, ReviewAtomSet.get("TEST"));
+    assertEquals(null, ReviewAtomSet.get(null));
+    ReviewAtomSet.clear();
+    assertEquals(null, ReviewAtomSet.get("TEST"));
+  }
+
+  /**
+   * Test lookups against a {@link HashSet}.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testBenchmark() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final Random random = new Random(1234L);
+    final ReviewAtomSet set = new ReviewAtomSet();
+    final Set<Long> hashSet = new HashSet<>();
+    for (long conceptId = 0; conceptId < 100000; conceptId++) {
+      final long[] ids = new long[5];
+      for (int j = 0; j < ids.length; j++) {
+        ids[j] = random.nextInt(100000000);
+        hashSet.add(ids[j]);
+      }
+      set.setConcept(conceptId, ids);
+    }
+    final List<Long> lookups = new ArrayList<>();
+    for (int i = 0; i < 1000000; i++) {
+      lookups.add((long) random.nextInt(100000000));
+    }
+
+    long start = System.nanoTime();
+    int ct = 0;
+    for (final Long id : lookups) {
+      ct += set.contains(id) ? 1 : 0;
+    }
+    final long setTime = System.nanoTime() - start;
+    start = System.nanoTime();
+    int expectedCt = 0;
+    for (final Long id : lookups) {
+      expectedCt += hashSet.contains(id) ? 1 : 0;
+    }
+    final long hashSetTime = System.nanoTime() - start;
+    assertEquals(expectedCt, ct);
+    Logger.getLogger(getClass()).info("  review atom set = "
+        + (setTime / 1000000) + "ms, hash set = " + (hashSetTime / 1000000)
+        + "ms");
+  }
+}
@@ -3,14 +3,22 @@
  */
 package com.wci.umls.server.test.helpers;
 
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.log4j.Logger;
 import org.junit.Test;
 
 import com.wci.umls.server.helpers.Branch;
+import com.wci.umls.server.helpers.ConfigUtility;
+import com.wci.umls.server.helpers.PfsParameter;
 import com.wci.umls.server.helpers.SearchResult;
 import com.wci.umls.server.helpers.SearchResultList;
 import com.wci.umls.server.jpa.helpers.PfsParameterJpa;
 import com.wci.umls.server.jpa.services.ContentServiceJpa;
+import com.wci.umls.server.jpa.services.handlers.AtomClassSearchHandler;
 import com.wci.umls.server.services.ContentService;
 
 /**
@@ -35,7 +43,59 @@ public class SearchHandlerTest {
     for (final SearchResult sr : c.getObjects()) {
       Logger.getLogger(getClass()).info("  sr.getValue() " + sr.getValue());
     }
-    
+    contentService.close();
+  }
+
+  /**
+   * Test the single pass candidate search against the sequential one on
+   * misspelled and acronym queries: same results, and the time of each.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testBenchmark() throws Exception {
+    final ContentService contentService = new ContentServiceJpa();
+    final AtomClassSearchHandler handler =
+        (AtomClassSearchHandler) contentService
+            .getSearchHandler(ConfigUtility.ATOMCLASS);
+    final String[] queries = new String[] {
+        "tumr", "dermod tumor", "malignnt neoplsm", "MI", "CHF", "COPD",
+        "zzzyx"
+    };
+
+    try {
+      for (final String query : queries) {
+        final long[] times = new long[2];
+        final List<List<Long>> results = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+          handler.setSinglePass(i == 0);
+          final PfsParameter pfs = new PfsParameterJpa();
+          pfs.setStartIndex(0);
+          pfs.setMaxResults(10);
+          final long start = System.nanoTime();
+          SearchResultList list = null;
+          for (int j = 0; j < 10; j++) {
+            list = contentService.findConceptSearchResults("SNOMEDCT_US",
+                "20140731", Branch.ROOT, query, pfs);
+          }
+          times[i] = System.nanoTime() - start;
+          final List<Long> ids = new ArrayList<>();
+          ids.add((long) list.getTotalCount());
+          for (final SearchResult sr : list.getObjects()) {
+            ids.add(sr.getId());
+          }
+          results.add(ids);
+        }
+        assertEquals(results.get(1), results.get(0));
+        Logger.getLogger(getClass())
+            .info("  " + query + " = " + results.get(0).get(0)
+                + ", single pass = " + (times[0] / 10000000) + "ms"
+                + ", sequential = " + (times[1] / 10000000) + "ms");
+      }
+    } finally {
+      handler.setSinglePass(true);
+      contentService.close();
+    }
   }
 
 }
@@ -0,0 +1,107 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.wci.umls.server.UserRole;
+import com.wci.umls.server.jpa.services.helper.SessionCache;
+
+/**
+ * Unit testing for {@link SessionCache}.
+ */
+public class SessionCacheTest extends IntegrationUnitSupport {
+
+  /**
+   * Test memoized roles and invalidation.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final AtomicInteger loadCt = new AtomicInteger();
+    final SessionCache.Session session =
+        SessionCache.put("token1", "user1", 0);
+    assertEquals(session, SessionCache.get("token1"));
+    assertEquals("user1", session.getUsername());
+
+    // application role is loaded once
+    final long hits = SessionCache.getHitCount();
+    for (int i = 0; i < 10; i++) {
+      assertEquals(UserRole.USER, session.getApplicationRole(() -> {
+        loadCt.incrementAndGet();
+        return UserRole.USER;
+      }));
+    }
+    assertEquals(1, loadCt.get());
+    assertEquals(hits + 9, SessionCache.getHitCount());
+    assertTrue(SessionCache.getHitRate() > 0);
+
+    // no project role is memoized too
+    for (int i = 0; i < 10; i++) {
+      assertNull(session.getProjectRole(1L, () -> {
+        loadCt.incrementAndGet();
+        return null;
+      }));
+    }
+    assertEquals(2, loadCt.get());
+
+    // invalidation forces a reload
+    SessionCache.invalidateProject(1L);
+    assertEquals(UserRole.AUTHOR,
+        session.getProjectRole(1L, () -> UserRole.AUTHOR));
+    SessionCache.invalidateUser("user1");
+    assertEquals(UserRole.VIEWER,
+        session.getApplicationRole(() -> UserRole.VIEWER));
+    assertEquals(UserRole.REVIEWER,
+        session.getProjectRole(1L, () -> UserRole.REVIEWER));
+
+    SessionCache.remove("token1");
+    assertNull(SessionCache.get("token1"));
+  }
+
+  /**
+   * Test degenerate use.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    assertNull(SessionCache.get("missing"));
+    SessionCache.remove("missing");
+    SessionCache.invalidateUser("missing");
+
+    // sessions without timeout never expire, others do
+    final SessionCache.Session session =
+        SessionCache.put("token2", "user2", 0);
+    assertFalse(session.isExpired(Long.MAX_VALUE));
+    final SessionCache.Session timed = SessionCache.put("token3", "user3", 10);
+    final long now = System.currentTimeMillis();
+    assertFalse(timed.isExpired(now));
+    assertTrue(timed.isExpired(now + 1000));
+
+    // a role loaded across an invalidation is not kept
+    assertEquals(UserRole.ADMINISTRATOR, session.getApplicationRole(() -> {
+      SessionCache.invalidateRoles();
+      return UserRole.ADMINISTRATOR;
+    }));
+    assertEquals(UserRole.VIEWER,
+        session.getApplicationRole(() -> UserRole.VIEWER));
+
+    SessionCache.remove("token2");
+    SessionCache.remove("token3");
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.wci.umls.server.jpa.services.helper.SortedIdMap;
+
+/**
+ * Unit testing for {@link SortedIdMap}.
+ */
+public class SortedIdMapTest extends IntegrationUnitSupport {
+
+  /**
+   * Test random puts against a {@link HashMap}.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final Random random = new Random(1234L);
+    final Map<Long, String> expected = new HashMap<>();
+    final SortedIdMap map = new SortedIdMap(16);
+    for (int i = 0; i < 100000; i++) {
+      final long id = random.nextInt(50000);
+      final String value = "AT" + random.nextInt(100000000);
+      expected.put(id, value);
+      map.put(id, value);
+    }
+    map.sort();
+
+    assertEquals(expected.size(), map.size());
+    for (final Map.Entry<Long, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), map.get(entry.getKey()));
+    }
+    for (long id = 50000; id < 50100; id++) {
+      assertFalse(map.containsKey(id));
+    }
+  }
+
+  /**
+   * Test degenerate use.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final SortedIdMap map = new SortedIdMap();
+    assertEquals(0, map.size());
+    assertNull(map.get(1L));
+    assertNull(map.get((Long) null));
+
+    // null values are not stored, non-ASCII values round trip
+    map.put(2L, null);
+    map.put(3L, "Ré");
+    map.put(-1L, "");
+    assertEquals(2, map.size());
+    assertFalse(map.containsKey(2L));
+    assertEquals("Ré", map.get(3L));
+    assertEquals("", map.get(-1L));
+
+    // puts after lookups re-sort, last value wins
+    map.put(1L, "R1");
+    map.put(3L, "R3");
+    assertTrue(map.containsKey(1L));
+    assertEquals("R3", map.get(3L));
+    assertEquals(3, map.size());
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.apache.lucene.search.spell.SpellChecker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.wci.umls.server.jpa.services.helper.SpellingIndex;
+
+/**
+ * Unit testing for {@link SpellingIndex}.
+ */
+public class SpellingIndexTest extends IntegrationUnitSupport {
+
+  /** The temp dir. */
+  private File dir;
+
+  /**
+   * Setup.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setup() throws Exception {
+    dir = Files.createTempDirectory("spelling").toFile();
+  }
+
+  /**
+   * Teardown.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void teardown() throws Exception {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  /**
+   * Test building once and sharing the spell checker.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final File spellingFile = new File(dir, "spelling.txt");
+    FileUtils.writeStringToFile(spellingFile, "tumor\nneoplasm\nmalignant\n",
+        "UTF-8");
+    final File indexDir = new File(dir, "index");
+    SpellingIndex.build(spellingFile, indexDir);
+
+    final SpellChecker spellChecker =
+        SpellingIndex.getInstance(spellingFile, indexDir);
+    assertTrue(spellChecker.exist("tumor"));
+    assertFalse(spellChecker.exist("tumr"));
+    assertEquals("tumor", spellChecker.suggestSimilar("tumr", 5, .7f)[0]);
+    assertSame(spellChecker,
+        SpellingIndex.getInstance(spellingFile, indexDir));
+
+    // rebuilt, without the old words, when the spelling file changes
+    FileUtils.writeStringToFile(spellingFile, "carcinoma\n", "UTF-8");
+    spellingFile.setLastModified(spellingFile.lastModified() + 2000);
+    final SpellChecker rebuilt =
+        SpellingIndex.getInstance(spellingFile, indexDir);
+    assertNotSame(spellChecker, rebuilt);
+    assertTrue(rebuilt.exist("carcinoma"));
+    assertFalse(rebuilt.exist("tumor"));
+  }
+
+  /**
+   * Test degenerate use.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    // an unbuilt index is built on first use
+    final File spellingFile = new File(dir, "spelling.txt");
+    FileUtils.writeStringToFile(spellingFile, "tumor\n", "UTF-8");
+    assertTrue(SpellingIndex.getInstance(spellingFile, new File(dir, "index"))
+        .exist("tumor"));
+
+    // missing spelling file
+    try {
+      SpellingIndex.getInstance(new File(dir, "missing.txt"),
+          new File(dir, "index"));
+      fail("Expected exception for missing spelling file");
+    } catch (Exception e) {
+      // n/a
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.wci.umls.server.helpers.Branch;
+import com.wci.umls.server.jpa.content.AtomRelationshipJpa;
+import com.wci.umls.server.jpa.content.AttributeJpa;
+import com.wci.umls.server.jpa.content.CodeRelationshipJpa;
+import com.wci.umls.server.jpa.content.ConceptJpa;
+import com.wci.umls.server.jpa.content.ConceptRelationshipJpa;
+import com.wci.umls.server.jpa.content.DescriptorRelationshipJpa;
+import com.wci.umls.server.jpa.services.ContentServiceJpa;
+import com.wci.umls.server.jpa.services.helper.AttributeBulkWriter;
+import com.wci.umls.server.model.content.Attribute;
+import com.wci.umls.server.test.helpers.IntegrationUnitSupport;
+
+/**
+ * Integration testing for {@link AttributeBulkWriter}. Attributes are added
+ * within a transaction that is rolled back at the end.
+ */
+public class AttributeBulkWriterTest extends IntegrationUnitSupport {
+
+  /** The relationship entities, in resolution order. */
+  private static final String[] RELATIONSHIP_TYPES = new String[] {
+      ConceptRelationshipJpa.class.getSimpleName(),
+      AtomRelationshipJpa.class.getSimpleName(),
+      CodeRelationshipJpa.class.getSimpleName(),
+      DescriptorRelationshipJpa.class.getSimpleName()
+  };
+
+  /** The service. */
+  private ContentServiceJpa service;
+
+  /** The manager. */
+  private EntityManager manager;
+
+  /**
+   * Setup.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setup() throws Exception {
+    service = new ContentServiceJpa();
+    service.setLastModifiedBy("admin");
+    service.setMolecularActionFlag(false);
+    service.setAssignIdentifiersFlag(false);
+    service.setTransactionPerOperation(false);
+    service.beginTransaction();
+    manager = service.getEntityManager();
+  }
+
+  /**
+   * Test that join-table rows are written for each owner type, and that
+   * relationship owners are resolved in the same order as
+   * {@link ContentServiceJpa#getRelationship(Long, Class)}.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final Long conceptId = getFirstId("select c.id from ConceptJpa c");
+    final Long conceptRelId =
+        getFirstId("select r.id from ConceptRelationshipJpa r");
+    final Long atomRelId =
+        getFirstId("select r.id from AtomRelationshipJpa r where r.id not in "
+            + "(select r2.id from ConceptRelationshipJpa r2)");
+    // An id used by both a concept and an atom relationship, if any
+    final Long sharedRelId =
+        getFirstId("select r.id from AtomRelationshipJpa r where r.id in "
+            + "(select r2.id from ConceptRelationshipJpa r2)");
+    long missingRelId = 0L;
+    for (final String type : RELATIONSHIP_TYPES) {
+      final Long maxId =
+          getFirstId("select max(r.id) from " + type + " r");
+      missingRelId = Math.max(missingRelId, maxId == null ? 0 : maxId);
+    }
+    missingRelId += 1000;
+    assertTrue(conceptId != null && conceptRelId != null && atomRelId != null);
+
+    final Attribute conceptAtt = addAttribute();
+    final Attribute conceptRelAtt = addAttribute();
+    final Attribute atomRelAtt = addAttribute();
+    final Attribute missingRelAtt = addAttribute();
+    final Attribute sharedRelAtt = addAttribute();
+
+    // A batch size of 2 also exercises the flush when the buffer fills
+    final AttributeBulkWriter writer = new AttributeBulkWriter(manager, 2);
+    writer.add(ConceptJpa.class, conceptId, conceptAtt.getId());
+    writer.addRelationshipAttribute(conceptRelId, conceptRelAtt.getId());
+    writer.addRelationshipAttribute(atomRelId, atomRelAtt.getId());
+    writer.addRelationshipAttribute(missingRelId, missingRelAtt.getId());
+    if (sharedRelId != null) {
+      writer.addRelationshipAttribute(sharedRelId, sharedRelAtt.getId());
+    }
+    final Date date = new Date(0L);
+    writer.updateDate(ConceptJpa.class, "lastModified", conceptId, date);
+    writer.flush();
+
+    assertEquals(sharedRelId != null ? 4 : 3, writer.getTotalCount());
+    assertEquals(1, getOwnerCount("ConceptJpa", conceptId, conceptAtt));
+    assertEquals(1,
+        getOwnerCount("ConceptRelationshipJpa", conceptRelId, conceptRelAtt));
+    assertEquals(1,
+        getOwnerCount("AtomRelationshipJpa", atomRelId, atomRelAtt));
+    // Missing relationships are dropped
+    for (final String type : RELATIONSHIP_TYPES) {
+      assertEquals(0, getOwnerCount(type, null, missingRelAtt));
+    }
+    // A concept relationship wins over an atom relationship with the same id
+    if (sharedRelId != null) {
+      assertEquals(1, getOwnerCount("ConceptRelationshipJpa", sharedRelId,
+          sharedRelAtt));
+      assertEquals(0, getOwnerCount("AtomRelationshipJpa", null,
+          sharedRelAtt));
+    }
+
+    // Date updates are written and reported for reindexing
+    assertEquals(date.getTime(),
+        ((Date) manager
+            .createQuery(
+                "select c.lastModified from ConceptJpa c where c.id = :id")
+            .setParameter("id", conceptId).getSingleResult()).getTime());
+    assertTrue(writer.getUpdatedIds().contains(conceptId));
+  }
+
+  /**
+   * Test degenerate use.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final AttributeBulkWriter writer = new AttributeBulkWriter(manager, 10);
+    // Nothing to write
+    writer.flush();
+    assertEquals(0, writer.getTotalCount());
+
+    // Relationship owners must go through addRelationshipAttribute
+    for (final Class<?> ownerClass : new Class<?>[] {
+        AttributeJpa.class, ConceptRelationshipJpa.class
+    }) {
+      try {
+        writer.add(ownerClass, 1L, 1L);
+        throw new Exception("Expected " + ownerClass + " to fail");
+      } catch (Exception e) {
+        assertTrue(e.getMessage().startsWith("Unexpected attribute owner"));
+      }
+    }
+  }
+
+  /**
+   * Teardown.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void teardown() throws Exception {
+    service.rollback();
+    service.close();
+  }
+
+  /**
+   * Adds an attribute.
+   *
+   * @return the attribute
+   * @throws Exception the exception
+   */
+  private Attribute addAttribute() throws Exception {
+    final Attribute attribute = new AttributeJpa();
+    attribute.setBranch(Branch.ROOT);
+    attribute.setName("BULK_WRITER_TEST");
+    attribute.setValue("value");
+    attribute.setTerminology("MTH");
+    attribute.setVersion("latest");
+    attribute.setTerminologyId("");
+    attribute.setTimestamp(new Date());
+    attribute.setPublishable(true);
+    return service.addAttribute(attribute, null);
+  }
+
+  /**
+   * Returns the first id of the query results.
+   *
+   * @param query the query
+   * @return the id, or null if there are no results
+   */
+  private Long getFirstId(String query) {
+    final List<?> results =
+        manager.createQuery(query).setMaxResults(1).getResultList();
+    return results.isEmpty() ? null : (Long) results.get(0);
+  }
+
+  /**
+   * Returns the number of owners of the specified type the attribute is
+   * attached to.
+   *
+   * @param type the owner entity name
+   * @param id the owner id, or null for any owner
+   * @param attribute the attribute
+   * @return the count
+   */
+  private long getOwnerCount(String type, Long id, Attribute attribute) {
+    final javax.persistence.Query query = manager.createQuery(
+        "select count(*) from " + type + " a join a.attributes b "
+            + "where b.id = :attributeId"
+            + (id == null ? "" : " and a.id = :id"));
+    query.setParameter("attributeId", attribute.getId());
+    if (id != null) {
+      query.setParameter("id", id);
+    }
+    return (Long) query.getSingleResult();
+  }
+}
@@ -0,0 +1,341 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.jpa;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.wci.umls.server.helpers.Branch;
+import com.wci.umls.server.jpa.algo.BulkTerminologyRemover;
+import com.wci.umls.server.jpa.algo.RemoveTerminologyAlgorithm;
+import com.wci.umls.server.jpa.content.AtomJpa;
+import com.wci.umls.server.jpa.content.AttributeJpa;
+import com.wci.umls.server.jpa.content.ConceptJpa;
+import com.wci.umls.server.jpa.content.ConceptRelationshipJpa;
+import com.wci.umls.server.jpa.services.ContentServiceJpa;
+import com.wci.umls.server.model.content.Atom;
+import com.wci.umls.server.model.content.Attribute;
+import com.wci.umls.server.model.content.Concept;
+import com.wci.umls.server.model.content.ConceptRelationship;
+import com.wci.umls.server.model.workflow.WorkflowStatus;
+import com.wci.umls.server.test.helpers.IntegrationUnitSupport;
+
+/**
+ * Integration testing for {@link BulkTerminologyRemover}. The same content is
+ * added for two versions of a test terminology, one is removed one object at
+ * a time and the other in bulk, and the results are compared.
+ */
+public class BulkTerminologyRemoverTest extends IntegrationUnitSupport {
+
+  /** The terminology. */
+  private static final String TERMINOLOGY = "BULK_REMOVER_TEST";
+
+  /** The version removed one object at a time. */
+  private static final String LEGACY_VERSION = "1";
+
+  /** The version removed in bulk. */
+  private static final String BULK_VERSION = "2";
+
+  /** The number of concepts per version. */
+  private static final int CONCEPTS = 25;
+
+  /** The content classes counted. */
+  private static final String[] CLASSES = new String[] {
+      "ConceptJpa", "AtomJpa", "ConceptRelationshipJpa", "AttributeJpa"
+  };
+
+  /** The service. */
+  private ContentServiceJpa service;
+
+  /** The concept of another terminology with atoms of both versions. */
+  private Concept otherConcept;
+
+  /**
+   * Setup.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setup() throws Exception {
+    service = new ContentServiceJpa();
+    service.setLastModifiedBy("admin");
+    service.setMolecularActionFlag(false);
+    service.setAssignIdentifiersFlag(false);
+    service.setTransactionPerOperation(false);
+    service.beginTransaction();
+
+    otherConcept = addConcept("MTH", "latest", "BULK_REMOVER_TEST");
+    for (final String version : new String[] {
+        LEGACY_VERSION, BULK_VERSION
+    }) {
+      Concept prev = null;
+      for (int i = 0; i < CONCEPTS; i++) {
+        final Concept concept = addConcept(TERMINOLOGY, version, "C" + i);
+        final Atom atom = addAtom(version, "A" + i);
+        concept.getAtoms().add(atom);
+        addAttribute(version, concept);
+        if (prev != null) {
+          addRelationship(version, prev, concept);
+        }
+        service.updateConcept(concept);
+        if (i == 0) {
+          otherConcept.getAtoms().add(atom);
+        }
+        prev = concept;
+      }
+    }
+    service.updateConcept(otherConcept);
+    service.commitClearBegin();
+  }
+
+  /**
+   * Test that removing in bulk removes the same rows as removing one object
+   * at a time, and unlinks the content from other terminologies.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final List<Long> legacyCts = getCounts(LEGACY_VERSION);
+    final List<Long> bulkCts = getCounts(BULK_VERSION);
+    assertEquals(legacyCts, bulkCts);
+    assertEquals(CONCEPTS, legacyCts.get(0).longValue());
+    assertEquals(2, getOtherAtomCount());
+
+    removeVersion(LEGACY_VERSION, false);
+    assertEquals(1, getOtherAtomCount());
+    removeVersion(BULK_VERSION, true);
+    assertEquals(0, getOtherAtomCount());
+
+    final List<Long> zeroCts = new ArrayList<>();
+    for (int i = 0; i < CLASSES.length; i++) {
+      zeroCts.add(0L);
+    }
+    assertEquals(zeroCts, getCounts(LEGACY_VERSION));
+    assertEquals(zeroCts, getCounts(BULK_VERSION));
+
+    // Running it again finds nothing left to do
+    removeVersion(BULK_VERSION, true);
+    assertEquals(zeroCts, getCounts(BULK_VERSION));
+  }
+
+  /**
+   * Test degenerate use.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    // Nothing to remove
+    final List<String> names = new ArrayList<>();
+    final BulkTerminologyRemover remover = new BulkTerminologyRemover(
+        service.getEntityManager(), "NO_SUCH_TERMINOLOGY", "1");
+    remover.setBatchSize(1);
+    remover.remove(new BulkTerminologyRemover.Listener() {
+
+      /* see superclass */
+      @Override
+      public void batchFinished(String name, int stepCt, int totalCt)
+        throws Exception {
+        service.commitClearBegin();
+      }
+
+      /* see superclass */
+      @Override
+      public void stepFinished(String name, long rowCt, long elapsed)
+        throws Exception {
+        assertEquals(0, rowCt);
+        names.add(name);
+      }
+    });
+    assertEquals("reindex", names.get(0));
+    assertEquals("indexes", names.get(1));
+    assertEquals("AttributeJpa", names.get(names.size() - 1));
+  }
+
+  /**
+   * Teardown.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void teardown() throws Exception {
+    for (final String version : new String[] {
+        LEGACY_VERSION, BULK_VERSION
+    }) {
+      removeVersion(version, true);
+    }
+    service.removeConcept(otherConcept.getId());
+    service.commit();
+    service.close();
+  }
+
+  /**
+   * Removes the content of a test terminology version.
+   *
+   * @param version the version
+   * @param bulkMode the bulk mode
+   * @throws Exception the exception
+   */
+  private void removeVersion(String version, boolean bulkMode)
+    throws Exception {
+    final RemoveTerminologyAlgorithm algo = new RemoveTerminologyAlgorithm();
+    try {
+      algo.setLastModifiedBy("admin");
+      algo.setTerminology(TERMINOLOGY);
+      algo.setVersion(version);
+      algo.setStandalone(false);
+      algo.setKeepTerminology(true);
+      algo.setBulkMode(bulkMode);
+      algo.compute();
+    } finally {
+      algo.close();
+    }
+    service.clear();
+  }
+
+  /**
+   * Returns the row counts of the content classes for a version.
+   *
+   * @param version the version
+   * @return the counts
+   * @throws Exception the exception
+   */
+  private List<Long> getCounts(String version) throws Exception {
+    final List<Long> cts = new ArrayList<>();
+    for (final String clazz : CLASSES) {
+      cts.add((Long) service.getEntityManager()
+          .createQuery("select count(*) from " + clazz
+              + " a where a.terminology = :terminology "
+              + "and a.version = :version")
+          .setParameter("terminology", TERMINOLOGY)
+          .setParameter("version", version).getSingleResult());
+    }
+    return cts;
+  }
+
+  /**
+   * Returns the number of atoms of the test terminology on the concept of
+   * the other terminology.
+   *
+   * @return the count
+   * @throws Exception the exception
+   */
+  private long getOtherAtomCount() throws Exception {
+    return (Long) service.getEntityManager()
+        .createQuery("select count(*) from ConceptJpa c join c.atoms a "
+            + "where c.id = :id and a.terminology = :terminology")
+        .setParameter("id", otherConcept.getId())
+        .setParameter("terminology", TERMINOLOGY).getSingleResult();
+  }
+
+  /**
+   * Adds a concept.
+   *
+   * @param terminology the terminology
+   * @param version the version
+   * @param terminologyId the terminology id
+   * @return the concept
+   * @throws Exception the exception
+   */
+  private Concept addConcept(String terminology, String version,
+    String terminologyId) throws Exception {
+    final Concept concept = new ConceptJpa();
+    concept.setBranch(Branch.ROOT);
+    concept.setName("Concept " + terminologyId);
+    concept.setTerminologyId(terminologyId);
+    concept.setTerminology(terminology);
+    concept.setVersion(version);
+    concept.setTimestamp(new Date());
+    concept.setPublishable(true);
+    concept.setWorkflowStatus(WorkflowStatus.PUBLISHED);
+    return service.addConcept(concept);
+  }
+
+  /**
+   * Adds an atom.
+   *
+   * @param version the version
+   * @param terminologyId the terminology id
+   * @return the atom
+   * @throws Exception the exception
+   */
+  private Atom addAtom(String version, String terminologyId)
+    throws Exception {
+    final Atom atom = new AtomJpa();
+    atom.setBranch(Branch.ROOT);
+    atom.setName("Atom " + terminologyId);
+    atom.setTerminologyId(terminologyId);
+    atom.setTerminology(TERMINOLOGY);
+    atom.setVersion(version);
+    atom.setTimestamp(new Date());
+    atom.setPublishable(true);
+    atom.setConceptId("");
+    atom.setLexicalClassId("");
+    atom.setStringClassId("");
+    atom.setCodeId("");
+    atom.setDescriptorId("");
+    atom.setLanguage("ENG");
+    atom.setTermType("PT");
+    atom.setWorkflowStatus(WorkflowStatus.PUBLISHED);
+    return service.addAtom(atom);
+  }
+
+  /**
+   * Adds an attribute to a concept.
+   *
+   * @param version the version
+   * @param concept the concept
+   * @throws Exception the exception
+   */
+  private void addAttribute(String version, Concept concept)
+    throws Exception {
+    final Attribute attribute = new AttributeJpa();
+    attribute.setBranch(Branch.ROOT);
+    attribute.setName("BULK_REMOVER_TEST");
+    attribute.setValue("value");
+    attribute.setTerminology(TERMINOLOGY);
+    attribute.setVersion(version);
+    attribute.setTerminologyId("");
+    attribute.setTimestamp(new Date());
+    attribute.setPublishable(true);
+    concept.getAttributes().add(service.addAttribute(attribute, concept));
+  }
+
+  /**
+   * Adds a relationship between two concepts.
+   *
+   * @param version the version
+   * @param from the from concept
+   * @param to the to concept
+   * @throws Exception the exception
+   */
+  private void addRelationship(String version, Concept from, Concept to)
+    throws Exception {
+    final ConceptRelationship relationship = new ConceptRelationshipJpa();
+    relationship.setBranch(Branch.ROOT);
+    relationship.setFrom(from);
+    relationship.setTo(to);
+    relationship.setRelationshipType("RO");
+    relationship.setAdditionalRelationshipType("");
+    relationship.setTerminologyId("");
+    relationship.setTerminology(TERMINOLOGY);
+    relationship.setVersion(version);
+    relationship.setTimestamp(new Date());
+    relationship.setPublishable(true);
+    service.addRelationship(relationship);
+  }
+}
@@ -6,6 +6,9 @@ package com.wci.umls.server.test.jpa;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
+import java.util.Date;
+
 import org.apache.log4j.Logger;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -13,8 +16,15 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.wci.umls.server.helpers.Branch;
 import com.wci.umls.server.helpers.StringList;
+import com.wci.umls.server.jpa.content.AtomJpa;
+import com.wci.umls.server.jpa.content.ConceptJpa;
 import com.wci.umls.server.jpa.services.ContentServiceJpa;
+import com.wci.umls.server.jpa.services.helper.AutocompleteSuggester;
+import com.wci.umls.server.model.content.Atom;
+import com.wci.umls.server.model.content.Concept;
+import com.wci.umls.server.model.workflow.WorkflowStatus;
 import com.wci.umls.server.services.ContentService;
 import com.wci.umls.server.test.helpers.IntegrationUnitSupport;
 
@@ -144,6 +154,72 @@ public class ContentServiceAutocompleteTest extends IntegrationUnitSupport {
     assertTrue(results.getObjects().isEmpty());
   }
 
+  /**
+   * Test that concepts added and removed one operation at a time are added to
+   * and removed from a built suggester.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testConceptAutocompleteEdits() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+    final String terminology = "AUTOCOMPLETE_TEST";
+    final String version = "1";
+    final ContentServiceJpa editService = new ContentServiceJpa();
+    try {
+      editService.setLastModifiedBy("admin");
+      editService.setMolecularActionFlag(false);
+      editService.setAssignIdentifiersFlag(false);
+      assertTrue(editService.getTransactionPerOperation());
+      final AutocompleteSuggester suggester =
+          new AutocompleteSuggester(AutocompleteSuggester
+              .getIndexDirectory(ConceptJpa.class, terminology, version));
+      AutocompleteSuggester.put(ConceptJpa.class, terminology, version,
+          suggester);
+
+      final Atom atom = new AtomJpa();
+      atom.setBranch(Branch.ROOT);
+      atom.setName("Autocompletetest atom");
+      atom.setTerminologyId("A1");
+      atom.setTerminology(terminology);
+      atom.setVersion(version);
+      atom.setTimestamp(new Date());
+      atom.setPublishable(true);
+      atom.setConceptId("C1");
+      atom.setLexicalClassId("");
+      atom.setStringClassId("");
+      atom.setCodeId("");
+      atom.setDescriptorId("");
+      atom.setLanguage("ENG");
+      atom.setTermType("PT");
+      atom.setWorkflowStatus(WorkflowStatus.PUBLISHED);
+      final Atom newAtom = editService.addAtom(atom);
+
+      final Concept concept = new ConceptJpa();
+      concept.setBranch(Branch.ROOT);
+      concept.setName("Autocompletetest concept");
+      concept.setTerminologyId("C1");
+      concept.setTerminology(terminology);
+      concept.setVersion(version);
+      concept.setTimestamp(new Date());
+      concept.setPublishable(true);
+      concept.setWorkflowStatus(WorkflowStatus.PUBLISHED);
+      concept.getAtoms().add(newAtom);
+      final Concept newConcept = editService.addConcept(concept);
+      assertEquals(Arrays.asList("Autocompletetest concept"),
+          suggester.lookup("autocompletetest", 20).getObjects());
+
+      // the removed concept is no longer suggested
+      editService.removeConcept(newConcept.getId());
+      assertTrue(
+          suggester.lookup("autocompletetest", 20).getObjects().isEmpty());
+      editService.removeAtom(newAtom.getId());
+    } finally {
+      AutocompleteSuggester.removeIndexes(terminology, version);
+      editService.close();
+    }
+  }
+
   /**
    * Teardown.
    */
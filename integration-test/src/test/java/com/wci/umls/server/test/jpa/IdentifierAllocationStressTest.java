@@ -0,0 +1,329 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.test.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.wci.umls.server.jpa.content.AtomJpa;
+import com.wci.umls.server.jpa.content.ConceptJpa;
+import com.wci.umls.server.jpa.content.ConceptRelationshipJpa;
+import com.wci.umls.server.jpa.services.UmlsIdentityServiceJpa;
+import com.wci.umls.server.jpa.services.handlers.UmlsIdentifierAssignmentHandler;
+import com.wci.umls.server.jpa.services.helper.IdentifierRangeAllocator;
+import com.wci.umls.server.model.content.Atom;
+import com.wci.umls.server.model.content.Concept;
+import com.wci.umls.server.model.content.ConceptRelationship;
+import com.wci.umls.server.services.UmlsIdentityService;
+import com.wci.umls.server.test.helpers.IntegrationUnitSupport;
+
+/**
+ * Multi-threaded stress testing for identifier assignment by
+ * {@link UmlsIdentifierAssignmentHandler} and id reservation by
+ * {@link UmlsIdentityServiceJpa#reserveIds(String, int)}. Identities are
+ * created within a transaction that is rolled back at the end.
+ */
+public class IdentifierAllocationStressTest extends IntegrationUnitSupport {
+
+  /** The thread count. */
+  private static final int THREADS = 16;
+
+  /** The number of distinct identities per type. */
+  private static final int IDENTITIES = 2000;
+
+  /** The terminology the identities are created for. */
+  private static final String TERMINOLOGY = "STRESS_TEST";
+
+  /** The handler. */
+  private UmlsIdentifierAssignmentHandler handler;
+
+  /**
+   * Setup.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setup() throws Exception {
+    final Properties p = new Properties();
+    p.setProperty("aui.prefix", "A");
+    p.setProperty("aui.length", "7");
+    p.setProperty("rui.prefix", "R");
+    p.setProperty("rui.length", "8");
+    p.setProperty("projectTerminology", TERMINOLOGY);
+    handler = new UmlsIdentifierAssignmentHandler();
+    handler.setProperties(p);
+    // Share one service (and caches) across all threads, like the loaders
+    handler.setTransactionPerOperation(false);
+    handler.beginTransaction();
+  }
+
+  /**
+   * Test that concurrent callers asking the handler for the same atoms and
+   * relationships get the same identifiers, and never get the same identifier
+   * for different ones.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNormalUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final Map<Integer, Set<String>> auis = new ConcurrentHashMap<>();
+    final Map<Integer, Set<String>> ruis = new ConcurrentHashMap<>();
+    final long startTime = System.currentTimeMillis();
+    runConcurrently(seed -> {
+      final List<Integer> order = new ArrayList<>();
+      for (int i = 0; i < IDENTITIES; i++) {
+        order.add(i);
+      }
+      Collections.shuffle(order, new Random(seed));
+      for (final int i : order) {
+        record(auis, i, handler.getTerminologyId(createAtom(i)));
+        record(ruis, i, handler.getTerminologyId(createRelationship(i),
+            "RO", ""));
+      }
+      return null;
+    });
+    Logger.getLogger(getClass()).info("  elapsed = "
+        + (System.currentTimeMillis() - startTime) + "ms");
+
+    // Each identity got one id, whichever thread asked first
+    final List<String> allAuis = new ArrayList<>();
+    for (final Set<String> ids : auis.values()) {
+      assertEquals(1, ids.size());
+      allAuis.addAll(ids);
+    }
+    final List<String> allRuis = new ArrayList<>();
+    for (final Set<String> ids : ruis.values()) {
+      assertEquals(1, ids.size());
+      allRuis.addAll(ids);
+    }
+    assertUnique(allAuis, IDENTITIES);
+    assertUnique(allRuis, IDENTITIES);
+  }
+
+  /**
+   * Test that services reserving ids concurrently never hand out the same id
+   * twice.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testReserveIds() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final Map<Long, Long> ids = new ConcurrentHashMap<>();
+    runConcurrently(seed -> {
+      final UmlsIdentityService service = new UmlsIdentityServiceJpa();
+      try {
+        for (int i = 0; i < IDENTITIES; i++) {
+          // Mix single ids and pairs, as for relationships and their inverses
+          final int count = (i % 2) + 1;
+          final long first = service.reserveIds("ATUI", count);
+          for (long id = first; id < first + count; id++) {
+            assertTrue("Duplicate id " + id, ids.put(id, seed) == null);
+          }
+        }
+      } finally {
+        service.close();
+      }
+      return null;
+    });
+    assertEquals(THREADS * (IDENTITIES / 2) * 3, ids.size());
+  }
+
+  /**
+   * Test degenerate use.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDegenerateUse() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final IdentifierRangeAllocator allocator = new IdentifierRangeAllocator();
+    assertEquals(-1L, allocator.getMaxId("AUI"));
+    try {
+      allocator.reserve("AUI", 1);
+      throw new Exception("Expected uninitialized type to fail");
+    } catch (Exception e) {
+      assertTrue(e.getMessage().startsWith("Id allocation not initialized"));
+    }
+    assertTrue(allocator.initialize("AUI", 0L));
+    assertEquals(false, allocator.initialize("AUI", 1000L));
+    try {
+      allocator.reserve("AUI", 0);
+      throw new Exception("Expected empty range to fail");
+    } catch (Exception e) {
+      assertTrue(e.getMessage().startsWith("Illegal id range size"));
+    }
+    assertEquals(1L, allocator.reserve("AUI", 10));
+    assertEquals(11L, allocator.reserve("AUI", 1));
+
+    // Unknown identifier types are rejected by the service
+    final UmlsIdentityService service = new UmlsIdentityServiceJpa();
+    try {
+      service.reserveIds("XUI", 1);
+      throw new Exception("Expected unknown type to fail");
+    } catch (Exception e) {
+      assertTrue(e.getMessage().startsWith("Unexpected identifier type"));
+    } finally {
+      service.close();
+    }
+  }
+
+  /**
+   * Teardown.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void teardown() throws Exception {
+    handler.rollback();
+    handler.close();
+  }
+
+  /**
+   * Runs the task on each of the threads at once, passing the thread number,
+   * and rethrows the first failure.
+   *
+   * @param task the task
+   * @throws Exception the exception
+   */
+  private static void runConcurrently(Task task) throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Future<Void>> futures = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      final long seed = t;
+      futures.add(executor.submit((Callable<Void>) () -> {
+        start.await();
+        return task.run(seed);
+      }));
+    }
+    start.countDown();
+    try {
+      for (final Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Returns a publishable atom for the index.
+   *
+   * @param i the index
+   * @return the atom
+   */
+  private static Atom createAtom(int i) {
+    final Atom atom = new AtomJpa();
+    atom.setPublishable(true);
+    atom.setTerminology(TERMINOLOGY);
+    atom.setTerminologyId("" + i);
+    atom.setTermType("PT");
+    atom.setStringClassId("S" + i);
+    atom.setCodeId("C" + i);
+    atom.setConceptId("C" + i);
+    atom.setDescriptorId("");
+    return atom;
+  }
+
+  /**
+   * Returns a publishable relationship between the concepts for the index and
+   * the next index.
+   *
+   * @param i the index
+   * @return the relationship
+   * @throws Exception the exception
+   */
+  private static ConceptRelationship createRelationship(int i)
+    throws Exception {
+    final ConceptRelationship relationship = new ConceptRelationshipJpa();
+    relationship.setPublishable(true);
+    relationship.setTerminology(TERMINOLOGY);
+    relationship.setTerminologyId("");
+    relationship.setRelationshipType("RO");
+    relationship.setAdditionalRelationshipType("");
+    relationship.setFrom(createConcept(i));
+    relationship.setTo(createConcept(i + 1));
+    return relationship;
+  }
+
+  /**
+   * Returns the concept for the index.
+   *
+   * @param i the index
+   * @return the concept
+   */
+  private static Concept createConcept(int i) {
+    final Concept concept = new ConceptJpa();
+    concept.setTerminology(TERMINOLOGY);
+    concept.setTerminologyId("C" + i);
+    return concept;
+  }
+
+  /**
+   * Records an id handed out for the identity.
+   *
+   * @param ids the ids handed out, by identity
+   * @param i the identity
+   * @param id the id
+   */
+  private static void record(Map<Integer, Set<String>> ids, int i,
+    String id) {
+    ids.computeIfAbsent(i, k -> ConcurrentHashMap.newKeySet()).add(id);
+  }
+
+  /**
+   * Asserts the ids are distinct.
+   *
+   * @param ids the ids
+   * @param ct the expected count
+   */
+  private static void assertUnique(Collection<String> ids, int ct) {
+    final Set<String> seen = new HashSet<>();
+    for (final String id : ids) {
+      assertTrue("Duplicate id " + id, seen.add(id));
+    }
+    assertEquals(ct, seen.size());
+  }
+
+  /**
+   * A unit of work run on each thread.
+   */
+  private interface Task {
+
+    /**
+     * Runs the work.
+     *
+     * @param seed the thread number
+     * @return nothing
+     * @throws Exception the exception
+     */
+    public Void run(long seed) throws Exception;
+  }
+}
@@ -13,6 +13,8 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Properties;
+import java.util.Set;
 
 import org.apache.commons.lang3.time.DateUtils;
 import org.apache.log4j.Logger;
@@ -23,6 +25,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.wci.umls.server.ValidationResult;
+import com.wci.umls.server.helpers.Branch;
 import com.wci.umls.server.jpa.algo.action.UpdateConceptMolecularAction;
 import com.wci.umls.server.jpa.algo.maint.MatrixInitializerAlgorithm;
 import com.wci.umls.server.jpa.content.AtomRelationshipJpa;
@@ -293,6 +296,59 @@ public class MatrixInitializerAlgorithmTest extends IntegrationUnitSupport {
   }
 
 
+  /**
+   * Test that an incremental run re-evaluates only the concepts touched since
+   * the previous run.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testMatrixInitIncrementalMode() throws Exception {
+    Logger.getLogger(getClass()).info("TEST " + name.getMethodName());
+
+    final Properties p = new Properties();
+    p.setProperty("incremental", "true");
+
+    // The first run records where the next incremental run starts
+    try {
+      algo.setProperties(p);
+      algo.compute();
+    } finally {
+      algo.close();
+    }
+
+    // Due to MySQL rounding to the second, wait before touching a concept
+    Thread.sleep(1000);
+    contentService = new ContentServiceJpa();
+    final List<Long> allIds;
+    final Long touchedId;
+    try {
+      contentService.setLastModifiedBy("admin");
+      contentService.setMolecularActionFlag(false);
+      allIds = contentService.getAllConceptIds("MTH", "latest", Branch.ROOT);
+      touchedId = allIds.get(0);
+      contentService.updateConcept(contentService.getConcept(touchedId));
+    } finally {
+      contentService.close();
+    }
+
+    final MatrixInitializerAlgorithm algo2 = new MatrixInitializerAlgorithm();
+    try {
+      algo2.setLastModifiedBy("admin");
+      algo2.setLastModifiedFlag(true);
+      algo2.setProject(algo.getProject());
+      algo2.setTerminology("MTH");
+      algo2.setVersion("latest");
+      algo2.setProperties(p);
+      algo2.compute();
+      final Set<Long> ids = algo2.conceptIds;
+      assertTrue(ids.contains(touchedId));
+      assertTrue(ids.size() < allIds.size());
+    } finally {
+      algo2.close();
+    }
+  }
+
   /**
    * Quick test for NCIMTH
    *
@@ -360,6 +416,10 @@ public class MatrixInitializerAlgorithmTest extends IntegrationUnitSupport {
    */
   @After
   public void teardown() throws Exception {
+    // Nothing to restore if the concepts were not loaded
+    if (concept == null || concept2 == null) {
+      return;
+    }
     // Set all objects back to their original workflow status
     // If something fails, this can be changed to @Test and run to reset
     // everything's original status.
@@ -3,11 +3,17 @@
  */
 package com.wci.umls.server.jpa.algo;
 
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import com.wci.umls.server.algo.TerminologyLoaderAlgorithm;
 import com.wci.umls.server.helpers.CancelException;
 import com.wci.umls.server.helpers.ConfigUtility;
+import com.wci.umls.server.jpa.services.helper.CompactIdMap;
+import com.wci.umls.server.jpa.services.helper.CompactStringMap;
 
 /**
  * Abstract support for loader algorithms.
@@ -27,6 +33,12 @@ public abstract class AbstractTerminologyLoaderAlgorithm
   /** By default, sort and delete temporary files. */
   private boolean sortFiles = true;
 
+  /** The directory for memory-mapped id map files, null to use the heap. */
+  private String idMapSpillDir = null;
+
+  /** The id maps created by this loader. */
+  private final List<Closeable> idMaps = new ArrayList<>();
+
   /**
    * Instantiates an empty {@link AbstractTerminologyLoaderAlgorithm}.
    *
@@ -79,6 +91,63 @@ public abstract class AbstractTerminologyLoaderAlgorithm
     this.releaseVersion = releaseVersion;
   }
 
+  /**
+   * Returns the id map spill dir.
+   *
+   * @return the id map spill dir
+   */
+  public String getIdMapSpillDir() {
+    return idMapSpillDir;
+  }
+
+  /**
+   * Sets the directory where id maps keep their keys and values in
+   * memory-mapped files. If not set, id maps are kept on the heap.
+   *
+   * @param idMapSpillDir the id map spill dir
+   */
+  public void setIdMapSpillDir(String idMapSpillDir) {
+    this.idMapSpillDir = idMapSpillDir;
+  }
+
+  /**
+   * Returns a new id map, closed when this loader is closed.
+   *
+   * @param capacity the expected number of entries
+   * @return the id map
+   * @throws Exception the exception
+   */
+  protected CompactIdMap newIdMap(int capacity) throws Exception {
+    final CompactIdMap map = new CompactIdMap(
+        idMapSpillDir == null ? null : new File(idMapSpillDir), capacity);
+    idMaps.add(map);
+    return map;
+  }
+
+  /**
+   * Returns a new id to string map, closed when this loader is closed.
+   *
+   * @param capacity the expected number of entries
+   * @return the map
+   * @throws Exception the exception
+   */
+  protected CompactStringMap newStringMap(int capacity) throws Exception {
+    final CompactStringMap map = new CompactStringMap(
+        idMapSpillDir == null ? null : new File(idMapSpillDir), capacity);
+    idMaps.add(map);
+    return map;
+  }
+
+  /* see superclass */
+  @Override
+  public void close() throws Exception {
+    for (final Closeable map : idMaps) {
+      map.close();
+    }
+    idMaps.clear();
+    super.close();
+  }
+
   /* see superclass */
   @Override
   public void commitClearBegin() throws Exception {
@@ -0,0 +1,492 @@
+/**
+ * Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.algo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.collection.AbstractCollectionPersister;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.search.jpa.FullTextEntityManager;
+import org.hibernate.search.jpa.Search;
+import org.hibernate.type.EntityType;
+
+import com.wci.umls.server.jpa.content.AtomJpa;
+import com.wci.umls.server.jpa.content.AtomNoteJpa;
+import com.wci.umls.server.jpa.content.AtomRelationshipJpa;
+import com.wci.umls.server.jpa.content.AtomSubsetJpa;
+import com.wci.umls.server.jpa.content.AtomSubsetMemberJpa;
+import com.wci.umls.server.jpa.content.AtomTransitiveRelationshipJpa;
+import com.wci.umls.server.jpa.content.AtomTreePositionJpa;
+import com.wci.umls.server.jpa.content.AttributeJpa;
+import com.wci.umls.server.jpa.content.CodeJpa;
+import com.wci.umls.server.jpa.content.CodeNoteJpa;
+import com.wci.umls.server.jpa.content.CodeRelationshipJpa;
+import com.wci.umls.server.jpa.content.CodeTransitiveRelationshipJpa;
+import com.wci.umls.server.jpa.content.CodeTreePositionJpa;
+import com.wci.umls.server.jpa.content.ComponentHistoryJpa;
+import com.wci.umls.server.jpa.content.ConceptJpa;
+import com.wci.umls.server.jpa.content.ConceptNoteJpa;
+import com.wci.umls.server.jpa.content.ConceptRelationshipJpa;
+import com.wci.umls.server.jpa.content.ConceptSubsetJpa;
+import com.wci.umls.server.jpa.content.ConceptSubsetMemberJpa;
+import com.wci.umls.server.jpa.content.ConceptTransitiveRelationshipJpa;
+import com.wci.umls.server.jpa.content.ConceptTreePositionJpa;
+import com.wci.umls.server.jpa.content.DefinitionJpa;
+import com.wci.umls.server.jpa.content.DescriptorJpa;
+import com.wci.umls.server.jpa.content.DescriptorNoteJpa;
+import com.wci.umls.server.jpa.content.DescriptorRelationshipJpa;
+import com.wci.umls.server.jpa.content.DescriptorTransitiveRelationshipJpa;
+import com.wci.umls.server.jpa.content.DescriptorTreePositionJpa;
+import com.wci.umls.server.jpa.content.GeneralConceptAxiomJpa;
+import com.wci.umls.server.jpa.content.MapSetJpa;
+import com.wci.umls.server.jpa.content.MappingJpa;
+import com.wci.umls.server.jpa.content.SemanticTypeComponentJpa;
+
+/**
+ * Removes the content of a terminology version with set-based native
+ * statements instead of per-object removes, in three steps:
+ * <ol>
+ * <li>Components of other terminologies whose indexed fields embed the
+ * content (e.g. UMLS concepts with atoms of the terminology) are unlinked
+ * from it and reindexed, in batches of components.</li>
+ * <li>The index documents of the content and of its notes are purged by id,
+ * reading the ids from the database in batches, in id order.</li>
+ * <li>Content tables are deleted in foreign key order, each in batches of
+ * primary key ranges. Before the rows of a table are deleted, the rows
+ * referring to them are deleted from join tables and element collection
+ * tables (found through the Hibernate mapping), and from the note
+ * tables.</li>
+ * </ol>
+ *
+ * Each step finds its remaining work from the database, so a removal that
+ * fails part way (after some batches were committed) is resumed by running
+ * it again. A rerun repeats the failed batch of its step, and repeats the
+ * whole index purge (purging ids no longer indexed is cheap) unless the row
+ * deletes had started. Reindexing is the costly part: each component unlinked
+ * is reindexed with its embedded content, though components are only
+ * reindexed in the batch that unlinks them.
+ *
+ * Rows are deleted without Hibernate, so no audit records are written, and
+ * the caller must commit and clear the entity manager after each batch (see
+ * {@link Listener}).
+ */
+public class BulkTerminologyRemover {
+
+  /**
+   * Listener for removal progress. Each callback follows a unit of work that
+   * may be committed.
+   */
+  public interface Listener {
+
+    /**
+     * Indicates a batch of a step has finished.
+     *
+     * @param name the step name
+     * @param stepCt the number of finished steps
+     * @param totalCt the total number of steps
+     * @throws Exception the exception
+     */
+    public void batchFinished(String name, int stepCt, int totalCt)
+      throws Exception;
+
+    /**
+     * Indicates a step has finished.
+     *
+     * @param name the step name
+     * @param rowCt the number of rows removed or reindexed
+     * @param elapsed the elapsed time in ms
+     * @throws Exception the exception
+     */
+    public void stepFinished(String name, long rowCt, long elapsed)
+      throws Exception;
+  }
+
+  /** The content classes, in removal order. */
+  private static final List<Class<?>> CONTENT_CLASSES = new ArrayList<>();
+
+  /** The note classes, by component class. */
+  private static final Map<Class<?>, Class<?>> NOTE_CLASSES =
+      new LinkedHashMap<>();
+
+  /** The note component properties, by note class. */
+  private static final Map<Class<?>, String> NOTE_PROPERTIES =
+      new LinkedHashMap<>();
+
+  static {
+    CONTENT_CLASSES.add(ConceptSubsetMemberJpa.class);
+    CONTENT_CLASSES.add(ConceptSubsetJpa.class);
+    CONTENT_CLASSES.add(AtomSubsetMemberJpa.class);
+    CONTENT_CLASSES.add(AtomSubsetJpa.class);
+    CONTENT_CLASSES.add(ConceptRelationshipJpa.class);
+    CONTENT_CLASSES.add(ConceptTransitiveRelationshipJpa.class);
+    CONTENT_CLASSES.add(ConceptTreePositionJpa.class);
+    CONTENT_CLASSES.add(GeneralConceptAxiomJpa.class);
+    CONTENT_CLASSES.add(ConceptJpa.class);
+    CONTENT_CLASSES.add(AtomRelationshipJpa.class);
+    CONTENT_CLASSES.add(AtomTransitiveRelationshipJpa.class);
+    CONTENT_CLASSES.add(DescriptorRelationshipJpa.class);
+    CONTENT_CLASSES.add(DescriptorTransitiveRelationshipJpa.class);
+    CONTENT_CLASSES.add(DescriptorTreePositionJpa.class);
+    CONTENT_CLASSES.add(DescriptorJpa.class);
+    CONTENT_CLASSES.add(CodeRelationshipJpa.class);
+    CONTENT_CLASSES.add(CodeTransitiveRelationshipJpa.class);
+    CONTENT_CLASSES.add(CodeTreePositionJpa.class);
+    CONTENT_CLASSES.add(CodeJpa.class);
+    CONTENT_CLASSES.add(AtomTreePositionJpa.class);
+    CONTENT_CLASSES.add(AtomJpa.class);
+    CONTENT_CLASSES.add(ComponentHistoryJpa.class);
+    CONTENT_CLASSES.add(SemanticTypeComponentJpa.class);
+    CONTENT_CLASSES.add(DefinitionJpa.class);
+    CONTENT_CLASSES.add(MappingJpa.class);
+    CONTENT_CLASSES.add(MapSetJpa.class);
+    CONTENT_CLASSES.add(AttributeJpa.class);
+
+    NOTE_CLASSES.put(ConceptJpa.class, ConceptNoteJpa.class);
+    NOTE_CLASSES.put(DescriptorJpa.class, DescriptorNoteJpa.class);
+    NOTE_CLASSES.put(CodeJpa.class, CodeNoteJpa.class);
+    NOTE_CLASSES.put(AtomJpa.class, AtomNoteJpa.class);
+    NOTE_PROPERTIES.put(ConceptNoteJpa.class, "concept");
+    NOTE_PROPERTIES.put(DescriptorNoteJpa.class, "descriptor");
+    NOTE_PROPERTIES.put(CodeNoteJpa.class, "code");
+    NOTE_PROPERTIES.put(AtomNoteJpa.class, "atom");
+  }
+
+  /** The manager. */
+  private final EntityManager manager;
+
+  /** The terminology. */
+  private final String terminology;
+
+  /** The version. */
+  private final String version;
+
+  /** The number of primary key values per delete. */
+  private int batchSize = 10000;
+
+  /**
+   * Instantiates a {@link BulkTerminologyRemover} from the specified
+   * parameters.
+   *
+   * @param manager the manager, with an active transaction
+   * @param terminology the terminology
+   * @param version the version
+   */
+  public BulkTerminologyRemover(EntityManager manager, String terminology,
+      String version) {
+    this.manager = manager;
+    this.terminology = terminology;
+    this.version = version;
+  }
+
+  /**
+   * Sets the batch size.
+   *
+   * @param batchSize the batch size
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Removes the content, purges the indexes and reindexes affected
+   * components of other terminologies.
+   *
+   * @param listener the listener
+   * @throws Exception the exception
+   */
+  public void remove(Listener listener) throws Exception {
+    // steps: the unlinking, the index purge, and each table
+    final int totalCt = CONTENT_CLASSES.size() + 2;
+    int stepCt = 0;
+    final FullTextEntityManager fullTextEntityManager =
+        Search.getFullTextEntityManager(manager);
+
+    // Unlink and reindex components of other terminologies
+    long start = System.currentTimeMillis();
+    long rowCt = 0;
+    ++stepCt;
+    for (final Class<?> clazz : new Class<?>[] {
+        ConceptJpa.class, DescriptorJpa.class, CodeJpa.class
+    }) {
+      rowCt += unlink(fullTextEntityManager, clazz, "atoms", AtomJpa.class,
+          listener, stepCt, totalCt);
+    }
+    rowCt += unlink(fullTextEntityManager, AtomJpa.class, "definitions",
+        DefinitionJpa.class, listener, stepCt, totalCt);
+    // last release CUIs of this version
+    rowCt += unlink(fullTextEntityManager, AtomJpa.class,
+        "conceptTerminologyIds", null, listener, stepCt, totalCt);
+    listener.batchFinished("reindex", stepCt, totalCt);
+    listener.stepFinished("reindex", rowCt,
+        System.currentTimeMillis() - start);
+
+    // Purge the indexes while the rows can still be found
+    start = System.currentTimeMillis();
+    rowCt = 0;
+    ++stepCt;
+    for (final Class<?> clazz : CONTENT_CLASSES) {
+      rowCt += purge(fullTextEntityManager, clazz,
+          "select a.id from " + clazz.getSimpleName() + " a "
+              + "where a.terminology = :terminology "
+              + "and a.version = :version",
+          listener, stepCt, totalCt);
+    }
+    for (final Class<?> noteClass : NOTE_CLASSES.values()) {
+      final String property = NOTE_PROPERTIES.get(noteClass);
+      rowCt += purge(fullTextEntityManager, noteClass,
+          "select a.id from " + noteClass.getSimpleName() + " a "
+              + "where a." + property + ".terminology = :terminology "
+              + "and a." + property + ".version = :version",
+          listener, stepCt, totalCt);
+    }
+    listener.batchFinished("indexes", stepCt, totalCt);
+    listener.stepFinished("indexes", rowCt,
+        System.currentTimeMillis() - start);
+
+    // Delete the rows
+    for (final Class<?> clazz : CONTENT_CLASSES) {
+      start = System.currentTimeMillis();
+      rowCt = removeRows(clazz, listener, ++stepCt, totalCt);
+      listener.stepFinished(clazz.getSimpleName(), rowCt,
+          System.currentTimeMillis() - start);
+    }
+  }
+
+  /**
+   * Removes the links from components of other terminologies to content of
+   * the terminology version through a collection, and reindexes the
+   * components, in batches.
+   *
+   * @param fullTextEntityManager the full text entity manager
+   * @param ownerClass the owner class
+   * @param property the collection property
+   * @param elementClass the element class, or null for a map keyed by
+   *          terminology and version
+   * @param listener the listener
+   * @param stepCt the step count
+   * @param totalCt the total count
+   * @return the number of components reindexed
+   * @throws Exception the exception
+   */
+  @SuppressWarnings("unchecked")
+  private long unlink(FullTextEntityManager fullTextEntityManager,
+    Class<?> ownerClass, String property, Class<?> elementClass,
+    Listener listener, int stepCt, int totalCt) throws Exception {
+    final Session session = manager.unwrap(Session.class);
+    final SessionFactoryImplementor factory =
+        (SessionFactoryImplementor) session.getSessionFactory();
+    final AbstractCollectionPersister collection =
+        (AbstractCollectionPersister) factory.getCollectionPersister(
+            ownerClass.getName() + "." + property);
+
+    final String ownerQuery;
+    final String delete;
+    if (elementClass != null) {
+      final AbstractEntityPersister persister =
+          (AbstractEntityPersister) factory
+              .getEntityPersister(elementClass.getName());
+      ownerQuery = "select distinct o.id from " + ownerClass.getSimpleName()
+          + " o join o." + property + " e "
+          + "where e.terminology = :terminology and e.version = :version ";
+      delete = "delete from " + collection.getTableName() + " where "
+          + collection.getKeyColumnNames()[0] + " in (:ids) and "
+          + collection.getElementColumnNames()[0] + " in (select "
+          + persister.getIdentifierColumnNames()[0] + " from "
+          + persister.getTableName() + " where "
+          + persister.getPropertyColumnNames("terminology")[0]
+          + " = :terminology and "
+          + persister.getPropertyColumnNames("version")[0] + " = :version)";
+    } else {
+      ownerQuery = "select distinct o.id from " + ownerClass.getSimpleName()
+          + " o join o." + property + " e "
+          + "where key(e) = :terminologyVersion ";
+      delete = "delete from " + collection.getTableName() + " where "
+          + collection.getKeyColumnNames()[0] + " in (:ids) and "
+          + collection.getIndexColumnNames()[0] + " = :terminologyVersion";
+    }
+
+    long rowCt = 0;
+    while (true) {
+      final Query query = manager
+          .createQuery(ownerQuery
+              + "and (o.terminology != :terminology or o.version != :version)")
+          .setParameter("terminology", terminology)
+          .setParameter("version", version).setMaxResults(batchSize);
+      if (elementClass == null) {
+        query.setParameter("terminologyVersion", terminology + version);
+      }
+      final List<Long> ids = query.getResultList();
+      if (ids.isEmpty()) {
+        return rowCt;
+      }
+
+      final org.hibernate.Query sqlQuery = session.createSQLQuery(delete)
+          .setParameterList("ids", ids);
+      if (elementClass != null) {
+        sqlQuery.setParameter("terminology", terminology)
+            .setParameter("version", version);
+      } else {
+        sqlQuery.setParameter("terminologyVersion", terminology + version);
+      }
+      sqlQuery.executeUpdate();
+
+      for (final Object object : manager
+          .createQuery("select o from " + ownerClass.getSimpleName()
+              + " o where o.id in (:ids)")
+          .setParameter("ids", ids).getResultList()) {
+        fullTextEntityManager.index(object);
+      }
+      fullTextEntityManager.flushToIndexes();
+      rowCt += ids.size();
+      listener.batchFinished("reindex", stepCt, totalCt);
+    }
+  }
+
+  /**
+   * Purges the index documents of a class by id, reading the ids in batches
+   * in id order (so only a batch of ids is held at a time).
+   *
+   * @param fullTextEntityManager the full text entity manager
+   * @param clazz the clazz
+   * @param idQuery the query for the ids, on alias "a", with terminology and
+   *          version parameters
+   * @param listener the listener
+   * @param stepCt the step count
+   * @param totalCt the total count
+   * @return the number of ids purged
+   * @throws Exception the exception
+   */
+  @SuppressWarnings("unchecked")
+  private long purge(FullTextEntityManager fullTextEntityManager,
+    Class<?> clazz, String idQuery, Listener listener, int stepCt,
+    int totalCt) throws Exception {
+    if (!fullTextEntityManager.getSearchFactory()
+        .getIndexedTypeDescriptor(clazz).isIndexed()) {
+      return 0;
+    }
+    long ct = 0;
+    long lastId = Long.MIN_VALUE;
+    while (true) {
+      final List<Long> ids = manager
+          .createQuery(idQuery + " and a.id > :lastId order by a.id")
+          .setParameter("terminology", terminology)
+          .setParameter("version", version).setParameter("lastId", lastId)
+          .setMaxResults(batchSize).getResultList();
+      if (ids.isEmpty()) {
+        return ct;
+      }
+      for (final Long id : ids) {
+        fullTextEntityManager.purge(clazz, id);
+      }
+      fullTextEntityManager.flushToIndexes();
+      ct += ids.size();
+      lastId = ids.get(ids.size() - 1);
+      listener.batchFinished("indexes", stepCt, totalCt);
+    }
+  }
+
+  /**
+   * Deletes the rows of a content class, and the join table, element
+   * collection and note rows referring to them, by primary key range.
+   *
+   * @param clazz the clazz
+   * @param listener the listener
+   * @param stepCt the step count
+   * @param totalCt the total count
+   * @return the number of rows deleted from the class table
+   * @throws Exception the exception
+   */
+  private long removeRows(Class<?> clazz, Listener listener, int stepCt,
+    int totalCt) throws Exception {
+    final SessionFactoryImplementor factory =
+        (SessionFactoryImplementor) manager.unwrap(Session.class)
+            .getSessionFactory();
+    final Object[] range = (Object[]) manager
+        .createQuery("select min(a.id), max(a.id) from "
+            + clazz.getSimpleName() + " a "
+            + "where a.terminology = :terminology and a.version = :version")
+        .setParameter("terminology", terminology)
+        .setParameter("version", version).getSingleResult();
+    if (range[0] == null) {
+      listener.batchFinished(clazz.getSimpleName(), stepCt, totalCt);
+      return 0;
+    }
+
+    final AbstractEntityPersister persister =
+        (AbstractEntityPersister) factory.getEntityPersister(clazz.getName());
+    final String idColumn = persister.getIdentifierColumnNames()[0];
+    final String idSelect = "select " + idColumn + " from "
+        + persister.getTableName() + " where "
+        + persister.getPropertyColumnNames("terminology")[0]
+        + " = :terminology and "
+        + persister.getPropertyColumnNames("version")[0]
+        + " = :version and " + idColumn + " between :lo and :hi";
+
+    // The statements for rows referring to the ids, then for the ids
+    final List<String> statements = new ArrayList<>();
+    for (final Object metadata : factory.getAllCollectionMetadata()
+        .values()) {
+      final AbstractCollectionPersister collection =
+          (AbstractCollectionPersister) metadata;
+      // mapped by the element side, no table of its own
+      if (collection.isOneToMany()) {
+        continue;
+      }
+      if (collection.getOwnerEntityPersister().getEntityName()
+          .equals(clazz.getName())) {
+        statements.add("delete from " + collection.getTableName() + " where "
+            + collection.getKeyColumnNames()[0] + " in (" + idSelect + ")");
+      }
+      if (collection.getElementType().isEntityType()
+          && ((EntityType) collection.getElementType())
+              .getAssociatedEntityName().equals(clazz.getName())) {
+        statements.add("delete from " + collection.getTableName() + " where "
+            + collection.getElementColumnNames()[0] + " in (" + idSelect
+            + ")");
+      }
+    }
+    final Class<?> noteClass = NOTE_CLASSES.get(clazz);
+    if (noteClass != null) {
+      final AbstractEntityPersister notePersister =
+          (AbstractEntityPersister) factory
+              .getEntityPersister(noteClass.getName());
+      statements.add("delete from " + notePersister.getTableName()
+          + " where "
+          + notePersister.getPropertyColumnNames(
+              NOTE_PROPERTIES.get(noteClass))[0]
+          + " in (" + idSelect + ")");
+    }
+    statements.add("delete from " + persister.getTableName() + " where "
+        + persister.getPropertyColumnNames("terminology")[0]
+        + " = :terminology and "
+        + persister.getPropertyColumnNames("version")[0]
+        + " = :version and " + idColumn + " between :lo and :hi");
+
+    long rowCt = 0;
+    final long max = (Long) range[1];
+    for (long lo = (Long) range[0]; lo <= max; lo += batchSize) {
+      for (int i = 0; i < statements.size(); i++) {
+        final Query query = manager.createNativeQuery(statements.get(i));
+        query.setParameter("terminology", terminology);
+        query.setParameter("version", version);
+        query.setParameter("lo", lo);
+        query.setParameter("hi", lo + batchSize - 1);
+        final int ct = query.executeUpdate();
+        if (i == statements.size() - 1) {
+          rowCt += ct;
+        }
+      }
+      listener.batchFinished(clazz.getSimpleName(), stepCt, totalCt);
+    }
+    return rowCt;
+  }
+}
@@ -0,0 +1,605 @@
+/*
+ *    Copyright 2015 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.algo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.util.Version;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+import com.wci.umls.server.AlgorithmParameter;
+import com.wci.umls.server.ValidationResult;
+import com.wci.umls.server.helpers.CancelException;
+import com.wci.umls.server.helpers.ConfigUtility;
+import com.wci.umls.server.jpa.ValidationResultJpa;
+import com.wci.umls.server.jpa.content.ConceptJpa;
+import com.wci.umls.server.jpa.services.handlers.expr.EclConceptFieldNames;
+import com.wci.umls.server.jpa.services.handlers.expr.EclSearcherRegistry;
+import com.wci.umls.server.model.meta.IdType;
+import com.wci.umls.server.model.meta.Terminology;
+import com.wci.umls.server.services.RootService;
+
+/**
+ * The Expression Constraint Language Index Writer.
+ */
+public class EclConceptIndexingAlgorithm extends AbstractAlgorithm {
+
+  /** The organizing class type. */
+  private IdType idType = null;
+
+  /** The index writer. */
+  private IndexWriter iwriter = null;
+
+  /** The index output directory. */
+  private Directory directory = null;
+
+  /** The number of concepts to process at each step. */
+  private int batchSize = 2000;
+
+  /** The number of threads building and adding documents. */
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
+  /** The index writer RAM buffer size, in MB. */
+  private double ramBufferSizeMB = 256;
+
+  /** The id map, hibernate ids to terminology ids. */
+  private Map<Long, String> idMap = new HashMap<>();
+
+  /** The ancestor map, terminologyId -> ancestor terminology ids. */
+  private Map<String, Set<String>> ancestorMap = new HashMap<>();
+
+  /** The subset map, terminologyId -> subset terminology id. */
+  private Map<String, Set<String>> subsetMemberMap = new HashMap<>();
+
+  /** The descendants map. */
+  private Map<Long, Set<Long>> descendantsMap = new HashMap<>();
+
+  /** The subsets map, id -> terminologyId. */
+  private Map<Long, String> subsetMap = new HashMap<>();
+
+  /**
+   * The relationship map, concept id -> alternating relationship types and
+   * target terminology ids.
+   */
+  private Map<Long, List<String>> relationshipMap = new HashMap<>();
+
+  /** Tracking variables. */
+  private AtomicInteger ancestorCt = new AtomicInteger();
+
+  /** The relationship ct. */
+  private AtomicInteger relationshipCt = new AtomicInteger();
+
+  /** The subset ct. */
+  private AtomicInteger subsetCt = new AtomicInteger();
+
+  /**
+   * Instantiates a new ecl concept writer algorithm.
+   *
+   * @throws Exception the exception
+   */
+  public EclConceptIndexingAlgorithm() throws Exception {
+    // constructor
+  }
+
+  /**
+   * Compute.
+   *
+   * @throws Exception the exception
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public void compute() throws Exception {
+
+    Logger.getLogger(getClass())
+        .info("Computing expression constraint language indexes for "
+            + getTerminology() + ", " + getVersion());
+
+    if (getTerminology() == null) {
+      throw new Exception("Must specify terminology");
+    }
+    if (getVersion() == null) {
+      throw new Exception("Must specify version");
+    }
+
+    // Get the terminology object itself to retrieve idType
+    Terminology termObj = getTerminology(getTerminology(), getVersion());
+    idType = termObj.getOrganizingClassType();
+
+    // if not concept, throw exception
+    if (!idType.equals(IdType.CONCEPT)) {
+      throw new Exception(
+          "Expression constraint language indexing is only valid for organizing class type CONCEPT");
+    }
+
+    // create the directory if needed; an existing index is replaced by the
+    // writer on commit, so searchers can keep using it until then
+    final File indexDir = new File(ConfigUtility
+        .getExpressionIndexDirectoryName(getTerminology(), getVersion()));
+    indexDir.mkdirs();
+    directory = new NIOFSDirectory(indexDir);
+
+    // get entity manager for direct queries
+    EntityManager manager = getEntityManager();
+    List<Object[]> results = new ArrayList<>();
+    javax.persistence.Query query = null;
+
+    //
+    // Cache concept hibernate id -> terminologyId
+    //
+    Logger.getLogger(getClass())
+        .info("Constructing id to terminology id map...");
+
+    // construct and execute query
+    query = manager.createQuery(
+        "select c.id, c.terminologyId, c.name from ConceptJpa c where "
+            + "version = :version and terminology = :terminology");
+    query.setParameter("terminology", getTerminology());
+    query.setParameter("version", getVersion());
+    final List<Object[]> concepts = query.getResultList();
+
+    Logger.getLogger(getClass()).info("  concepts = " + concepts.size());
+
+    // add the id->terminologyId mapping
+    for (final Object[] o : concepts) {
+      idMap.put((Long) o[0], o[1].toString());
+    }
+
+    //
+    // Cache relationships (non-obsolete, inferred)
+    //
+    Logger.getLogger(getClass()).info("Caching relationship information...");
+    cacheRelationships();
+    Logger.getLogger(getClass())
+        .info("  concepts with relationships = " + relationshipMap.size());
+
+    //
+    // Cache transitive rel ancestor information
+    //
+    Logger.getLogger(getClass()).info("Compute transitive closure...");
+
+    computeTransitiveClosure();
+
+    // clear the results and log
+    Logger.getLogger(getClass()).info("  ancestorMap = " + ancestorMap.size());
+
+    //
+    // Cache subsets
+    //
+    Logger.getLogger(getClass()).info("Caching subset member information...");
+
+    // construct and execute query
+    query = manager.createQuery(
+        "select s.id, s.terminologyId from ConceptSubsetJpa s where "
+            + "version = :version and terminology = :terminology");
+    query.setParameter("terminology", getTerminology());
+    query.setParameter("version", getVersion());
+    results = query.getResultList();
+
+    for (final Object[] o : results) {
+      subsetMap.put((Long) o[0], o[1].toString());
+    }
+    results.clear();
+
+    // construct and execute query
+    query = manager.createQuery(
+        "select s.member.id, s.subset.id from ConceptSubsetMemberJpa s where "
+            + "version = :version and terminology = :terminology");
+    query.setParameter("terminology", getTerminology());
+    query.setParameter("version", getVersion());
+    results = query.getResultList();
+
+    Logger.getLogger(getClass())
+        .info("  " + results.size() + " subset members retrieved");
+
+    // cycle over results
+    for (final Object[] o : results) {
+
+      // get the cached terminology ids
+      String conceptId = idMap.get(o[0]);
+      String subsetId = subsetMap.get(o[1]);
+
+      // get/create the existing subset list for this concept
+      Set<String> subsets = subsetMemberMap.get(conceptId);
+      if (subsets == null) {
+        subsets = new HashSet<>();
+      }
+      subsets.add(subsetId);
+      subsetMemberMap.put(conceptId, subsets);
+    }
+    results.clear();
+    Logger.getLogger(getClass())
+        .info("  Finished caching subset information for "
+            + subsetMap.keySet().size() + " subsets and "
+            + subsetMemberMap.keySet().size() + " concepts");
+
+    Logger.getLogger(getClass()).info("  Configuring index writer...");
+
+    // Documents are added from several threads, each with its own in-memory
+    // segment, flushed concurrently when the shared RAM buffer fills
+    final IndexWriterConfig config =
+        new IndexWriterConfig(Version.LATEST, new StandardAnalyzer());
+    config.setOpenMode(OpenMode.CREATE);
+    config.setRAMBufferSizeMB(ramBufferSizeMB);
+    config.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+    config.setMaxThreadStates(Math.max(1, parallelism));
+
+    iwriter = new IndexWriter(directory, config);
+
+    Logger.getLogger(getClass()).info("  Cycling over concepts");
+    Logger.getLogger(getClass())
+        .info("    " + concepts.size() + " total concepts");
+
+    // build and add documents for each batch of concepts on a worker pool
+    final ExecutorService pool =
+        Executors.newFixedThreadPool(Math.max(1, parallelism));
+    try {
+      final List<Future<Integer>> futures = new ArrayList<>();
+      for (int i = 0; i < concepts.size(); i += batchSize) {
+        final List<Object[]> batch =
+            concepts.subList(i, Math.min(i + batchSize, concepts.size()));
+        futures.add(pool.submit(() -> {
+          final List<Document> docs = new ArrayList<>(batch.size());
+          for (final Object[] c : batch) {
+            docs.add(getConceptDocument((Long) c[0], c[1].toString(),
+                (String) c[2]));
+          }
+          iwriter.addDocuments(docs);
+          return batch.size();
+        }));
+      }
+
+      int pos = 0;
+      for (final Future<Integer> future : futures) {
+        // Check cancel flag
+        if (isCancelled()) {
+          throw new CancelException("ECL indexing cancelled.");
+        }
+        pos += future.get();
+        Logger.getLogger(getClass())
+            .info("  " + pos + "/" + relationshipCt + "/" + ancestorCt + "/"
+                + subsetCt
+                + " concepts/relationships/ancestors/members processed");
+      }
+    } catch (Exception e) {
+      pool.shutdownNow();
+      iwriter.rollback();
+      iwriter = null;
+      throw e;
+    } finally {
+      pool.shutdown();
+    }
+
+    Logger.getLogger(getClass()).info("Closing index writer...");
+    iwriter.close();
+    iwriter = null;
+
+    // make the new index visible to shared searchers
+    EclSearcherRegistry.refresh(getTerminology(), getVersion());
+
+    Logger.getLogger(getClass())
+        .info("ECL Index writing finished successfully.");
+  }
+
+  /**
+   * Caches the type and target of non-obsolete inferred relationships, by
+   * concept id. Types are shared string instances.
+   *
+   * @throws Exception the exception
+   */
+  private void cacheRelationships() throws Exception {
+    final Session session = manager.unwrap(Session.class);
+    final org.hibernate.Query hQuery = session
+        .createQuery("select r.from.id, r.additionalRelationshipType, "
+            + "r.to.terminologyId from ConceptRelationshipJpa r "
+            + "where obsolete = 0 and inferred = 1 "
+            + "and terminology = :terminology and version = :version")
+        .setParameter("terminology", getTerminology())
+        .setParameter("version", getVersion()).setReadOnly(true)
+        .setFetchSize(batchSize);
+    final Map<String, String> types = new HashMap<>();
+    final ScrollableResults results = hQuery.scroll(ScrollMode.FORWARD_ONLY);
+    try {
+      while (results.next()) {
+        final Long conceptId = results.getLong(0);
+        final String type = results.getString(1);
+        String sharedType = types.get(type);
+        if (sharedType == null) {
+          sharedType = type;
+          types.put(type, type);
+        }
+        List<String> relationships = relationshipMap.get(conceptId);
+        if (relationships == null) {
+          relationships = new ArrayList<>(4);
+          relationshipMap.put(conceptId, relationships);
+        }
+        relationships.add(sharedType);
+        relationships.add(results.getString(2));
+      }
+    } finally {
+      results.close();
+    }
+  }
+
+  /**
+   * Compute transitive closure.
+   *
+   * @throws Exception the exception
+   */
+  private void computeTransitiveClosure() throws Exception {
+
+    Logger.getLogger(getClass()).info("  Load hierarchical relationships");
+    final javax.persistence.Query query = manager
+        .createQuery("select r.from.id, r.to.id from ConceptRelationshipJpa "
+            + " r where obsolete = 0 and inferred = 1 "
+            + "and terminology = :terminology " + "and version = :version "
+            + "and hierarchical = 1")
+        .setParameter("terminology", getTerminology())
+        .setParameter("version", getVersion());
+
+    @SuppressWarnings("unchecked")
+    final List<Object[]> rels = query.getResultList();
+    final Map<Long, Set<Long>> parChd = new HashMap<>();
+    final Set<Long> allNodes = new HashSet<>();
+    int ct = 0;
+    for (final Object[] rel : rels) {
+      ct++;
+      final Long chd = Long.parseLong(rel[0].toString());
+      final Long par = Long.parseLong(rel[1].toString());
+      allNodes.add(par);
+      allNodes.add(chd);
+      if (!parChd.containsKey(par)) {
+        parChd.put(par, new HashSet<Long>());
+      }
+      final Set<Long> children = parChd.get(par);
+      children.add(chd);
+      // Check cancel flag
+      if (ct % RootService.logCt == 0 && isCancelled()) {
+        rollback();
+        throw new CancelException("Transitive closure computation cancelled.");
+      }
+    }
+    if (ct == 0) {
+      Logger.getLogger(getClass()).info("  NO HIERARCHICAL RELATIONSHIPS");
+      return;
+    }
+
+    else {
+      Logger.getLogger(getClass())
+          .info("  concepts with descendants = " + parChd.size());
+    }
+    manager.clear();
+
+    // initialize descendant map
+    descendantsMap = new HashMap<>();
+    for (final Long code : parChd.keySet()) {
+      // Check cancel flag
+      if (isCancelled()) {
+        rollback();
+        throw new CancelException("Transitive closure computation cancelled.");
+      }
+
+      final List<Long> ancPath = new ArrayList<>();
+      ancPath.add(code);
+      final Set<Long> descs = getDescendants(code, parChd, ancPath);
+      for (final Long desc : descs) {
+        final String superType = idMap.get(code);
+        final String subType = idMap.get(desc);
+        if (!ancestorMap.containsKey(subType)) {
+          ancestorMap.put(subType, new HashSet<>());
+        }
+        ancestorMap.get(subType).add(superType);
+      }
+
+    }
+
+    // release memory
+    descendantsMap = new HashMap<>();
+
+  }
+
+  /**
+   * Returns the descendants.
+   *
+   * @param par the par
+   * @param parChd the par chd
+   * @param ancPath the anc path
+   * @return the descendants
+   * @throws Exception the exception
+   */
+  private Set<Long> getDescendants(Long par, Map<Long, Set<Long>> parChd,
+    List<Long> ancPath) throws Exception {
+
+    Set<Long> descendants = new HashSet<>();
+    // If cached, return them
+    if (descendantsMap.containsKey(par)) {
+      descendants = descendantsMap.get(par);
+    }
+    // Otherwise, compute them
+    else {
+
+      // Get Children of this node
+      final Set<Long> children = parChd.get(par);
+
+      // If this is a leaf node, bail
+      if (children == null || children.isEmpty()) {
+        return new HashSet<>(0);
+      }
+      // Iterate through children, mark as descendant and recursively call
+      for (final Long chd : children) {
+        if (ancPath.contains(chd)) {
+          // cycle tolerant = true
+          return new HashSet<>(0);
+        }
+        descendants.add(chd);
+        ancPath.add(chd);
+        descendants.addAll(getDescendants(chd, parChd, ancPath));
+        ancPath.remove(chd);
+      }
+      descendantsMap.put(par, descendants);
+    }
+
+    return descendants;
+  }
+
+  /**
+   * Returns the concept document, from the cached concept information.
+   *
+   * @param id the id
+   * @param terminologyId the terminology id
+   * @param name the name
+   * @return the concept document
+   * @throws Exception the exception
+   */
+  private Document getConceptDocument(Long id, String terminologyId,
+    String name) throws Exception {
+
+    Document conceptDoc = new Document();
+
+    // write the basic fields
+    conceptDoc.add(new StringField("type", idType.toString(), Field.Store.YES));
+    conceptDoc.add(
+        new LongField(EclConceptFieldNames.INTERNAL_ID, id, Field.Store.YES));
+    conceptDoc.add(new StringField(EclConceptFieldNames.ID, terminologyId,
+        Field.Store.YES));
+    conceptDoc.add(
+        new StringField(EclConceptFieldNames.NAME, name, Field.Store.YES));
+
+    // write the relationships (non-obsolete, inferred)
+    final List<String> relationships = relationshipMap.get(id);
+    if (relationships != null) {
+      for (int i = 0; i < relationships.size(); i += 2) {
+        conceptDoc.add(new StringField(relationships.get(i),
+            relationships.get(i + 1), Field.Store.NO));
+      }
+      relationshipCt.addAndGet(relationships.size() / 2);
+    }
+
+    // write the ancestors
+    if (ancestorMap.get(terminologyId) != null) {
+      for (final String ancestor : ancestorMap.get(terminologyId)) {
+        conceptDoc.add(new StringField(EclConceptFieldNames.ANCESTOR, ancestor,
+            Field.Store.NO));
+      }
+      ancestorCt.addAndGet(ancestorMap.get(terminologyId).size());
+    }
+
+    // write the subsets
+    if (subsetMemberMap.get(terminologyId) != null) {
+      for (final String subset : subsetMemberMap.get(terminologyId)) {
+        conceptDoc.add(new StringField(EclConceptFieldNames.MEMBER_OF, subset,
+            Field.Store.NO));
+      }
+      subsetCt.addAndGet(subsetMemberMap.get(terminologyId).size());
+    }
+
+    return conceptDoc;
+  }
+
+  /* see superclass */
+  @Override
+  public void close() throws Exception {
+    if (iwriter != null) {
+      iwriter.close();
+    }
+  }
+
+  /* see superclass */
+  @Override
+  public ValidationResult checkPreconditions() throws Exception {
+    // n/a
+    return new ValidationResultJpa();
+  }
+
+  /* see superclass */
+  @Override
+  public void checkProperties(Properties p) throws Exception {
+    // n/a
+  }
+
+  /* see superclass */
+  @Override
+  public void setProperties(Properties p) throws Exception {
+    // n/a
+  }
+
+  /* see superclass */
+  @Override
+  public List<AlgorithmParameter> getParameters() throws Exception {
+    return super.getParameters();
+  }
+
+  /**
+   * Returns the parallelism.
+   *
+   * @return the parallelism
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Sets the parallelism.
+   *
+   * @param parallelism the parallelism
+   */
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Returns the RAM buffer size in MB.
+   *
+   * @return the RAM buffer size in MB
+   */
+  public double getRamBufferSizeMB() {
+    return ramBufferSizeMB;
+  }
+
+  /**
+   * Sets the RAM buffer size in MB.
+   *
+   * @param ramBufferSizeMB the RAM buffer size in MB
+   */
+  public void setRamBufferSizeMB(double ramBufferSizeMB) {
+    this.ramBufferSizeMB = ramBufferSizeMB;
+  }
+
+  @Override
+  public void reset() throws Exception {
+    // n/a
+  }
+
+  /* see superclass */
+  @Override
+  public String getDescription() {
+    return ConfigUtility.getNameFromClass(getClass());
+  }
+
+}
@@ -0,0 +1,518 @@
+/**
+ * Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.algo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.apache.log4j.Logger;
+
+/**
+ * External merge sort of delimited text files (e.g. RRF or RF2) by field
+ * positions. Lines are handled as UTF-8 bytes, never decoded: the input is
+ * memory-mapped and read in chunks, each chunk is sorted in parallel as a
+ * byte array with line and key offset arrays (fields are located once per
+ * line, not on every comparison), and the sorted chunks are combined with a
+ * single k-way merge.
+ *
+ * Keys compare as unsigned bytes, i.e. in code point order. Lines with equal
+ * keys keep their input order. Line terminators are written as "\n", and a
+ * trailing "\r" is dropped. With no sort fields, whole lines are compared.
+ */
+public class FieldedFileSorter {
+
+  /** The delimiter. */
+  private final byte delimiter;
+
+  /** The sort fields, 0-based. */
+  private final int[] sortFields;
+
+  /** The highest sort field. */
+  private final int maxField;
+
+  /** The chunk size in bytes. */
+  private int chunkSize = 32 * 1024 * 1024;
+
+  /** The number of chunks sorted at once. */
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Instantiates a {@link FieldedFileSorter} from the specified parameters.
+   *
+   * @param delimiter the field delimiter, e.g. '|' or '\t'
+   * @param sortFields the fields ([0, 1, ...]) to sort by, in order of
+   *          precedence, or none to sort by whole lines
+   */
+  public FieldedFileSorter(char delimiter, int... sortFields) {
+    if (delimiter > 127) {
+      throw new IllegalArgumentException(
+          "Delimiter must be a single byte character, " + delimiter);
+    }
+    this.delimiter = (byte) delimiter;
+    this.sortFields = sortFields.clone();
+    int max = -1;
+    for (final int field : sortFields) {
+      max = Math.max(max, field);
+    }
+    maxField = max;
+  }
+
+  /**
+   * Sets the chunk size.
+   *
+   * @param chunkSize the chunk size in bytes
+   */
+  public void setChunkSize(int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Sets the parallelism.
+   *
+   * @param parallelism the parallelism
+   */
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Sorts the input file into the output file. Temporary files are created in
+   * the directory of the output file.
+   *
+   * @param inputFile the input file
+   * @param outputFile the output file
+   * @throws Exception the exception
+   */
+  public void sortFile(File inputFile, File outputFile) throws Exception {
+    final long start = System.currentTimeMillis();
+    final File dir = outputFile.getAbsoluteFile().getParentFile();
+    final List<File> chunkFiles = new ArrayList<>();
+    try {
+      splitFile(inputFile, dir, chunkFiles);
+      if (chunkFiles.size() == 1) {
+        Files.move(chunkFiles.get(0).toPath(), outputFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+        chunkFiles.clear();
+      } else {
+        mergeFiles(chunkFiles, outputFile);
+      }
+    } finally {
+      for (final File file : chunkFiles) {
+        file.delete();
+      }
+    }
+    Logger.getLogger(getClass())
+        .info("      Sorted " + inputFile.getName() + " in "
+            + (System.currentTimeMillis() - start) + "ms, "
+            + Math.max(1, chunkFiles.size()) + " chunks");
+  }
+
+  /**
+   * Splits the input file into sorted chunk files. Chunks are read from the
+   * mapped file in order and sorted in parallel, with at most parallelism
+   * chunks in memory.
+   *
+   * @param inputFile the input file
+   * @param dir the dir
+   * @param chunkFiles the chunk files, in input order
+   * @throws Exception the exception
+   */
+  private void splitFile(File inputFile, File dir, List<File> chunkFiles)
+    throws Exception {
+    final int threads = Math.max(1, parallelism);
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    final Semaphore permits = new Semaphore(threads);
+    final List<Future<File>> futures = new ArrayList<>();
+    try (final RandomAccessFile raf = new RandomAccessFile(inputFile, "r");
+        final FileChannel channel = raf.getChannel()) {
+      final long size = channel.size();
+      long pos = 0;
+      do {
+        // map a region and extend it to the end of its last line
+        long length = Math.min(chunkSize, size - pos);
+        MappedByteBuffer buffer =
+            channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+        int end = lastLineEnd(buffer);
+        while (end == -1 && pos + length < size) {
+          length = Math.min(length * 2, size - pos);
+          buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+          end = lastLineEnd(buffer);
+        }
+        if (end == -1 || pos + length == size) {
+          end = (int) length;
+        }
+        final byte[] bytes = new byte[end];
+        buffer.get(bytes);
+        pos += end;
+
+        permits.acquire();
+        final File chunkFile = File.createTempFile(
+            "split_" + inputFile.getName() + "_", ".tmp", dir);
+        chunkFiles.add(chunkFile);
+        futures.add(pool.submit(() -> {
+          try {
+            final Chunk chunk = new Chunk(bytes);
+            try (final OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(chunkFile), 1024 * 1024)) {
+              chunk.write(out);
+            }
+            return chunkFile;
+          } finally {
+            permits.release();
+          }
+        }));
+      } while (pos < size);
+
+      for (final Future<File> future : futures) {
+        future.get();
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Merges the sorted chunk files into the output file with a heap of line
+   * cursors, one per file.
+   *
+   * @param chunkFiles the chunk files, in input order
+   * @param outputFile the output file
+   * @throws Exception the exception
+   */
+  private void mergeFiles(List<File> chunkFiles, File outputFile)
+    throws Exception {
+    final PriorityQueue<Cursor> heap = new PriorityQueue<>(chunkFiles.size());
+    final List<Cursor> cursors = new ArrayList<>();
+    try (final OutputStream out = new BufferedOutputStream(
+        new FileOutputStream(outputFile), 1024 * 1024)) {
+      for (int i = 0; i < chunkFiles.size(); i++) {
+        final Cursor cursor = new Cursor(chunkFiles.get(i), i);
+        cursors.add(cursor);
+        if (cursor.next()) {
+          heap.add(cursor);
+        }
+      }
+      while (!heap.isEmpty()) {
+        final Cursor cursor = heap.poll();
+        out.write(cursor.line, 0, cursor.length);
+        out.write('\n');
+        if (cursor.next()) {
+          heap.add(cursor);
+        }
+      }
+    } finally {
+      for (final Cursor cursor : cursors) {
+        cursor.close();
+      }
+    }
+  }
+
+  /**
+   * Returns the position after the last line feed of the buffer.
+   *
+   * @param buffer the buffer
+   * @return the position, or -1 if there is no line feed
+   */
+  private static int lastLineEnd(MappedByteBuffer buffer) {
+    for (int i = buffer.limit() - 1; i >= 0; i--) {
+      if (buffer.get(i) == '\n') {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Locates the sort keys of a line.
+   *
+   * @param bytes the bytes
+   * @param start the line start
+   * @param end the line end (exclusive)
+   * @param fieldBounds scratch space, 2 * (maxField + 1)
+   * @param keys the key bounds, start and end for each sort field
+   * @param offset the offset into keys
+   */
+  void locateKeys(byte[] bytes, int start, int end, int[] fieldBounds,
+    int[] keys, int offset) {
+    if (sortFields.length == 0) {
+      keys[offset] = start;
+      keys[offset + 1] = end;
+      return;
+    }
+    // missing fields are empty
+    Arrays.fill(fieldBounds, end);
+    int field = 0;
+    fieldBounds[0] = start;
+    for (int i = start; i < end && field <= maxField; i++) {
+      if (bytes[i] == delimiter) {
+        fieldBounds[2 * field + 1] = i;
+        field++;
+        if (field <= maxField) {
+          fieldBounds[2 * field] = i + 1;
+        }
+      }
+    }
+    for (int i = 0; i < sortFields.length; i++) {
+      keys[offset + 2 * i] = fieldBounds[2 * sortFields[i]];
+      keys[offset + 2 * i + 1] = fieldBounds[2 * sortFields[i] + 1];
+    }
+  }
+
+  /**
+   * Compares the keys of two lines as unsigned bytes.
+   *
+   * @param bytes1 the bytes of the first line
+   * @param keys1 the key bounds of the first line
+   * @param offset1 the offset into keys1
+   * @param bytes2 the bytes of the second line
+   * @param keys2 the key bounds of the second line
+   * @param offset2 the offset into keys2
+   * @return the comparison
+   */
+  int compareKeys(byte[] bytes1, int[] keys1, int offset1, byte[] bytes2,
+    int[] keys2, int offset2) {
+    final int ct = Math.max(1, sortFields.length);
+    for (int k = 0; k < ct; k++) {
+      int i = keys1[offset1 + 2 * k];
+      final int end1 = keys1[offset1 + 2 * k + 1];
+      int j = keys2[offset2 + 2 * k];
+      final int end2 = keys2[offset2 + 2 * k + 1];
+      while (i < end1 && j < end2) {
+        final int diff = (bytes1[i++] & 0xff) - (bytes2[j++] & 0xff);
+        if (diff != 0) {
+          return diff;
+        }
+      }
+      final int diff = (end1 - i) - (end2 - j);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * A chunk of lines in a byte array, sorted by index.
+   */
+  private class Chunk {
+
+    /** The bytes. */
+    private final byte[] bytes;
+
+    /** The line starts. */
+    private int[] starts;
+
+    /** The line ends, without terminators. */
+    private int[] ends;
+
+    /** The key bounds, 2 per sort field per line. */
+    private int[] keys;
+
+    /** The line count. */
+    private int ct;
+
+    /** The key width, 2 per sort field. */
+    private final int width = 2 * Math.max(1, sortFields.length);
+
+    /**
+     * Instantiates a {@link Chunk} from the specified parameters.
+     *
+     * @param bytes the bytes
+     */
+    Chunk(byte[] bytes) {
+      this.bytes = bytes;
+      int lines = 0;
+      for (final byte b : bytes) {
+        if (b == '\n') {
+          lines++;
+        }
+      }
+      if (bytes.length > 0 && bytes[bytes.length - 1] != '\n') {
+        lines++;
+      }
+      starts = new int[lines];
+      ends = new int[lines];
+      keys = new int[lines * width];
+      final int[] fieldBounds = new int[2 * (maxField + 1)];
+      int start = 0;
+      for (int i = 0; i <= bytes.length; i++) {
+        if (i == bytes.length ? i > start : bytes[i] == '\n') {
+          int end = i;
+          if (end > start && bytes[end - 1] == '\r') {
+            end--;
+          }
+          starts[ct] = start;
+          ends[ct] = end;
+          locateKeys(bytes, start, end, fieldBounds, keys, ct * width);
+          ct++;
+          start = i + 1;
+        }
+      }
+    }
+
+    /**
+     * Sorts the lines and writes them.
+     *
+     * @param out the out
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void write(OutputStream out) throws IOException {
+      final int[] order = new int[ct];
+      for (int i = 0; i < ct; i++) {
+        order[i] = i;
+      }
+      mergeSort(order, new int[ct], 0, ct);
+      for (final int i : order) {
+        out.write(bytes, starts[i], ends[i] - starts[i]);
+        out.write('\n');
+      }
+    }
+
+    /**
+     * Stable merge sort of line indexes.
+     *
+     * @param order the order
+     * @param temp the temp
+     * @param from the from
+     * @param to the to
+     */
+    private void mergeSort(int[] order, int[] temp, int from, int to) {
+      if (to - from < 16) {
+        // insertion sort
+        for (int i = from + 1; i < to; i++) {
+          final int line = order[i];
+          int j = i;
+          while (j > from && compare(order[j - 1], line) > 0) {
+            order[j] = order[j - 1];
+            j--;
+          }
+          order[j] = line;
+        }
+        return;
+      }
+      final int mid = (from + to) >>> 1;
+      mergeSort(order, temp, from, mid);
+      mergeSort(order, temp, mid, to);
+      if (compare(order[mid - 1], order[mid]) <= 0) {
+        return;
+      }
+      System.arraycopy(order, from, temp, from, to - from);
+      int i = from;
+      int j = mid;
+      for (int k = from; k < to; k++) {
+        if (j >= to || (i < mid && compare(temp[i], temp[j]) <= 0)) {
+          order[k] = temp[i++];
+        } else {
+          order[k] = temp[j++];
+        }
+      }
+    }
+
+    /**
+     * Compares two lines of the chunk.
+     *
+     * @param line1 the line 1
+     * @param line2 the line 2
+     * @return the comparison
+     */
+    private int compare(int line1, int line2) {
+      return compareKeys(bytes, keys, line1 * width, bytes, keys,
+          line2 * width);
+    }
+  }
+
+  /**
+   * The current line of a sorted chunk file.
+   */
+  private class Cursor implements Comparable<Cursor> {
+
+    /** The input. */
+    private final InputStream in;
+
+    /** The chunk index, for ties. */
+    private final int index;
+
+    /** The current line. */
+    byte[] line = new byte[1024];
+
+    /** The current line length. */
+    int length;
+
+    /** The key bounds of the current line. */
+    private final int[] keys = new int[2 * Math.max(1, sortFields.length)];
+
+    /** Scratch space for locating keys. */
+    private final int[] fieldBounds = new int[2 * (maxField + 1)];
+
+    /**
+     * Instantiates a {@link Cursor} from the specified parameters.
+     *
+     * @param file the file
+     * @param index the index
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    Cursor(File file, int index) throws IOException {
+      in = new BufferedInputStream(new FileInputStream(file), 1024 * 1024);
+      this.index = index;
+    }
+
+    /**
+     * Reads the next line.
+     *
+     * @return <code>true</code> if there was one, <code>false</code> at the
+     *         end of the file
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    boolean next() throws IOException {
+      length = 0;
+      int b;
+      while ((b = in.read()) != -1 && b != '\n') {
+        if (length == line.length) {
+          line = Arrays.copyOf(line, 2 * length);
+        }
+        line[length++] = (byte) b;
+      }
+      if (b == -1 && length == 0) {
+        return false;
+      }
+      locateKeys(line, 0, length, fieldBounds, keys, 0);
+      return true;
+    }
+
+    /* see superclass */
+    @Override
+    public int compareTo(Cursor o) {
+      final int diff = compareKeys(line, keys, 0, o.line, o.keys, 0);
+      return diff != 0 ? diff : Integer.compare(index, o.index);
+    }
+
+    /**
+     * Closes the input.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,502 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.algo;
+
+import java.util.Arrays;
+
+/**
+ * Compact, primitive-only representation of a hierarchy used by the closure
+ * and tree position algorithms. Entity ids are remapped to dense int indexes
+ * (in ascending id order) and the parent/child edges are stored as CSR
+ * (compressed sparse row) adjacency arrays, so no boxed {@link Long} objects
+ * or per-node collections are created regardless of the size of the
+ * hierarchy. The same structure is used for CONCEPT, DESCRIPTOR, CODE and ATOM
+ * hierarchies.
+ *
+ * <pre>
+ * final HierarchyGraph.Builder builder = new HierarchyGraph.Builder();
+ * builder.addEdge(parentId, childId);
+ * ...
+ * final HierarchyGraph graph = builder.build();
+ * graph.computeDescendants(false, (node, descendants) -&gt; { ... });
+ * </pre>
+ */
+public class HierarchyGraph {
+
+  /** The entity ids, sorted ascending; position is the node index. */
+  private final long[] ids;
+
+  /** The child offsets, children of node i are in [offsets[i],offsets[i+1]). */
+  private final int[] childOffsets;
+
+  /** The children, sorted ascending within each node. */
+  private final int[] children;
+
+  /** The parent offsets. */
+  private final int[] parentOffsets;
+
+  /** The parents, sorted ascending within each node. */
+  private final int[] parents;
+
+  /**
+   * Instantiates a {@link HierarchyGraph} from the specified arrays.
+   *
+   * @param ids the ids
+   * @param childOffsets the child offsets
+   * @param children the children
+   * @param parentOffsets the parent offsets
+   * @param parents the parents
+   */
+  HierarchyGraph(long[] ids, int[] childOffsets, int[] children,
+      int[] parentOffsets, int[] parents) {
+    this.ids = ids;
+    this.childOffsets = childOffsets;
+    this.children = children;
+    this.parentOffsets = parentOffsets;
+    this.parents = parents;
+  }
+
+  /**
+   * Returns the node count.
+   *
+   * @return the node count
+   */
+  public int getNodeCount() {
+    return ids.length;
+  }
+
+  /**
+   * Returns the edge count.
+   *
+   * @return the edge count
+   */
+  public int getEdgeCount() {
+    return children.length;
+  }
+
+  /**
+   * Returns the entity id for the specified node index.
+   *
+   * @param node the node index
+   * @return the id
+   */
+  public long getId(int node) {
+    return ids[node];
+  }
+
+  /**
+   * Returns the node index for the specified entity id, or -1 if the id is not
+   * part of the hierarchy.
+   *
+   * @param id the id
+   * @return the node index
+   */
+  public int getNode(long id) {
+    final int index = Arrays.binarySearch(ids, id);
+    return index < 0 ? -1 : index;
+  }
+
+  /**
+   * Returns the child count.
+   *
+   * @param node the node
+   * @return the child count
+   */
+  public int getChildCount(int node) {
+    return childOffsets[node + 1] - childOffsets[node];
+  }
+
+  /**
+   * Returns the parent count.
+   *
+   * @param node the node
+   * @return the parent count
+   */
+  public int getParentCount(int node) {
+    return parentOffsets[node + 1] - parentOffsets[node];
+  }
+
+  /**
+   * Returns the children of the node as a new array of node indexes.
+   *
+   * @param node the node
+   * @return the children
+   */
+  public int[] getChildren(int node) {
+    return Arrays.copyOfRange(children, childOffsets[node],
+        childOffsets[node + 1]);
+  }
+
+  /**
+   * Returns the child at the specified position for the node. Used to iterate
+   * over children without allocating.
+   *
+   * @param node the node
+   * @param i the position, between 0 and {@link #getChildCount(int)}
+   * @return the child node index
+   */
+  public int getChild(int node, int i) {
+    return children[childOffsets[node] + i];
+  }
+
+  /**
+   * Indicates whether the candidate is a direct child of the node.
+   *
+   * @param node the node
+   * @param candidate the candidate
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   */
+  public boolean isChild(int node, int candidate) {
+    return Arrays.binarySearch(children, childOffsets[node],
+        childOffsets[node + 1], candidate) >= 0;
+  }
+
+  /**
+   * Returns the root nodes (nodes with children but no parents), in ascending
+   * id order.
+   *
+   * @return the roots
+   */
+  public int[] getRoots() {
+    int ct = 0;
+    for (int i = 0; i < ids.length; i++) {
+      if (getParentCount(i) == 0 && getChildCount(i) > 0) {
+        ct++;
+      }
+    }
+    final int[] roots = new int[ct];
+    ct = 0;
+    for (int i = 0; i < ids.length; i++) {
+      if (getParentCount(i) == 0 && getChildCount(i) > 0) {
+        roots[ct++] = i;
+      }
+    }
+    return roots;
+  }
+
+  /**
+   * Computes the descendants of every node that has children and passes them
+   * to the handler. Nodes are visited in post-order (every node after all of
+   * its descendants) using an explicit stack, so arbitrarily deep hierarchies
+   * do not overflow the call stack. Descendant sets are memoized as sorted int
+   * arrays and released as soon as the last parent of a node has consumed
+   * them, keeping memory proportional to the active frontier rather than the
+   * full closure.
+   *
+   * @param cycleTolerant if <code>true</code>, edges closing a cycle are
+   *          ignored, otherwise an exception is thrown
+   * @param handler the handler
+   * @throws Exception the exception
+   */
+  public void computeDescendants(boolean cycleTolerant,
+    DescendantsHandler handler) throws Exception {
+    final int n = ids.length;
+    // 0 = unvisited, 1 = on the stack, 2 = done
+    final byte[] state = new byte[n];
+    // number of parents that still need the memoized descendants
+    final int[] pending = new int[n];
+    for (int i = 0; i < n; i++) {
+      pending[i] = getParentCount(i);
+    }
+    final int[][] memo = new int[n][];
+
+    // union scratch space, reused across nodes
+    final int[] stamp = new int[n];
+    Arrays.fill(stamp, -1);
+    IntBuffer buffer = new IntBuffer(1024);
+
+    // explicit dfs stack of (node, next child position)
+    final int[] stackNode = new int[n];
+    final int[] stackPos = new int[n];
+
+    for (int start = 0; start < n; start++) {
+      if (state[start] != 0) {
+        continue;
+      }
+      int depth = 0;
+      stackNode[0] = start;
+      stackPos[0] = 0;
+      state[start] = 1;
+      while (depth >= 0) {
+        final int node = stackNode[depth];
+        final int pos = stackPos[depth];
+        if (pos < getChildCount(node)) {
+          stackPos[depth]++;
+          final int chd = getChild(node, pos);
+          if (state[chd] == 1) {
+            if (!cycleTolerant) {
+              throw new Exception("Cycle detected: " + ids[chd] + ", "
+                  + describePath(stackNode, depth));
+            }
+            continue;
+          }
+          if (state[chd] == 0) {
+            state[chd] = 1;
+            depth++;
+            stackNode[depth] = chd;
+            stackPos[depth] = 0;
+          }
+          continue;
+        }
+
+        // all children are done, union their descendants
+        state[node] = 2;
+        depth--;
+        final int childCt = getChildCount(node);
+        if (childCt == 0) {
+          memo[node] = EMPTY;
+          continue;
+        }
+        buffer.clear();
+        for (int i = 0; i < childCt; i++) {
+          final int chd = getChild(node, i);
+          if (state[chd] != 2 || memo[chd] == null) {
+            // an ignored cycle edge
+            continue;
+          }
+          if (stamp[chd] != node) {
+            stamp[chd] = node;
+            buffer.add(chd);
+          }
+          for (final int desc : memo[chd]) {
+            if (stamp[desc] != node) {
+              stamp[desc] = node;
+              buffer.add(desc);
+            }
+          }
+        }
+        final int[] descendants = buffer.toSortedArray();
+        handler.handle(node, descendants);
+        memo[node] = descendants;
+
+        // release child descendant sets no longer needed
+        for (int i = 0; i < childCt; i++) {
+          final int chd = getChild(node, i);
+          if (--pending[chd] <= 0) {
+            memo[chd] = null;
+          }
+        }
+        if (pending[node] <= 0) {
+          memo[node] = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Describe path.
+   *
+   * @param stackNode the stack node
+   * @param depth the depth
+   * @return the string
+   */
+  private String describePath(int[] stackNode, int depth) {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("[");
+    for (int i = 0; i <= depth; i++) {
+      sb.append(i > 0 ? ", " : "").append(ids[stackNode[i]]);
+    }
+    sb.append("]");
+    return sb.toString();
+  }
+
+  /** The empty array. */
+  private static final int[] EMPTY = new int[0];
+
+  /**
+   * Callback receiving the descendants of a node.
+   */
+  public interface DescendantsHandler {
+
+    /**
+     * Handle the descendants of the node. The array is shared with the memo
+     * cache and must not be modified.
+     *
+     * @param node the node index
+     * @param descendants the descendant node indexes, sorted ascending
+     * @throws Exception the exception
+     */
+    public void handle(int node, int[] descendants) throws Exception;
+  }
+
+  /**
+   * Growable primitive int buffer.
+   */
+  static class IntBuffer {
+
+    /** The values. */
+    private int[] values;
+
+    /** The size. */
+    private int size;
+
+    /**
+     * Instantiates an {@link IntBuffer}.
+     *
+     * @param capacity the capacity
+     */
+    IntBuffer(int capacity) {
+      values = new int[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Adds the value.
+     *
+     * @param value the value
+     */
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, values.length * 2);
+      }
+      values[size++] = value;
+    }
+
+    /**
+     * Clear.
+     */
+    void clear() {
+      size = 0;
+    }
+
+    /**
+     * Returns the size.
+     *
+     * @return the size
+     */
+    int size() {
+      return size;
+    }
+
+    /**
+     * Returns a sorted copy of the contents.
+     *
+     * @return the int[]
+     */
+    int[] toSortedArray() {
+      final int[] result = Arrays.copyOf(values, size);
+      Arrays.sort(result);
+      return result;
+    }
+  }
+
+  /**
+   * Builder that accumulates parent/child edges as primitive longs.
+   */
+  public static class Builder {
+
+    /** The parent ids. */
+    private long[] pars = new long[1024];
+
+    /** The child ids. */
+    private long[] chds = new long[1024];
+
+    /** The edge count. */
+    private int ct = 0;
+
+    /**
+     * Adds a parent/child edge.
+     *
+     * @param par the parent id
+     * @param chd the child id
+     * @return the builder
+     */
+    public Builder addEdge(long par, long chd) {
+      if (ct == pars.length) {
+        pars = Arrays.copyOf(pars, pars.length * 2);
+        chds = Arrays.copyOf(chds, chds.length * 2);
+      }
+      pars[ct] = par;
+      chds[ct] = chd;
+      ct++;
+      return this;
+    }
+
+    /**
+     * Returns the number of edges added so far (including duplicates).
+     *
+     * @return the edge count
+     */
+    public int getEdgeCount() {
+      return ct;
+    }
+
+    /**
+     * Builds the graph. Duplicate edges are collapsed.
+     *
+     * @return the hierarchy graph
+     */
+    public HierarchyGraph build() {
+      // Compute distinct sorted ids
+      final long[] all = new long[ct * 2];
+      System.arraycopy(pars, 0, all, 0, ct);
+      System.arraycopy(chds, 0, all, ct, ct);
+      Arrays.sort(all);
+      int n = 0;
+      for (int i = 0; i < all.length; i++) {
+        if (i == 0 || all[i] != all[i - 1]) {
+          all[n++] = all[i];
+        }
+      }
+      final long[] ids = Arrays.copyOf(all, n);
+
+      // Remap to node indexes
+      final int[] from = new int[ct];
+      final int[] to = new int[ct];
+      for (int i = 0; i < ct; i++) {
+        from[i] = Arrays.binarySearch(ids, pars[i]);
+        to[i] = Arrays.binarySearch(ids, chds[i]);
+      }
+      pars = null;
+      chds = null;
+
+      final int[][] parChd = toCsr(n, from, to);
+      final int[][] chdPar = toCsr(n, to, from);
+      return new HierarchyGraph(ids, parChd[0], parChd[1], chdPar[0],
+          chdPar[1]);
+    }
+
+    /**
+     * Builds sorted, de-duplicated CSR arrays for the edges.
+     *
+     * @param n the node count
+     * @param src the source nodes
+     * @param dst the target nodes
+     * @return the offsets (index 0) and targets (index 1)
+     */
+    private static int[][] toCsr(int n, int[] src, int[] dst) {
+      final int[] offsets = new int[n + 1];
+      for (final int s : src) {
+        offsets[s + 1]++;
+      }
+      for (int i = 0; i < n; i++) {
+        offsets[i + 1] += offsets[i];
+      }
+      final int[] fill = Arrays.copyOf(offsets, n);
+      final int[] targets = new int[src.length];
+      for (int i = 0; i < src.length; i++) {
+        targets[fill[src[i]]++] = dst[i];
+      }
+
+      // sort and de-duplicate each row, compacting in place
+      int write = 0;
+      int rowStart = 0;
+      for (int i = 0; i < n; i++) {
+        final int rowEnd = offsets[i + 1];
+        Arrays.sort(targets, rowStart, rowEnd);
+        offsets[i] = write;
+        for (int j = rowStart; j < rowEnd; j++) {
+          if (j == rowStart || targets[j] != targets[j - 1]) {
+            targets[write++] = targets[j];
+          }
+        }
+        rowStart = rowEnd;
+      }
+      offsets[n] = write;
+      return new int[][] {
+          offsets, write == targets.length ? targets
+              : Arrays.copyOf(targets, write)
+      };
+    }
+  }
+}
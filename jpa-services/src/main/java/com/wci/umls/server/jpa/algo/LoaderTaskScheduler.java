@@ -0,0 +1,307 @@
+/**
+ * Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.algo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Runs loader tasks (typically one per input file) concurrently, subject to
+ * dependencies and resource conflicts. Each task names the tasks it must
+ * follow and the shared resources (e.g. "atoms" or "relationshipMap") it
+ * reads and writes. A task starts once its dependencies are finished and no
+ * running task writes a resource it reads or writes, or reads a resource it
+ * writes. Ready tasks start in the order they were added, so with a
+ * parallelism of one the tasks run in that order on the calling thread.
+ *
+ * Listener callbacks are always made on the calling thread, so a listener
+ * may use the caller's (non thread-safe) services.
+ */
+public class LoaderTaskScheduler {
+
+  /**
+   * The body of a task.
+   */
+  public interface Step {
+
+    /**
+     * Runs the step.
+     *
+     * @throws Exception the exception
+     */
+    public void run() throws Exception;
+  }
+
+  /**
+   * Listener for task progress.
+   */
+  public interface Listener {
+
+    /**
+     * Indicates a task has started.
+     *
+     * @param name the task name
+     * @param running the names of all running tasks
+     * @throws Exception the exception
+     */
+    public void started(String name, Set<String> running) throws Exception;
+
+    /**
+     * Indicates a task has finished.
+     *
+     * @param name the task name
+     * @param elapsed the elapsed time in ms
+     * @param finishedCt the number of finished tasks
+     * @param totalCt the total number of tasks
+     * @throws Exception the exception
+     */
+    public void finished(String name, long elapsed, int finishedCt,
+      int totalCt) throws Exception;
+
+    /**
+     * Indicates a task has failed. Called before waiting for the other
+     * running tasks, e.g. so they can be cancelled.
+     *
+     * @param name the task name
+     * @param e the exception
+     * @throws Exception the exception
+     */
+    public void failed(String name, Exception e) throws Exception;
+  }
+
+  /**
+   * A scheduled task.
+   */
+  private static class Task {
+
+    /** The name. */
+    private final String name;
+
+    /** The dependencies. */
+    private final Set<String> dependencies;
+
+    /** The resources read. */
+    private final Set<String> reads;
+
+    /** The resources written. */
+    private final Set<String> writes;
+
+    /** The step. */
+    private final Step step;
+
+    /** The start time. */
+    private long start;
+
+    /** The error, if the step failed. */
+    private Exception error;
+
+    /**
+     * Instantiates a {@link Task} from the specified parameters.
+     *
+     * @param name the name
+     * @param dependencies the dependencies
+     * @param reads the reads
+     * @param writes the writes
+     * @param step the step
+     */
+    Task(String name, Set<String> dependencies, Set<String> reads,
+        Set<String> writes, Step step) {
+      this.name = name;
+      this.dependencies = dependencies;
+      this.reads = reads;
+      this.writes = writes;
+      this.step = step;
+    }
+
+    /**
+     * Indicates whether this task conflicts with the other task.
+     *
+     * @param other the other task
+     * @return <code>true</code> if so, <code>false</code> otherwise
+     */
+    boolean conflictsWith(Task other) {
+      return !Collections.disjoint(writes, other.writes)
+          || !Collections.disjoint(writes, other.reads)
+          || !Collections.disjoint(reads, other.writes);
+    }
+  }
+
+  /** The tasks, by name. */
+  private final Map<String, Task> tasks = new LinkedHashMap<>();
+
+  /**
+   * Instantiates an empty {@link LoaderTaskScheduler}.
+   */
+  public LoaderTaskScheduler() {
+    // n/a
+  }
+
+  /**
+   * Adds a task. Dependencies on tasks that are never added are ignored, so
+   * optional tasks can be left out without changing the others.
+   *
+   * @param name the name
+   * @param dependencies the names of tasks that must finish first
+   * @param reads the resources read
+   * @param writes the resources written
+   * @param step the step
+   * @throws Exception the exception
+   */
+  public void addTask(String name, String[] dependencies, String[] reads,
+    String[] writes, Step step) throws Exception {
+    if (tasks.containsKey(name)) {
+      throw new Exception("Duplicate loader task " + name);
+    }
+    tasks.put(name,
+        new Task(name, new HashSet<>(Arrays.asList(dependencies)),
+            new HashSet<>(Arrays.asList(reads)),
+            new HashSet<>(Arrays.asList(writes)), step));
+  }
+
+  /**
+   * Runs the tasks and waits for them to finish. If a task fails, no further
+   * tasks are started and the first failure is thrown once the running tasks
+   * have finished.
+   *
+   * @param parallelism the maximum number of tasks run at once
+   * @param listener the listener
+   * @throws Exception the exception
+   */
+  public void run(int parallelism, Listener listener) throws Exception {
+    final int threads = Math.max(1, Math.min(parallelism, tasks.size()));
+    final List<Task> pending = new ArrayList<>(tasks.values());
+    final List<Task> running = new ArrayList<>();
+    final Set<String> finished = new HashSet<>();
+
+    // in-order on the calling thread
+    if (threads == 1) {
+      for (final Task task : pending) {
+        if (!isReady(task, finished, running)) {
+          throw new Exception(
+              "Loader task " + task.name + " added before its dependencies");
+        }
+        running.add(task);
+        listener.started(task.name, getNames(running));
+        task.start = System.currentTimeMillis();
+        try {
+          task.step.run();
+        } catch (Exception e) {
+          listener.failed(task.name, e);
+          throw e;
+        }
+        running.remove(task);
+        finished.add(task.name);
+        listener.finished(task.name, System.currentTimeMillis() - task.start,
+            finished.size(), tasks.size());
+      }
+      return;
+    }
+
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    final CompletionService<Task> completion =
+        new ExecutorCompletionService<>(pool);
+    Exception error = null;
+    try {
+      while (!running.isEmpty() || (error == null && !pending.isEmpty())) {
+
+        // start the ready tasks
+        for (final Iterator<Task> iter = pending.iterator(); error == null
+            && running.size() < threads && iter.hasNext();) {
+          final Task task = iter.next();
+          if (!isReady(task, finished, running)) {
+            continue;
+          }
+          iter.remove();
+          running.add(task);
+          listener.started(task.name, getNames(running));
+          task.start = System.currentTimeMillis();
+          completion.submit(() -> {
+            try {
+              task.step.run();
+            } catch (Exception e) {
+              task.error = e;
+            }
+            return task;
+          });
+        }
+        if (running.isEmpty()) {
+          throw new Exception("Unable to schedule loader tasks "
+              + getNames(pending) + ", finished = " + finished);
+        }
+
+        // wait for one to finish
+        final Task task = completion.take().get();
+        if (task.error != null) {
+          running.remove(task);
+          if (error == null) {
+            error = task.error;
+            listener.failed(task.name, task.error);
+          }
+          continue;
+        }
+        running.remove(task);
+        finished.add(task.name);
+        if (error == null) {
+          listener.finished(task.name,
+              System.currentTimeMillis() - task.start, finished.size(),
+              tasks.size());
+        }
+      }
+    } finally {
+      pool.shutdown();
+      pool.awaitTermination(1, TimeUnit.MINUTES);
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /**
+   * Indicates whether the task can start.
+   *
+   * @param task the task
+   * @param finished the finished task names
+   * @param running the running tasks
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   */
+  private boolean isReady(Task task, Set<String> finished,
+    List<Task> running) {
+    for (final String dependency : task.dependencies) {
+      if (tasks.containsKey(dependency) && !finished.contains(dependency)) {
+        return false;
+      }
+    }
+    for (final Task other : running) {
+      if (task.conflictsWith(other)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the names of the tasks.
+   *
+   * @param list the tasks
+   * @return the names
+   */
+  private static Set<String> getNames(List<Task> list) {
+    return list.stream().map(t -> t.name)
+        .collect(Collectors.toCollection(LinkedHashSet::new));
+  }
+}
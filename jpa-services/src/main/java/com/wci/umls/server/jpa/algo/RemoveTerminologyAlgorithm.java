@@ -15,6 +15,7 @@ import org.apache.log4j.Logger;
 import com.wci.umls.server.AlgorithmParameter;
 import com.wci.umls.server.ValidationResult;
 import com.wci.umls.server.helpers.ConfigUtility;
+import com.wci.umls.server.jpa.AlgorithmParameterJpa;
 import com.wci.umls.server.jpa.ValidationResultJpa;
 import com.wci.umls.server.jpa.content.AtomRelationshipJpa;
 import com.wci.umls.server.jpa.content.AtomSubsetJpa;
@@ -31,6 +32,8 @@ import com.wci.umls.server.jpa.content.ConceptTreePositionJpa;
 import com.wci.umls.server.jpa.content.DescriptorRelationshipJpa;
 import com.wci.umls.server.jpa.content.DescriptorTransitiveRelationshipJpa;
 import com.wci.umls.server.jpa.content.DescriptorTreePositionJpa;
+import com.wci.umls.server.jpa.services.handlers.expr.EclSearcherRegistry;
+import com.wci.umls.server.jpa.services.helper.AutocompleteSuggester;
 import com.wci.umls.server.model.content.Atom;
 import com.wci.umls.server.model.content.AtomRelationship;
 import com.wci.umls.server.model.content.Attribute;
@@ -71,6 +74,13 @@ public class RemoveTerminologyAlgorithm extends AbstractAlgorithm {
    */
   private boolean keepTerminology = false;
 
+  /**
+   * Indicates whether to remove content with set-based native deletes (see
+   * {@link BulkTerminologyRemover}) instead of per-object removes. Default is
+   * false.
+   */
+  private boolean bulkMode = false;
+
   /**
    * Instantiates an empty {@link RemoveTerminologyAlgorithm}.
    * @throws Exception if anything goes wrong
@@ -99,6 +109,15 @@ public class RemoveTerminologyAlgorithm extends AbstractAlgorithm {
     this.keepTerminology = keepTerminology;
   }
 
+  /**
+   * Sets the bulk mode flag.
+   *
+   * @param bulkMode the bulk mode
+   */
+  public void setBulkMode(boolean bulkMode) {
+    this.bulkMode = bulkMode;
+  }
+
   /* see superclass */
   @Override
   public void compute() throws Exception {
@@ -302,9 +321,78 @@ public class RemoveTerminologyAlgorithm extends AbstractAlgorithm {
     }
     commitClearBegin();
 
+    if (bulkMode) {
+      removeContentInBulk(terminology, version);
+    } else {
+      removeContent(terminology, version);
+    }
+
+    commit();
+    clear();
+
+    Logger.getLogger(getClass())
+        .info("Finished removing attributes ... " + new Date());
+    // set the transaction strategy based on status starting this routine
+    // setTransactionPerOperation(currentTransactionStrategy);
+
+    logInfo("  Remove expression indexes...");
+
+    EclSearcherRegistry.close(getTerminology(), getVersion());
+    ConfigUtility.removeExpressionIndexDirectory(getTerminology(),
+        getVersion());
+
+    logInfo("  Remove autocomplete indexes...");
+    AutocompleteSuggester.removeIndexes(getTerminology(), getVersion());
+
+    fireProgressEvent(100, "Finished...");
+  }
+
+  /**
+   * Removes the content of a terminology version with set-based deletes.
+   *
+   * @param terminology the terminology
+   * @param version the version
+   * @throws Exception the exception
+   */
+  private void removeContentInBulk(String terminology, String version)
+    throws Exception {
+    final BulkTerminologyRemover remover =
+        new BulkTerminologyRemover(manager, terminology, version);
+    remover.remove(new BulkTerminologyRemover.Listener() {
+
+      /* see superclass */
+      @Override
+      public void batchFinished(String name, int stepCt, int totalCt)
+        throws Exception {
+        commitClearBegin();
+        checkCancel();
+        fireProgressEvent((int) (100.0 * stepCt / totalCt),
+            "Removing " + name);
+      }
+
+      /* see superclass */
+      @Override
+      public void stepFinished(String name, long rowCt, long elapsed)
+        throws Exception {
+        logInfo("  " + name + " = " + rowCt + ", " + elapsed + "ms");
+      }
+    });
+  }
+
+  /**
+   * Removes the content of a terminology version, one object at a time.
+   *
+   * @param terminology the terminology
+   * @param version the version
+   * @throws Exception the exception
+   */
+  @SuppressWarnings("unchecked")
+  private void removeContent(String terminology, String version)
+    throws Exception {
+
     // remove concept subset members
     logInfo("  Remove concept subset members");
-    query = manager.createQuery(
+    Query query = manager.createQuery(
         "SELECT a.id FROM ConceptSubsetMemberJpa a WHERE terminology = :terminology "
             + " AND version = :version");
     query.setParameter("terminology", terminology);
@@ -959,21 +1047,6 @@ public class RemoveTerminologyAlgorithm extends AbstractAlgorithm {
       logAndCommit(++ct, RootService.logCt, RootService.commitCt);
     }
     commitClearBegin();
-
-    commit();
-    clear();
-
-    Logger.getLogger(getClass())
-        .info("Finished removing attributes ... " + new Date());
-    // set the transaction strategy based on status starting this routine
-    // setTransactionPerOperation(currentTransactionStrategy);
-
-    logInfo("  Remove expression indexes...");
-
-    ConfigUtility.removeExpressionIndexDirectory(getTerminology(),
-        getVersion());
-
-    fireProgressEvent(100, "Finished...");
   }
 
   /* see superclass */
@@ -985,7 +1058,15 @@ public class RemoveTerminologyAlgorithm extends AbstractAlgorithm {
   /* see superclass */
   @Override
   public List<AlgorithmParameter> getParameters() throws Exception {
-    return super.getParameters();
+    final List<AlgorithmParameter> params = super.getParameters();
+    final AlgorithmParameter param = new AlgorithmParameterJpa("Bulk mode",
+        "bulkMode",
+        "Remove content with set-based deletes and purge index documents "
+            + "by id, read in pages from the database, instead of removing "
+            + "one object at a time.",
+        "e.g. false", 0, AlgorithmParameter.Type.BOOLEAN, "false");
+    params.add(param);
+    return params;
   }
 
   /* see superclass */
@@ -997,7 +1078,9 @@ public class RemoveTerminologyAlgorithm extends AbstractAlgorithm {
   /* see superclass */
   @Override
   public void setProperties(Properties p) throws Exception {
-    // n/a
+    if (p.getProperty("bulkMode") != null) {
+      bulkMode = Boolean.parseBoolean(p.getProperty("bulkMode"));
+    }
   }
 
   /* see superclass */
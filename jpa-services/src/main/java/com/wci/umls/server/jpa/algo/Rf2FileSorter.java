@@ -335,10 +335,6 @@ public class Rf2FileSorter {
    */
   private void sortRf2File(File fileIn, File fileOut, final int[] sortColumns)
     throws Exception {
-    Comparator<String> comp;
-    // Comparator to split on \t and sort by sortColumn
-    comp = getComparator(sortColumns);
-
     StringBuilder columns = new StringBuilder();
     boolean first = true;
     for (final int sortColumn : sortColumns) {
@@ -350,7 +346,7 @@ public class Rf2FileSorter {
     }
     Logger.getLogger(getClass()).info("    Sorting " + fileIn.getName()
         + "  into " + fileOut.toString() + " by columns " + columns);
-    FileSorter.sortFile(fileIn.toString(), fileOut.toString(), comp);
+    new FieldedFileSorter('\t', sortColumns).sortFile(fileIn, fileOut);
 
   }
 
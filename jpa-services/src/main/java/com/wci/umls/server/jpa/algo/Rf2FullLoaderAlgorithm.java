@@ -165,6 +165,7 @@ public class Rf2FullLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
     algorithm.setReleaseVersion(releases.get(0));
     algorithm.setReaders(readers);
     algorithm.setSortFiles(false);
+    algorithm.setIdMapSpillDir(getIdMapSpillDir());
     algorithm.compute();
     algorithm.close();
 
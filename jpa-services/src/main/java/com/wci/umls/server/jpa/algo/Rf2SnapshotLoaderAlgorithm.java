@@ -47,6 +47,7 @@ import com.wci.umls.server.jpa.meta.RelationshipTypeJpa;
 import com.wci.umls.server.jpa.meta.RootTerminologyJpa;
 import com.wci.umls.server.jpa.meta.TermTypeJpa;
 import com.wci.umls.server.jpa.meta.TerminologyJpa;
+import com.wci.umls.server.jpa.services.helper.CompactIdMap;
 import com.wci.umls.server.model.content.Atom;
 import com.wci.umls.server.model.content.AtomSubset;
 import com.wci.umls.server.model.content.AtomSubsetMember;
@@ -128,7 +129,7 @@ public class Rf2SnapshotLoaderAlgorithm
   private Map<String, Set<Long>> definitionMap = new HashMap<>();
 
   /** The atom id map. */
-  private Map<String, Long> atomIdMap = new HashMap<>();
+  private CompactIdMap atomIdMap;
 
   /** The module ids. */
   private Set<String> moduleIds = new HashSet<>();
@@ -137,7 +138,7 @@ public class Rf2SnapshotLoaderAlgorithm
   private Map<String, Set<String>> moduleConceptIdMap = new HashMap<>();
 
   /** The concept id map. */
-  private Map<String, Long> conceptIdMap = new HashMap<>();
+  private CompactIdMap conceptIdMap;
 
   /** The atom subset map. */
   private Map<String, AtomSubset> atomSubsetMap = new HashMap<>();
@@ -227,6 +228,10 @@ public class Rf2SnapshotLoaderAlgorithm
       // faster performance.
       beginTransaction();
 
+      // Id maps
+      atomIdMap = newIdMap(100000);
+      conceptIdMap = newIdMap(100000);
+
       // Get release version if not set externally
       if (getReleaseVersion() == null) {
         setReleaseVersion(getFileVersion());
@@ -2093,6 +2098,9 @@ public class Rf2SnapshotLoaderAlgorithm
     if (p.getProperty("inputDir") != null) {
       setInputPath(p.getProperty("inputDir"));
     }
+    if (p.getProperty("idMapSpillDir") != null) {
+      setIdMapSpillDir(p.getProperty("idMapSpillDir"));
+    }
 
   }
 
@@ -2104,6 +2112,10 @@ public class Rf2SnapshotLoaderAlgorithm
         "inputDir", "Input RF2 Snapshot directory to load", "", 255,
         AlgorithmParameter.Type.DIRECTORY, "");
     params.add(param);
+    param = new AlgorithmParameterJpa("Id Map Spill Dir", "idMapSpillDir",
+        "Directory for memory-mapped id map files, empty to use the heap", "",
+        255, AlgorithmParameter.Type.DIRECTORY, "");
+    params.add(param);
     return params;
 
   }
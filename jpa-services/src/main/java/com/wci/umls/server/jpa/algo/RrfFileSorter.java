@@ -5,7 +5,6 @@ package com.wci.umls.server.jpa.algo;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -230,10 +229,6 @@ public class RrfFileSorter {
    */
   private void sortRrfFile(File fileIn, File fileOut, final int[] sortColumns)
     throws Exception {
-    Comparator<String> comp;
-    // Comparator to split on | and sort by sortColumn
-    comp = getComparator(sortColumns);
-
     StringBuilder columns = new StringBuilder();
     boolean first = true;
     for (final int sortColumn : sortColumns) {
@@ -246,31 +241,7 @@ public class RrfFileSorter {
     Logger.getLogger(getClass()).info(
         "    Sorting " + fileIn.getName() + "  into " + fileOut.toString()
             + " by columns " + columns);
-    FileSorter.sortFile(fileIn.toString(), fileOut.toString(), comp);
-
-  }
+    new FieldedFileSorter('|', sortColumns).sortFile(fileIn, fileOut);
 
-  /**
-   * Returns the comparator.
-   *
-   * @param sortColumns the sort columns
-   * @return the comparator
-   */
-  @SuppressWarnings("static-method")
-  private Comparator<String> getComparator(final int[] sortColumns) {
-    return new Comparator<String>() {
-      @Override
-      public int compare(String s1, String s2) {
-        String v1[] = s1.split("\\|");
-        String v2[] = s2.split("\\|");
-        for (final int sortColumn : sortColumns) {
-          final int cmp = v1[sortColumn].compareTo(v2[sortColumn]);
-          if (cmp != 0) {
-            return cmp;
-          }
-        }
-        return 0;
-      }
-    };
   }
 }
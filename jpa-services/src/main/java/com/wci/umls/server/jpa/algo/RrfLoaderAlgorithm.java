@@ -20,6 +20,8 @@ import java.util.stream.Collectors;
 import javax.persistence.Query;
 
 import org.apache.log4j.Logger;
+import org.hibernate.search.jpa.FullTextEntityManager;
+import org.hibernate.search.jpa.Search;
 
 import com.google.common.io.Files;
 import com.wci.umls.server.AlgorithmParameter;
@@ -69,6 +71,9 @@ import com.wci.umls.server.jpa.meta.RootTerminologyJpa;
 import com.wci.umls.server.jpa.meta.SemanticTypeJpa;
 import com.wci.umls.server.jpa.meta.TermTypeJpa;
 import com.wci.umls.server.jpa.meta.TerminologyJpa;
+import com.wci.umls.server.jpa.services.helper.AttributeBulkWriter;
+import com.wci.umls.server.jpa.services.helper.CompactIdMap;
+import com.wci.umls.server.jpa.services.helper.CompactStringMap;
 import com.wci.umls.server.model.content.Atom;
 import com.wci.umls.server.model.content.AtomClass;
 import com.wci.umls.server.model.content.AtomRelationship;
@@ -77,8 +82,8 @@ import com.wci.umls.server.model.content.AtomSubsetMember;
 import com.wci.umls.server.model.content.AtomTreePosition;
 import com.wci.umls.server.model.content.Attribute;
 import com.wci.umls.server.model.content.Code;
-import com.wci.umls.server.model.content.CodeRelationship;
 import com.wci.umls.server.model.content.ComponentHasAttributes;
+import com.wci.umls.server.model.content.CodeRelationship;
 import com.wci.umls.server.model.content.ComponentHasAttributesAndName;
 import com.wci.umls.server.model.content.ComponentHistory;
 import com.wci.umls.server.model.content.ComponentInfoRelationship;
@@ -167,31 +172,40 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
   private Map<String, IdType> termIdTypeMap = new HashMap<>();
 
   /** The code map. */
-  private Map<String, Long> codeIdMap = new HashMap<>(100000);
+  private CompactIdMap codeIdMap;
 
   /** The concept map. */
-  private Map<String, Long> conceptIdMap = new HashMap<>(100000);
+  private CompactIdMap conceptIdMap;
 
   /** The descriptor map. */
-  private Map<String, Long> descriptorIdMap = new HashMap<>(100000);
+  private CompactIdMap descriptorIdMap;
 
   /** The atom map. */
-  private Map<String, Long> atomIdMap = new HashMap<>(100000);
+  private CompactIdMap atomIdMap;
 
   /** The atom concept id map. */
-  private Map<String, String> atomConceptIdMap = new HashMap<>(100000);
+  private CompactStringMap atomConceptIdMap;
 
   /** The atom terminology map. */
-  private Map<String, String> atomTerminologyMap = new HashMap<>(100000);
+  private CompactStringMap atomTerminologyMap;
 
   /** The atom code id map. */
-  private Map<String, String> atomCodeIdMap = new HashMap<>(100000);
+  private CompactStringMap atomCodeIdMap;
 
   /** The atom descriptor id map. */
-  private Map<String, String> atomDescriptorIdMap = new HashMap<>(100000);
+  private CompactStringMap atomDescriptorIdMap;
 
   /** The relationship map. */
-  private Map<String, Long> relationshipMap = new HashMap<>(100000);
+  private CompactIdMap relationshipMap;
+
+  /**
+   * Indicates whether MRSAT attributes are attached by writing owner join
+   * rows directly instead of through loaded owners.
+   */
+  private boolean bulkAttributeMode = false;
+
+  /** The attribute writer, while loading MRSAT in bulk attribute mode. */
+  private AttributeBulkWriter attributeWriter;
 
   /** The cui aui atom subset map. */
   private Map<String, AtomSubset> cuiAuiAtomSubsetMap = new HashMap<>();
@@ -221,6 +235,13 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
   /** The umls identity loader algo. */
   private UmlsIdentityLoaderAlgorithm umlsIdentityLoaderAlgo;
 
+  /** The number of content files loaded at once. */
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
+  /** The loaders running content files concurrently. */
+  private final List<RrfLoaderAlgorithm> workers =
+      Collections.synchronizedList(new ArrayList<>());
+
   /**
    * map track metadata for REL, RELA, ATN, TTY, etc e.g. sab -> type ->
    * abbreviationSet; Initialized in loadMrsab()
@@ -275,6 +296,34 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
     this.style = style;
   }
 
+  /**
+   * Sets the bulk attribute mode.
+   *
+   * @param bulkAttributeMode the bulk attribute mode
+   */
+  public void setBulkAttributeMode(boolean bulkAttributeMode) {
+    this.bulkAttributeMode = bulkAttributeMode;
+  }
+
+  /**
+   * Returns the parallelism.
+   *
+   * @return the parallelism
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Sets the number of content files loaded at once. With a parallelism of
+   * one, files are loaded in order by this loader.
+   *
+   * @param parallelism the parallelism
+   */
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
   /**
    * Sets the prefix.
    *
@@ -339,6 +388,17 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
     Logger.getLogger(getClass())
         .info("  releaseVersion = " + getReleaseVersion());
 
+    // Id maps
+    codeIdMap = newIdMap(100000);
+    conceptIdMap = newIdMap(100000);
+    descriptorIdMap = newIdMap(100000);
+    atomIdMap = newIdMap(100000);
+    atomConceptIdMap = newStringMap(100000);
+    atomTerminologyMap = newStringMap(100000);
+    atomCodeIdMap = newStringMap(100000);
+    atomDescriptorIdMap = newStringMap(100000);
+    relationshipMap = newIdMap(100000);
+
     // Open readers - just open original RRF, no need to sort
     readers = new RrfReaders(inputDirFile);
     // Use default prefix if not specified
@@ -375,36 +435,103 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
     // lazy initialize?
     list.getPrecedence().getKeyValuePairs().size();
     loadMrconso();
+    commitClearBegin();
+
+    // Load the other content files, concurrently where they do not touch the
+    // same objects. The id maps are complete after MRCONSO and only read
+    // from here on, except relationshipMap (MRREL, then MRSAT).
+    final LoaderTaskScheduler scheduler = new LoaderTaskScheduler();
 
     // Loadable hierarchies, NOTE: only terminologies that cannot be
     // computed via transitive closure should appear here.
-    loadMrhier();
+    scheduler.addTask("MRHIER", new String[] {}, new String[] {
+        "atoms"
+    }, new String[] {
+            "treePositions", "rootTerminologies"
+        }, getLoaderStep(algo -> algo.loadMrhier()));
 
     // Definitions
-    loadMrdef();
+    scheduler.addTask("MRDEF", new String[] {}, new String[] {},
+        new String[] {
+            "atoms"
+        }, getLoaderStep(algo -> algo.loadMrdef()));
 
     // Semantic Types (for META styles)
     if (style.toString().startsWith("META")) {
-      loadMrsty();
+      scheduler.addTask("MRSTY", new String[] {}, new String[] {},
+          new String[] {
+              "concepts"
+          }, getLoaderStep(algo -> algo.loadMrsty()));
     }
 
-    // Relationships
-    loadMrrel();
+    // Relationships, which look up their endpoints
+    scheduler.addTask("MRREL", new String[] {}, new String[] {
+        "atoms", "concepts", "codes", "descriptors"
+    }, new String[] {
+            "relationships", "relationshipMap", "terminologies",
+            "sourceMetadata"
+        }, getLoaderStep(algo -> algo.loadMrrel()));
 
     // Attributes
-    loadMrsat();
+    scheduler.addTask("MRSAT", new String[] {
+        "MRREL"
+    }, new String[] {
+        "relationshipMap", "terminologies"
+    }, new String[] {
+        "atoms", "concepts", "codes", "descriptors", "relationships",
+        "sourceMetadata", "mapSets", "moduleConceptIds"
+    }, getLoaderStep(algo -> algo.loadMrsat()));
 
     // Load concept and atom history data
     // skip in single/multi mode
     if (style.toString().startsWith("META")) {
-      loadHistory();
+      scheduler.addTask("MRCUI", new String[] {}, new String[] {},
+          new String[] {
+              "componentHistory"
+          }, getLoaderStep(algo -> algo.loadHistory()));
     }
 
     // Mappings - only for non-single mode (multi?)
     if (style != Style.SINGLE) {
-      loadMrmap();
+      scheduler.addTask("MRMAP", new String[] {
+          "MRSAT"
+      }, new String[] {
+          "terminologies"
+      }, new String[] {
+          "mapSets", "sourceMetadata"
+      }, getLoaderStep(algo -> algo.loadMrmap()));
     }
 
+    scheduler.run(parallelism, new LoaderTaskScheduler.Listener() {
+
+      /* see superclass */
+      @Override
+      public void started(String name, Set<String> running) throws Exception {
+        logInfo("  Start " + name + " (running = " + running + ")");
+      }
+
+      /* see superclass */
+      @Override
+      public void finished(String name, long elapsed, int finishedCt,
+        int totalCt) throws Exception {
+        logInfo("  Finish " + name + ", elapsed time = " + (elapsed / 1000)
+            + "s (" + finishedCt + " of " + totalCt + ")");
+        fireProgressEvent(finishedCt * 100 / totalCt, name + " loaded");
+      }
+
+      /* see superclass */
+      @Override
+      public void failed(String name, Exception e) throws Exception {
+        logError("  Failed " + name + ", " + e.getMessage());
+        // stop the other loaders at their next commit
+        synchronized (workers) {
+          for (final RrfLoaderAlgorithm worker : workers) {
+            worker.cancel();
+          }
+        }
+      }
+    });
+
     // Need to reset MRSAT reader
     readers.closeReaders();
     readers.openOriginalReaders(prefix);
@@ -463,6 +590,110 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
 
   }
 
+  /**
+   * A loader method, e.g. loadMrdef.
+   */
+  private interface LoaderStep {
+
+    /**
+     * Loads using the specified loader.
+     *
+     * @param loader the loader
+     * @throws Exception the exception
+     */
+    public void load(RrfLoaderAlgorithm loader) throws Exception;
+  }
+
+  /**
+   * Returns a scheduler step for the loader method. With parallelism, the
+   * step runs on its own worker loader, with its own entity manager and
+   * transaction, sharing this loader's state.
+   *
+   * @param step the step
+   * @return the loader step
+   */
+  private LoaderTaskScheduler.Step getLoaderStep(LoaderStep step) {
+    if (parallelism <= 1) {
+      return () -> step.load(this);
+    }
+    return () -> {
+      final RrfLoaderAlgorithm worker = newWorker();
+      try {
+        step.load(worker);
+        worker.commit();
+      } catch (Exception e) {
+        worker.rollback();
+        throw e;
+      } finally {
+        workers.remove(worker);
+        worker.close();
+      }
+    };
+  }
+
+  /**
+   * Returns a new worker loader sharing this loader's state, with an open
+   * transaction.
+   *
+   * @return the worker
+   * @throws Exception the exception
+   */
+  private RrfLoaderAlgorithm newWorker() throws Exception {
+    final RrfLoaderAlgorithm worker = new RrfLoaderAlgorithm();
+    // share the settings
+    worker.prefix = prefix;
+    worker.style = style;
+    worker.releaseVersionDate = releaseVersionDate;
+    worker.bulkAttributeMode = bulkAttributeMode;
+    worker.list = list;
+    // share the readers
+    worker.readers = readers;
+    // share the metadata maps
+    worker.loadedTerminologies = loadedTerminologies;
+    worker.loadedRootTerminologies = loadedRootTerminologies;
+    worker.loadedLanguages = loadedLanguages;
+    worker.loadedTermTypes = loadedTermTypes;
+    worker.termIdTypeMap = termIdTypeMap;
+    worker.sourceMetadataMap = sourceMetadataMap;
+    // share the id maps
+    worker.codeIdMap = codeIdMap;
+    worker.conceptIdMap = conceptIdMap;
+    worker.descriptorIdMap = descriptorIdMap;
+    worker.atomIdMap = atomIdMap;
+    worker.atomConceptIdMap = atomConceptIdMap;
+    worker.atomTerminologyMap = atomTerminologyMap;
+    worker.atomCodeIdMap = atomCodeIdMap;
+    worker.atomDescriptorIdMap = atomDescriptorIdMap;
+    worker.relationshipMap = relationshipMap;
+    // share the subset, module and map set maps
+    worker.cuiAuiAtomSubsetMap = cuiAuiAtomSubsetMap;
+    worker.cuiAuiConceptSubsetMap = cuiAuiConceptSubsetMap;
+    worker.idTerminologyAtomSubsetMap = idTerminologyAtomSubsetMap;
+    worker.idTerminologyConceptSubsetMap = idTerminologyConceptSubsetMap;
+    worker.moduleConceptIdMap = moduleConceptIdMap;
+    worker.mapSetMap = mapSetMap;
+    worker.setTerminology(getTerminology());
+    worker.setVersion(getVersion());
+    worker.setActivityId(getActivityId());
+    worker.setWorkId(getWorkId());
+    worker.setProject(getProject());
+    worker.setProcess(getProcess());
+    worker.setInputPath(getInputPath());
+    worker.setReleaseVersion(getReleaseVersion());
+    worker.setSortFiles(isSortFiles());
+    worker.setLastModifiedBy(getLastModifiedBy());
+    worker.setTransactionPerOperation(false);
+    worker.setAssignIdentifiersFlag(false);
+    worker.setLastModifiedFlag(false);
+    worker.setMolecularActionFlag(false);
+    worker.beginTransaction();
+    workers.add(worker);
+    if (isCancelled()) {
+      worker.cancel();
+    }
+    return worker;
+  }
+
   /**
    * Load release info.
    *
@@ -1430,6 +1661,11 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
    */
   private void loadMrsat() throws Exception {
     logInfo("  Load MRSAT data");
+    if (bulkAttributeMode) {
+      logInfo("    bulk attribute mode");
+      attributeWriter = new AttributeBulkWriter(getEntityManager(),
+          AttributeBulkWriter.DEFAULT_BATCH_SIZE);
+    }
     String line = null;
 
     int objectCt = 0;
@@ -1514,14 +1750,13 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
         continue;
 
       } else if (fields[4].equals("AUI")) {
-        // Get the concept for the AUI
-        Atom atom = getAtom(atomIdMap.get(fields[3]));
+        // Get the atom for the AUI
+        final Long atomId = atomIdMap.get(fields[3]);
         // These are likely attributes on SRC thing, skip
-        if (atom == null && style == Style.MULTI) {
+        if (atomId == null && style == Style.MULTI) {
           continue;
         }
-        atom.getAttributes().add(att);
-        addAttribute(att, atom);
+        addAttribute(att, AtomJpa.class, atomId);
       }
       // Special case of a CODE attribute where the AUI has "NOCODE" as the code
       // UMLS has one case of an early XM atom with NOCODE (ICD9CM to CCS map)
@@ -1529,16 +1764,11 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
       // objects.
       else if (fields[4].equals("CODE")
           && atomCodeIdMap.get(fields[3]).equals("NOCODE")) {
-        // Get the concept for the AUI
-        final Atom atom = getAtom(atomIdMap.get(fields[3]));
-        atom.getAttributes().add(att);
-        addAttribute(att, atom);
+        // Get the atom for the AUI
+        addAttribute(att, AtomJpa.class, atomIdMap.get(fields[3]));
       } else if (fields[4].equals("RUI")) {
         // Get the relationship for the RUI
-        final Relationship<? extends ComponentInfo, ? extends ComponentInfo> relationship =
-            getRelationship(relationshipMap.get(fields[3]), null);
-        relationship.getAttributes().add(att);
-        addAttribute(att, relationship);
+        addAttribute(att, Relationship.class, relationshipMap.get(fields[3]));
       } else if (fields[4].equals("CODE")) {
         final Long codeId = codeIdMap.get(
             atomTerminologyMap.get(fields[3]) + atomCodeIdMap.get(fields[3]));
@@ -1549,9 +1779,7 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
               .error("Referential integrity issue with field 3: " + fields[3]);
         } else {
           // Get the code for the terminology and CODE of the AUI
-          final Code code = getCode(codeId);
-          code.getAttributes().add(att);
-          addAttribute(att, code);
+          addAttribute(att, CodeJpa.class, codeId);
         }
       }
       // Only handle CUI attributes in META mode
@@ -1559,20 +1787,24 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
         // Get the concept for the terminology and CUI
         att.setTerminology(getTerminology());
         att.setVersion(getVersion());
-        final Concept concept =
-            getConcept(conceptIdMap.get(getTerminology() + fields[0]));
+        final Long conceptId = conceptIdMap.get(getTerminology() + fields[0]);
         // Handle, DA, MR, and ST
-        if (att.getName().equals("DA")) {
-          concept.setTimestamp(ConfigUtility.DATE_FORMAT.parse(att.getValue()));
+        if (attributeWriter != null && (att.getName().equals("DA")
+            || att.getName().equals("MR"))) {
+          attributeWriter.updateDate(ConceptJpa.class,
+              att.getName().equals("DA") ? "timestamp" : "lastModified",
+              conceptId, ConfigUtility.DATE_FORMAT.parse(att.getValue()));
+        } else if (att.getName().equals("DA")) {
+          getConcept(conceptId).setTimestamp(
+              ConfigUtility.DATE_FORMAT.parse(att.getValue()));
         } else if (att.getName().equals("MR")) {
-          concept
-              .setLastModified(ConfigUtility.DATE_FORMAT.parse(att.getValue()));
+          getConcept(conceptId).setLastModified(
+              ConfigUtility.DATE_FORMAT.parse(att.getValue()));
         } else if (att.getName().equals("ST")) {
           // n/a - skip ST
         } else {
           // Add any other attributes
-          concept.getAttributes().add(att);
-          addAttribute(att, concept);
+          addAttribute(att, ConceptJpa.class, conceptId);
         }
       } else if (fields[4].equals("SCUI")) {
         // Get the concept for the terminology and SCUI of the AUI
@@ -1586,11 +1818,7 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
               .error("Referential integrity issue with field 3: " + fields[3]);
 
         } else {
-          final Concept concept =
-              getConcept(conceptIdMap.get(atomTerminologyMap.get(fields[3])
-                  + atomConceptIdMap.get(fields[3])));
-          concept.getAttributes().add(att);
-          addAttribute(att, concept);
+          addAttribute(att, ConceptJpa.class, conceptId);
         }
       } else if (fields[4].equals("SDUI")) {
         final Long descriptorId =
@@ -1604,9 +1832,7 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
 
         } else {
           // Get the descriptor for the terminology and SDUI of the AUI
-          final Descriptor descriptor = getDescriptor(descriptorId);
-          descriptor.getAttributes().add(att);
-          addAttribute(att, descriptor);
+          addAttribute(att, DescriptorJpa.class, descriptorId);
         }
       }
 
@@ -1617,6 +1843,10 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
 
       // Update objects before commit
       if (++objectCt % commitCt == 0) {
+        // Write pending owner rows
+        if (attributeWriter != null) {
+          attributeWriter.flush();
+        }
         // Update objects with new attributes
         for (final Concept c : modifiedConcepts) {
           updateConcept(c);
@@ -1738,11 +1968,84 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
     }
     modifiedDescriptors.clear();
 
+    // Write the last owner rows and index concepts whose dates changed
+    if (attributeWriter != null) {
+      attributeWriter.flush();
+      commitClearBegin();
+      logInfo("    bulk attached attributes = "
+          + attributeWriter.getTotalCount());
+      reindexConcepts(attributeWriter.getUpdatedIds());
+      attributeWriter = null;
+    }
+
     // commit
     commitClearBegin();
 
   }
 
+  /**
+   * Adds the attribute and attaches it to its owner. In bulk attribute mode
+   * the owner is not loaded and the join-table row is written by the
+   * {@link AttributeBulkWriter}.
+   *
+   * @param att the attribute
+   * @param ownerClass the owner class, or {@link Relationship} for a
+   *          relationship of any type
+   * @param ownerId the owner id
+   * @throws Exception the exception
+   */
+  private void addAttribute(Attribute att, Class<?> ownerClass, Long ownerId)
+    throws Exception {
+    if (attributeWriter != null) {
+      if (ownerId == null) {
+        throw new Exception("Attribute owner not found for " + att);
+      }
+      addAttribute(att, (ComponentInfo) null);
+      if (ownerClass == Relationship.class) {
+        attributeWriter.addRelationshipAttribute(ownerId, att.getId());
+      } else {
+        attributeWriter.add(ownerClass, ownerId, att.getId());
+      }
+      return;
+    }
+    final ComponentHasAttributes owner;
+    if (ownerClass == Relationship.class) {
+      owner = getRelationship(ownerId, null);
+    } else if (ownerClass == AtomJpa.class) {
+      owner = getAtom(ownerId);
+    } else if (ownerClass == ConceptJpa.class) {
+      owner = getConcept(ownerId);
+    } else if (ownerClass == CodeJpa.class) {
+      owner = getCode(ownerId);
+    } else {
+      owner = getDescriptor(ownerId);
+    }
+    owner.getAttributes().add(att);
+    addAttribute(att, owner);
+  }
+
+  /**
+   * Reindexes the concepts, committing periodically.
+   *
+   * @param conceptIds the concept ids
+   * @throws Exception the exception
+   */
+  private void reindexConcepts(Set<Long> conceptIds) throws Exception {
+    logInfo("    reindex concepts = " + conceptIds.size());
+    final FullTextEntityManager fullTextEntityManager =
+        Search.getFullTextEntityManager(getEntityManager());
+    int ct = 0;
+    for (final Long conceptId : conceptIds) {
+      fullTextEntityManager.index(getConcept(conceptId));
+      if (++ct % commitCt == 0) {
+        fullTextEntityManager.flushToIndexes();
+        commitClearBegin();
+      }
+    }
+    fullTextEntityManager.flushToIndexes();
+    commitClearBegin();
+  }
+
   /**
    * Checks if is map set attribute.
    *
@@ -3720,6 +4023,11 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
     if (umlsIdentityLoaderAlgo != null) {
       umlsIdentityLoaderAlgo.cancel();
     }
+    synchronized (workers) {
+      for (final RrfLoaderAlgorithm worker : workers) {
+        worker.cancel();
+      }
+    }
     // invoke superclass cancel
     super.cancel();
   }
@@ -3748,6 +4056,16 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
     if (p.getProperty("style") != null) {
       style = Style.valueOf(p.getProperty("style"));
     }
+    if (p.getProperty("bulkAttributeMode") != null) {
+      bulkAttributeMode =
+          Boolean.parseBoolean(p.getProperty("bulkAttributeMode"));
+    }
+    if (p.getProperty("idMapSpillDir") != null) {
+      setIdMapSpillDir(p.getProperty("idMapSpillDir"));
+    }
+    if (p.getProperty("parallelism") != null) {
+      parallelism = Integer.parseInt(p.getProperty("parallelism"));
+    }
     if (p.getProperty("inputDir") != null) {
       setInputPath(p.getProperty("inputDir"));
     }
@@ -3783,6 +4101,19 @@ public class RrfLoaderAlgorithm extends AbstractTerminologyLoaderAlgorithm {
         "Proxy terminology value in RRF data", "MTH", 50,
         AlgorithmParameter.Type.STRING, "");
     params.add(param);
+    param = new AlgorithmParameterJpa("Bulk Attribute Mode",
+        "bulkAttributeMode",
+        "Attach MRSAT attributes without loading their owners", "false", -1,
+        AlgorithmParameter.Type.BOOLEAN, "");
+    params.add(param);
+    param = new AlgorithmParameterJpa("Id Map Spill Dir", "idMapSpillDir",
+        "Directory for memory-mapped id map files, empty to use the heap", "",
+        255, AlgorithmParameter.Type.DIRECTORY, "");
+    params.add(param);
+    param = new AlgorithmParameterJpa("Parallelism", "parallelism",
+        "Number of content files loaded at once", "e.g. 4", 10,
+        AlgorithmParameter.Type.INTEGER, "");
+    params.add(param);
 
     return params;
   }
@@ -3,39 +3,15 @@
  */
 package com.wci.umls.server.jpa.algo;
 
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
-
-import org.apache.log4j.Logger;
 
 import com.wci.umls.server.ValidationResult;
 import com.wci.umls.server.helpers.CancelException;
 import com.wci.umls.server.helpers.ConfigUtility;
 import com.wci.umls.server.jpa.ValidationResultJpa;
-import com.wci.umls.server.jpa.content.AtomJpa;
-import com.wci.umls.server.jpa.content.AtomTransitiveRelationshipJpa;
-import com.wci.umls.server.jpa.content.CodeJpa;
-import com.wci.umls.server.jpa.content.CodeTransitiveRelationshipJpa;
-import com.wci.umls.server.jpa.content.ConceptJpa;
-import com.wci.umls.server.jpa.content.ConceptTransitiveRelationshipJpa;
-import com.wci.umls.server.jpa.content.DescriptorJpa;
-import com.wci.umls.server.jpa.content.DescriptorTransitiveRelationshipJpa;
-import com.wci.umls.server.model.content.Atom;
-import com.wci.umls.server.model.content.AtomTransitiveRelationship;
-import com.wci.umls.server.model.content.Code;
-import com.wci.umls.server.model.content.CodeTransitiveRelationship;
-import com.wci.umls.server.model.content.ComponentHasAttributes;
-import com.wci.umls.server.model.content.Concept;
-import com.wci.umls.server.model.content.ConceptTransitiveRelationship;
-import com.wci.umls.server.model.content.Descriptor;
-import com.wci.umls.server.model.content.DescriptorTransitiveRelationship;
-import com.wci.umls.server.model.content.TransitiveRelationship;
+import com.wci.umls.server.jpa.services.helper.TransitiveRelationshipBulkWriter;
 import com.wci.umls.server.model.meta.IdType;
 import com.wci.umls.server.services.ContentService;
 import com.wci.umls.server.services.RootService;
@@ -46,9 +22,6 @@ import com.wci.umls.server.services.RootService;
  */
 public class TransitiveClosureAlgorithm extends AbstractAlgorithm {
 
-  /** The descendants map. */
-  private Map<Long, Set<Long>> descendantsMap = new HashMap<>();
-
   /** The id type. */
   private IdType idType;
 
@@ -152,20 +125,13 @@ public class TransitiveClosureAlgorithm extends AbstractAlgorithm {
 
     @SuppressWarnings("unchecked")
     final List<Object[]> rels = query.getResultList();
-    final Map<Long, Set<Long>> parChd = new HashMap<>();
-    final Set<Long> allNodes = new HashSet<>();
+    final HierarchyGraph.Builder builder = new HierarchyGraph.Builder();
     int ct = 0;
     for (final Object[] rel : rels) {
       ct++;
-      final Long chd = Long.parseLong(rel[0].toString());
-      final Long par = Long.parseLong(rel[1].toString());
-      allNodes.add(par);
-      allNodes.add(chd);
-      if (!parChd.containsKey(par)) {
-        parChd.put(par, new HashSet<Long>());
-      }
-      final Set<Long> children = parChd.get(par);
-      children.add(chd);
+      final long chd = ((Number) rel[0]).longValue();
+      final long par = ((Number) rel[1]).longValue();
+      builder.addEdge(par, chd);
       // Check cancel flag
       if (ct % RootService.logCt == 0 && isCancelled()) {
         rollback();
@@ -178,9 +144,9 @@ public class TransitiveClosureAlgorithm extends AbstractAlgorithm {
       return;
     }
 
-    else {
-      logInfo("  concepts with descendants = " + parChd.size());
-    }
+    final HierarchyGraph graph = builder.build();
+    logInfo("  nodes = " + graph.getNodeCount());
+    logInfo("  edges = " + graph.getEdgeCount());
 
     // Disable transaction per operation and start transaction
     // Keep this below the read query above
@@ -195,67 +161,31 @@ public class TransitiveClosureAlgorithm extends AbstractAlgorithm {
     //
     fireProgressEvent(8, "Create transitive closure relationships");
 
+    // Rows are streamed straight into the table with JDBC batch inserts
+    final TransitiveRelationshipBulkWriter writer =
+        getTransitiveRelationshipBulkWriter(idType, getTerminology(),
+            getVersion(), startDate);
+
     // Create "self" entries
-    ct = 0;
-    for (final Long code : allNodes) {
-
-      // Create a "self" transitive relationship
-      TransitiveRelationship<? extends ComponentHasAttributes> tr = null;
-      if (idType == IdType.CONCEPT) {
-        final ConceptTransitiveRelationship ctr =
-            new ConceptTransitiveRelationshipJpa();
-        final Concept superType = new ConceptJpa();
-        superType.setId(code);
-        ctr.setSuperType(superType);
-        ctr.setSubType(ctr.getSuperType());
-        tr = ctr;
-      } else if (idType == IdType.DESCRIPTOR) {
-        final DescriptorTransitiveRelationship dtr =
-            new DescriptorTransitiveRelationshipJpa();
-        final Descriptor superType = new DescriptorJpa();
-        superType.setId(code);
-        dtr.setSuperType(superType);
-        dtr.setSubType(dtr.getSuperType());
-        tr = dtr;
-      } else if (idType == IdType.CODE) {
-        final CodeTransitiveRelationship ctr =
-            new CodeTransitiveRelationshipJpa();
-        final Code superType = new CodeJpa();
-        superType.setId(code);
-        ctr.setSuperType(superType);
-        ctr.setSubType(ctr.getSuperType());
-        tr = ctr;
-      } else if (idType == IdType.ATOM) {
-        final AtomTransitiveRelationship atr =
-            new AtomTransitiveRelationshipJpa();
-        final Atom superType = new AtomJpa();
-        superType.setId(code);
-        atr.setSuperType(superType);
-        atr.setSubType(atr.getSuperType());
-        tr = atr;
-      } else {
-        throw new Exception("Unexpected id type " + idType);
+    for (int node = 0; node < graph.getNodeCount(); node++) {
+      final long id = graph.getId(node);
+      writer.add(id, id, 0);
+    }
+    writer.flush();
+    commitClearBegin();
+
+    // Compute descendants of each node with children
+    int parentCt = 0;
+    for (int node = 0; node < graph.getNodeCount(); node++) {
+      if (graph.getChildCount(node) > 0) {
+        parentCt++;
       }
-
-      tr.setObsolete(false);
-      tr.setTimestamp(startDate);
-      tr.setPublishable(true);
-      tr.setPublished(false);
-      tr.setTerminologyId("");
-      tr.setTerminology(getTerminology());
-      tr.setVersion(getVersion());
-      tr.setDepth(0);
-      addTransitiveRelationship(tr);
-
     }
-    // to free up memory
-    allNodes.clear();
-
-    // initialize descendant map
-    descendantsMap = new HashMap<>();
-    int progressMax = parChd.keySet().size();
-    int progress = 0;
-    for (final Long code : parChd.keySet()) {
+    final int progressMax = parentCt;
+    final int[] progress = new int[] {
+        0, 0
+    };
+    graph.computeDescendants(cycleTolerant, (node, descs) -> {
       // Check cancel flag
       if (isCancelled()) {
         rollback();
@@ -263,152 +193,34 @@ public class TransitiveClosureAlgorithm extends AbstractAlgorithm {
       }
 
       // Scale the progress monitor from 8%-100%
-      int ctProgress = (int) ((((ct * 100) / progressMax) * .92) + 8);
-      if (ctProgress > progress) {
-        progress = ctProgress;
-        fireProgressEvent((int) ((progress * .92) + 8),
+      final int ctProgress = (int) ((progress[1] * 92.0) / progressMax) + 8;
+      if (ctProgress > progress[0]) {
+        progress[0] = ctProgress;
+        fireProgressEvent(ctProgress,
             "creating transitive closure relationships");
       }
 
-      final List<Long> ancPath = new ArrayList<>();
-      ancPath.add(code);
-      final Set<Long> descs = getDescendants(code, parChd, ancPath);
-      final Set<Long> children = parChd.get(code);
-      for (final Long desc : descs) {
-        TransitiveRelationship<? extends ComponentHasAttributes> tr = null;
-        if (idType == IdType.CONCEPT) {
-          final ConceptTransitiveRelationship ctr =
-              new ConceptTransitiveRelationshipJpa();
-          final Concept superType = new ConceptJpa();
-          superType.setId(code);
-          final Concept subType = new ConceptJpa();
-          subType.setId(desc);
-          ctr.setSuperType(superType);
-          ctr.setSubType(subType);
-          tr = ctr;
-        } else if (idType == IdType.DESCRIPTOR) {
-          final DescriptorTransitiveRelationship dtr =
-              new DescriptorTransitiveRelationshipJpa();
-          final Descriptor superType = new DescriptorJpa();
-          superType.setId(code);
-          final Descriptor subType = new DescriptorJpa();
-          subType.setId(desc);
-          dtr.setSuperType(superType);
-          dtr.setSubType(subType);
-          tr = dtr;
-        } else if (idType == IdType.CODE) {
-          final CodeTransitiveRelationship ctr =
-              new CodeTransitiveRelationshipJpa();
-          final Code superType = new CodeJpa();
-          superType.setId(code);
-          final Code subType = new CodeJpa();
-          subType.setId(desc);
-          ctr.setSuperType(superType);
-          ctr.setSubType(subType);
-          tr = ctr;
-        } else if (idType == IdType.ATOM) {
-          final AtomTransitiveRelationship atr =
-              new AtomTransitiveRelationshipJpa();
-          final Atom superType = new AtomJpa();
-          superType.setId(code);
-          final Atom subType = new AtomJpa();
-          subType.setId(desc);
-          atr.setSuperType(superType);
-          atr.setSubType(subType);
-          tr = atr;
-        } else {
-          throw new Exception("Illegal id type: " + idType);
-        }
-
-        if (children.contains(desc)) {
-          tr.setDepth(1);
-        } else {
-          tr.setDepth(2);
-        }
-        tr.setObsolete(false);
-        tr.setTimestamp(startDate);
-        tr.setPublishable(true);
-        tr.setPublished(false);
-        tr.setTerminologyId("");
-        tr.setTerminology(getTerminology());
-        tr.setVersion(getVersion());
-        addTransitiveRelationship(tr);
+      final long code = graph.getId(node);
+      for (final int desc : descs) {
+        writer.add(code, graph.getId(desc), graph.isChild(node, desc) ? 1 : 2);
       }
 
-      logAndCommit(++ct, RootService.logCt, RootService.commitCt);
-      // Check cancel flag
-      if (ct % RootService.logCt == 0 && isCancelled()) {
-        rollback();
-        throw new CancelException("Transitive closure computation cancelled.");
+      // Flush pending rows before any commit
+      if (++progress[1] % RootService.commitCt == 0) {
+        writer.flush();
       }
-
-    }
+      logAndCommit(progress[1], RootService.logCt, RootService.commitCt);
+    });
+    writer.flush();
+    logInfo("  transitive relationships = " + writer.getTotalCount());
 
     fireProgressEvent(100, "Finished...");
 
-    // release memory
-    descendantsMap = new HashMap<>();
     commit();
     clear();
 
   }
 
-  /**
-   * Returns the descendants.
-   *
-   * @param par the par
-   * @param parChd the par chd
-   * @param ancPath the anc path
-   * @return the descendants
-   * @throws Exception the exception
-   */
-  private Set<Long> getDescendants(Long par, Map<Long, Set<Long>> parChd,
-    List<Long> ancPath) throws Exception {
-    Logger.getLogger(getClass())
-        .debug("  Get descendants for " + par + ", " + ancPath);
-
-    if (isCancelled()) {
-      rollback();
-      throw new CancelException("Transitive closure computation cancelled.");
-    }
-
-    Set<Long> descendants = new HashSet<>();
-    // If cached, return them
-    if (descendantsMap.containsKey(par)) {
-      descendants = descendantsMap.get(par);
-    }
-    // Otherwise, compute them
-    else {
-
-      // Get Children of this node
-      final Set<Long> children = parChd.get(par);
-
-      // If this is a leaf node, bail
-      if (children == null || children.isEmpty()) {
-        return new HashSet<>(0);
-      }
-      // Iterate through children, mark as descendant and recursively call
-      for (final Long chd : children) {
-        if (ancPath.contains(chd)) {
-          if (cycleTolerant) {
-            return new HashSet<>(0);
-          } else {
-            throw new Exception("Cycle detected: " + chd + ", " + ancPath);
-          }
-        }
-        descendants.add(chd);
-        ancPath.add(chd);
-        descendants.addAll(getDescendants(chd, parChd, ancPath));
-        ancPath.remove(chd);
-      }
-      Logger.getLogger(getClass()).debug("    descCt = " + descendants.size());
-
-      descendantsMap.put(par, descendants);
-    }
-
-    return descendants;
-  }
-
   /* see superclass */
   @Override
   public ValidationResult checkPreconditions() throws Exception {
@@ -3,17 +3,29 @@
  */
 package com.wci.umls.server.jpa.algo;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.wci.umls.server.ValidationResult;
+import com.wci.umls.server.helpers.CancelException;
 import com.wci.umls.server.helpers.ConfigUtility;
-import com.wci.umls.server.helpers.FieldedStringTokenizer;
 import com.wci.umls.server.jpa.ValidationResultJpa;
 import com.wci.umls.server.jpa.content.AtomTreePositionJpa;
 import com.wci.umls.server.jpa.content.CodeTreePositionJpa;
@@ -56,9 +68,18 @@ public class TreePositionAlgorithm extends AbstractAlgorithm {
   /** The compute semantic types. */
   private boolean computeSemanticTypes;
 
+  /** The number of threads used to enumerate paths. */
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
   /** The object ct. */
   private static int objectCt = 0;
 
+  /** The maximum number of paths waiting to be written. */
+  private static final int QUEUE_SIZE = 10000;
+
+  /** The path depth below which subtrees are no longer forked. */
+  private static final int FORK_DEPTH = 3;
+
   /**
    * Instantiates an empty {@link TreePositionAlgorithm}.
    * @throws Exception if anything goes wrong
@@ -197,24 +218,12 @@ public class TreePositionAlgorithm extends AbstractAlgorithm {
           .getResultList();
 
       int ct = 0;
-      final Map<Long, Set<Long>> parChd = new HashMap<>();
-      Map<Long, Set<Long>> chdPar = new HashMap<>();
+      final HierarchyGraph.Builder builder = new HierarchyGraph.Builder();
       for (final Object[] r : relationships) {
         ct++;
-        long fromId = Long.parseLong(r[0].toString());
-        long toId = Long.parseLong(r[1].toString());
-
-        if (!parChd.containsKey(toId)) {
-          parChd.put(toId, new HashSet<Long>());
-        }
-        final Set<Long> children = parChd.get(toId);
-        children.add(fromId);
-
-        if (!chdPar.containsKey(fromId)) {
-          chdPar.put(fromId, new HashSet<Long>());
-        }
-        final Set<Long> parents = chdPar.get(fromId);
-        parents.add(toId);
+        final long fromId = ((Number) r[0]).longValue();
+        final long toId = ((Number) r[1]).longValue();
+        builder.addEdge(toId, fromId);
 
         // Check cancel flag
         if (ct % RootService.logCt == 0) {
@@ -227,54 +236,29 @@ public class TreePositionAlgorithm extends AbstractAlgorithm {
             + additionalRelationshipType);
         continue;
       }
-
-      else {
-        logInfo("  concepts with descendants = " + parChd.size());
-      }
+      final HierarchyGraph graph = builder.build();
 
       // Find roots
       fireAdjustedProgressEvent(5, step, steps, "Find roots");
-      final Set<Long> rootIds = new HashSet<>();
-      for (final Long par : parChd.keySet()) {
-        // things with no children
-        if (!chdPar.containsKey(par)) {
-          rootIds.add(par);
-          allRootIds.add(par);
-        }
+      final int[] roots = graph.getRoots();
+      for (final int root : roots) {
+        allRootIds.add(graph.getId(root));
       }
-      logInfo("  count = " + rootIds.size());
-      chdPar = null;
+      logInfo("  count = " + roots.length);
 
       objectCt = 0;
       fireAdjustedProgressEvent(10, step, steps,
           "Compute tree positions for roots");
-      int i = 0;
-      for (final Long rootId : rootIds) {
-        i++;
-
-        // Check cancel flag
-        checkCancel();
-
-        fireAdjustedProgressEvent((int) (10 + (i * 85.0 / rootIds.size())),
-            step, steps,
-            "Compute tree positions and semantic types for root " + rootId);
-
-        final ValidationResult result = new ValidationResultJpa();
-
-        computeTreePositions(rootId, "", parChd, result, startDate,
-            semanticTypeMap, rootIds.size() > 1, additionalRelationshipType);
-        if (!result.isValid()) {
-          logError("  validation result = " + result);
-          throw new Exception("Validation failed");
-        }
-        // Commit
-        commitClearBegin();
-
-        // Check cancel flag
-        checkCancel();
-
+      final ValidationResult result = new ValidationResultJpa();
+      computeTreePositions(graph, roots, result, startDate, semanticTypeMap,
+          additionalRelationshipType, step, steps);
+      if (!result.isValid()) {
+        logError("  validation result = " + result);
+        throw new Exception("Validation failed");
       }
 
+      // Commit
+      commitClearBegin();
     }
     commitClearBegin();
 
@@ -361,44 +345,123 @@ public class TreePositionAlgorithm extends AbstractAlgorithm {
   }
 
   /**
-   * Compute tree positions.
+   * Compute tree positions for every path from the specified roots. Paths are
+   * enumerated in parallel on a {@link ForkJoinPool}, sharing ancestor-path
+   * prefixes as linked {@link PathNode}s, and handed to this thread through a
+   * bounded queue where the tree positions are persisted. Subtrees are only
+   * forked near the roots, so the number of pending tasks and queued paths
+   * stays bounded regardless of the number of paths in the hierarchy.
    *
-   * @param id the id
-   * @param ancestorPath the ancestor path
-   * @param parChd the par chd
+   * @param graph the graph
+   * @param roots the roots
    * @param validationResult the validation result
    * @param startDate the start date
    * @param semanticTypeMap the semantic type map
-   * @param multipleRoots the multiple roots
    * @param additionalRelationshipType the additional relationship type
-   * @return the sets the
+   * @param step the step
+   * @param steps the steps
    * @throws Exception the exception
    */
-  public Set<Long> computeTreePositions(Long id, String ancestorPath,
-    Map<Long, Set<Long>> parChd, ValidationResult validationResult,
-    Date startDate, Map<Long, Set<Long>> semanticTypeMap, boolean multipleRoots,
-    String additionalRelationshipType) throws Exception {
+  private void computeTreePositions(HierarchyGraph graph, int[] roots,
+    ValidationResult validationResult, Date startDate,
+    Map<Long, Set<Long>> semanticTypeMap, String additionalRelationshipType,
+    int step, int steps) throws Exception {
+
+    // Descendant counts are a property of the node, not of the path
+    final int[] descendantCts = new int[graph.getNodeCount()];
+    graph.computeDescendants(true,
+        (node, descendants) -> descendantCts[node] = descendants.length);
+
+    final boolean multipleRoots = roots.length > 1;
+    final BlockingQueue<PathNode> queue =
+        new ArrayBlockingQueue<>(QUEUE_SIZE);
+    final Queue<String> errors = new ConcurrentLinkedQueue<>();
+    final AtomicInteger rootsDone = new AtomicInteger(0);
+    final AtomicBoolean abort = new AtomicBoolean(false);
+
+    final ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+    try {
+      final ForkJoinTask<?> producer = pool.submit(() -> {
+        final List<PathTask> tasks = new ArrayList<>();
+        for (final int root : roots) {
+          tasks.add(new PathTask(graph, new PathNode(null, root), queue, errors,
+              abort, rootsDone));
+        }
+        ForkJoinTask.invokeAll(tasks);
+      });
+
+      int progress = 0;
+      while (true) {
+        final PathNode path = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (path == null) {
+          if (producer.isDone() && queue.isEmpty()) {
+            break;
+          }
+          continue;
+        }
+        try {
+          // check for cancel request
+          checkCancel();
 
-    final Set<Long> descConceptIds = new HashSet<>();
+          addTreePosition(graph, path, descendantCts[path.node], startDate,
+              semanticTypeMap, multipleRoots, additionalRelationshipType);
+        } catch (Exception e) {
+          abort.set(true);
+          throw e;
+        }
 
-    // Check for cycles
-    final Set<String> ancestors = new HashSet<>();
-    for (String ancestor : ancestorPath.split("~")) {
-      ancestors.add(ancestor);
-    }
-    if (ancestors.contains(id.toString())) {
-
-      if (cycleTolerant) {
-        return descConceptIds;
-      } else {
-        // add error to validation result
-        validationResult.getErrors().add("Cycle detected for concept " + id
-            + ", ancestor path is " + ancestorPath);
+        final int ctProgress =
+            (int) (10 + (rootsDone.get() * 85.0 / roots.length));
+        if (ctProgress > progress) {
+          progress = ctProgress;
+          fireAdjustedProgressEvent(progress, step, steps,
+              "Compute tree positions and semantic types");
+        }
       }
 
-      // return empty set of descendants to truncate calculation on this path
-      return descConceptIds;
+      // Surface any producer failure
+      try {
+        producer.get();
+      } catch (ExecutionException e) {
+        throw (e.getCause() instanceof Exception) ? (Exception) e.getCause()
+            : e;
+      }
+      validationResult.getErrors().addAll(errors);
+    } finally {
+      abort.set(true);
+      pool.shutdownNow();
     }
+  }
+
+  /**
+   * Creates and persists the tree position for the last node of the path.
+   *
+   * @param graph the graph
+   * @param path the path
+   * @param descendantCt the descendant ct
+   * @param startDate the start date
+   * @param semanticTypeMap the semantic type map
+   * @param multipleRoots the multiple roots
+   * @param additionalRelationshipType the additional relationship type
+   * @throws Exception the exception
+   */
+  private void addTreePosition(HierarchyGraph graph, PathNode path,
+    int descendantCt, Date startDate, Map<Long, Set<Long>> semanticTypeMap,
+    boolean multipleRoots, String additionalRelationshipType)
+    throws Exception {
+
+    final Long id = graph.getId(path.node);
+
+    // Materialize the ancestor path, root first
+    final long[] ancestors = new long[path.depth];
+    for (PathNode p = path.parent; p != null; p = p.parent) {
+      ancestors[p.depth] = graph.getId(p.node);
+    }
+    final StringBuilder sb = new StringBuilder();
+    for (final long ancestor : ancestors) {
+      sb.append(sb.length() == 0 ? "" : "~").append(ancestor);
+    }
+    final String ancestorPath = sb.toString();
 
     // Instantiate the tree position
     TreePosition<? extends ComponentHasAttributesAndName> tp = null;
@@ -436,6 +499,8 @@ public class TreePositionAlgorithm extends AbstractAlgorithm {
     // No ids if computing - only if loading
     tp.setTerminologyId("");
     tp.setAdditionalRelationshipType(additionalRelationshipType);
+    tp.setChildCt(graph.getChildCount(path.node));
+    tp.setDescendantCt(descendantCt);
 
     // persist the tree position
     addTreePosition(tp);
@@ -443,72 +508,194 @@ public class TreePositionAlgorithm extends AbstractAlgorithm {
     // If semantic tags are to be computed, determine the "type id" and the node
     // id, only do this for CONCEPT
     if (computeSemanticTypes && idType == IdType.CONCEPT
-        && !ancestorPath.isEmpty()) {
-      final String[] tokens = FieldedStringTokenizer.split(ancestorPath, "~");
+        && ancestors.length > 0) {
       // if single root, only process where ancestorPath has a ~
-      if (multipleRoots || tokens.length > 1) {
-        if (!semanticTypeMap.containsKey(tp.getNode().getId())) {
-          semanticTypeMap.put(tp.getNode().getId(), new HashSet<Long>());
+      if (multipleRoots || ancestors.length > 1) {
+        if (!semanticTypeMap.containsKey(id)) {
+          semanticTypeMap.put(id, new HashSet<Long>());
         }
-        final Set<Long> types = semanticTypeMap.get(tp.getNode().getId());
-        types.add(Long.valueOf(tokens[(multipleRoots ? 0 : 1)]));
+        final Set<Long> types = semanticTypeMap.get(id);
+        types.add(ancestors[multipleRoots ? 0 : 1]);
       }
     }
 
-    // construct the ancestor path terminating at this concept
-    final String conceptPath =
-        (ancestorPath.equals("") ? id.toString() : ancestorPath + "~" + id);
-
-    // Gather descendants if this is not a leaf node
-    if (parChd.containsKey(id)) {
-
-      descConceptIds.addAll(parChd.get(id));
+    // Log and commit
+    logAndCommit(++objectCt, RootService.logCt, RootService.commitCt);
+  }
 
-      // iterate over the child terminology ids
-      // this iteration is entirely local and depends on no managed
-      // objects
-      for (final Long childConceptId : parChd.get(id)) {
+  /**
+   * A node on an ancestor path. Paths share their prefixes, so each path costs
+   * one small object rather than a copy of the ancestor path string.
+   */
+  private static final class PathNode {
+
+    /** The parent path, null for a root. */
+    final PathNode parent;
+
+    /** The node index. */
+    final int node;
+
+    /** The depth, 0 for a root. */
+    final int depth;
+
+    /**
+     * Instantiates a {@link PathNode} from the specified parameters.
+     *
+     * @param parent the parent
+     * @param node the node
+     */
+    PathNode(PathNode parent, int node) {
+      this.parent = parent;
+      this.node = node;
+      this.depth = parent == null ? 0 : parent.depth + 1;
+    }
 
-        // call helper function on child concept
-        // add the results to the local descendant set
-        final Set<Long> desc = computeTreePositions(childConceptId, conceptPath,
-            parChd, validationResult, startDate, semanticTypeMap, multipleRoots,
-            additionalRelationshipType);
-        descConceptIds.addAll(desc);
+    /**
+     * Indicates whether the node is on this path.
+     *
+     * @param candidate the candidate
+     * @return <code>true</code> if so, <code>false</code> otherwise
+     */
+    boolean contains(int candidate) {
+      for (PathNode p = this; p != null; p = p.parent) {
+        if (p.node == candidate) {
+          return true;
+        }
       }
+      return false;
     }
+  }
 
-    // set the children count
-    tp.setChildCt(parChd.containsKey(id) ? parChd.get(id).size() : 0);
-
-    // set the descendant count
-    tp.setDescendantCt(descConceptIds.size());
-
-    // In case manager was cleared here, get it back onto changed list
-    manager.merge(tp);
-
-    // check for cancel request
-    checkCancel();
+  /**
+   * Fork/join task enumerating all paths below a path.
+   */
+  @SuppressWarnings("serial")
+  private class PathTask extends RecursiveAction {
+
+    /** The graph. */
+    private final HierarchyGraph graph;
+
+    /** The path. */
+    private final PathNode path;
+
+    /** The queue. */
+    private final BlockingQueue<PathNode> queue;
+
+    /** The errors. */
+    private final Queue<String> errors;
+
+    /** The abort flag. */
+    private final AtomicBoolean abort;
+
+    /** The roots done, only counted for root tasks. */
+    private final AtomicInteger rootsDone;
+
+    /**
+     * Instantiates a {@link PathTask} from the specified parameters.
+     *
+     * @param graph the graph
+     * @param path the path
+     * @param queue the queue
+     * @param errors the errors
+     * @param abort the abort
+     * @param rootsDone the roots done
+     */
+    PathTask(HierarchyGraph graph, PathNode path, BlockingQueue<PathNode> queue,
+        Queue<String> errors, AtomicBoolean abort, AtomicInteger rootsDone) {
+      this.graph = graph;
+      this.path = path;
+      this.queue = queue;
+      this.errors = errors;
+      this.abort = abort;
+      this.rootsDone = rootsDone;
+    }
 
-    // Log and commit
-    logAndCommit(++objectCt, RootService.logCt, RootService.commitCt);
+    /* see superclass */
+    @Override
+    protected void compute() {
+      try {
+        visit(path);
+      } catch (InterruptedException e) {
+        // surfaces from the producer as the cause of its failure
+        completeExceptionally(new CancelException("Operation cancelled"));
+        return;
+      }
+      if (path.parent == null) {
+        rootsDone.incrementAndGet();
+      }
+    }
 
-    // Check that this concept does not reference itself as a child
-    if (descConceptIds.contains(id)) {
+    /**
+     * Emits the path and recursively visits its children, forking subtasks
+     * for the children of shallow nodes only.
+     *
+     * @param current the current path
+     * @throws InterruptedException the interrupted exception
+     */
+    private void visit(PathNode current) throws InterruptedException {
+      // Hand off to the writer, waiting while the queue is full
+      while (!queue.offer(current, 100, TimeUnit.MILLISECONDS)) {
+        if (abort.get() || TreePositionAlgorithm.this.isCancelled()) {
+          throw new InterruptedException();
+        }
+      }
 
-      // add error to validation result
-      validationResult.getErrors()
-          .add("Concept " + id + " claims itself as a child");
+      final List<PathTask> subtasks =
+          current.depth < FORK_DEPTH ? new ArrayList<>() : null;
+      for (int i = 0; i < graph.getChildCount(current.node); i++) {
+        final int chd = graph.getChild(current.node, i);
+        // Check for cycles
+        if (current.contains(chd)) {
+          if (!cycleTolerant) {
+            errors.add("Cycle detected for concept " + graph.getId(chd)
+                + ", ancestor path is " + describe(current));
+          }
+          continue;
+        }
+        final PathNode childPath = new PathNode(current, chd);
+        if (subtasks != null) {
+          subtasks.add(new PathTask(graph, childPath, queue, errors, abort,
+              rootsDone));
+        } else {
+          visit(childPath);
+        }
+      }
+      if (subtasks != null && !subtasks.isEmpty()) {
+        ForkJoinTask.invokeAll(subtasks);
+      }
+    }
 
-      // remove this terminology id to prevent infinite loop
-      descConceptIds.remove(id);
+    /**
+     * Describe the path as a ~ separated id list.
+     *
+     * @param current the current path
+     * @return the string
+     */
+    private String describe(PathNode current) {
+      String result = "";
+      for (PathNode p = current; p != null; p = p.parent) {
+        result = graph.getId(p.node) + (result.isEmpty() ? "" : "~") + result;
+      }
+      return result;
     }
+  }
 
-    // return the descendant concept set
-    // note that the local child and descendant set will be garbage
-    // collected
-    return descConceptIds;
+  /**
+   * Returns the parallelism.
+   *
+   * @return the parallelism
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
 
+  /**
+   * Sets the number of threads used to enumerate tree position paths.
+   *
+   * @param parallelism the parallelism
+   */
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
   }
 
   /**
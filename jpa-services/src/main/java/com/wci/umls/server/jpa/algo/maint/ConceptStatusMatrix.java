@@ -0,0 +1,226 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.algo.maint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.hibernate.search.SearchFactory;
+import org.hibernate.search.jpa.Search;
+
+import com.wci.umls.server.jpa.content.ConceptJpa;
+
+/**
+ * Computes concept sets for the matrix initializer as bitsets of Lucene doc
+ * ids over the concept index, instead of as id lists from text queries. Sets
+ * are combined with bitwise operations and only the final sets are turned
+ * into concept ids.
+ *
+ * Every set is limited to the scope: the concepts of the terminology and
+ * version, optionally narrowed to given concept ids (see
+ * {@link #restrictTo(Collection)}).
+ */
+public class ConceptStatusMatrix implements Closeable {
+
+  /** The document id field. */
+  private static final String ID_FIELD = "id";
+
+  /** The search factory. */
+  private final SearchFactory searchFactory;
+
+  /** The reader. */
+  private final IndexReader reader;
+
+  /** The searcher. */
+  private final IndexSearcher searcher;
+
+  /** The scope. */
+  private final FixedBitSet scope;
+
+  /**
+   * Instantiates a {@link ConceptStatusMatrix} from the specified parameters.
+   * The reader is a snapshot of the concept index as of construction.
+   *
+   * @param manager the manager
+   * @param terminology the terminology
+   * @param version the version
+   * @throws Exception the exception
+   */
+  public ConceptStatusMatrix(EntityManager manager, String terminology,
+      String version) throws Exception {
+    searchFactory = Search.getFullTextEntityManager(manager).getSearchFactory();
+    reader = searchFactory.getIndexReaderAccessor().open(ConceptJpa.class);
+    searcher = new IndexSearcher(reader);
+    final BooleanQuery query = new BooleanQuery();
+    query.add(new TermQuery(new Term("terminology", terminology)),
+        Occur.MUST);
+    query.add(new TermQuery(new Term("version", version)), Occur.MUST);
+    scope = collect(query);
+  }
+
+  /**
+   * Narrows the scope to the specified concepts.
+   *
+   * @param conceptIds the concept ids
+   * @throws Exception the exception
+   */
+  public void restrictTo(Collection<Long> conceptIds) throws Exception {
+    scope.and(getDocs(conceptIds));
+  }
+
+  /**
+   * Returns the concepts in scope with any of the field values.
+   *
+   * @param field the field
+   * @param values the values
+   * @return the docs
+   * @throws Exception the exception
+   */
+  public FixedBitSet getDocs(String field, String... values)
+    throws Exception {
+    final FixedBitSet bits = newDocs();
+    for (final String value : values) {
+      bits.or(collect(new TermQuery(new Term(field, value))));
+    }
+    bits.and(scope);
+    return bits;
+  }
+
+  /**
+   * Returns the concepts in scope with the specified ids. Ids are looked up
+   * directly in the terms of the id field.
+   *
+   * @param conceptIds the concept ids
+   * @return the docs
+   * @throws Exception the exception
+   */
+  public FixedBitSet getDocs(Collection<Long> conceptIds) throws Exception {
+    final FixedBitSet bits = newDocs();
+    for (final AtomicReaderContext leaf : reader.leaves()) {
+      final Terms terms = leaf.reader().terms(ID_FIELD);
+      if (terms == null) {
+        continue;
+      }
+      final TermsEnum termsEnum = terms.iterator(null);
+      DocsEnum docsEnum = null;
+      for (final Long id : conceptIds) {
+        if (!termsEnum.seekExact(new BytesRef(id.toString()))) {
+          continue;
+        }
+        docsEnum = termsEnum.docs(leaf.reader().getLiveDocs(), docsEnum);
+        int doc;
+        while ((doc = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+          bits.set(leaf.docBase + doc);
+        }
+      }
+    }
+    bits.and(scope);
+    return bits;
+  }
+
+  /**
+   * Returns an empty set.
+   *
+   * @return the docs
+   */
+  public FixedBitSet newDocs() {
+    return new FixedBitSet(reader.maxDoc());
+  }
+
+  /**
+   * Returns all concepts in scope.
+   *
+   * @return the docs
+   */
+  public FixedBitSet getScope() {
+    return scope.clone();
+  }
+
+  /**
+   * Returns the concept ids of the docs.
+   *
+   * @param bits the docs
+   * @return the concept ids
+   * @throws Exception the exception
+   */
+  public Set<Long> getIds(FixedBitSet bits) throws Exception {
+    final Set<Long> ids = new HashSet<>();
+    final Set<String> fields = Collections.singleton(ID_FIELD);
+    final DocIdSetIterator iterator = bits.iterator();
+    int doc;
+    while ((doc = iterator.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+      ids.add(Long.valueOf(reader.document(doc, fields).get(ID_FIELD)));
+    }
+    return ids;
+  }
+
+  /**
+   * Returns the docs matching the query.
+   *
+   * @param query the query
+   * @return the docs
+   * @throws Exception the exception
+   */
+  private FixedBitSet collect(Query query) throws Exception {
+    final FixedBitSet bits = newDocs();
+    searcher.search(query, new Collector() {
+
+      /** The doc base of the current segment. */
+      private int docBase;
+
+      /* see superclass */
+      @Override
+      public void setScorer(Scorer scorer) {
+        // n/a - scores are not used
+      }
+
+      /* see superclass */
+      @Override
+      public void collect(int doc) {
+        bits.set(docBase + doc);
+      }
+
+      /* see superclass */
+      @Override
+      public void setNextReader(AtomicReaderContext context) {
+        docBase = context.docBase;
+      }
+
+      /* see superclass */
+      @Override
+      public boolean acceptsDocsOutOfOrder() {
+        return true;
+      }
+    });
+    return bits;
+  }
+
+  /* see superclass */
+  @Override
+  public void close() throws IOException {
+    searchFactory.getIndexReaderAccessor().close(reader);
+  }
+}
@@ -5,6 +5,7 @@ package com.wci.umls.server.jpa.algo.maint;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -14,21 +15,23 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
-import com.google.common.collect.Sets;
+import org.apache.lucene.util.FixedBitSet;
+
 import com.wci.umls.server.AlgorithmParameter;
 import com.wci.umls.server.ValidationResult;
 import com.wci.umls.server.helpers.Branch;
 import com.wci.umls.server.helpers.ConfigUtility;
+import com.wci.umls.server.helpers.LogEntry;
+import com.wci.umls.server.helpers.PfsParameter;
+import com.wci.umls.server.jpa.AlgorithmParameterJpa;
 import com.wci.umls.server.jpa.ValidationResultJpa;
 import com.wci.umls.server.jpa.algo.AbstractAlgorithm;
 import com.wci.umls.server.jpa.algo.action.UpdateConceptMolecularAction;
-import com.wci.umls.server.jpa.content.ConceptJpa;
+import com.wci.umls.server.jpa.helpers.PfsParameterJpa;
 import com.wci.umls.server.model.content.Concept;
-import com.wci.umls.server.model.content.ConceptRelationship;
 import com.wci.umls.server.model.workflow.TrackingRecord;
 import com.wci.umls.server.model.workflow.WorkflowStatus;
 import com.wci.umls.server.services.RootService;
-import com.wci.umls.server.services.handlers.SearchHandler;
 
 /**
  * Implementation of an algorithm to perform a recomputation of Metathesaurus
@@ -36,11 +39,23 @@ import com.wci.umls.server.services.handlers.SearchHandler;
  */
 public class MatrixInitializerAlgorithm extends AbstractAlgorithm {
 
+  /**
+   * The log message recording the start time of the last run that evaluated
+   * all concepts (or all touched concepts).
+   */
+  private static final String CHECKPOINT = "incremental checkpoint";
+
   /** The concept ids. */
   public Set<Long> conceptIds = null;
 
   private Map<Long, Set<Long>> atomIdToTrackingRecordIds = new HashMap<>();
 
+  /**
+   * Indicates whether to re-evaluate only concepts touched since the last
+   * run.
+   */
+  private boolean incremental = false;
+
   /**
    * Instantiates an empty {@link MatrixInitializerAlgorithm}.
    * @throws Exception if anything goes wrong
@@ -67,10 +82,23 @@ public class MatrixInitializerAlgorithm extends AbstractAlgorithm {
   @Override
   public void compute() throws Exception {
     logInfo("Starting " + getName());
-
-    if (conceptIds != null) {
+    final Date startDate = new Date();
+
+    boolean fullMode = false;
+    // Whether this run covers everything touched since the last checkpoint
+    boolean checkpoint = false;
+    if (conceptIds == null && incremental) {
+      conceptIds = getTouchedConceptIds();
+      if (conceptIds != null) {
+        logInfo("  incremental mode = " + conceptIds.size());
+        checkpoint = true;
+      }
+    } else if (conceptIds != null) {
       logInfo("  update mode = " + conceptIds.size());
-    } else {
+    }
+    if (conceptIds == null) {
+      fullMode = true;
+      checkpoint = true;
       conceptIds = new HashSet<>(getAllConceptIds(getProject().getTerminology(),
           getProject().getVersion(), Branch.ROOT));
     }
@@ -78,92 +106,91 @@ public class MatrixInitializerAlgorithm extends AbstractAlgorithm {
     fireProgressEvent(0, "Starting...find publishable atoms");
     try {
 
-      final SearchHandler handler = getSearchHandler(ConfigUtility.DEFAULT);
-
-      // Get unpublishable concepts with publishable atoms
-      final Set<Long> makePublishable =
-          new HashSet<>(handler.getIdResults(getProject().getTerminology(),
-              getProject().getVersion(), Branch.ROOT,
-              "publishable:false AND atoms.publishable:true", null,
-              ConceptJpa.class, null, new int[1], manager));
-      checkCancel();
-      fireProgressEvent(10, "Found concepts to make publishable");
-      logInfo("  make publishable = " + makePublishable.size());
-
-      // Get publishable concepts without any publishable atoms
-      final Set<Long> publishableConcepts =
-          new HashSet<>(handler.getIdResults(getProject().getTerminology(),
-              getProject().getVersion(), Branch.ROOT, "publishable:true", null,
-              ConceptJpa.class, null, new int[1], manager));
-      checkCancel();
-      final Set<Long> conceptsWithPublishableAtoms =
-          new HashSet<>(handler.getIdResults(getProject().getTerminology(),
-              getProject().getVersion(), Branch.ROOT, "atoms.publishable:true",
-              null, ConceptJpa.class, null, new int[1], manager));
-      checkCancel();
-
-      final Set<Long> makeUnpublishable =
-          Sets.difference(publishableConcepts, conceptsWithPublishableAtoms);
-      fireProgressEvent(20, "Found concepts to make unpublishable");
-      logInfo("  make unpublishable = " + makeUnpublishable.size());
-
-      // Find concepts connected to needs review relationships
-      final Set<String> needsReviewR = new HashSet<>();
-      javax.persistence.Query query =
-          manager.createQuery("select r from ConceptRelationshipJpa r "
-              + " where terminology = :terminology and version = :version "
-              + " and workflowStatus in (  :ws )");
-      query.setParameter("terminology", getProject().getTerminology());
-      query.setParameter("version", getProject().getVersion());
-      query.setParameter("ws", WorkflowStatus.NEEDS_REVIEW);
-
-      @SuppressWarnings("unchecked")
-      final List<ConceptRelationship> rels = query.getResultList();
-      for (final ConceptRelationship rel : rels) {
-        needsReviewR.add("id:" + rel.getFrom().getId());
-        needsReviewR.add("id:" + rel.getTo().getId());
+      final Set<Long> makePublishable;
+      final Set<Long> makeUnpublishable;
+      final Set<Long> failures;
+      final Set<Long> makeReviewed;
+      final Set<Long> makeNeedsReview;
+      try (final ConceptStatusMatrix matrix =
+          new ConceptStatusMatrix(manager, getProject().getTerminology(),
+              getProject().getVersion())) {
+        if (!fullMode) {
+          matrix.restrictTo(conceptIds);
+        }
+
+        // Get unpublishable concepts with publishable atoms
+        final FixedBitSet publishableAtoms =
+            matrix.getDocs("atoms.publishable", "true");
+        final FixedBitSet makePublishableDocs =
+            matrix.getDocs("publishable", "false");
+        makePublishableDocs.and(publishableAtoms);
+        makePublishable = matrix.getIds(makePublishableDocs);
+        checkCancel();
+        fireProgressEvent(10, "Found concepts to make publishable");
+        logInfo("  make publishable = " + makePublishable.size());
+
+        // Get publishable concepts without any publishable atoms
+        final FixedBitSet makeUnpublishableDocs =
+            matrix.getDocs("publishable", "true");
+        makeUnpublishableDocs.andNot(publishableAtoms);
+        makeUnpublishable = matrix.getIds(makeUnpublishableDocs);
+        checkCancel();
+        fireProgressEvent(20, "Found concepts to make unpublishable");
+        logInfo("  make unpublishable = " + makeUnpublishable.size());
+
+        // Find concepts connected to needs review relationships
+        final javax.persistence.Query query = manager
+            .createQuery("select r.from.id, r.to.id from ConceptRelationshipJpa r "
+                + " where terminology = :terminology and version = :version "
+                + " and workflowStatus in (  :ws )");
+        query.setParameter("terminology", getProject().getTerminology());
+        query.setParameter("version", getProject().getVersion());
+        query.setParameter("ws", WorkflowStatus.NEEDS_REVIEW);
+        final Set<Long> needsReviewR = new HashSet<>();
+        @SuppressWarnings("unchecked")
+        final List<Object[]> rels = query.getResultList();
+        for (final Object[] rel : rels) {
+          needsReviewR.add((Long) rel[0]);
+          needsReviewR.add((Long) rel[1]);
+        }
+        checkCancel();
+        fireProgressEvent(30, "Find concepts with NEEDS_REVIEW relationships");
+        logInfo("  need review rel = " + rels.size());
+
+        // Perform validation and collect failed concept ids
+        failures = validateConcepts(getProject(), null, conceptIds);
+        checkCancel();
+        fireProgressEvent(40, "Found concepts with validation failures");
+        logInfo("  validation failures = " + failures.size());
+
+        // Concepts with components (or relationships) needing review
+        final FixedBitSet pending = matrix.getDocs("atoms.workflowStatus",
+            WorkflowStatus.NEEDS_REVIEW.toString(),
+            WorkflowStatus.DEMOTION.toString());
+        pending.or(matrix.getDocs("semanticTypes.workflowStatus",
+            WorkflowStatus.NEEDS_REVIEW.toString()));
+        pending.or(matrix.getDocs(needsReviewR));
+
+        // Find NEEDS_REVIEW concepts that should be READY_FOR_PUBLICATION
+        final FixedBitSet makeReviewedDocs = matrix.getDocs("workflowStatus",
+            WorkflowStatus.NEEDS_REVIEW.toString());
+        makeReviewedDocs.andNot(pending);
+        makeReviewed = matrix.getIds(makeReviewedDocs);
+        checkCancel();
+        fireProgressEvent(50, "Found concepts to make reviewed");
+        logInfo("  concepts to make reviewed = " + makeReviewed.size());
+
+        // Find READY_FOR_PUBLICATION or PUBLISHED concepts that should be
+        // NEEDS_REVIEW
+        final FixedBitSet makeNeedsReviewDocs = matrix.getDocs(
+            "workflowStatus", WorkflowStatus.READY_FOR_PUBLICATION.toString(),
+            WorkflowStatus.PUBLISHED.toString());
+        makeNeedsReviewDocs.and(pending);
+        makeNeedsReview = matrix.getIds(makeNeedsReviewDocs);
+        checkCancel();
+        fireProgressEvent(60, "Found concepts to make needs review");
+        logInfo("  concepts to make needs review = " + makeNeedsReview.size());
       }
-      checkCancel();
-      fireProgressEvent(30, "Find concepts with NEEDS_REVIEW relationships");
-      logInfo("  need review rel = " + rels.size());
-
-      // Perform validation and collect failed concept ids
-      final Set<Long> failures =
-          validateConcepts(getProject(), null, conceptIds);
-      checkCancel();
-      fireProgressEvent(40, "Found concepts with validation failures");
-      logInfo("  validation failures = " + failures.size());
-
-      // Find NEEDS_REVIEW concepts that should be READY_FOR_PUBLICATION
-      final Set<Long> makeReviewed =
-          new HashSet<>(handler.getIdResults(getProject().getTerminology(),
-              getProject().getVersion(), Branch.ROOT,
-              "workflowStatus:NEEDS_REVIEW AND NOT atoms.workflowStatus:NEEDS_REVIEW "
-                  + "AND NOT atoms.workflowStatus:DEMOTION AND NOT semanticTypes.workflowStatus:NEEDS_REVIEW "
-                  + (needsReviewR.size() == 0 ? ""
-                      : " AND NOT " + ConfigUtility.composeQuery("OR",
-                          new ArrayList<>(needsReviewR))),
-              null, ConceptJpa.class, null, new int[1], manager));
-      checkCancel();
-      fireProgressEvent(50, "Found concepts to make reviewed");
-      logInfo("  concepts to make reviewed = " + makeReviewed.size());
-
-      // Find READY_FOR_PUBLICATION or PUBLISHED concepts that should be
-      // NEEDS_REVIEW
-      final Set<Long> makeNeedsReview =
-          new HashSet<>(handler.getIdResults(getProject().getTerminology(),
-              getProject().getVersion(), Branch.ROOT,
-              "(workflowStatus:READY_FOR_PUBLICATION OR workflowStatus:PUBLISHED) "
-                  + "AND (atoms.workflowStatus:NEEDS_REVIEW OR atoms.workflowStatus:DEMOTION "
-                  + "OR semanticTypes.workflowStatus:NEEDS_REVIEW "
-                  + (needsReviewR.size() == 0 ? ""
-                      : " OR " + ConfigUtility.composeQuery("OR",
-                          new ArrayList<>(needsReviewR)))
-                  + ")",
-              null, ConceptJpa.class, null, new int[1], manager));
-      checkCancel();
-      fireProgressEvent(60, "Found concepts to make needs review");
-      logInfo("  concepts to make needs review = " + makeNeedsReview.size());
 
       final Set<Long> conceptsToChange = new HashSet<>();
       conceptsToChange.addAll(makePublishable);
@@ -290,12 +317,17 @@ public class MatrixInitializerAlgorithm extends AbstractAlgorithm {
 
       } catch (Exception e) {
         action.rollback();
+        throw e;
       } finally {
         action.close();
       }
 
       logInfo("  publishable changed = " + publishableChangeCt);
       logInfo("  status changed = " + statusChangeCt);
+      if (checkpoint) {
+        // Changes made while this run was in progress are picked up next time
+        logInfo("  " + CHECKPOINT + " = " + startDate.getTime());
+      }
       fireProgressEvent(100, "Finished ...");
       logInfo("Finished " + getName());
 
@@ -308,6 +340,63 @@ public class MatrixInitializerAlgorithm extends AbstractAlgorithm {
 
   }
 
+  /**
+   * Returns the concepts touched by molecular actions (or otherwise modified)
+   * since the last successful full or incremental run of this project,
+   * terminology and version started.
+   *
+   * @return the concept ids, or null if there is no previous run
+   * @throws Exception the exception
+   */
+  @SuppressWarnings("unchecked")
+  private Set<Long> getTouchedConceptIds() throws Exception {
+    final PfsParameter pfs = new PfsParameterJpa();
+    pfs.setSortField("lastModified");
+    pfs.setAscending(false);
+    pfs.setStartIndex(0);
+    pfs.setMaxResults(1);
+    final List<String> clauses = new ArrayList<>();
+    clauses.add("projectId:" + getProject().getId());
+    clauses.add("terminology:" + getTerminology());
+    clauses.add("version:" + getVersion());
+    clauses.add("message:\"" + CHECKPOINT + "\"");
+    final List<LogEntry> list = findLogEntries(
+        ConfigUtility.composeQuery("AND", clauses), pfs);
+    if (list.isEmpty()) {
+      logInfo("  no previous run, using all concepts");
+      return null;
+    }
+    final String message = list.get(0).getMessage();
+    final Date lastRun = new Date(Long.parseLong(
+        message.substring(message.lastIndexOf('=') + 1).trim()));
+    logInfo("  last run = " + lastRun);
+
+    final Set<Long> ids = new HashSet<>();
+    javax.persistence.Query query = manager.createQuery(
+        "select a.componentId, a.componentId2 from MolecularActionJpa a "
+            + "where a.terminology = :terminology "
+            + "  and a.version = :version and a.lastModified > :date");
+    query.setParameter("terminology", getProject().getTerminology());
+    query.setParameter("version", getProject().getVersion());
+    query.setParameter("date", lastRun);
+    for (final Object[] entry : (List<Object[]>) query.getResultList()) {
+      if (entry[0] != null) {
+        ids.add((Long) entry[0]);
+      }
+      if (entry[1] != null) {
+        ids.add((Long) entry[1]);
+      }
+    }
+    query = manager.createQuery("select c.id from ConceptJpa c "
+        + "where c.terminology = :terminology "
+        + "  and c.version = :version and c.lastModified > :date");
+    query.setParameter("terminology", getProject().getTerminology());
+    query.setParameter("version", getProject().getVersion());
+    query.setParameter("date", lastRun);
+    ids.addAll(query.getResultList());
+    return ids;
+  }
+
   @SuppressWarnings("unchecked")
   private void updateTrackingRecord(Concept concept, WorkflowStatus status)
     throws Exception {
@@ -369,13 +458,22 @@ public class MatrixInitializerAlgorithm extends AbstractAlgorithm {
   /* see superclass */
   @Override
   public void setProperties(Properties p) throws Exception {
-    // n/a
+    if (p.getProperty("incremental") != null) {
+      incremental = Boolean.parseBoolean(p.getProperty("incremental"));
+    }
   }
 
   /* see superclass */
   @Override
   public List<AlgorithmParameter> getParameters() throws Exception {
-    return super.getParameters();
+    final List<AlgorithmParameter> params = super.getParameters();
+    final AlgorithmParameter param = new AlgorithmParameterJpa("Incremental",
+        "incremental",
+        "Re-evaluate only concepts touched by molecular actions since the "
+            + "last run.",
+        "e.g. false", 0, AlgorithmParameter.Type.BOOLEAN, "false");
+    params.add(param);
+    return params;
   }
 
   /* see superclass */
@@ -392,4 +490,13 @@ public class MatrixInitializerAlgorithm extends AbstractAlgorithm {
   public void setConceptIds(Set<Long> conceptIds) {
     this.conceptIds = conceptIds;
   }
+
+  /**
+   * Sets the incremental flag.
+   *
+   * @param incremental the incremental
+   */
+  public void setIncremental(boolean incremental) {
+    this.incremental = incremental;
+  }
 }
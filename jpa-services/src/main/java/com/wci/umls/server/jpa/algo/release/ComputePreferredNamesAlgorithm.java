@@ -3,17 +3,37 @@
  */
 package com.wci.umls.server.jpa.algo.release;
 
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.search.jpa.FullTextEntityManager;
+import org.hibernate.search.jpa.Search;
+
+import com.wci.umls.server.AlgorithmParameter;
 import com.wci.umls.server.ValidationResult;
 import com.wci.umls.server.helpers.ConfigUtility;
 import com.wci.umls.server.helpers.PrecedenceList;
 import com.wci.umls.server.helpers.QueryType;
+import com.wci.umls.server.jpa.AlgorithmParameterJpa;
 import com.wci.umls.server.jpa.ValidationResultJpa;
 import com.wci.umls.server.jpa.algo.AbstractAlgorithm;
+import com.wci.umls.server.jpa.content.AtomJpa;
 import com.wci.umls.server.jpa.content.ConceptJpa;
+import com.wci.umls.server.jpa.services.handlers.RrfComputePreferredNameHandler;
 import com.wci.umls.server.model.content.Atom;
 import com.wci.umls.server.model.content.Concept;
 import com.wci.umls.server.services.RootService;
@@ -26,6 +46,20 @@ import com.wci.umls.server.services.handlers.ComputePreferredNameHandler;
  */
 public class ComputePreferredNamesAlgorithm extends AbstractAlgorithm {
 
+  /** The number of threads ranking atoms in projection mode. */
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
+  /** The number of concepts per ranking task and per update batch. */
+  private int batchSize = 1000;
+
+  /** The fetch size for the atom projection. */
+  private int fetchSize = 10000;
+
+  /**
+   * Indicates whether to rank atom projections instead of loaded concepts.
+   */
+  private boolean projectionMode = false;
+
   /**
    * Instantiates an empty {@link ComputePreferredNamesAlgorithm}.
    *
@@ -74,6 +108,16 @@ public class ComputePreferredNamesAlgorithm extends AbstractAlgorithm {
     final PrecedenceList list = getPrecedenceList(getProject().getTerminology(),
         getProject().getVersion());
 
+    // Rank atom projections, the ranking only needs atom fields
+    if (projectionMode && handler instanceof RrfComputePreferredNameHandler) {
+      computeFromProjections((RrfComputePreferredNameHandler) handler, list);
+      logInfo("Finished " + getName());
+      return;
+    } else if (projectionMode) {
+      logWarn("  Projection mode requires an RRF preferred name handler, "
+          + "loading concepts instead");
+    }
+
     // 1. Collect all atoms from project concepts
     // Normalization is only for English
     final List<Long> conceptIds = executeSingleComponentIdQuery(
@@ -130,6 +174,221 @@ public class ComputePreferredNamesAlgorithm extends AbstractAlgorithm {
 
   }
 
+  /**
+   * Computes preferred names and publishable flags from a projection of the
+   * atom fields used for ranking, streamed in concept order. Batches of
+   * concepts are ranked in parallel, and only the changed concepts are
+   * written with batched UPDATEs and then reindexed.
+   *
+   * @param handler the handler
+   * @param list the list
+   * @throws Exception the exception
+   */
+  private void computeFromProjections(RrfComputePreferredNameHandler handler,
+    PrecedenceList list) throws Exception {
+
+    // the handler caches list ranks in a shared map, fill it before ranking
+    handler.cacheList(list);
+
+    final int totalCt = ((Number) manager
+        .createQuery("select count(*) from ConceptJpa c "
+            + "where c.terminology = :terminology "
+            + "  and c.version = :version and c.publishable = true")
+        .setParameter("terminology", getProject().getTerminology())
+        .setParameter("version", getProject().getVersion()).getSingleResult())
+            .intValue();
+    logInfo("  concepts = " + totalCt);
+
+    final int threads = Math.max(1, parallelism);
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    final Deque<Future<List<NameChange>>> futures = new ArrayDeque<>();
+    final Deque<Integer> pendingSizes = new ArrayDeque<>();
+    final List<NameChange> changes = new ArrayList<>();
+    final int[] progress = new int[] {
+        0, 0
+    };
+
+    final ScrollableResults results = manager.unwrap(Session.class)
+        .createQuery("select c.id, c.name, a.id, a.name, a.terminology, "
+            + "a.termType, a.stringClassId, a.lastPublishedRank, "
+            + "a.publishable, a.obsolete, a.suppressible "
+            + "from ConceptJpa c left join c.atoms a "
+            + "where c.terminology = :terminology "
+            + "  and c.version = :version and c.publishable = true "
+            + "order by c.id")
+        .setParameter("terminology", getProject().getTerminology())
+        .setParameter("version", getProject().getVersion()).setReadOnly(true)
+        .setFetchSize(fetchSize).scroll(ScrollMode.FORWARD_ONLY);
+    try {
+      List<ConceptAtoms> batch = new ArrayList<>(batchSize);
+      ConceptAtoms concept = null;
+      while (results.next()) {
+        final Object[] row = results.get();
+        if (concept == null || concept.id != (Long) row[0]) {
+          if (batch.size() == batchSize) {
+            submit(pool, futures, pendingSizes, batch, handler, list);
+            batch = new ArrayList<>(batchSize);
+            while (futures.size() > 2 * threads) {
+              consume(futures, pendingSizes, changes, progress, totalCt);
+            }
+          }
+          concept = new ConceptAtoms((Long) row[0], (String) row[1]);
+          batch.add(concept);
+        }
+        if (row[2] != null) {
+          final Atom atom = new AtomJpa();
+          atom.setId((Long) row[2]);
+          atom.setName((String) row[3]);
+          atom.setTerminology((String) row[4]);
+          atom.setTermType((String) row[5]);
+          atom.setStringClassId((String) row[6]);
+          atom.setLastPublishedRank((String) row[7]);
+          atom.setPublishable((Boolean) row[8]);
+          atom.setObsolete((Boolean) row[9]);
+          atom.setSuppressible((Boolean) row[10]);
+          concept.atoms.add(atom);
+        }
+      }
+      submit(pool, futures, pendingSizes, batch, handler, list);
+      while (!futures.isEmpty()) {
+        consume(futures, pendingSizes, changes, progress, totalCt);
+      }
+    } finally {
+      results.close();
+      pool.shutdownNow();
+    }
+
+    // apply the changes once the projection is closed
+    updateConcepts(changes);
+    reindexConcepts(changes);
+
+    fireProgressEvent(100, "Finished - 100%");
+    logInfo("  concept count = " + progress[0]);
+    logInfo("  concepts updated = " + changes.size());
+  }
+
+  /**
+   * Submits a batch of concepts for ranking.
+   *
+   * @param pool the pool
+   * @param futures the futures
+   * @param pendingSizes the batch sizes of the futures
+   * @param batch the batch
+   * @param handler the handler
+   * @param list the list
+   */
+  private static void submit(ExecutorService pool,
+    Deque<Future<List<NameChange>>> futures, Deque<Integer> pendingSizes,
+    List<ConceptAtoms> batch, RrfComputePreferredNameHandler handler,
+    PrecedenceList list) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    futures.add(pool.submit(() -> {
+      final List<NameChange> changes = new ArrayList<>();
+      for (final ConceptAtoms concept : batch) {
+        final NameChange change = concept.getChange(handler, list);
+        if (change != null) {
+          changes.add(change);
+        }
+      }
+      return changes;
+    }));
+    pendingSizes.add(batch.size());
+  }
+
+  /**
+   * Waits for the oldest ranking task and collects its changes.
+   *
+   * @param futures the futures
+   * @param pendingSizes the batch sizes of the futures
+   * @param changes the changes
+   * @param progress the concept count and last progress reported
+   * @param totalCt the total count
+   * @throws Exception the exception
+   */
+  private void consume(Deque<Future<List<NameChange>>> futures,
+    Deque<Integer> pendingSizes, List<NameChange> changes, int[] progress,
+    int totalCt) throws Exception {
+    changes.addAll(futures.removeFirst().get());
+    progress[0] += pendingSizes.removeFirst();
+    final int currentProgress =
+        (int) (90.0 * progress[0] / Math.max(1, totalCt));
+    if (currentProgress > progress[1]) {
+      fireProgressEvent(currentProgress, "Progress: " + currentProgress + "%");
+      progress[1] = currentProgress;
+    }
+    checkCancel();
+  }
+
+  /**
+   * Writes the changed names and publishable flags with batched UPDATEs.
+   * Concepts are not loaded, so they are reindexed separately. The UPDATEs
+   * bypass Hibernate, so no audit records are written for these changes.
+   *
+   * @param changes the changes
+   * @throws Exception the exception
+   */
+  private void updateConcepts(List<NameChange> changes) throws Exception {
+    final Session session = manager.unwrap(Session.class);
+    final AbstractEntityPersister persister =
+        (AbstractEntityPersister) ((SessionFactoryImplementor) session
+            .getSessionFactory()).getEntityPersister(ConceptJpa.class.getName());
+    final boolean lastModifiedFlag = isLastModifiedFlag();
+    final String sql = "update " + persister.getTableName() + " set "
+        + persister.getPropertyColumnNames("name")[0] + " = ?, "
+        + persister.getPropertyColumnNames("publishable")[0] + " = ?"
+        + (lastModifiedFlag ? ", "
+            + persister.getPropertyColumnNames("lastModified")[0] + " = ?, "
+            + persister.getPropertyColumnNames("lastModifiedBy")[0] + " = ?"
+            : "")
+        + " where " + persister.getIdentifierColumnNames()[0] + " = ?";
+    final Timestamp now = new Timestamp(System.currentTimeMillis());
+
+    for (int i = 0; i < changes.size(); i += batchSize) {
+      final List<NameChange> batch =
+          changes.subList(i, Math.min(i + batchSize, changes.size()));
+      session.doWork(connection -> {
+        try (final PreparedStatement ps = connection.prepareStatement(sql)) {
+          for (final NameChange change : batch) {
+            int index = 1;
+            ps.setString(index++, change.name);
+            ps.setBoolean(index++, change.publishable);
+            if (lastModifiedFlag) {
+              ps.setTimestamp(index++, now);
+              ps.setString(index++, getLastModifiedBy());
+            }
+            ps.setLong(index++, change.id);
+            ps.addBatch();
+          }
+          ps.executeBatch();
+        }
+      });
+      commitClearBegin();
+    }
+  }
+
+  /**
+   * Reindexes the changed concepts.
+   *
+   * @param changes the changes
+   * @throws Exception the exception
+   */
+  private void reindexConcepts(List<NameChange> changes) throws Exception {
+    final FullTextEntityManager fullTextEntityManager =
+        Search.getFullTextEntityManager(manager);
+    int ct = 0;
+    for (final NameChange change : changes) {
+      fullTextEntityManager.index(getConcept(change.id));
+      if (++ct % batchSize == 0) {
+        fullTextEntityManager.flushToIndexes();
+        commitClearBegin();
+      }
+    }
+    fullTextEntityManager.flushToIndexes();
+    commitClearBegin();
+  }
+
   /**
    * Helper.
    *
@@ -195,7 +454,24 @@ public class ComputePreferredNamesAlgorithm extends AbstractAlgorithm {
   /* see superclass */
   @Override
   public void setProperties(Properties p) throws Exception {
-    // n/a
+    if (p.getProperty("projectionMode") != null) {
+      projectionMode = Boolean.parseBoolean(p.getProperty("projectionMode"));
+    }
+  }
+
+  /* see superclass */
+  @Override
+  public List<AlgorithmParameter> getParameters() throws Exception {
+    final List<AlgorithmParameter> params = super.getParameters();
+    final AlgorithmParameter param = new AlgorithmParameterJpa(
+        "Projection mode", "projectionMode",
+        "Rank atom projections in parallel and update only changed "
+            + "concepts, instead of loading each concept. Changed names "
+            + "are written with batched SQL updates, so no audit history "
+            + "is recorded for them.",
+        "e.g. false", 0, AlgorithmParameter.Type.BOOLEAN, "false");
+    params.add(param);
+    return params;
   }
 
   /* see superclass */
@@ -203,4 +479,143 @@ public class ComputePreferredNamesAlgorithm extends AbstractAlgorithm {
   public String getDescription() {
     return ConfigUtility.getNameFromClass(getClass());
   }
+
+  /**
+   * Returns the parallelism.
+   *
+   * @return the parallelism
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Sets the parallelism.
+   *
+   * @param parallelism the parallelism
+   */
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Returns the batch size.
+   *
+   * @return the batch size
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Sets the batch size.
+   *
+   * @param batchSize the batch size
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Indicates whether or not projection mode is the case.
+   *
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   */
+  public boolean isProjectionMode() {
+    return projectionMode;
+  }
+
+  /**
+   * Sets the projection mode.
+   *
+   * @param projectionMode the projection mode
+   */
+  public void setProjectionMode(boolean projectionMode) {
+    this.projectionMode = projectionMode;
+  }
+
+  /**
+   * A concept and the projected atom fields used for ranking.
+   */
+  private static class ConceptAtoms {
+
+    /** The concept id. */
+    private final long id;
+
+    /** The current name. */
+    private final String name;
+
+    /** The atoms, not managed. */
+    private final List<Atom> atoms = new ArrayList<>(4);
+
+    /**
+     * Instantiates a {@link ConceptAtoms} from the specified parameters.
+     *
+     * @param id the id
+     * @param name the name
+     */
+    ConceptAtoms(long id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+
+    /**
+     * Returns the change to the concept, as in {@link #isChanged}.
+     *
+     * @param handler the handler
+     * @param list the list
+     * @return the change, or null if unchanged
+     * @throws Exception the exception
+     */
+    NameChange getChange(ComputePreferredNameHandler handler,
+      PrecedenceList list) throws Exception {
+      // the concept is publishable (see query)
+      boolean publishable = false;
+      for (final Atom atom : atoms) {
+        if (atom.isPublishable()) {
+          publishable = true;
+        }
+      }
+      String computedName = name;
+      if (!atoms.isEmpty()) {
+        computedName = handler.computePreferredName(atoms, list);
+        if (computedName == null) {
+          throw new Exception(
+              "Unexpected concept without preferred name - " + id);
+        }
+      }
+      if (publishable && computedName.equals(name)) {
+        return null;
+      }
+      return new NameChange(id, computedName, publishable);
+    }
+  }
+
+  /**
+   * A changed concept name and publishable flag.
+   */
+  private static class NameChange {
+
+    /** The concept id. */
+    private final long id;
+
+    /** The name. */
+    private final String name;
+
+    /** The publishable flag. */
+    private final boolean publishable;
+
+    /**
+     * Instantiates a {@link NameChange} from the specified parameters.
+     *
+     * @param id the id
+     * @param name the name
+     * @param publishable the publishable
+     */
+    NameChange(long id, String name, boolean publishable) {
+      this.id = id;
+      this.name = name;
+      this.publishable = publishable;
+    }
+  }
 }
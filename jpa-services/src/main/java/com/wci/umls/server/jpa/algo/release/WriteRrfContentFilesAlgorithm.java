@@ -3,11 +3,17 @@
  */
 package com.wci.umls.server.jpa.algo.release;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -15,11 +21,22 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import javax.persistence.Query;
 
-import org.apache.log4j.Logger;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 
+import com.wci.umls.server.AlgorithmParameter;
 import com.wci.umls.server.ValidationResult;
 import com.wci.umls.server.helpers.Branch;
 import com.wci.umls.server.helpers.ComponentInfo;
@@ -30,12 +47,18 @@ import com.wci.umls.server.helpers.QueryType;
 import com.wci.umls.server.helpers.SearchResultList;
 import com.wci.umls.server.helpers.content.ConceptList;
 import com.wci.umls.server.helpers.content.SubsetMemberList;
+import com.wci.umls.server.jpa.AlgorithmParameterJpa;
 import com.wci.umls.server.jpa.ValidationResultJpa;
 import com.wci.umls.server.jpa.algo.AbstractInsertMaintReleaseAlgorithm;
+import com.wci.umls.server.jpa.content.AtomJpa;
 import com.wci.umls.server.jpa.content.CodeJpa;
 import com.wci.umls.server.jpa.content.ConceptJpa;
+import com.wci.umls.server.jpa.content.ConceptRelationshipJpa;
 import com.wci.umls.server.jpa.content.DescriptorJpa;
+import com.wci.umls.server.jpa.services.helper.ByteArena;
+import com.wci.umls.server.jpa.services.helper.CompactStringMap;
 import com.wci.umls.server.jpa.services.helper.ReportsAtomComparator;
+import com.wci.umls.server.jpa.services.helper.SortedIdMap;
 import com.wci.umls.server.model.content.Atom;
 import com.wci.umls.server.model.content.AtomRelationship;
 import com.wci.umls.server.model.content.AtomSubsetMember;
@@ -81,37 +104,40 @@ public class WriteRrfContentFilesAlgorithm
   Map<String, PrintWriter> writerMap = new HashMap<>(10000);
 
   /** The aui cui map. */
-  private Map<String, String> auiCuiMap = new HashMap<>(10000);
+  private CompactStringMap auiCuiMap = new CompactStringMap();
 
   /** The att atui map. */
-  private Map<Long, String> attAtuiMap = new HashMap<>(10000);
+  private SortedIdMap attAtuiMap = new SortedIdMap();
+
+  /** The definition atui map. */
+  private SortedIdMap defAtuiMap = new SortedIdMap();
 
   /** The rel rui map. */
-  private Map<Long, String> relAtomRuiMap = new HashMap<>(10000);
+  private SortedIdMap relAtomRuiMap = new SortedIdMap();
 
   /** The rel concept rui map. */
-  private Map<Long, String> relConceptRuiMap = new HashMap<>(10000);
+  private SortedIdMap relConceptRuiMap = new SortedIdMap();
 
   /** The rel code rui map. */
-  private Map<Long, String> relCodeRuiMap = new HashMap<>(10000);
-
-  /** The rel comp atom rui map. */
-  private Map<Long, String> relCompRuiMap = new HashMap<>(10000);
+  private SortedIdMap relCodeRuiMap = new SortedIdMap();
 
   /** The rel descriptor rui map. */
-  private Map<Long, String> relDescriptorRuiMap = new HashMap<>(10000);
+  private SortedIdMap relDescriptorRuiMap = new SortedIdMap();
+
+  /** The AUIs of the contents maps. */
+  private ByteArena auiArena = new ByteArena();
 
-  /** The atom treepos set. */
-  private Map<Long, AtomContents> atomContentsMap = new HashMap<>(10000);
+  /** The atom contents map. */
+  private AtomContentsMap atomContentsMap = new AtomContentsMap();
 
   /** The concept contents map. */
-  private Map<Long, Contents> conceptContentsMap = new HashMap<>(10000);
+  private ContentsMap conceptContentsMap = new ContentsMap();
 
   /** The code contents map. */
-  private Map<Long, Contents> codeContentsMap = new HashMap<>(10000);
+  private ContentsMap codeContentsMap = new ContentsMap();
 
-  /** The descripto contents map. */
-  private Map<Long, Contents> descriptorContentsMap = new HashMap<>(10000);
+  /** The descriptor contents map. */
+  private ContentsMap descriptorContentsMap = new ContentsMap();
 
   /** The rui attribute terminologies. */
   private Set<String> ruiAttributeTerminologies = new HashSet<>();
@@ -132,6 +158,65 @@ public class WriteRrfContentFilesAlgorithm
   /** The precedence list. */
   private PrecedenceList precedenceList;
 
+  /** The number of worker services loading concepts. */
+  private int parallelism = 4;
+
+  /** The number of concepts loaded per batch. */
+  private int batchSize = 500;
+
+  /** The fetch size for scrolled projections. */
+  private int fetchSize = 10000;
+
+  /**
+   * Indicates whether the files are streamed from projection queries rather
+   * than written from loaded concepts.
+   */
+  private boolean projectionMode = false;
+
+  /** The component info relationship keys of concepts, by id. */
+  private Map<Long, String> conceptInfoKeyMap = new HashMap<>();
+
+  /** The component info relationship keys of codes, by id. */
+  private Map<Long, String> codeInfoKeyMap = new HashMap<>();
+
+  /** The component info relationship keys of descriptors, by id. */
+  private Map<Long, String> descriptorInfoKeyMap = new HashMap<>();
+
+  /** The conditions on a concept c written, for a projection. */
+  private static final String CONCEPT_CLAUSE =
+      "c.terminology = :terminology and c.version = :version "
+          + "and c.publishable = true and exists (select a2.id "
+          + "from ConceptJpa c2 join c2.atoms a2 where c2 = c "
+          + "and a2.publishable = true) ";
+
+  /** The conditions on a publishable atom a of a concept c written. */
+  private static final String ATOM_CLAUSE =
+      "c.terminology = :terminology and c.version = :version "
+          + "and c.publishable = true and a.publishable = true ";
+
+  /** The atom fields of a projection. */
+  private static final String ATOM_FIELDS =
+      "a.id, a.publishable, a.obsolete, a.suppressible, a.terminology, "
+          + "a.terminologyId, a.version, a.termType, a.lastPublishedRank, "
+          + "a.stringClassId, a.lexicalClassId, a.language, a.conceptId, "
+          + "a.descriptorId, a.codeId, a.name";
+
+  /** The relationship fields of a projection. */
+  private static final String REL_FIELDS =
+      "r.id, r.terminology, r.terminologyId, r.relationshipType, "
+          + "r.additionalRelationshipType, r.group, r.assertedDirection, "
+          + "r.obsolete, r.suppressible";
+
+  /** The attribute fields of a projection. */
+  private static final String ATT_FIELDS =
+      "att.id, att.terminologyId, att.name, att.terminology, att.value, "
+          + "att.obsolete, att.suppressible";
+
+  /** The tree position fields of a projection. */
+  private static final String TREEPOS_FIELDS =
+      "tp.id, tp.ancestorPath, tp.terminology, tp.additionalRelationshipType, "
+          + "tp.terminologyId";
+
   /**
    * Instantiates an empty {@link WriteRrfContentFilesAlgorithm}.
    *
@@ -172,6 +257,43 @@ public class WriteRrfContentFilesAlgorithm
     prepareMaps();
     commitClearBegin();
 
+    // Write AMBIG files
+    writeAmbig();
+
+    // In projection mode, stream each file straight from the database;
+    // otherwise write them from loaded concepts
+    if (projectionMode) {
+      setSteps(6);
+      writeMrconsoProjection();
+      updateProgress();
+      writeMrdefProjection();
+      updateProgress();
+      writeMrstyProjection();
+      updateProgress();
+      writeMrrelProjection();
+      updateProgress();
+      writeMrsatProjection();
+      updateProgress();
+      writeMrhierProjection();
+      updateProgress();
+    } else {
+      writeConcepts();
+    }
+
+    // close print writers
+    closeWriters();
+
+    fireProgressEvent(100, "Finished");
+    logInfo("Finished " + getName());
+
+  }
+
+  /**
+   * Writes the content files from batches of loaded concepts.
+   *
+   * @throws Exception the exception
+   */
+  private void writeConcepts() throws Exception {
     // Collect all concepts
     final List<Long> conceptIds = executeSingleComponentIdQuery(
         "select distinct c.id from ConceptJpa c join c.atoms a "
@@ -183,200 +305,911 @@ public class WriteRrfContentFilesAlgorithm
     commitClearBegin();
     setSteps(conceptIds.size());
 
-    // Write AMBIG files
-    writeAmbig();
+    // Load each batch of concepts once on a worker service and fan the
+    // lines out to one writer stage per file
+    final Map<String, WriterStage> stages = new HashMap<>();
+    for (final String fileName : new String[] {
+        "MRCONSO.RRF", "MRDEF.RRF", "MRSTY.RRF", "MRREL.RRF", "MRSAT.RRF",
+        "MRHIER.RRF", "MRMAP.RRF", "MRSMAP.RRF"
+    }) {
+      final WriterStage stage =
+          new WriterStage(fileName, writerMap.get(fileName));
+      stage.start();
+      stages.put(fileName, stage);
+    }
+    final int threads = Math.max(1, parallelism);
+    final BlockingQueue<WriteRrfContentFilesAlgorithm> services =
+        new LinkedBlockingQueue<>();
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      for (int i = 0; i < threads; i++) {
+        services.add(newWorkerService());
+      }
 
-    // Parallelize output
-    final Thread[] threads = new Thread[3];
-    final Exception[] exceptions = new Exception[3];
-
-    Thread t = new Thread(new Runnable() {
-      @Override
-      public void run() {
-        WriteRrfContentFilesAlgorithm service = null;
-        try {
-          service = new WriteRrfContentFilesAlgorithm();
-          service.setTransactionPerOperation(false);
-          service.beginTransaction();
-
-          service.setProject(getProject());
-          service.setProcess(getProcess());
-
-          int ct = 0;
-          for (final Long conceptId : conceptIds) {
-            final Concept c = service.getConcept(conceptId);
-
-            String prev = null;
-            for (final String line : writeMrsat(c, service)) {
-              if (!line.equals(prev)) {
-                writerMap.get("MRSAT.RRF").print(line);
-              }
-              prev = line;
-            }
-            if (ct++ % RootService.commitCt == 0) {
-              checkCancel();
-              service.commitClearBegin();
-            }
-          }
-          service.commit();
-          service.close();
-          Logger.getLogger(getClass()).info("After MRSAT completes.");
-
-        } catch (Exception e) {
-          exceptions[0] = e;
-        } finally {
-          try {
-            service.close();
-          } catch (Exception e) {
-            exceptions[0] = e;
-          }
+      // Batches complete out of order but are written in order, keeping a
+      // bounded number in flight
+      final Deque<Future<Map<String, List<String>>>> pending =
+          new ArrayDeque<>();
+      final Deque<Integer> pendingSizes = new ArrayDeque<>();
+      for (int i = 0; i < conceptIds.size(); i += batchSize) {
+        final List<Long> batch =
+            conceptIds.subList(i, Math.min(i + batchSize, conceptIds.size()));
+        pending.add(pool.submit(() -> writeBatch(batch, services)));
+        pendingSizes.add(batch.size());
+        while (pending.size() > 2 * threads) {
+          dispatchBatch(pending.poll().get(), pendingSizes.poll(), stages);
         }
       }
-    });
-    threads[0] = t;
-    t.start();
-
-    t = new Thread(new Runnable() {
-      @Override
-      public void run() {
-        WriteRrfContentFilesAlgorithm service = null;
-        try {
-          service = new WriteRrfContentFilesAlgorithm();
-          service.setTransactionPerOperation(false);
-          service.beginTransaction();
-
-          service.setProject(getProject());
-          service.setProcess(getProcess());
-
-          int ct = 0;
-          for (final Long conceptId : conceptIds) {
-            final Concept c = service.getConcept(conceptId);
-
-            String prev = "";
-            for (final String line : writeMrrel(c, service)) {
-              if (!line.equals(prev)) {
-                writerMap.get("MRREL.RRF").print(line);
-              }
-              prev = line;
-            }
+      while (!pending.isEmpty()) {
+        dispatchBatch(pending.poll().get(), pendingSizes.poll(), stages);
+      }
+    } finally {
+      pool.shutdownNow();
+      pool.awaitTermination(1, TimeUnit.MINUTES);
+      for (final WriterStage stage : stages.values()) {
+        stage.finish();
+      }
+      for (final WriteRrfContentFilesAlgorithm service : services) {
+        service.close();
+      }
+    }
+    for (final WriterStage stage : stages.values()) {
+      stage.checkError();
+    }
+  }
 
-            if (ct++ % RootService.commitCt == 0) {
-              checkCancel();
-              service.commitClearBegin();
-            }
-          }
-          service.commit();
-          service.close();
-          Logger.getLogger(getClass()).info("After MRREL completes.");
-
-        } catch (Exception e) {
-          exceptions[1] = e;
-        } finally {
-          try {
-            service.close();
-          } catch (Exception e) {
-            exceptions[1] = e;
+  /**
+   * Returns a worker service on the project and process, with an open
+   * transaction.
+   *
+   * @return the worker service
+   * @throws Exception the exception
+   */
+  private WriteRrfContentFilesAlgorithm newWorkerService() throws Exception {
+    final WriteRrfContentFilesAlgorithm service =
+        new WriteRrfContentFilesAlgorithm();
+    service.setTransactionPerOperation(false);
+    service.beginTransaction();
+    service.setProject(getProject());
+    service.setProcess(getProcess());
+    return service;
+  }
+
+  /**
+   * Writes MRCONSO, MRMAP and MRSMAP from a projection of the atoms of each
+   * concept, without loading concepts. The atoms are rebuilt as transient
+   * objects holding just the fields that the MRCONSO writer and the atom
+   * ranks read.
+   *
+   * @throws Exception the exception
+   */
+  private void writeMrconsoProjection() throws Exception {
+    final Map<String, List<String>> output = new HashMap<>();
+    writeProjection("MRCONSO.RRF", (cui, rows, lines) -> {
+      final ConceptJpa concept = new ConceptJpa();
+      concept.setTerminologyId(cui);
+      for (final Object[] row : rows.get(0)) {
+        concept.getAtoms().add(toAtom(row, 1));
+      }
+      lines.addAll(writeMrconso(concept, this, output));
+      // MRMAP and MRSMAP are written in CUI order as they are found
+      for (final String fileName : new String[] {
+          "MRMAP.RRF", "MRSMAP.RRF"
+      }) {
+        if (output.containsKey(fileName)) {
+          for (final String line : output.remove(fileName)) {
+            writerMap.get(fileName).print(line);
           }
         }
       }
-    });
-    threads[1] = t;
-    t.start();
-
-    t = new Thread(new Runnable() {
-      @Override
-      public void run() {
-        WriteRrfContentFilesAlgorithm service = null;
-        try {
-          service = new WriteRrfContentFilesAlgorithm();
-          service.setTransactionPerOperation(false);
-          service.beginTransaction();
-
-          service.setProject(getProject());
-          service.setProcess(getProcess());
-
-          int ct = 0;
-          for (final Long conceptId : conceptIds) {
-            final Concept c = service.getConcept(conceptId);
-
-            String prev = "";
-            for (final String line : writeMrhier(c, service)) {
-              if (!line.equals(prev)) {
-                writerMap.get("MRHIER.RRF").print(line);
-              }
-              prev = line;
-            }
+    }, "select c.terminologyId, " + ATOM_FIELDS
+        + " from ConceptJpa c join c.atoms a where " + CONCEPT_CLAUSE);
+  }
+
+  /**
+   * Writes MRDEF from a projection of the publishable definitions, without
+   * loading concepts.
+   *
+   * @throws Exception the exception
+   */
+  private void writeMrdefProjection() throws Exception {
+    writeProjection("MRDEF.RRF", (cui, rows, lines) -> {
+      for (final Object[] row : rows.get(0)) {
+        final AtomContents contents = atomContentsMap.get((Long) row[1]);
+        if (contents == null || !contents.hasDefinitions()) {
+          continue;
+        }
+        lines.add(getMrdefLine(cui, contents.getAui(),
+            defAtuiMap.get((Long) row[2]), (String) row[3], (String) row[4],
+            (String) row[5], (Boolean) row[6], (Boolean) row[7]));
+      }
+    }, "select c.terminologyId, a.id, d.id, d.terminologyId, d.terminology, "
+        + "d.value, d.obsolete, d.suppressible "
+        + "from ConceptJpa c join c.atoms a join a.definitions d where "
+        + ATOM_CLAUSE + "and d.publishable = true");
+  }
+
+  /**
+   * Writes MRSTY from a projection of the publishable semantic types, without
+   * loading concepts.
+   *
+   * @throws Exception the exception
+   */
+  private void writeMrstyProjection() throws Exception {
+    writeProjection("MRSTY.RRF", (cui, rows, lines) -> {
+      for (final Object[] row : rows.get(0)) {
+        lines.add(getMrstyLine(cui, (String) row[1], (String) row[2]));
+      }
+    }, "select c.terminologyId, s.semanticType, s.terminologyId "
+        + "from ConceptJpa c join c.semanticTypes s where " + CONCEPT_CLAUSE
+        + "and s.publishable = true");
+  }
+
+  /**
+   * Writes MRREL from projections of the relationships of the concepts, of
+   * their atoms, and of the SCUIs, codes and SDUIs the atoms are the preferred
+   * atoms of, without loading concepts. The component info relationships are
+   * looked up by key as in the concept-based writer.
+   *
+   * @throws Exception the exception
+   */
+  private void writeMrrelProjection() throws Exception {
+    final String sourceRels = " s join s.atoms sa "
+        + "join s.inverseRelationships r where " + ATOM_CLAUSE
+        + "and sa = a and s.publishable = true and r.publishable = true";
+    writeProjection("MRREL.RRF", (cui, rows, lines) -> {
+      // Component info relationships of the concept, its atoms, and their
+      // SCUIs, codes and SDUIs
+      addConceptInfoRelLines(cui + getProject().getTerminology()
+          + getProject().getVersion() + IdType.CONCEPT, cui, this, lines);
+      for (final Object[] row : rows.get(0)) {
+        final AtomContents contents = atomContentsMap.get((Long) row[1]);
+        final String aui1 = contents.getAui();
+        addAtomInfoRelLines(aui1 + getProject().getTerminology() + IdType.ATOM,
+            cui, aui1, this, lines);
+        addScuiInfoRelLines(conceptInfoKeyMap.get(contents.getConceptId()),
+            cui, aui1, this, lines);
+        addCodeInfoRelLines(codeInfoKeyMap.get(contents.getCodeId()), cui,
+            aui1, this, lines);
+        addSduiInfoRelLines(
+            descriptorInfoKeyMap.get(contents.getDescriptorId()), cui, aui1,
+            this, lines);
+      }
+
+      // Concept relationships
+      for (final Object[] row : rows.get(1)) {
+        lines.add(getRelLine(toRelationship(row, 2), cui, "", "CUI",
+            (String) row[1], "", "CUI", relConceptRuiMap.get((Long) row[2])));
+      }
+
+      // Atom relationships
+      for (final Object[] row : rows.get(2)) {
+        final AtomContents contents = atomContentsMap.get((Long) row[1]);
+        if (!contents.hasRelationships()) {
+          continue;
+        }
+        lines.add(getRelLine(toRelationship(row, 3), cui, contents.getAui(),
+            "AUI", null, atomContentsMap.get((Long) row[2]).getAui(), "AUI",
+            relAtomRuiMap.get((Long) row[3])));
+      }
+
+      // SCUI, CODE and SDUI relationships, if preferred atom of the source
+      // component
+      addSourceRelLines(cui, rows.get(3), conceptContentsMap,
+          AtomContents::getConceptId, "SCUI", relConceptRuiMap, lines);
+      addSourceRelLines(cui, rows.get(4), codeContentsMap,
+          AtomContents::getCodeId, "CODE", relCodeRuiMap, lines);
+      addSourceRelLines(cui, rows.get(5), descriptorContentsMap,
+          AtomContents::getDescriptorId, "SDUI", relDescriptorRuiMap, lines);
+    }, "select c.terminologyId, a.id from ConceptJpa c join c.atoms a where "
+        + ATOM_CLAUSE,
+        "select c.terminologyId, r.from.terminologyId, " + REL_FIELDS
+            + " from ConceptJpa c join c.inverseRelationships r where "
+            + CONCEPT_CLAUSE + "and r.publishable = true",
+        "select c.terminologyId, a.id, r.from.id, " + REL_FIELDS
+            + " from ConceptJpa c join c.atoms a join a.inverseRelationships r "
+            + "where " + ATOM_CLAUSE + "and r.publishable = true",
+        "select c.terminologyId, a.id, s.id, r.from.id, " + REL_FIELDS
+            + " from ConceptJpa c join c.atoms a, ConceptJpa" + sourceRels
+            + " and s.terminology != :terminology",
+        "select c.terminologyId, a.id, s.id, r.from.id, " + REL_FIELDS
+            + " from ConceptJpa c join c.atoms a, CodeJpa" + sourceRels,
+        "select c.terminologyId, a.id, s.id, r.from.id, " + REL_FIELDS
+            + " from ConceptJpa c join c.atoms a, DescriptorJpa" + sourceRels);
+  }
+
+  /**
+   * Adds the MRREL lines for projection rows of the relationships of the
+   * source components of atoms, for the rows whose atom is the preferred atom
+   * of the source component.
+   *
+   * @param cui the cui
+   * @param rows the rows of CUI, atom id, source id, from id and
+   *          {@link #REL_FIELDS}
+   * @param map the contents map of the source components
+   * @param preferredId returns the source component id an atom is the
+   *          preferred atom of
+   * @param stype the STYPE
+   * @param ruiMap the RUI map
+   * @param lines the lines
+   */
+  private void addSourceRelLines(String cui, List<Object[]> rows,
+    ContentsMap map, Function<AtomContents, Long> preferredId, String stype,
+    SortedIdMap ruiMap, List<String> lines) {
+    for (final Object[] row : rows) {
+      final AtomContents contents = atomContentsMap.get((Long) row[1]);
+      final Long id = (Long) row[2];
+      if (!id.equals(preferredId.apply(contents)) || !map.containsKey(id)
+          || !map.get(id).hasRelationships()) {
+        continue;
+      }
+      lines.add(getRelLine(toRelationship(row, 4), cui, contents.getAui(),
+          stype, null, map.get((Long) row[3]).getAui(), stype,
+          ruiMap.get((Long) row[4])));
+    }
+  }
+
+  /**
+   * Writes MRSAT from projections of the attributes and subset members of the
+   * concepts, of their atoms, and of the SCUIs, codes and SDUIs the atoms are
+   * the preferred atoms of, without loading concepts.
+   *
+   * @throws Exception the exception
+   */
+  private void writeMrsatProjection() throws Exception {
+    final String atoms = "select c.terminologyId, a.id, a.lexicalClassId, "
+        + "a.stringClassId, a.codeId, ";
+    final String sources = " s join s.atoms sa join s.attributes att where "
+        + ATOM_CLAUSE + "and sa = a and s.publishable = true "
+        + "and att.publishable = true";
+    writeProjection("MRSAT.RRF", (cui, rows, lines) -> {
+      // Concept attributes (CUIs)
+      for (final Object[] row : rows.get(0)) {
+        lines.add(getAttributeLine(cui, "", "", "", "CUI", "", row, 1));
+      }
+
+      // Atom attributes (AUIs)
+      for (final Object[] row : rows.get(1)) {
+        final AtomContents contents = atomContentsMap.get((Long) row[1]);
+        if (contents == null || !contents.hasAttributes()) {
+          continue;
+        }
+        lines.add(getAttributeLine(cui, (String) row[2], (String) row[3],
+            contents.getAui(), "AUI", (String) row[4], row, 5));
+      }
+
+      // Atom relationship attributes (RUIs)
+      for (final Object[] row : rows.get(2)) {
+        if (ruiAttributeTerminologies.contains(row[1])) {
+          lines.add(getAttributeLine(cui, "", "",
+              relAtomRuiMap.get((Long) row[2]), "RUI", "", row, 3));
+        }
+      }
+
+      // Atom subset members
+      for (final Object[] row : rows.get(3)) {
+        final AtomContents contents = atomContentsMap.get((Long) row[1]);
+        if (contents == null || !contents.hasMembers()) {
+          continue;
+        }
+        lines.add(getMrsatLine(cui, (String) row[2], (String) row[3],
+            contents.getAui(), "AUI", (String) row[4],
+            attAtuiMap.get((Long) row[7]), (String) row[5], "SUBSET_MEMBER",
+            (String) row[10],
+            getMemberAtv((String) row[6], (String) row[9], (String) row[11]),
+            (Boolean) row[12], (Boolean) row[13]));
+      }
+
+      // Source concept attributes (SCUIs), if preferred atom of the SCUI
+      for (final Object[] row : rows.get(4)) {
+        final AtomContents contents = atomContentsMap.get((Long) row[1]);
+        final Long id = (Long) row[5];
+        if (id.equals(contents.getConceptId())
+            && conceptContentsMap.containsKey(id)
+            && conceptContentsMap.get(id).hasAttributes()) {
+          lines.add(getAttributeLine(cui, (String) row[2], (String) row[3],
+              contents.getAui(), "SCUI", (String) row[4], row, 6));
+        }
+      }
+
+      // Source concept relationship attributes (RUIs)
+      for (final Object[] row : rows.get(5)) {
+        final AtomContents contents = atomContentsMap.get((Long) row[1]);
+        if (row[2].equals(contents.getConceptId())
+            && ruiAttributeTerminologies.contains(row[3])) {
+          lines.add(getAttributeLine(cui, "", "",
+              relConceptRuiMap.get((Long) row[4]), "RUI", "", row, 5));
+        }
+      }
+
+      // Concept subset members of the SCUI
+      for (final Object[] row : rows.get(6)) {
+        final AtomContents contents = atomContentsMap.get((Long) row[1]);
+        final Long id = (Long) row[5];
+        if (id.equals(contents.getConceptId())
+            && conceptContentsMap.containsKey(id)) {
+          lines.add(getMrsatLine(cui, (String) row[2], (String) row[3],
+              contents.getAui(), "SCUI", (String) row[4],
+              attAtuiMap.get((Long) row[8]), (String) row[6], "SUBSET_MEMBER",
+              (String) row[11],
+              getMemberAtv((String) row[7], (String) row[10],
+                  (String) row[12]),
+              (Boolean) row[13], (Boolean) row[14]));
+        }
+      }
+
+      // Code attributes, if preferred atom of the code
+      for (final Object[] row : rows.get(7)) {
+        final AtomContents contents = atomContentsMap.get((Long) row[1]);
+        final Long id = (Long) row[5];
+        if (id.equals(contents.getCodeId()) && codeContentsMap.containsKey(id)
+            && codeContentsMap.get(id).hasAttributes()) {
+          lines.add(getMrsatLine(cui, (String) row[2], (String) row[3],
+              contents.getAui(), "CODE", (String) row[4],
+              attAtuiMap.get((Long) row[6]),
+              row[7] != null ? (String) row[7] : "", (String) row[8],
+              (String) row[9], (String) row[10], (Boolean) row[11],
+              (Boolean) row[12]));
+        }
+      }
+
+      // Source descriptor attributes, if preferred atom of the descriptor
+      for (final Object[] row : rows.get(8)) {
+        final AtomContents contents = atomContentsMap.get((Long) row[1]);
+        final Long id = (Long) row[5];
+        if (id.equals(contents.getDescriptorId())
+            && descriptorContentsMap.containsKey(id)
+            && descriptorContentsMap.get(id).hasAttributes()) {
+          lines.add(getAttributeLine(cui, (String) row[2], (String) row[3],
+              contents.getAui(), "SDUI", (String) row[4], row, 6));
+        }
+      }
+    }, "select c.terminologyId, " + ATT_FIELDS
+        + " from ConceptJpa c join c.attributes att where " + CONCEPT_CLAUSE
+        + "and att.publishable = true",
+        atoms + ATT_FIELDS
+            + " from ConceptJpa c join c.atoms a join a.attributes att where "
+            + ATOM_CLAUSE + "and att.publishable = true",
+        "select c.terminologyId, a.terminology, r.id, " + ATT_FIELDS
+            + " from ConceptJpa c join c.atoms a join a.inverseRelationships r "
+            + "join r.attributes att where " + ATOM_CLAUSE
+            + "and r.publishable = true and att.publishable = true",
+        atoms + "m.terminologyId, m.subset.terminologyId, " + ATT_FIELDS
+            + " from ConceptJpa c join c.atoms a join a.members m "
+            + "join m.attributes att where " + ATOM_CLAUSE
+            + "and m.publishable = true and att.publishable = true",
+        atoms + "s.id, " + ATT_FIELDS
+            + " from ConceptJpa c join c.atoms a, ConceptJpa" + sources
+            + " and s.terminology != :terminology",
+        "select c.terminologyId, a.id, s.id, s.terminology, r.id, "
+            + ATT_FIELDS + " from ConceptJpa c join c.atoms a, ConceptJpa s "
+            + "join s.atoms sa join s.inverseRelationships r "
+            + "join r.attributes att where " + ATOM_CLAUSE
+            + "and sa = a and s.terminology != :terminology "
+            + "and s.publishable = true and r.publishable = true "
+            + "and att.publishable = true",
+        atoms + "s.id, m.terminologyId, m.subset.terminologyId, " + ATT_FIELDS
+            + " from ConceptJpa c join c.atoms a, ConceptSubsetMemberJpa m "
+            + "join m.member s join s.atoms sa join m.attributes att where "
+            + ATOM_CLAUSE + "and sa = a and s.terminology != :terminology "
+            + "and s.publishable = true and m.publishable = true "
+            + "and att.publishable = true",
+        atoms + "s.id, " + ATT_FIELDS
+            + " from ConceptJpa c join c.atoms a, CodeJpa" + sources,
+        atoms + "s.id, " + ATT_FIELDS
+            + " from ConceptJpa c join c.atoms a, DescriptorJpa" + sources);
+  }
+
+  /**
+   * Returns the MRSAT line for a projection row of {@link #ATT_FIELDS}.
+   *
+   * @param cui the cui
+   * @param lui the lui
+   * @param sui the sui
+   * @param metaui the metaui
+   * @param stype the stype
+   * @param code the code
+   * @param row the row
+   * @param offset the offset of the attribute fields in the row
+   * @return the line
+   */
+  private String getAttributeLine(String cui, String lui, String sui,
+    String metaui, String stype, String code, Object[] row, int offset) {
+    final String atui = attAtuiMap.get((Long) row[offset]);
+    return getMrsatLine(cui, lui, sui, metaui, stype, code,
+        atui != null ? atui : "",
+        row[offset + 1] != null ? (String) row[offset + 1] : "",
+        (String) row[offset + 2], (String) row[offset + 3],
+        (String) row[offset + 4], (Boolean) row[offset + 5],
+        (Boolean) row[offset + 6]);
+  }
+
+  /**
+   * Writes MRHIER from projections of the tree positions of the atoms of the
+   * concepts and of the SCUIs, SDUIs and codes the atoms are the preferred
+   * atoms of, without loading concepts. The tree positions of an atom are
+   * numbered in that order, and by id within each.
+   *
+   * @throws Exception the exception
+   */
+  private void writeMrhierProjection() throws Exception {
+    final String sources = " s join s.atoms sa join s.treePositions tp where "
+        + ATOM_CLAUSE + "and sa = a and s.publishable = true";
+    final ContentsMap[] maps = new ContentsMap[] {
+        null, atomContentsMap, conceptContentsMap, descriptorContentsMap,
+        codeContentsMap
+    };
+    final String[] types = new String[] {
+        null, "atom", "concept", "descriptor", "code"
+    };
+    final Map<String, String> rootNames = new HashMap<>();
+    writeProjection("MRHIER.RRF", (cui, rows, lines) -> {
+      for (final Object[] atom : rows.get(0)) {
+        final Long atomId = (Long) atom[1];
+        final AtomContents contents = atomContentsMap.get(atomId);
+
+        // If the atom is an SRC/RHT atom for a terminology that uses SRC root
+        // atoms, there won't be other tree positions
+        if (atom[2].equals("SRC") && atom[3].equals("RHT")
+            && terminologyUsingSrcRoot
+                .contains(((String) atom[4]).substring(2))) {
+          lines.add(getMrhierSrcLine(cui, contents.getAui(), (String) atom[4]));
+          continue;
+        }
 
-            if (ct++ % RootService.commitCt == 0) {
-              checkCancel();
-              service.commitClearBegin();
+        int ct = 1;
+        final Long[] preferredIds = new Long[] {
+            null, atomId, contents.getConceptId(), contents.getDescriptorId(),
+            contents.getCodeId()
+        };
+        for (int i = 1; i < rows.size(); i++) {
+          final List<Object[]> treeposRows = new ArrayList<>();
+          for (final Object[] row : rows.get(i)) {
+            if (atomId.equals(row[1]) && row[2].equals(preferredIds[i])
+                && maps[i].containsKey((Long) row[2])
+                && maps[i].get((Long) row[2]).hasTreePositions()) {
+              treeposRows.add(row);
             }
           }
-          service.commit();
-          service.close();
-          Logger.getLogger(getClass()).info("After MRHIER completes.");
-
-        } catch (Exception e) {
-          exceptions[2] = e;
-        } finally {
-          try {
-            service.close();
-          } catch (Exception e) {
-            exceptions[2] = e;
+          Collections.sort(treeposRows,
+              (row1, row2) -> ((Long) row1[3]).compareTo((Long) row2[3]));
+          for (final Object[] row : treeposRows) {
+            final StringBuilder ptr = new StringBuilder(200);
+            String paui = null;
+            String root = null;
+            for (final String id : FieldedStringTokenizer
+                .split((String) row[4], "~")) {
+              if (paui != null) {
+                ptr.append(".");
+              }
+              paui = maps[i].get(Long.valueOf(id)).getAui();
+              if (paui == null) {
+                throw new Exception(types[i] + " from ptr is null " + id);
+              }
+              ptr.append(paui);
+              if (root == null) {
+                root = getRootName(types[i], Long.valueOf(id), rootNames);
+              }
+            }
+            lines.add(getMrhierLine(cui, contents.getAui(), ct++, paui,
+                ptr.toString(), root, (String) atom[5], (String) row[5],
+                (String) row[6], (String) row[7]));
           }
         }
       }
-    });
-    threads[2] = t;
-    t.start();
-
-    // Start writing other files
-    for (final Long conceptId : conceptIds) {
-      final Concept c = getConcept(conceptId);
-      String prev = "";
-      for (final String line : writeMrconso(c)) {
-        if (!line.equals(prev)) {
-          writerMap.get("MRCONSO.RRF").print(line);
-        }
-        prev = line;
+    }, "select c.terminologyId, a.id, a.terminology, a.termType, a.codeId, "
+        + "a.name from ConceptJpa c join c.atoms a where " + ATOM_CLAUSE,
+        "select c.terminologyId, a.id, a.id, " + TREEPOS_FIELDS
+            + " from ConceptJpa c join c.atoms a join a.treePositions tp "
+            + "where " + ATOM_CLAUSE,
+        "select c.terminologyId, a.id, s.id, " + TREEPOS_FIELDS
+            + " from ConceptJpa c join c.atoms a, ConceptJpa" + sources
+            + " and s.terminology != :terminology",
+        "select c.terminologyId, a.id, s.id, " + TREEPOS_FIELDS
+            + " from ConceptJpa c join c.atoms a, DescriptorJpa" + sources,
+        "select c.terminologyId, a.id, s.id, " + TREEPOS_FIELDS
+            + " from ConceptJpa c join c.atoms a, CodeJpa" + sources);
+  }
+
+  /**
+   * Returns the name of the root of a tree position, caching it.
+   *
+   * @param type the type of the tree position node
+   * @param id the root id
+   * @param rootNames the root names, by type and id
+   * @return the root name
+   * @throws Exception the exception
+   */
+  private String getRootName(String type, Long id,
+    Map<String, String> rootNames) throws Exception {
+    final String key = type + id;
+    if (!rootNames.containsKey(key)) {
+      if (type.equals("atom")) {
+        rootNames.put(key, getAtom(id).getName());
+      } else if (type.equals("concept")) {
+        rootNames.put(key, getConcept(id).getName());
+      } else if (type.equals("descriptor")) {
+        rootNames.put(key, getDescriptor(id).getName());
+      } else {
+        rootNames.put(key, getCode(id).getName());
+      }
+    }
+    return rootNames.get(key);
+  }
+
+  /**
+   * Writes a file from forward-only projections whose first column is the
+   * CUI, each scrolled on its own worker service and ordered by CUI. The
+   * projections are read in step with the CUIs of the concepts written, so
+   * only one concept's rows and lines are held at a time; the lines are
+   * sorted and de-duplicated as in the concept-based writer. Lookups made by
+   * the handler run on this service.
+   *
+   * @param fileName the file name
+   * @param handler adds the lines for the rows of a concept
+   * @param queries the projection queries, with terminology and version
+   *          parameters and without an order by clause
+   * @throws Exception the exception
+   */
+  private void writeProjection(String fileName, ProjectionHandler handler,
+    String... queries) throws Exception {
+    logInfo("  Write " + fileName + " from projection");
+    final PrintWriter writer = writerMap.get(fileName);
+    final List<String> hqls = new ArrayList<>();
+    hqls.add("select distinct c.terminologyId "
+        + "from ConceptJpa c join c.atoms a where " + ATOM_CLAUSE);
+    hqls.addAll(Arrays.asList(queries));
+    final List<WriteRrfContentFilesAlgorithm> services = new ArrayList<>();
+    final List<ScrollableResults> results = new ArrayList<>();
+    try {
+      for (final String hql : hqls) {
+        final WriteRrfContentFilesAlgorithm service = newWorkerService();
+        services.add(service);
+        results.add(service.getEntityManager().unwrap(Session.class)
+            .createQuery(hql + " order by c.terminologyId")
+            .setParameter("terminology", getProject().getTerminology())
+            .setParameter("version", getProject().getVersion())
+            .setReadOnly(true).setFetchSize(fetchSize)
+            .scroll(ScrollMode.FORWARD_ONLY));
       }
 
-      prev = "";
-      for (final String line : writeMrdef(c)) {
-        if (!line.equals(prev)) {
-          writerMap.get("MRDEF.RRF").print(line);
+      final Object[][] next = new Object[queries.length][];
+      final List<List<Object[]>> rows = new ArrayList<>();
+      for (int i = 0; i < queries.length; i++) {
+        next[i] = nextRow(results.get(i + 1));
+        rows.add(new ArrayList<>());
+      }
+      final ScrollableResults cuis = results.get(0);
+      final List<String> lines = new ArrayList<>();
+      int ct = 0;
+      while (cuis.next()) {
+        final String cui = (String) cuis.get(0);
+        for (int i = 0; i < queries.length; i++) {
+          rows.get(i).clear();
+          while (next[i] != null && cui.equals(next[i][0])) {
+            rows.get(i).add(next[i]);
+            next[i] = nextRow(results.get(i + 1));
+          }
+        }
+        handler.addLines(cui, rows, lines);
+        printLines(writer, lines);
+        if (++ct % RootService.logCt == 0) {
+          checkCancel();
+          commitClearBegin();
         }
-        prev = line;
       }
 
-      prev = "";
-      for (final String line : writeMrsty(c)) {
-        if (!line.equals(prev)) {
-          writerMap.get("MRSTY.RRF").print(line);
+      // Any row left was not in the order of the CUIs
+      for (int i = 0; i < queries.length; i++) {
+        if (next[i] != null) {
+          throw new Exception("Unexpected " + fileName
+              + " row out of CUI order = " + next[i][0]);
         }
-        prev = line;
       }
-      updateProgress();
+      logInfo("    concepts = " + ct);
+    } finally {
+      for (final ScrollableResults result : results) {
+        result.close();
+      }
+      for (final WriteRrfContentFilesAlgorithm service : services) {
+        service.close();
+      }
     }
+  }
+
+  /**
+   * Returns the next row of the results.
+   *
+   * @param results the results
+   * @return the row, or null at the end
+   */
+  private static Object[] nextRow(ScrollableResults results) {
+    return results.next() ? results.get() : null;
+  }
+
+  /**
+   * Returns a transient atom holding the {@link #ATOM_FIELDS} of a projection
+   * row.
+   *
+   * @param row the row
+   * @param offset the offset of the atom fields in the row
+   * @return the atom
+   */
+  private static Atom toAtom(Object[] row, int offset) {
+    final AtomJpa atom = new AtomJpa();
+    atom.setId((Long) row[offset]);
+    atom.setPublishable((Boolean) row[offset + 1]);
+    atom.setObsolete((Boolean) row[offset + 2]);
+    atom.setSuppressible((Boolean) row[offset + 3]);
+    atom.setTerminology((String) row[offset + 4]);
+    atom.setTerminologyId((String) row[offset + 5]);
+    atom.setVersion((String) row[offset + 6]);
+    atom.setTermType((String) row[offset + 7]);
+    atom.setLastPublishedRank((String) row[offset + 8]);
+    atom.setStringClassId((String) row[offset + 9]);
+    atom.setLexicalClassId((String) row[offset + 10]);
+    atom.setLanguage((String) row[offset + 11]);
+    atom.setConceptId((String) row[offset + 12]);
+    atom.setDescriptorId((String) row[offset + 13]);
+    atom.setCodeId((String) row[offset + 14]);
+    atom.setName((String) row[offset + 15]);
+    return atom;
+  }
 
-    // Wait for threads
-    for (final Thread thread : threads) {
-      thread.join();
+  /**
+   * Returns a transient relationship holding the {@link #REL_FIELDS} of a
+   * projection row. Any relationship type serves, as the MRREL line reads
+   * only these fields.
+   *
+   * @param row the row
+   * @param offset the offset of the relationship fields in the row
+   * @return the relationship
+   */
+  private static Relationship<?, ?> toRelationship(Object[] row,
+    int offset) {
+    final ConceptRelationshipJpa rel = new ConceptRelationshipJpa();
+    rel.setId((Long) row[offset]);
+    rel.setTerminology((String) row[offset + 1]);
+    rel.setTerminologyId((String) row[offset + 2]);
+    rel.setRelationshipType((String) row[offset + 3]);
+    rel.setAdditionalRelationshipType((String) row[offset + 4]);
+    rel.setGroup((String) row[offset + 5]);
+    rel.setAssertedDirection((Boolean) row[offset + 6]);
+    rel.setObsolete((Boolean) row[offset + 7]);
+    rel.setSuppressible((Boolean) row[offset + 8]);
+    return rel;
+  }
+
+  /**
+   * Prints the lines in sorted order, skipping adjacent duplicates, and clears
+   * them.
+   *
+   * @param writer the writer
+   * @param lines the lines
+   */
+  private static void printLines(PrintWriter writer, List<String> lines) {
+    Collections.sort(lines);
+    String prev = null;
+    for (final String line : lines) {
+      if (!line.equals(prev)) {
+        writer.print(line);
+      }
+      prev = line;
     }
+    lines.clear();
+  }
 
-    // Report exceptions
-    for (final Exception e : exceptions) {
-      if (e != null) {
-        throw e;
+  /**
+   * Caches the project terminology ids of the publishable objects of the
+   * specified type.
+   *
+   * @param type the entity name
+   * @param map the map to fill
+   * @throws Exception the exception
+   */
+  private void cacheAlternateTerminologyIds(String type, SortedIdMap map)
+    throws Exception {
+    final ScrollableResults results = scrollAlternateTerminologyIds(type);
+    try {
+      while (results.next()) {
+        map.put(results.getLong(0), results.getString(1));
       }
+    } finally {
+      results.close();
     }
+    map.sort();
+    logInfo("    ct = " + map.size());
+  }
 
-    // close print writers
-    closeWriters();
+  /**
+   * Scrolls the id and project terminology id of the publishable objects of
+   * the specified type.
+   *
+   * @param type the entity name
+   * @return the scrollable results
+   * @throws Exception the exception
+   */
+  private ScrollableResults scrollAlternateTerminologyIds(String type)
+    throws Exception {
+    return manager.unwrap(Session.class)
+        .createQuery("select a.id, value(b) from " + type
+            + " a join a.alternateTerminologyIds b "
+            + "where KEY(b) = :terminology and a.publishable = true")
+        .setParameter("terminology", getProject().getTerminology())
+        .setReadOnly(true).setFetchSize(fetchSize)
+        .scroll(ScrollMode.FORWARD_ONLY);
+  }
 
-    fireProgressEvent(100, "Finished");
-    logInfo("Finished " + getName());
+  /**
+   * Loads a batch of concepts on a pooled worker service and returns the
+   * lines for each content file, with adjacent duplicates removed.
+   *
+   * @param batch the concept ids
+   * @param services the worker services
+   * @return the lines by file name
+   * @throws Exception the exception
+   */
+  private Map<String, List<String>> writeBatch(List<Long> batch,
+    BlockingQueue<WriteRrfContentFilesAlgorithm> services) throws Exception {
+    final WriteRrfContentFilesAlgorithm service = services.take();
+    try {
+      // Bring the batch and everything the writers walk into the persistence
+      // context at once
+      prefetchBatch(batch, service);
+
+      final Map<String, List<String>> output = new HashMap<>();
+      for (final Long conceptId : batch) {
+        final Concept c = service.getConcept(conceptId);
+        addLines(output, "MRCONSO.RRF", writeMrconso(c, service, output));
+        addLines(output, "MRDEF.RRF", writeMrdef(c));
+        addLines(output, "MRSTY.RRF", writeMrsty(c));
+        addLines(output, "MRREL.RRF", writeMrrel(c, service));
+        addLines(output, "MRSAT.RRF", writeMrsat(c, service));
+        addLines(output, "MRHIER.RRF", writeMrhier(c, service));
+      }
+      service.commitClearBegin();
+      return output;
+    } finally {
+      services.add(service);
+    }
+  }
+
+  /**
+   * Loads a batch of concepts, their atoms and the collections the writers
+   * walk with a fixed number of queries per batch, rather than one query per
+   * collection per component. Each query fetches a single collection (lists
+   * cannot be fetched together) for all of the owners in the batch; the
+   * results just initialize the collections of the entities already in the
+   * persistence context. The SCUI concepts, codes and descriptors of the
+   * atoms are loaded the same way.
+   *
+   * @param batch the concept ids
+   * @param service the worker service
+   * @throws Exception the exception
+   */
+  private void prefetchBatch(List<Long> batch,
+    WriteRrfContentFilesAlgorithm service) throws Exception {
+    final String concepts = "from ConceptJpa c ";
+    final String atoms = "from ConceptJpa c join c.atoms a ";
+    final String where = " where c.id in (:ids)";
+    prefetch(service, "select distinct c " + concepts + "left join fetch "
+        + "c.atoms" + where, batch);
+    for (final String collection : new String[] {
+        "semanticTypes", "attributes", "inverseRelationships", "treePositions"
+    }) {
+      prefetch(service, "select distinct c " + concepts + "left join fetch c."
+          + collection + where, batch);
+    }
+    for (final String collection : new String[] {
+        "definitions", "attributes", "inverseRelationships", "treePositions",
+        "members"
+    }) {
+      prefetch(service, "select distinct a " + atoms + "left join fetch a."
+          + collection + where, batch);
+    }
+    prefetch(service, "select distinct r " + concepts
+        + "join c.inverseRelationships r left join fetch r.attributes" + where,
+        batch);
+    prefetch(service, "select distinct r " + atoms
+        + "join a.inverseRelationships r left join fetch r.attributes" + where,
+        batch);
+    prefetch(service, "select distinct m " + atoms
+        + "join a.members m left join fetch m.attributes" + where, batch);
+
+    // The SCUI concepts, codes and descriptors of the atoms
+    final Set<Long> conceptIds = new HashSet<>();
+    final Set<Long> codeIds = new HashSet<>();
+    final Set<Long> descriptorIds = new HashSet<>();
+    for (final Long conceptId : batch) {
+      for (final Atom atom : service.getConcept(conceptId).getAtoms()) {
+        final AtomContents contents = atomContentsMap.get(atom.getId());
+        if (contents == null) {
+          continue;
+        }
+        if (contents.getConceptId() != null) {
+          conceptIds.add(contents.getConceptId());
+        }
+        if (contents.getCodeId() != null) {
+          codeIds.add(contents.getCodeId());
+        }
+        if (contents.getDescriptorId() != null) {
+          descriptorIds.add(contents.getDescriptorId());
+        }
+      }
+    }
+    for (final String type : new String[] {
+        "ConceptJpa", "CodeJpa", "DescriptorJpa"
+    }) {
+      final List<Long> ids = new ArrayList<>(type.equals("ConceptJpa")
+          ? conceptIds : type.equals("CodeJpa") ? codeIds : descriptorIds);
+      for (final String collection : new String[] {
+          "attributes", "inverseRelationships", "treePositions"
+      }) {
+        prefetch(service, "select distinct c from " + type
+            + " c left join fetch c." + collection + where, ids);
+      }
+      prefetch(service, "select distinct r from " + type
+          + " c join c.inverseRelationships r left join fetch r.attributes"
+          + where, ids);
+    }
+  }
+
+  /**
+   * Runs a fetch query for the ids in chunks of the batch size, for its effect
+   * on the persistence context.
+   *
+   * @param service the worker service
+   * @param query the query, with an ids parameter
+   * @param ids the ids
+   * @throws Exception the exception
+   */
+  private void prefetch(WriteRrfContentFilesAlgorithm service, String query,
+    List<Long> ids) throws Exception {
+    for (int i = 0; i < ids.size(); i += batchSize) {
+      service.getEntityManager().createQuery(query)
+          .setParameter("ids",
+              ids.subList(i, Math.min(i + batchSize, ids.size())))
+          .getResultList();
+    }
+  }
+
+  /**
+   * Adds the lines for a file, skipping adjacent duplicates.
+   *
+   * @param output the output
+   * @param fileName the file name
+   * @param lines the lines
+   */
+  private static void addLines(Map<String, List<String>> output,
+    String fileName, List<String> lines) {
+    final List<String> fileLines =
+        output.computeIfAbsent(fileName, k -> new ArrayList<>());
+    String prev = null;
+    for (final String line : lines) {
+      if (!line.equals(prev)) {
+        fileLines.add(line);
+      }
+      prev = line;
+    }
+  }
 
+  /**
+   * Hands the lines of a completed batch to the writer stages.
+   *
+   * @param output the lines by file name
+   * @param conceptCt the number of concepts in the batch
+   * @param stages the writer stages
+   * @throws Exception the exception
+   */
+  private void dispatchBatch(Map<String, List<String>> output, int conceptCt,
+    Map<String, WriterStage> stages) throws Exception {
+    for (final Map.Entry<String, List<String>> entry : output.entrySet()) {
+      stages.get(entry.getKey()).put(entry.getValue());
+    }
+    for (int i = 0; i < conceptCt; i++) {
+      updateProgress();
+    }
+    checkCancel();
   }
 
   /**
@@ -459,184 +1292,101 @@ public class WriteRrfContentFilesAlgorithm
     // Atom -> AUI map
     // Load alternateTerminologyIds
     logInfo("  Cache atom->AUI map");
-    Query query = getEntityManager().createQuery(
-        "select a.id, value(b) from AtomJpa a join a.alternateTerminologyIds b "
-            + "where KEY(b) = :terminology and a.publishable=true");
-    query.setParameter("terminology", getProject().getTerminology());
-    final List<Object[]> results2 = query.getResultList();
-    int ct = 0;
-    for (final Object[] result : results2) {
-      final Long id = Long.valueOf(result[0].toString());
-      final String alternateTerminologyId = result[1].toString();
-      initAtomContents(id);
-      atomContentsMap.get(id).setAui(alternateTerminologyId);
-      logAndCommit(ct++, RootService.logCt, RootService.commitCt);
+    final ScrollableResults auis = scrollAlternateTerminologyIds("AtomJpa");
+    try {
+      while (auis.next()) {
+        final Long id = auis.getLong(0);
+        initAtomContents(id);
+        atomContentsMap.get(id).setAui(auis.getString(1));
+      }
+    } finally {
+      auis.close();
     }
+    logInfo("    ct = " + atomContentsMap.size());
 
-    // Attribute -> ATUI map
+    // Attribute/definition -> ATUI and relationship -> RUI maps
     logInfo("  Cache attribute->ATUI map");
-    query = getEntityManager().createQuery(
-        "select a.id, value(b) from AttributeJpa a join a.alternateTerminologyIds b "
-            + "where KEY(b) = :terminology and a.publishable=true");
-    query.setParameter("terminology", getProject().getTerminology());
-    final List<Object[]> results3 = query.getResultList();
-    ct = 0;
-    for (final Object[] result : results3) {
-      final Long id = Long.valueOf(result[0].toString());
-      final String alternateTerminologyId = result[1].toString();
-      attAtuiMap.put(id, alternateTerminologyId);
-      logAndCommit(ct++, RootService.logCt, RootService.commitCt);
-    }
-    // Relationship -> RUI map
+    cacheAlternateTerminologyIds("AttributeJpa", attAtuiMap);
+    logInfo("  Cache definition->ATUI map");
+    cacheAlternateTerminologyIds("DefinitionJpa", defAtuiMap);
     logInfo("  Cache relationship->RUI map (atom rels)");
-    query = getEntityManager().createQuery(
-        "select a.id, value(b) from AtomRelationshipJpa a join a.alternateTerminologyIds b "
-            + "where KEY(b) = :terminology and a.publishable = true");
-    query.setParameter("terminology", getProject().getTerminology());
-    List<Object[]> results4 = query.getResultList();
-    ct = 0;
-    for (final Object[] result : results4) {
-      final Long id = Long.valueOf(result[0].toString());
-      final String alternateTerminologyId = result[1].toString();
-      relAtomRuiMap.put(id, alternateTerminologyId);
-      logAndCommit(ct++, RootService.logCt, RootService.commitCt);
-    }
+    cacheAlternateTerminologyIds("AtomRelationshipJpa", relAtomRuiMap);
     logInfo("  Cache relationship->RUI map (concept rels)");
-    query = getEntityManager().createQuery(
-        "select a.id, value(b) from ConceptRelationshipJpa a join a.alternateTerminologyIds b "
-            + "where KEY(b) = :terminology and a.publishable = true");
-    query.setParameter("terminology", getProject().getTerminology());
-    results4 = query.getResultList();
-    ct = 0;
-    for (final Object[] result : results4) {
-      final Long id = Long.valueOf(result[0].toString());
-      final String alternateTerminologyId = result[1].toString();
-      relConceptRuiMap.put(id, alternateTerminologyId);
-      logAndCommit(ct++, RootService.logCt, RootService.commitCt);
-    }
+    cacheAlternateTerminologyIds("ConceptRelationshipJpa", relConceptRuiMap);
     logInfo("  Cache relationship->RUI map (descriptor rels)");
-    query = getEntityManager().createQuery(
-        "select a.id, value(b) from DescriptorRelationshipJpa a join a.alternateTerminologyIds b "
-            + "where KEY(b) = :terminology and a.publishable = true");
-    query.setParameter("terminology", getProject().getTerminology());
-    results4 = query.getResultList();
-    ct = 0;
-    for (final Object[] result : results4) {
-      final Long id = Long.valueOf(result[0].toString());
-      final String alternateTerminologyId = result[1].toString();
-      relDescriptorRuiMap.put(id, alternateTerminologyId);
-      logAndCommit(ct++, RootService.logCt, RootService.commitCt);
-    }
+    cacheAlternateTerminologyIds("DescriptorRelationshipJpa",
+        relDescriptorRuiMap);
     logInfo("  Cache relationship->RUI map (code rels)");
-    query = getEntityManager().createQuery(
-        "select a.id, value(b) from CodeRelationshipJpa a join a.alternateTerminologyIds b "
-            + "where KEY(b) = :terminology and a.publishable = true");
-    query.setParameter("terminology", getProject().getTerminology());
-    results4 = query.getResultList();
-    ct = 0;
-    for (final Object[] result : results4) {
-      final Long id = Long.valueOf(result[0].toString());
-      final String alternateTerminologyId = result[1].toString();
-      relCodeRuiMap.put(id, alternateTerminologyId);
-      logAndCommit(ct++, RootService.logCt, RootService.commitCt);
-    }
+    cacheAlternateTerminologyIds("CodeRelationshipJpa", relCodeRuiMap);
 
     // Determine preferred atoms for all concepts
     logInfo(
         "  Determine preferred atoms for all concepts, and cache concept->AUI maps");
-    final List<Long> conceptIds = executeSingleComponentIdQuery(
-        "select c.id from ConceptJpa c where publishable = true",
-        QueryType.JPQL, getDefaultQueryParams(getProject()), ConceptJpa.class,
-        false);
-    commitClearBegin();
-    ct = 0;
-    for (Long conceptId : conceptIds) {
-      final Concept concept = getConcept(conceptId);
-      // compute preferred atom of the concept
-      final Atom atom = handler.sortAtoms(concept.getAtoms(), list).get(0);
-      // Save AUI->CUI map for the project terminology
-      if (concept.getTerminology().equals(getProject().getTerminology())) {
-        // Put all AUIs in the map
-        for (final Atom atom2 : concept.getAtoms()) {
-          if (atom2.isPublishable()) {
-            auiCuiMap.put(atomContentsMap.get(atom2.getId()).getAui(),
-                concept.getTerminologyId());
-          }
-        }
-      }
-      // otherwise save fact that atom is preferred id of its concept.
-      else {
-        atomContentsMap.get(atom.getId()).setConceptId(concept.getId());
-      }
-      // Verify there is a preferred atom
-      if (!atomContentsMap.containsKey(atom.getId())) {
-        throw new Exception(
-            "Atom without an AUI, or possibly an publishable concept with unpublishable atom = "
-                + atom.getId() + ", " + concept.getId());
+    if (projectionMode) {
+      scrollOwnerAtoms("ConceptJpa",
+          (owner, atoms) -> setConceptPreferredAtom((Long) owner[0],
+              (String) owner[1], (String) owner[2], atoms, handler, list),
+          "terminology", "terminologyId");
+    } else {
+      final List<Long> conceptIds = executeSingleComponentIdQuery(
+          "select c.id from ConceptJpa c where publishable = true",
+          QueryType.JPQL, getDefaultQueryParams(getProject()),
+          ConceptJpa.class, false);
+      commitClearBegin();
+      int ct = 0;
+      for (Long conceptId : conceptIds) {
+        final Concept concept = getConcept(conceptId);
+        setConceptPreferredAtom(concept.getId(), concept.getTerminology(),
+            concept.getTerminologyId(), concept.getAtoms(), handler, list);
+        logAndCommit(ct++, RootService.logCt, RootService.commitCt);
       }
-      initContents(conceptContentsMap, concept.getId());
-      conceptContentsMap.get(concept.getId())
-          .setAui(atomContentsMap.get(atom.getId()).getAui());
-      logAndCommit(ct++, RootService.logCt, RootService.commitCt);
     }
 
     // Determine preferred atoms for all descriptors
     logInfo(
         "  Determine preferred atoms for all descriptors, and cache descriptor->AUI maps");
-    final List<Long> descriptorIds = executeSingleComponentIdQuery(
-        "select d.id from DescriptorJpa d where publishable = true",
-        QueryType.JPQL, getDefaultQueryParams(getProject()),
-        DescriptorJpa.class, false);
-    commitClearBegin();
-    ct = 0;
-    for (Long descriptorId : descriptorIds) {
-      final Descriptor descriptor = getDescriptor(descriptorId);
-
-      // compute preferred atom of the descriptor
-      final Atom atom = handler.sortAtoms(descriptor.getAtoms(), list).get(0);
-      if (!atomContentsMap.containsKey(atom.getId())) {
-        throw new Exception(
-            "Atom without an AUI, or possibly an publishable descriptor with unpublishable atom = "
-                + atom.getId() + ", " + descriptor.getId());
-      }
-      atomContentsMap.get(atom.getId()).setDescriptorId(descriptor.getId());
-      initContents(descriptorContentsMap, descriptor.getId());
-      // skip if atom is not publishable
-      if (!atom.isPublishable()) {
-        continue;
+    if (projectionMode) {
+      scrollOwnerAtoms("DescriptorJpa",
+          (owner, atoms) -> setDescriptorPreferredAtom((Long) owner[0], atoms,
+              handler, list));
+    } else {
+      final List<Long> descriptorIds = executeSingleComponentIdQuery(
+          "select d.id from DescriptorJpa d where publishable = true",
+          QueryType.JPQL, getDefaultQueryParams(getProject()),
+          DescriptorJpa.class, false);
+      commitClearBegin();
+      int ct = 0;
+      for (Long descriptorId : descriptorIds) {
+        final Descriptor descriptor = getDescriptor(descriptorId);
+        setDescriptorPreferredAtom(descriptor.getId(), descriptor.getAtoms(),
+            handler, list);
+        logAndCommit(ct++, RootService.logCt, RootService.commitCt);
       }
-      descriptorContentsMap.get(descriptor.getId())
-          .setAui(atomContentsMap.get(atom.getId()).getAui());
-      logAndCommit(ct++, RootService.logCt, RootService.commitCt);
     }
 
     // Determine preferred atoms for all codes
     logInfo(
         "  Determine preferred atoms for all codes, and cache code->AUI maps");
-    final List<Long> codeIds = executeSingleComponentIdQuery(
-        "select c.id from CodeJpa c where publishable = true", QueryType.JPQL,
-        getDefaultQueryParams(getProject()), CodeJpa.class, false);
-    commitClearBegin();
-    ct = 0;
-    for (Long codeId : codeIds) {
-      final Code code = getCode(codeId);
-      // compute preferred atom of the code
-      final Atom atom = handler.sortAtoms(code.getAtoms(), list).get(0);
-      if (!atomContentsMap.containsKey(atom.getId())) {
-        throw new Exception(
-            "Atom without an AUI, or possibly an publishable code with unpublishable atom = "
-                + atom.getId() + ", " + code.getId());
-      }
-      atomContentsMap.get(atom.getId()).setCodeId(code.getId());
-      initContents(codeContentsMap, code.getId());
-      codeContentsMap.get(code.getId())
-          .setAui(atomContentsMap.get(atom.getId()).getAui());
-      logAndCommit(ct++, RootService.logCt, RootService.commitCt);
+    if (projectionMode) {
+      scrollOwnerAtoms("CodeJpa", (owner, atoms) -> setCodePreferredAtom(
+          (Long) owner[0], atoms, handler, list));
+    } else {
+      final List<Long> codeIds = executeSingleComponentIdQuery(
+          "select c.id from CodeJpa c where publishable = true",
+          QueryType.JPQL, getDefaultQueryParams(getProject()), CodeJpa.class,
+          false);
+      commitClearBegin();
+      int ct = 0;
+      for (Long codeId : codeIds) {
+        final Code code = getCode(codeId);
+        setCodePreferredAtom(code.getId(), code.getAtoms(), handler, list);
+        logAndCommit(ct++, RootService.logCt, RootService.commitCt);
+      }
     }
 
     // Determine terminologies that have relationship attributes
     logInfo("  Determine all terminologies with relationship attributes");
-    query = manager.createQuery("select distinct r.terminology "
+    Query query = manager.createQuery("select distinct r.terminology "
         + "from ConceptRelationshipJpa r join r.attributes a "
         + "where r.terminology != :terminology");
     query.setParameter("terminology", getProject().getTerminology());
@@ -688,16 +1438,28 @@ public class WriteRrfContentFilesAlgorithm
       }
       if (!componentInfoRelMap.containsKey(key)) {
         componentInfoRelMap.put(key, new ArrayList<>());
+        // The projection writers look up the keys of source components by id
+        if (projectionMode && rel.getTo().getType() != IdType.ATOM) {
+          final Component to = findComponent(rel.getTo(), atomContentsMap);
+          if (to != null && to.getType() == IdType.CONCEPT) {
+            conceptInfoKeyMap.put(to.getId(), key);
+          } else if (to != null && to.getType() == IdType.CODE) {
+            codeInfoKeyMap.put(to.getId(), key);
+          } else if (to != null && to.getType() == IdType.DESCRIPTOR) {
+            descriptorInfoKeyMap.put(to.getId(), key);
+          }
+        }
       }
       componentInfoRelMap.get(key).add(rel);
     }
 
     // Cache Contents
+    int ct = 0;
     for (final String type : new String[] {
         "Atom", "Concept", "Code", "Descriptor"
     }) {
 
-      Map<Long, ? extends Contents> map = null;
+      ContentsMap map = null;
       if (type.equals("Atom")) {
         map = atomContentsMap;
       } else if (type.equals("Concept")) {
@@ -773,16 +1535,158 @@ public class WriteRrfContentFilesAlgorithm
     }
   }
 
+  /**
+   * Scrolls a projection of the atoms of the publishable objects of the
+   * specified type, ordered by owner id, and hands the atoms of each owner to
+   * the handler as transient atoms.
+   *
+   * @param type the entity name
+   * @param handler the handler, passed the owner id followed by the owner
+   *          fields
+   * @param ownerFields the owner fields
+   * @throws Exception the exception
+   */
+  private void scrollOwnerAtoms(String type, OwnerAtomsHandler handler,
+    String... ownerFields) throws Exception {
+    final StringBuilder hql = new StringBuilder("select o.id");
+    for (final String field : ownerFields) {
+      hql.append(", o.").append(field);
+    }
+    hql.append(", ").append(ATOM_FIELDS).append(" from ").append(type)
+        .append(" o join o.atoms a where o.publishable = true order by o.id");
+    final ScrollableResults results = manager.unwrap(Session.class)
+        .createQuery(hql.toString()).setReadOnly(true).setFetchSize(fetchSize)
+        .scroll(ScrollMode.FORWARD_ONLY);
+    final List<Atom> atoms = new ArrayList<>();
+    Object[] owner = null;
+    int ct = 0;
+    try {
+      while (results.next()) {
+        final Object[] row = results.get();
+        if (owner != null && !owner[0].equals(row[0])) {
+          handler.handle(owner, atoms);
+          atoms.clear();
+          ct++;
+        }
+        owner = row;
+        atoms.add(toAtom(row, ownerFields.length + 1));
+      }
+      if (owner != null) {
+        handler.handle(owner, atoms);
+        ct++;
+      }
+    } finally {
+      results.close();
+    }
+    logInfo("    ct = " + ct);
+  }
+
+  /**
+   * Records the preferred atom of a concept, and for the project terminology
+   * the CUI of each of its AUIs.
+   *
+   * @param conceptId the concept id
+   * @param terminology the concept terminology
+   * @param terminologyId the concept terminology id
+   * @param atoms the atoms of the concept
+   * @param handler the handler
+   * @param list the list
+   * @throws Exception the exception
+   */
+  private void setConceptPreferredAtom(Long conceptId, String terminology,
+    String terminologyId, List<Atom> atoms,
+    ComputePreferredNameHandler handler, PrecedenceList list)
+    throws Exception {
+    // compute preferred atom of the concept
+    final Atom atom = handler.sortAtoms(atoms, list).get(0);
+    // Save AUI->CUI map for the project terminology
+    if (terminology.equals(getProject().getTerminology())) {
+      // Put all AUIs in the map
+      for (final Atom atom2 : atoms) {
+        final String aui2 = atom2.isPublishable()
+            ? atomContentsMap.get(atom2.getId()).getAui() : null;
+        if (aui2 != null) {
+          auiCuiMap.put(aui2, terminologyId);
+        }
+      }
+    }
+    // otherwise save fact that atom is preferred id of its concept.
+    else {
+      atomContentsMap.get(atom.getId()).setConceptId(conceptId);
+    }
+    // Verify there is a preferred atom
+    if (!atomContentsMap.containsKey(atom.getId())) {
+      throw new Exception(
+          "Atom without an AUI, or possibly an publishable concept with unpublishable atom = "
+              + atom.getId() + ", " + conceptId);
+    }
+    initContents(conceptContentsMap, conceptId);
+    conceptContentsMap.get(conceptId)
+        .setAui(atomContentsMap.get(atom.getId()).getAui());
+  }
+
+  /**
+   * Records the preferred atom of a descriptor.
+   *
+   * @param descriptorId the descriptor id
+   * @param atoms the atoms of the descriptor
+   * @param handler the handler
+   * @param list the list
+   * @throws Exception the exception
+   */
+  private void setDescriptorPreferredAtom(Long descriptorId, List<Atom> atoms,
+    ComputePreferredNameHandler handler, PrecedenceList list)
+    throws Exception {
+    // compute preferred atom of the descriptor
+    final Atom atom = handler.sortAtoms(atoms, list).get(0);
+    if (!atomContentsMap.containsKey(atom.getId())) {
+      throw new Exception(
+          "Atom without an AUI, or possibly an publishable descriptor with unpublishable atom = "
+              + atom.getId() + ", " + descriptorId);
+    }
+    atomContentsMap.get(atom.getId()).setDescriptorId(descriptorId);
+    initContents(descriptorContentsMap, descriptorId);
+    // skip if atom is not publishable
+    if (!atom.isPublishable()) {
+      return;
+    }
+    descriptorContentsMap.get(descriptorId)
+        .setAui(atomContentsMap.get(atom.getId()).getAui());
+  }
+
+  /**
+   * Records the preferred atom of a code.
+   *
+   * @param codeId the code id
+   * @param atoms the atoms of the code
+   * @param handler the handler
+   * @param list the list
+   * @throws Exception the exception
+   */
+  private void setCodePreferredAtom(Long codeId, List<Atom> atoms,
+    ComputePreferredNameHandler handler, PrecedenceList list)
+    throws Exception {
+    // compute preferred atom of the code
+    final Atom atom = handler.sortAtoms(atoms, list).get(0);
+    if (!atomContentsMap.containsKey(atom.getId())) {
+      throw new Exception(
+          "Atom without an AUI, or possibly an publishable code with unpublishable atom = "
+              + atom.getId() + ", " + codeId);
+    }
+    atomContentsMap.get(atom.getId()).setCodeId(codeId);
+    initContents(codeContentsMap, codeId);
+    codeContentsMap.get(codeId)
+        .setAui(atomContentsMap.get(atom.getId()).getAui());
+  }
+
   /**
    * Inits the contents.
    *
    * @param map the map
    * @param id the id
    */
-  private void initContents(Map<Long, Contents> map, Long id) {
-    if (!map.containsKey(id)) {
-      map.put(id, new Contents());
-    }
+  private static void initContents(ContentsMap map, Long id) {
+    map.init(id);
   }
 
   /**
@@ -791,9 +1695,7 @@ public class WriteRrfContentFilesAlgorithm
    * @param id the id
    */
   private void initAtomContents(Long id) {
-    if (!atomContentsMap.containsKey(id)) {
-      atomContentsMap.put(id, new AtomContents());
-    }
+    atomContentsMap.init(id);
   }
 
   /**
@@ -806,28 +1708,29 @@ public class WriteRrfContentFilesAlgorithm
         + getProcess().getInputPath() + "/" + getProcess().getVersion() + "/"
         + "META");
 
-    writerMap.put("AMBIGSUI.RRF",
-        new PrintWriter(new FileWriter(new File(dir, "AMBIGSUI.RRF"))));
-    writerMap.put("AMBIGLUI.RRF",
-        new PrintWriter(new FileWriter(new File(dir, "AMBIGLUI.RRF"))));
-    writerMap.put("MRCONSO.RRF",
-        new PrintWriter(new FileWriter(new File(dir, "MRCONSO.RRF"))));
-    writerMap.put("MRDEF.RRF",
-        new PrintWriter(new FileWriter(new File(dir, "MRDEF.RRF"))));
-    writerMap.put("MRREL.RRF",
-        new PrintWriter(new FileWriter(new File(dir, "MRREL.RRF"))));
-    writerMap.put("MRSTY.RRF",
-        new PrintWriter(new FileWriter(new File(dir, "MRSTY.RRF"))));
-    writerMap.put("MRSAT.RRF",
-        new PrintWriter(new FileWriter(new File(dir, "MRSAT.RRF"))));
-    writerMap.put("MRHIER.RRF",
-        new PrintWriter(new FileWriter(new File(dir, "MRHIER.RRF"))));
-    writerMap.put("MRHIST.RRF",
-        new PrintWriter(new FileWriter(new File(dir, "MRHIST.RRF"))));
-    writerMap.put("MRMAP.RRF",
-        new PrintWriter(new FileWriter(new File(dir, "MRMAP.RRF"))));
-    writerMap.put("MRSMAP.RRF",
-        new PrintWriter(new FileWriter(new File(dir, "MRSMAP.RRF"))));
+    writerMap.put("AMBIGSUI.RRF", newWriter(new File(dir, "AMBIGSUI.RRF")));
+    writerMap.put("AMBIGLUI.RRF", newWriter(new File(dir, "AMBIGLUI.RRF")));
+    writerMap.put("MRCONSO.RRF", newWriter(new File(dir, "MRCONSO.RRF")));
+    writerMap.put("MRDEF.RRF", newWriter(new File(dir, "MRDEF.RRF")));
+    writerMap.put("MRREL.RRF", newWriter(new File(dir, "MRREL.RRF")));
+    writerMap.put("MRSTY.RRF", newWriter(new File(dir, "MRSTY.RRF")));
+    writerMap.put("MRSAT.RRF", newWriter(new File(dir, "MRSAT.RRF")));
+    writerMap.put("MRHIER.RRF", newWriter(new File(dir, "MRHIER.RRF")));
+    writerMap.put("MRHIST.RRF", newWriter(new File(dir, "MRHIST.RRF")));
+    writerMap.put("MRMAP.RRF", newWriter(new File(dir, "MRMAP.RRF")));
+    writerMap.put("MRSMAP.RRF", newWriter(new File(dir, "MRSMAP.RRF")));
+  }
+
+  /**
+   * Returns a buffered UTF-8 writer for the file.
+   *
+   * @param file the file
+   * @return the print writer
+   * @throws Exception the exception
+   */
+  private static PrintWriter newWriter(File file) throws Exception {
+    return new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 20));
   }
 
   /**
@@ -840,13 +1743,17 @@ public class WriteRrfContentFilesAlgorithm
   }
 
   /**
-   * Write mrconso.
+   * Write mrconso. MRMAP and MRSMAP lines for XM atoms are added to the
+   * output.
    *
    * @param c the c
+   * @param service the service
+   * @param output the output
    * @return the string
    * @throws Exception the exception
    */
-  List<String> writeMrconso(Concept c) throws Exception {
+  List<String> writeMrconso(Concept c, ContentService service,
+    Map<String, List<String>> output) throws Exception {
 
     // Field Description
     // 0 CUI
@@ -967,11 +1874,13 @@ public class WriteRrfContentFilesAlgorithm
       if (a.isObsolete()) {
         sb.append("O");
       } else if (a.isSuppressible()
-          && getTermType(a.getTermType(), getProject().getTerminology(),
+          && service.getTermType(a.getTermType(),
+              getProject().getTerminology(),
               getProject().getVersion()).isSuppressible()) {
         sb.append("Y");
       } else if (a.isSuppressible()
-          && !getTermType(a.getTermType(), getProject().getTerminology(),
+          && !service.getTermType(a.getTermType(),
+              getProject().getTerminology(),
               getProject().getVersion()).isSuppressible()) {
         sb.append("E");
       } else {
@@ -983,16 +1892,14 @@ public class WriteRrfContentFilesAlgorithm
 
       // Collect the mapset concepts and cache
       if (a.getTermType().equals("XM")) {
-        final MapSet mapSet = getMapSet(a.getCodeId(), a.getTerminology(),
-            a.getVersion(), Branch.ROOT);
+        final MapSet mapSet = service.getMapSet(a.getCodeId(),
+            a.getTerminology(), a.getVersion(), Branch.ROOT);
 
         if (mapSet.isPublishable()) {
-          for (final String line : writeMrmap(mapSet, c.getTerminologyId())) {
-            writerMap.get("MRMAP.RRF").print(line);
-          }
-          for (final String line : writeMrsmap(mapSet, c.getTerminologyId())) {
-            writerMap.get("MRSMAP.RRF").print(line);
-          }
+          output.computeIfAbsent("MRMAP.RRF", k -> new ArrayList<>())
+              .addAll(writeMrmap(mapSet, c.getTerminologyId()));
+          output.computeIfAbsent("MRSMAP.RRF", k -> new ArrayList<>())
+              .addAll(writeMrsmap(mapSet, c.getTerminologyId()));
         }
       }
     }
@@ -1036,39 +1943,58 @@ public class WriteRrfContentFilesAlgorithm
         if (!d.isPublishable()) {
           continue;
         }
-        final StringBuilder sb = new StringBuilder(200);
-        // CUI
-        sb.append(c.getTerminologyId()).append("|");
-        // AUI
-        final String aui = atomContentsMap.get(a.getId()).getAui();
-        sb.append(aui).append("|");
-        // ATUI
-        final String atui =
-            d.getAlternateTerminologyIds().get(getProject().getTerminology());
-        sb.append(atui).append("|");
-        // SATUI
-        sb.append(d.getTerminologyId()).append("|");
-        // SAB
-        sb.append(d.getTerminology()).append("|");
-        // DEF
-        sb.append(d.getValue()).append("|");
-        // SUPPRESS
-        if (d.isObsolete()) {
-          sb.append("O");
-        } else if (d.isSuppressible()) {
-          sb.append("Y");
-        } else {
-          sb.append("N");
-        }
-        // CVF
-        sb.append("||\n");
-        lines.add(sb.toString());
+        lines.add(getMrdefLine(c.getTerminologyId(),
+            atomContentsMap.get(a.getId()).getAui(), defAtuiMap.get(d.getId()),
+            d.getTerminologyId(), d.getTerminology(), d.getValue(),
+            d.isObsolete(), d.isSuppressible()));
       }
     }
     Collections.sort(lines);
     return lines;
   }
 
+  /**
+   * Returns the MRDEF line.
+   *
+   * @param cui the cui
+   * @param aui the aui
+   * @param atui the atui
+   * @param satui the satui
+   * @param sab the sab
+   * @param def the def
+   * @param obsolete the obsolete flag
+   * @param suppressible the suppressible flag
+   * @return the line
+   */
+  private static String getMrdefLine(String cui, String aui, String atui,
+    String satui, String sab, String def, boolean obsolete,
+    boolean suppressible) {
+    final StringBuilder sb = new StringBuilder(200);
+    // CUI
+    sb.append(cui).append("|");
+    // AUI
+    sb.append(aui).append("|");
+    // ATUI
+    sb.append(atui).append("|");
+    // SATUI
+    sb.append(satui).append("|");
+    // SAB
+    sb.append(sab).append("|");
+    // DEF
+    sb.append(def).append("|");
+    // SUPPRESS
+    if (obsolete) {
+      sb.append("O");
+    } else if (suppressible) {
+      sb.append("Y");
+    } else {
+      sb.append("N");
+    }
+    // CVF
+    sb.append("||\n");
+    return sb.toString();
+  }
+
   /**
    * Write mrmap.
    *
@@ -1405,26 +2331,38 @@ public class WriteRrfContentFilesAlgorithm
         continue;
       }
 
-      final StringBuilder sb = new StringBuilder(200);
-      // CUI
-      sb.append(c.getTerminologyId()).append("|");
-      // TUI
-      sb.append(semTypeMap.get(sty.getSemanticType()).getTypeId()).append("|");
-      // STN
-      sb.append(semTypeMap.get(sty.getSemanticType()).getTreeNumber())
-          .append("|");
-      // STY
-      sb.append(sty.getSemanticType()).append("|");
-      // ATUI
-      sb.append(sty.getTerminologyId()).append("|");
-      // CVF
-      sb.append("|\n");
-      lines.add(sb.toString());
+      lines.add(getMrstyLine(c.getTerminologyId(), sty.getSemanticType(),
+          sty.getTerminologyId()));
     }
     Collections.sort(lines);
     return lines;
   }
 
+  /**
+   * Returns the MRSTY line.
+   *
+   * @param cui the cui
+   * @param sty the semantic type
+   * @param atui the atui
+   * @return the line
+   */
+  private String getMrstyLine(String cui, String sty, String atui) {
+    final StringBuilder sb = new StringBuilder(200);
+    // CUI
+    sb.append(cui).append("|");
+    // TUI
+    sb.append(semTypeMap.get(sty).getTypeId()).append("|");
+    // STN
+    sb.append(semTypeMap.get(sty).getTreeNumber()).append("|");
+    // STY
+    sb.append(sty).append("|");
+    // ATUI
+    sb.append(atui).append("|");
+    // CVF
+    sb.append("|\n");
+    return sb.toString();
+  }
+
   /**
    * Write mrrel.
    *
@@ -1471,42 +2409,14 @@ public class WriteRrfContentFilesAlgorithm
         }
 
         lines.add(getRelLine(rel, cui1, "", "CUI",
-            rel.getFrom().getTerminologyId(), "", "CUI", relConceptRuiMap));
+            rel.getFrom().getTerminologyId(), "", "CUI",
+            relConceptRuiMap.get(rel.getId())));
       }
     }
 
     // CUI->AUI component info relationships
-    String key = c.getTerminologyId() + c.getTerminology() + c.getVersion()
-        + c.getType();
-    for (final ComponentInfoRelationship rel : getComponentInfoRels(key)) {
-      if (!rel.isPublishable()) {
-        continue;
-      }
-
-      // determine aui2
-      String aui2 = null;
-      String stype2 = null;
-      final Component from =
-          service.findComponent(rel.getFrom(), atomContentsMap);
-      if (from.getType() == IdType.CONCEPT) {
-        aui2 = conceptContentsMap.get(from.getId()).getAui();
-        stype2 = "SCUI";
-      } else if (from.getType() == IdType.CODE) {
-        aui2 = codeContentsMap.get(from.getId()).getAui();
-        stype2 = "CODE";
-      } else if (from.getType() == IdType.DESCRIPTOR) {
-        aui2 = descriptorContentsMap.get(from.getId()).getAui();
-        stype2 = "SDUI";
-      } else if (from.getType() == IdType.ATOM) {
-        aui2 = atomContentsMap.get(from.getId()).getAui();
-        stype2 = "AUI";
-      }
-      relCompRuiMap.put(rel.getId(),
-          rel.getAlternateTerminologyIds().get(getProject().getTerminology()));
-      lines.add(
-          getRelLine(rel, cui1, "", "CUI", null, aui2, stype2, relCompRuiMap));
-
-    }
+    addConceptInfoRelLines(c.getTerminologyId() + c.getTerminology()
+        + c.getVersion() + c.getType(), cui1, service, lines);
 
     // Atom relationships
     // C0000005|A4345877|AUI|RB|C0036775|A3586555|AUI||R17427607||MSH|MSH|||N||
@@ -1526,43 +2436,13 @@ public class WriteRrfContentFilesAlgorithm
           }
           final String aui2 = atomContentsMap.get(r.getFrom().getId()).getAui();
           lines.add(getRelLine(r, cui1, aui1, "AUI", null, aui2, "AUI",
-              relAtomRuiMap));
+              relAtomRuiMap.get(r.getId())));
         }
       }
 
       // look up component info relationships where STYPE1=AUI
-      key = atomContentsMap.get(a.getId()).getAui()
-          + getProject().getTerminology() + a.getType();
-      for (final ComponentInfoRelationship rel : getComponentInfoRels(key)) {
-        if (!rel.isPublishable()) {
-          continue;
-        }
-
-        // determine aui2
-        String aui2 = null;
-        String stype2 = null;
-        String cui2 = null;
-        final Component from =
-            service.findComponent(rel.getFrom(), atomContentsMap);
-        if (from.getType() == IdType.CONCEPT) {
-          stype2 = from.getTerminology().equals(getProject().getTerminology())
-              ? "CUI" : "SCUI";
-          aui2 = stype2.equals("CUI") ? ""
-              : conceptContentsMap.get(from.getId()).getAui();
-          cui2 = stype2.equals("CUI") ? from.getTerminologyId() : null;
-        } else if (from.getType() == IdType.CODE) {
-          aui2 = codeContentsMap.get(from.getId()).getAui();
-          stype2 = "CODE";
-        } else if (from.getType() == IdType.DESCRIPTOR) {
-          aui2 = descriptorContentsMap.get(from.getId()).getAui();
-          stype2 = "SDUI";
-        }
-        relCompRuiMap.put(rel.getId(), rel.getAlternateTerminologyIds()
-            .get(getProject().getTerminology()));
-        lines.add(getRelLine(rel, cui1, aui1, "AUI", cui2, aui2, stype2,
-            relCompRuiMap));
-
-      }
+      addAtomInfoRelLines(aui1 + getProject().getTerminology() + a.getType(),
+          cui1, aui1, service, lines);
 
       // SCUI relationships, if preferred atom of the SCUI
       // e.g.
@@ -1582,37 +2462,13 @@ public class WriteRrfContentFilesAlgorithm
             final String aui2 =
                 conceptContentsMap.get(rel.getFrom().getId()).getAui();
             lines.add(getRelLine(rel, cui1, aui1, "SCUI", null, aui2, "SCUI",
-                relConceptRuiMap));
+                relConceptRuiMap.get(rel.getId())));
           }
         }
 
         // look up component info relationships where STYPE1=SCUI
-        key = scui.getTerminologyId() + scui.getTerminology()
-            + scui.getVersion() + scui.getType();
-        for (final ComponentInfoRelationship rel : getComponentInfoRels(key)) {
-          if (!rel.isPublishable()) {
-            continue;
-          }
-
-          String aui2 = null;
-          String stype2 = null;
-          final Component from =
-              service.findComponent(rel.getFrom(), atomContentsMap);
-          if (from.getType() == IdType.CODE) {
-            aui2 = codeContentsMap.get(from.getId()).getAui();
-            stype2 = "CODE";
-          } else if (from.getType() == IdType.DESCRIPTOR) {
-            aui2 = descriptorContentsMap.get(from.getId()).getAui();
-            stype2 = "SDUI";
-          } else if (from.getType() == IdType.ATOM) {
-            aui2 = atomContentsMap.get(((Atom) from).getId()).getAui();
-            stype2 = "AUI";
-          }
-          relCompRuiMap.put(rel.getId(), rel.getAlternateTerminologyIds()
-              .get(getProject().getTerminology()));
-          lines.add(getRelLine(rel, cui1, aui1, "SCUI", null, aui2, stype2,
-              relCompRuiMap));
-        }
+        addScuiInfoRelLines(scui.getTerminologyId() + scui.getTerminology()
+            + scui.getVersion() + scui.getType(), cui1, aui1, service, lines);
       }
 
       if (atomContentsMap.get(a.getId()).getCodeId() != null) {
@@ -1629,40 +2485,13 @@ public class WriteRrfContentFilesAlgorithm
             final String aui2 =
                 codeContentsMap.get(rel.getFrom().getId()).getAui();
             lines.add(getRelLine(rel, cui1, aui1, "CODE", null, aui2, "CODE",
-                relCodeRuiMap));
+                relCodeRuiMap.get(rel.getId())));
           }
         }
 
         // look up component info relationships where STYPE1=CODE
-        key = code.getTerminologyId() + code.getTerminology()
-            + code.getVersion() + code.getType();
-        for (final ComponentInfoRelationship rel : getComponentInfoRels(key)) {
-
-          if (!rel.isPublishable()) {
-            continue;
-          }
-
-          // determine aui2
-          String aui2 = null;
-          String stype2 = null;
-          final Component from =
-              service.findComponent(rel.getFrom(), atomContentsMap);
-          if (from.getType() == IdType.CONCEPT) {
-            aui2 = conceptContentsMap.get(from.getId()).getAui();
-            stype2 = "SCUI";
-          } else if (from.getType() == IdType.ATOM) {
-            aui2 = atomContentsMap.get(((Atom) from).getId()).getAui();
-            stype2 = "AUI";
-          } else if (from.getType() == IdType.DESCRIPTOR) {
-            aui2 = descriptorContentsMap.get(from.getId()).getAui();
-            stype2 = "SDUI";
-          }
-          relCompRuiMap.put(rel.getId(), rel.getAlternateTerminologyIds()
-              .get(getProject().getTerminology()));
-          lines.add(getRelLine(rel, cui1, aui1, "CODE", null, aui2, stype2,
-              relCompRuiMap));
-
-        }
+        addCodeInfoRelLines(code.getTerminologyId() + code.getTerminology()
+            + code.getVersion() + code.getType(), cui1, aui1, service, lines);
       }
 
       if (atomContentsMap.get(a.getId()).getDescriptorId() != null) {
@@ -1679,38 +2508,13 @@ public class WriteRrfContentFilesAlgorithm
             final String aui2 =
                 descriptorContentsMap.get(rel.getFrom().getId()).getAui();
             lines.add(getRelLine(rel, cui1, aui1, "SDUI", null, aui2, "SDUI",
-                relDescriptorRuiMap));
+                relDescriptorRuiMap.get(rel.getId())));
           }
         }
 
         // look up component info relationships where STYPE1=SDUI
-        key = sdui.getTerminologyId() + sdui.getTerminology()
-            + sdui.getVersion() + sdui.getType();
-        for (final ComponentInfoRelationship rel : getComponentInfoRels(key)) {
-          if (!rel.isPublishable()) {
-            continue;
-          }
-
-          // determine aui2
-          String aui2 = null;
-          String stype2 = rel.getFrom().getType().toString();
-          final Component from =
-              service.findComponent(rel.getFrom(), atomContentsMap);
-          if (from.getType() == IdType.CONCEPT) {
-            aui2 = conceptContentsMap.get(from.getId()).getAui();
-            stype2 = "SCUI";
-          } else if (from.getType() == IdType.CODE) {
-            aui2 = codeContentsMap.get(from.getId()).getAui();
-            stype2 = "CODE";
-          } else if (from.getType() == IdType.ATOM) {
-            aui2 = atomContentsMap.get(from.getId()).getAui();
-            stype2 = "AUI";
-          }
-          relCompRuiMap.put(rel.getId(), rel.getAlternateTerminologyIds()
-              .get(getProject().getTerminology()));
-          lines.add(getRelLine(rel, cui1, aui1, "SDUI", null, aui2, stype2,
-              relCompRuiMap));
-        }
+        addSduiInfoRelLines(sdui.getTerminologyId() + sdui.getTerminology()
+            + sdui.getVersion() + sdui.getType(), cui1, aui1, service, lines);
       }
     } // end for(Atom... concept.getAtoms())
 
@@ -1722,6 +2526,214 @@ public class WriteRrfContentFilesAlgorithm
 
   }
 
+  /**
+   * Adds the MRREL lines for the component info relationships where
+   * STYPE1=CUI.
+   *
+   * @param key the key of the component
+   * @param cui1 the cui 1
+   * @param service the service
+   * @param lines the lines
+   * @throws Exception the exception
+   */
+  private void addConceptInfoRelLines(String key, String cui1,
+    WriteRrfContentFilesAlgorithm service, List<String> lines)
+    throws Exception {
+    for (final ComponentInfoRelationship rel : getComponentInfoRels(key)) {
+      if (!rel.isPublishable()) {
+        continue;
+      }
+
+      // determine aui2
+      String aui2 = null;
+      String stype2 = null;
+      final Component from =
+          service.findComponent(rel.getFrom(), atomContentsMap);
+      if (from.getType() == IdType.CONCEPT) {
+        aui2 = conceptContentsMap.get(from.getId()).getAui();
+        stype2 = "SCUI";
+      } else if (from.getType() == IdType.CODE) {
+        aui2 = codeContentsMap.get(from.getId()).getAui();
+        stype2 = "CODE";
+      } else if (from.getType() == IdType.DESCRIPTOR) {
+        aui2 = descriptorContentsMap.get(from.getId()).getAui();
+        stype2 = "SDUI";
+      } else if (from.getType() == IdType.ATOM) {
+        aui2 = atomContentsMap.get(from.getId()).getAui();
+        stype2 = "AUI";
+      }
+      lines.add(getRelLine(rel, cui1, "", "CUI", null, aui2, stype2,
+          rel.getAlternateTerminologyIds().get(getProject().getTerminology())));
+
+    }
+  }
+
+  /**
+   * Adds the MRREL lines for the component info relationships where
+   * STYPE1=AUI.
+   *
+   * @param key the key of the component
+   * @param cui1 the cui 1
+   * @param aui1 the aui 1
+   * @param service the service
+   * @param lines the lines
+   * @throws Exception the exception
+   */
+  private void addAtomInfoRelLines(String key, String cui1, String aui1,
+    WriteRrfContentFilesAlgorithm service, List<String> lines)
+    throws Exception {
+    for (final ComponentInfoRelationship rel : getComponentInfoRels(key)) {
+      if (!rel.isPublishable()) {
+        continue;
+      }
+
+      // determine aui2
+      String aui2 = null;
+      String stype2 = null;
+      String cui2 = null;
+      final Component from =
+          service.findComponent(rel.getFrom(), atomContentsMap);
+      if (from.getType() == IdType.CONCEPT) {
+        stype2 = from.getTerminology().equals(getProject().getTerminology())
+            ? "CUI" : "SCUI";
+        aui2 = stype2.equals("CUI") ? ""
+            : conceptContentsMap.get(from.getId()).getAui();
+        cui2 = stype2.equals("CUI") ? from.getTerminologyId() : null;
+      } else if (from.getType() == IdType.CODE) {
+        aui2 = codeContentsMap.get(from.getId()).getAui();
+        stype2 = "CODE";
+      } else if (from.getType() == IdType.DESCRIPTOR) {
+        aui2 = descriptorContentsMap.get(from.getId()).getAui();
+        stype2 = "SDUI";
+      }
+      lines.add(getRelLine(rel, cui1, aui1, "AUI", cui2, aui2, stype2,
+          rel.getAlternateTerminologyIds()
+              .get(getProject().getTerminology())));
+
+    }
+  }
+
+  /**
+   * Adds the MRREL lines for the component info relationships where
+   * STYPE1=SCUI.
+   *
+   * @param key the key of the component
+   * @param cui1 the cui 1
+   * @param aui1 the aui 1
+   * @param service the service
+   * @param lines the lines
+   * @throws Exception the exception
+   */
+  private void addScuiInfoRelLines(String key, String cui1, String aui1,
+    WriteRrfContentFilesAlgorithm service, List<String> lines)
+    throws Exception {
+    for (final ComponentInfoRelationship rel : getComponentInfoRels(key)) {
+      if (!rel.isPublishable()) {
+        continue;
+      }
+
+      String aui2 = null;
+      String stype2 = null;
+      final Component from =
+          service.findComponent(rel.getFrom(), atomContentsMap);
+      if (from.getType() == IdType.CODE) {
+        aui2 = codeContentsMap.get(from.getId()).getAui();
+        stype2 = "CODE";
+      } else if (from.getType() == IdType.DESCRIPTOR) {
+        aui2 = descriptorContentsMap.get(from.getId()).getAui();
+        stype2 = "SDUI";
+      } else if (from.getType() == IdType.ATOM) {
+        aui2 = atomContentsMap.get(((Atom) from).getId()).getAui();
+        stype2 = "AUI";
+      }
+      lines.add(getRelLine(rel, cui1, aui1, "SCUI", null, aui2, stype2,
+          rel.getAlternateTerminologyIds()
+              .get(getProject().getTerminology())));
+    }
+  }
+
+  /**
+   * Adds the MRREL lines for the component info relationships where
+   * STYPE1=CODE.
+   *
+   * @param key the key of the component
+   * @param cui1 the cui 1
+   * @param aui1 the aui 1
+   * @param service the service
+   * @param lines the lines
+   * @throws Exception the exception
+   */
+  private void addCodeInfoRelLines(String key, String cui1, String aui1,
+    WriteRrfContentFilesAlgorithm service, List<String> lines)
+    throws Exception {
+    for (final ComponentInfoRelationship rel : getComponentInfoRels(key)) {
+
+      if (!rel.isPublishable()) {
+        continue;
+      }
+
+      // determine aui2
+      String aui2 = null;
+      String stype2 = null;
+      final Component from =
+          service.findComponent(rel.getFrom(), atomContentsMap);
+      if (from.getType() == IdType.CONCEPT) {
+        aui2 = conceptContentsMap.get(from.getId()).getAui();
+        stype2 = "SCUI";
+      } else if (from.getType() == IdType.ATOM) {
+        aui2 = atomContentsMap.get(((Atom) from).getId()).getAui();
+        stype2 = "AUI";
+      } else if (from.getType() == IdType.DESCRIPTOR) {
+        aui2 = descriptorContentsMap.get(from.getId()).getAui();
+        stype2 = "SDUI";
+      }
+      lines.add(getRelLine(rel, cui1, aui1, "CODE", null, aui2, stype2,
+          rel.getAlternateTerminologyIds()
+              .get(getProject().getTerminology())));
+
+    }
+  }
+
+  /**
+   * Adds the MRREL lines for the component info relationships where
+   * STYPE1=SDUI.
+   *
+   * @param key the key of the component
+   * @param cui1 the cui 1
+   * @param aui1 the aui 1
+   * @param service the service
+   * @param lines the lines
+   * @throws Exception the exception
+   */
+  private void addSduiInfoRelLines(String key, String cui1, String aui1,
+    WriteRrfContentFilesAlgorithm service, List<String> lines)
+    throws Exception {
+    for (final ComponentInfoRelationship rel : getComponentInfoRels(key)) {
+      if (!rel.isPublishable()) {
+        continue;
+      }
+
+      // determine aui2
+      String aui2 = null;
+      String stype2 = rel.getFrom().getType().toString();
+      final Component from =
+          service.findComponent(rel.getFrom(), atomContentsMap);
+      if (from.getType() == IdType.CONCEPT) {
+        aui2 = conceptContentsMap.get(from.getId()).getAui();
+        stype2 = "SCUI";
+      } else if (from.getType() == IdType.CODE) {
+        aui2 = codeContentsMap.get(from.getId()).getAui();
+        stype2 = "CODE";
+      } else if (from.getType() == IdType.ATOM) {
+        aui2 = atomContentsMap.get(from.getId()).getAui();
+        stype2 = "AUI";
+      }
+      lines.add(getRelLine(rel, cui1, aui1, "SDUI", null, aui2, stype2,
+          rel.getAlternateTerminologyIds()
+              .get(getProject().getTerminology())));
+    }
+  }
+
   /**
    * Find component.
    *
@@ -1731,7 +2743,7 @@ public class WriteRrfContentFilesAlgorithm
    * @throws Exception the exception
    */
   private Component findComponent(ComponentInfo componentInfo,
-    Map<Long, AtomContents> atomContentsMap) throws Exception {
+    AtomContentsMap atomContentsMap) throws Exception {
     if (componentInfo.getType() == IdType.CONCEPT) {
       return getConcept(componentInfo.getTerminologyId(),
           componentInfo.getTerminology(), componentInfo.getVersion(),
@@ -1790,12 +2802,11 @@ public class WriteRrfContentFilesAlgorithm
    * @param cui2 the cui 2
    * @param aui2 the aui 2
    * @param stype2 the stype 2
-   * @param relRuiMap the rel rui map
+   * @param rui the rui, or null
    * @return the rel line
    */
   private String getRelLine(Relationship<?, ?> rel, String cui1, String aui1,
-    String stype1, String cui2, String aui2, String stype2,
-    Map<Long, String> relRuiMap) {
+    String stype1, String cui2, String aui2, String stype2, String rui) {
     final StringBuilder sb = new StringBuilder(200);
     // 0 CUI1
     sb.append(cui1).append("|");
@@ -1814,7 +2825,6 @@ public class WriteRrfContentFilesAlgorithm
     // 7 RELA
     sb.append(rel.getAdditionalRelationshipType()).append("|");
     // for non-project or non C rels, the RUI is the attached RUI
-    final String rui = relRuiMap.get(rel.getId());
     // 8 RUI
     sb.append(rui != null ? rui : "").append("|");
     // 9 SRUI
@@ -1882,15 +2892,8 @@ public class WriteRrfContentFilesAlgorithm
       if (atom.getTerminology().equals("SRC")
           && atom.getTermType().equals("RHT")
           && terminologyUsingSrcRoot.contains(atom.getCodeId().substring(2))) {
-        final StringBuilder sb = new StringBuilder(200);
-        sb.append(c.getTerminologyId()).append("|");
-        sb.append(aui).append("|");
-        sb.append("1|");
-        sb.append("|");
-        // codeId is something like V-MSH
-        sb.append(atom.getCodeId().substring(2)).append("|");
-        sb.append("|||||\n");
-        lines.add(sb.toString());
+        lines.add(
+            getMrhierSrcLine(c.getTerminologyId(), aui, atom.getCodeId()));
         // If writing this line, there won't be other tree positions
         continue;
       }
@@ -1919,38 +2922,10 @@ public class WriteRrfContentFilesAlgorithm
             }
           }
 
-          // e.g. C0001175|A2878223|1|A3316611|SNOMEDCT|isa|
-          // A3684559.A3886745.A2880798.A3512117.A3082701.A3316611|||
-          final StringBuilder sb = new StringBuilder(200);
-          // If the root string doesn't equal SRC/RHT, write tree-top SRC atom
-          final String srcRhtName =
-              terminologyToSrcRhtNameMap.get(treepos.getTerminology());
-          if ((root != null && !root.equals(srcRhtName))
-              || (root == null && !atom.getName().equals(srcRhtName))) {
-            sb.append(c.getTerminologyId()).append("|");
-            sb.append(aui).append("|");
-            sb.append("" + ct++).append("|");
-            sb.append(terminologyToSrcAuiMap.get(treepos.getTerminology()))
-                .append("|");
-            sb.append(treepos.getTerminology()).append("|");
-            sb.append(treepos.getAdditionalRelationshipType()).append("|");
-            sb.append(terminologyToSrcAuiMap.get(treepos.getTerminology()));
-            sb.append("|");
-            sb.append(treepos.getTerminologyId()).append("|");
-            sb.append("|");
-          } else {
-            sb.append(c.getTerminologyId()).append("|");
-            sb.append(aui).append("|");
-            sb.append("" + ct++).append("|");
-            sb.append(paui != null ? paui : "").append("|");
-            sb.append(treepos.getTerminology()).append("|");
-            sb.append(treepos.getAdditionalRelationshipType()).append("|");
-            sb.append(ptr.toString()).append("|");
-            sb.append(treepos.getTerminologyId()).append("|");
-            sb.append("|");
-          }
-          sb.append("\n");
-          lines.add(sb.toString());
+          lines.add(getMrhierLine(c.getTerminologyId(), aui, ct++, paui,
+              ptr.toString(), root, atom.getName(), treepos.getTerminology(),
+              treepos.getAdditionalRelationshipType(),
+              treepos.getTerminologyId()));
         }
       }
 
@@ -1979,44 +2954,14 @@ public class WriteRrfContentFilesAlgorithm
             if (root == null) {
               final Concept concept2 =
                   service.getConcept(Long.valueOf(conceptId));
-              root = concept2.getName();
-            }
-          }
-
-          // e.g. C0001175|A2878223|1|A3316611|SNOMEDCT|isa|
-          // A3684559.A3886745.A2880798.A3512117.A3082701.A3316611|||
-          final StringBuilder sb = new StringBuilder(200);
-          // If the root string doesn't equal SRC/RHT, write tree-top SRC atom
-          final String srcRhtName =
-              terminologyToSrcRhtNameMap.get(treepos.getTerminology());
-          if ((root != null && !root.equals(srcRhtName))
-              || (root == null && !atom.getName().equals(srcRhtName))) {
-            sb.append(c.getTerminologyId()).append("|");
-            sb.append(aui).append("|");
-            sb.append("" + ct++).append("|");
-            sb.append(terminologyToSrcAuiMap.get(treepos.getTerminology()))
-                .append("|");
-            sb.append(treepos.getTerminology()).append("|");
-            sb.append(treepos.getAdditionalRelationshipType()).append("|");
-            sb.append(terminologyToSrcAuiMap.get(treepos.getTerminology()));
-            sb.append("|");
-            sb.append(treepos.getTerminologyId()).append("|");
-            sb.append("|");
-          } else {
-            sb.append(c.getTerminologyId()).append("|");
-            sb.append(aui).append("|");
-            sb.append("" + ct++).append("|");
-            sb.append(paui != null ? paui : "").append("|");
-            sb.append(treepos.getTerminology()).append("|");
-            sb.append(treepos.getAdditionalRelationshipType()).append("|");
-            sb.append(ptr.toString()).append("|");
-            sb.append(treepos.getTerminologyId()).append("|");
-            sb.append("|");
-
+              root = concept2.getName();
+            }
           }
 
-          sb.append("\n");
-          lines.add(sb.toString());
+          lines.add(getMrhierLine(c.getTerminologyId(), aui, ct++, paui,
+              ptr.toString(), root, atom.getName(), treepos.getTerminology(),
+              treepos.getAdditionalRelationshipType(),
+              treepos.getTerminologyId()));
         }
       }
 
@@ -2050,40 +2995,10 @@ public class WriteRrfContentFilesAlgorithm
             }
           }
 
-          // e.g. C0001175|A2878223|1|A3316611|SNOMEDCT|isa|
-          // A3684559.A3886745.A2880798.A3512117.A3082701.A3316611|||
-          final StringBuilder sb = new StringBuilder(200);
-          // If the root string doesn't equal SRC/RHT, write tree-top SRC atom
-          final String srcRhtName =
-              terminologyToSrcRhtNameMap.get(treepos.getTerminology());
-          if ((root != null && !root.equals(srcRhtName))
-              || (root == null && !atom.getName().equals(srcRhtName))) {
-            sb.append(c.getTerminologyId()).append("|");
-            sb.append(aui).append("|");
-            sb.append("" + ct++).append("|");
-            sb.append(terminologyToSrcAuiMap.get(treepos.getTerminology()))
-                .append("|");
-            sb.append(treepos.getTerminology()).append("|");
-            sb.append(treepos.getAdditionalRelationshipType()).append("|");
-            sb.append(terminologyToSrcAuiMap.get(treepos.getTerminology()));
-            sb.append("|");
-            sb.append(treepos.getTerminologyId()).append("|");
-            sb.append("|");
-          } else {
-            sb.append(c.getTerminologyId()).append("|");
-            sb.append(aui).append("|");
-            sb.append("" + ct++).append("|");
-            sb.append(paui != null ? paui : "").append("|");
-            sb.append(treepos.getTerminology()).append("|");
-            sb.append(treepos.getAdditionalRelationshipType()).append("|");
-            sb.append(ptr.toString()).append("|");
-            sb.append(treepos.getTerminologyId()).append("|");
-            sb.append("|");
-
-          }
-
-          sb.append("\n");
-          lines.add(sb.toString());
+          lines.add(getMrhierLine(c.getTerminologyId(), aui, ct++, paui,
+              ptr.toString(), root, atom.getName(), treepos.getTerminology(),
+              treepos.getAdditionalRelationshipType(),
+              treepos.getTerminologyId()));
         }
 
       }
@@ -2116,40 +3031,10 @@ public class WriteRrfContentFilesAlgorithm
             }
           }
 
-          // e.g. C0001175|A2878223|1|A3316611|SNOMEDCT|isa|
-          // A3684559.A3886745.A2880798.A3512117.A3082701.A3316611|||
-          final StringBuilder sb = new StringBuilder(200);
-          // If the root string doesn't equal SRC/RHT, write tree-top SRC atom
-          final String srcRhtName =
-              terminologyToSrcRhtNameMap.get(treepos.getTerminology());
-          if ((root != null && !root.equals(srcRhtName))
-              || (root == null && !atom.getName().equals(srcRhtName))) {
-            sb.append(c.getTerminologyId()).append("|");
-            sb.append(aui).append("|");
-            sb.append("" + ct++).append("|");
-            sb.append(terminologyToSrcAuiMap.get(treepos.getTerminology()))
-                .append("|");
-            sb.append(treepos.getTerminology()).append("|");
-            sb.append(treepos.getAdditionalRelationshipType()).append("|");
-            sb.append(terminologyToSrcAuiMap.get(treepos.getTerminology()));
-            sb.append("|");
-            sb.append(treepos.getTerminologyId()).append("|");
-            sb.append("|");
-          } else {
-            sb.append(c.getTerminologyId()).append("|");
-            sb.append(aui).append("|");
-            sb.append("" + ct++).append("|");
-            sb.append(paui != null ? paui : "").append("|");
-            sb.append(treepos.getTerminology()).append("|");
-            sb.append(treepos.getAdditionalRelationshipType()).append("|");
-            sb.append(ptr.toString()).append("|");
-            sb.append(treepos.getTerminologyId()).append("|");
-            sb.append("|");
-
-          }
-
-          sb.append("\n");
-          lines.add(sb.toString());
+          lines.add(getMrhierLine(c.getTerminologyId(), aui, ct++, paui,
+              ptr.toString(), root, atom.getName(), treepos.getTerminology(),
+              treepos.getAdditionalRelationshipType(),
+              treepos.getTerminologyId()));
         }
       }
 
@@ -2159,6 +3044,78 @@ public class WriteRrfContentFilesAlgorithm
     return lines;
   }
 
+  /**
+   * Returns the MRHIER line of an SRC/RHT atom for a terminology that uses SRC
+   * root atoms.
+   *
+   * @param cui the cui
+   * @param aui the aui
+   * @param codeId the code id, e.g. V-MSH
+   * @return the line
+   */
+  private static String getMrhierSrcLine(String cui, String aui,
+    String codeId) {
+    final StringBuilder sb = new StringBuilder(200);
+    sb.append(cui).append("|");
+    sb.append(aui).append("|");
+    sb.append("1|");
+    sb.append("|");
+    // codeId is something like V-MSH
+    sb.append(codeId.substring(2)).append("|");
+    sb.append("|||||\n");
+    return sb.toString();
+  }
+
+  /**
+   * Returns the MRHIER line of a tree position.
+   *
+   * @param cui the cui
+   * @param aui the aui
+   * @param cxn the context number
+   * @param paui the parent aui
+   * @param ptr the path to the root
+   * @param root the root name
+   * @param name the atom name
+   * @param sab the sab
+   * @param rela the rela
+   * @param hcd the hcd
+   * @return the line
+   */
+  private String getMrhierLine(String cui, String aui, int cxn, String paui,
+    String ptr, String root, String name, String sab, String rela,
+    String hcd) {
+    // e.g. C0001175|A2878223|1|A3316611|SNOMEDCT|isa|
+    // A3684559.A3886745.A2880798.A3512117.A3082701.A3316611|||
+    final StringBuilder sb = new StringBuilder(200);
+    // If the root string doesn't equal SRC/RHT, write tree-top SRC atom
+    final String srcRhtName = terminologyToSrcRhtNameMap.get(sab);
+    if ((root != null && !root.equals(srcRhtName))
+        || (root == null && !name.equals(srcRhtName))) {
+      sb.append(cui).append("|");
+      sb.append(aui).append("|");
+      sb.append("" + cxn).append("|");
+      sb.append(terminologyToSrcAuiMap.get(sab)).append("|");
+      sb.append(sab).append("|");
+      sb.append(rela).append("|");
+      sb.append(terminologyToSrcAuiMap.get(sab));
+      sb.append("|");
+      sb.append(hcd).append("|");
+      sb.append("|");
+    } else {
+      sb.append(cui).append("|");
+      sb.append(aui).append("|");
+      sb.append("" + cxn).append("|");
+      sb.append(paui != null ? paui : "").append("|");
+      sb.append(sab).append("|");
+      sb.append(rela).append("|");
+      sb.append(ptr).append("|");
+      sb.append(hcd).append("|");
+      sb.append("|");
+    }
+    sb.append("\n");
+    return sb.toString();
+  }
+
   /**
    * Write mrsat.
    *
@@ -2207,38 +3164,12 @@ public class WriteRrfContentFilesAlgorithm
           continue;
         }
         
-        final StringBuilder sb = new StringBuilder(200);
-        // CUI
-        sb.append(c.getTerminologyId()).append("|");
-        // LUI, SUI, METAUI
-        sb.append("|||");
-        // STYPE
-        sb.append("CUI").append("|");
-        // CODE
-        sb.append("|");
-        // ATUI
         final String atui = attAtuiMap.get(att.getId());
-        sb.append(atui != null ? atui : "").append("|");
-        // SATUI
-        sb.append(att.getTerminologyId() != null ? att.getTerminologyId() : "")
-            .append("|");
-        // ATN
-        sb.append(att.getName()).append("|");
-        // SAB
-        sb.append(att.getTerminology()).append("|");
-        // ATV
-        sb.append(att.getValue()).append("|");
-        // SUPPRESS
-        if (att.isObsolete()) {
-          sb.append("O");
-        } else if (att.isSuppressible()) {
-          sb.append("Y");
-        } else {
-          sb.append("N");
-        }
-        // CVF
-        sb.append("||\n");
-        lines.add(sb.toString());
+        lines.add(getMrsatLine(c.getTerminologyId(), "", "", "", "CUI", "",
+            atui != null ? atui : "",
+            att.getTerminologyId() != null ? att.getTerminologyId() : "",
+            att.getName(), att.getTerminology(), att.getValue(),
+            att.isObsolete(), att.isSuppressible()));
       }
     }
 
@@ -2260,43 +3191,13 @@ public class WriteRrfContentFilesAlgorithm
             continue;
           }
 
-          final StringBuilder sb = new StringBuilder(200);
-          // CUI
-          sb.append(c.getTerminologyId()).append("|");
-          // LUI
-          sb.append(a.getLexicalClassId()).append("|");
-          // SUI
-          sb.append(a.getStringClassId()).append("|");
-          // METAUI
-          sb.append(atomContentsMap.get(a.getId()).getAui()).append("|");
-          // STYPE
-          sb.append("AUI").append("|");
-          // CODE
-          sb.append(a.getCodeId()).append("|");
-          // ATUI
           final String atui = attAtuiMap.get(att.getId());
-          sb.append(atui != null ? atui : "").append("|");
-          // SATUI
-          sb.append(
-              att.getTerminologyId() != null ? att.getTerminologyId() : "")
-              .append("|");
-          // ATN
-          sb.append(att.getName()).append("|");
-          // SAB
-          sb.append(att.getTerminology()).append("|");
-          // ATV
-          sb.append(att.getValue()).append("|");
-          // SUPPRESS
-          if (att.isObsolete()) {
-            sb.append("O");
-          } else if (att.isSuppressible()) {
-            sb.append("Y");
-          } else {
-            sb.append("N");
-          }
-          // CVF
-          sb.append("||\n");
-          lines.add(sb.toString());
+          lines.add(getMrsatLine(c.getTerminologyId(), a.getLexicalClassId(),
+              a.getStringClassId(), atomContentsMap.get(a.getId()).getAui(),
+              "AUI", a.getCodeId(), atui != null ? atui : "",
+              att.getTerminologyId() != null ? att.getTerminologyId() : "",
+              att.getName(), att.getTerminology(), att.getValue(),
+              att.isObsolete(), att.isSuppressible()));
         }
       }
 
@@ -2313,42 +3214,15 @@ public class WriteRrfContentFilesAlgorithm
             if (!attribute.isPublishable()) {
               continue;
             }
-            final StringBuilder sb = new StringBuilder(200);
-            // CUI
-            sb.append(c.getTerminologyId()).append("|");
-            // LUI
-            sb.append("|");
-            // SUI
-            sb.append("|");
-            // METAUI
-            sb.append(relAtomRuiMap.get(rel.getId())).append("|");
-            // STYPE
-            sb.append("RUI").append("|");
-            // CODE
-            sb.append("|");
-            // ATUI
             final String atui = attAtuiMap.get(attribute.getId());
-            sb.append(atui != null ? atui : "").append("|");
-            // SATUI
-            sb.append(attribute.getTerminologyId() != null
-                ? attribute.getTerminologyId() : "").append("|");
-            // ATN
-            sb.append(attribute.getName()).append("|");
-            // SAB
-            sb.append(attribute.getTerminology()).append("|");
-            // ATV
-            sb.append(attribute.getValue()).append("|");
-            // SUPPRESS
-            if (attribute.isObsolete()) {
-              sb.append("O");
-            } else if (attribute.isSuppressible()) {
-              sb.append("Y");
-            } else {
-              sb.append("N");
-            }
-            // CVF
-            sb.append("||\n");
-            lines.add(sb.toString());
+            lines.add(getMrsatLine(c.getTerminologyId(), "", "",
+                relAtomRuiMap.get(rel.getId()), "RUI", "",
+                atui != null ? atui : "",
+                attribute.getTerminologyId() != null
+                    ? attribute.getTerminologyId() : "",
+                attribute.getName(), attribute.getTerminology(),
+                attribute.getValue(), attribute.isObsolete(),
+                attribute.isSuppressible()));
           }
         }
       }
@@ -2373,33 +3247,14 @@ public class WriteRrfContentFilesAlgorithm
             if (!att.isPublishable()) {
               continue;
             }
-            final StringBuilder sb = new StringBuilder(200);
-            sb.append(c.getTerminologyId()).append("|");
-            sb.append(a.getLexicalClassId()).append("|");
-            sb.append(a.getStringClassId()).append("|");
-            sb.append(atomContentsMap.get(a.getId()).getAui()).append("|");
-            sb.append("AUI").append("|");
-            sb.append(a.getCodeId()).append("|");
-            sb.append(attAtuiMap.get(att.getId())).append("|");
-            sb.append(member.getTerminologyId()).append("|");
-            sb.append("SUBSET_MEMBER").append("|");
-            sb.append(att.getTerminology()).append("|");
-            sb.append(member.getSubset().getTerminologyId());
-            if (!ConfigUtility.isEmpty(att.getName())) {
-              sb.append("~").append(att.getName());
-              sb.append("~").append(att.getValue());
-            }
-            sb.append("|");
-            if (att.isObsolete()) {
-              sb.append("O");
-            } else if (att.isSuppressible()) {
-              sb.append("Y");
-            } else {
-              sb.append("N");
-            }
-            // CVF
-            sb.append("||\n");
-            lines.add(sb.toString());
+            lines.add(getMrsatLine(c.getTerminologyId(),
+                a.getLexicalClassId(), a.getStringClassId(),
+                atomContentsMap.get(a.getId()).getAui(), "AUI", a.getCodeId(),
+                attAtuiMap.get(att.getId()), member.getTerminologyId(),
+                "SUBSET_MEMBER", att.getTerminology(),
+                getMemberAtv(member.getSubset().getTerminologyId(),
+                    att.getName(), att.getValue()),
+                att.isObsolete(), att.isSuppressible()));
           }
 
         }
@@ -2421,30 +3276,16 @@ public class WriteRrfContentFilesAlgorithm
               continue;
             }
             
-            final StringBuilder sb = new StringBuilder(200);
-            sb.append(c.getTerminologyId()).append("|");
-            sb.append(a.getLexicalClassId()).append("|");
-            sb.append(a.getStringClassId()).append("|");
-            sb.append(atomContentsMap.get(a.getId()).getAui()).append("|");
-            sb.append("SCUI").append("|");
-            sb.append(a.getCodeId()).append("|");
             final String atui = attAtuiMap.get(attribute.getId());
-            sb.append(atui != null ? atui : "").append("|");
-            sb.append(attribute.getTerminologyId() != null
-                ? attribute.getTerminologyId() : "").append("|");
-            sb.append(attribute.getName()).append("|");
-            sb.append(attribute.getTerminology()).append("|");
-            sb.append(attribute.getValue()).append("|");
-            if (attribute.isObsolete()) {
-              sb.append("O");
-            } else if (attribute.isSuppressible()) {
-              sb.append("Y");
-            } else {
-              sb.append("N");
-            }
-            // CVF
-            sb.append("||\n");
-            lines.add(sb.toString());
+            lines.add(getMrsatLine(c.getTerminologyId(),
+                a.getLexicalClassId(), a.getStringClassId(),
+                atomContentsMap.get(a.getId()).getAui(), "SCUI",
+                a.getCodeId(), atui != null ? atui : "",
+                attribute.getTerminologyId() != null
+                    ? attribute.getTerminologyId() : "",
+                attribute.getName(), attribute.getTerminology(),
+                attribute.getValue(), attribute.isObsolete(),
+                attribute.isSuppressible()));
           }
         }
 
@@ -2459,30 +3300,15 @@ public class WriteRrfContentFilesAlgorithm
               if (!attribute.isPublishable()) {
                 continue;
               }
-              final StringBuilder sb = new StringBuilder(200);
-              sb.append(c.getTerminologyId()).append("|");
-              sb.append("|");
-              sb.append("|");
-              sb.append(relConceptRuiMap.get(rel.getId())).append("|");
-              sb.append("RUI").append("|");
-              sb.append("|");
               final String atui = attAtuiMap.get(attribute.getId());
-              sb.append(atui != null ? atui : "").append("|");
-              sb.append(attribute.getTerminologyId() != null
-                  ? attribute.getTerminologyId() : "").append("|");
-              sb.append(attribute.getName()).append("|");
-              sb.append(attribute.getTerminology()).append("|");
-              sb.append(attribute.getValue()).append("|");
-              if (attribute.isObsolete()) {
-                sb.append("O");
-              } else if (attribute.isSuppressible()) {
-                sb.append("Y");
-              } else {
-                sb.append("N");
-              }
-              // CVF
-              sb.append("||\n");
-              lines.add(sb.toString());
+              lines.add(getMrsatLine(c.getTerminologyId(), "", "",
+                  relConceptRuiMap.get(rel.getId()), "RUI", "",
+                  atui != null ? atui : "",
+                  attribute.getTerminologyId() != null
+                      ? attribute.getTerminologyId() : "",
+                  attribute.getName(), attribute.getTerminology(),
+                  attribute.getValue(), attribute.isObsolete(),
+                  attribute.isSuppressible()));
             }
           }
         }
@@ -2503,33 +3329,15 @@ public class WriteRrfContentFilesAlgorithm
                 continue;
               }
               
-              final StringBuilder sb = new StringBuilder(200);
-              sb.append(c.getTerminologyId()).append("|");
-              sb.append(a.getLexicalClassId()).append("|");
-              sb.append(a.getStringClassId()).append("|");
-              sb.append(atomContentsMap.get(a.getId()).getAui()).append("|");
-              sb.append("SCUI").append("|");
-              sb.append(a.getCodeId()).append("|");
-              sb.append(attAtuiMap.get(att.getId())).append("|");
-              sb.append(member.getTerminologyId()).append("|");
-              sb.append("SUBSET_MEMBER").append("|");
-              sb.append(att.getTerminology()).append("|");
-              sb.append(member.getSubset().getTerminologyId());
-              if (!ConfigUtility.isEmpty(att.getName())) {
-                sb.append("~").append(att.getName());
-                sb.append("~").append(att.getValue());
-              }
-              sb.append("|");
-              if (att.isObsolete()) {
-                sb.append("O");
-              } else if (att.isSuppressible()) {
-                sb.append("Y");
-              } else {
-                sb.append("N");
-              }
-              // CVF
-              sb.append("||\n");
-              lines.add(sb.toString());
+              lines.add(getMrsatLine(c.getTerminologyId(),
+                  a.getLexicalClassId(), a.getStringClassId(),
+                  atomContentsMap.get(a.getId()).getAui(), "SCUI",
+                  a.getCodeId(), attAtuiMap.get(att.getId()),
+                  member.getTerminologyId(), "SUBSET_MEMBER",
+                  att.getTerminology(),
+                  getMemberAtv(member.getSubset().getTerminologyId(),
+                      att.getName(), att.getValue()),
+                  att.isObsolete(), att.isSuppressible()));
             }
 
           }
@@ -2551,42 +3359,15 @@ public class WriteRrfContentFilesAlgorithm
               continue;
             }
 
-            final StringBuilder sb = new StringBuilder(200);
-            // CUI
-            sb.append(c.getTerminologyId()).append("|");
-            // LUI
-            sb.append(a.getLexicalClassId()).append("|");
-            // SUI
-            sb.append(a.getStringClassId()).append("|");
-            // METAUI
-            sb.append(atomContentsMap.get(a.getId()).getAui()).append("|");
-            // STYPE
-            sb.append("CODE").append("|");
-            // CODE
-            sb.append(a.getCodeId()).append("|");
-            // ATUI
-            final String atui = attAtuiMap.get(attribute.getId());
-            sb.append(atui).append("|");
-            // SATUI
-            sb.append(attribute.getTerminologyId() != null
-                ? attribute.getTerminologyId() : "").append("|");
-            // ATN
-            sb.append(attribute.getName()).append("|");
-            // SAB
-            sb.append(attribute.getTerminology()).append("|");
-            // ATV
-            sb.append(attribute.getValue()).append("|");
-            // SUPPRESS
-            if (attribute.isObsolete()) {
-              sb.append("O");
-            } else if (attribute.isSuppressible()) {
-              sb.append("Y");
-            } else {
-              sb.append("N");
-            }
-            // CVF
-            sb.append("||\n");
-            lines.add(sb.toString());
+            lines.add(getMrsatLine(c.getTerminologyId(),
+                a.getLexicalClassId(), a.getStringClassId(),
+                atomContentsMap.get(a.getId()).getAui(), "CODE",
+                a.getCodeId(), attAtuiMap.get(attribute.getId()),
+                attribute.getTerminologyId() != null
+                    ? attribute.getTerminologyId() : "",
+                attribute.getName(), attribute.getTerminology(),
+                attribute.getValue(), attribute.isObsolete(),
+                attribute.isSuppressible()));
           }
         }
 
@@ -2607,29 +3388,16 @@ public class WriteRrfContentFilesAlgorithm
             if (!attribute.isPublishable()) {
               continue;
             }
-            final StringBuilder sb = new StringBuilder(200);
-            sb.append(c.getTerminologyId()).append("|");
-            sb.append(a.getLexicalClassId()).append("|");
-            sb.append(a.getStringClassId()).append("|");
-            sb.append(atomContentsMap.get(a.getId()).getAui()).append("|");
-            sb.append("SDUI").append("|");
-            sb.append(a.getCodeId()).append("|");
             final String atui = attAtuiMap.get(attribute.getId());
-            sb.append(atui != null ? atui : "").append("|");
-            sb.append(attribute.getTerminologyId() != null
-                ? attribute.getTerminologyId() : "").append("|");
-            sb.append(attribute.getName()).append("|");
-            sb.append(attribute.getTerminology()).append("|");
-            sb.append(attribute.getValue()).append("|");
-            if (attribute.isObsolete()) {
-              sb.append("O");
-            } else if (attribute.isSuppressible()) {
-              sb.append("Y");
-            } else {
-              sb.append("N");
-            }
-            sb.append("||\n");
-            lines.add(sb.toString());
+            lines.add(getMrsatLine(c.getTerminologyId(),
+                a.getLexicalClassId(), a.getStringClassId(),
+                atomContentsMap.get(a.getId()).getAui(), "SDUI",
+                a.getCodeId(), atui != null ? atui : "",
+                attribute.getTerminologyId() != null
+                    ? attribute.getTerminologyId() : "",
+                attribute.getName(), attribute.getTerminology(),
+                attribute.getValue(), attribute.isObsolete(),
+                attribute.isSuppressible()));
           }
         }
 
@@ -2642,6 +3410,81 @@ public class WriteRrfContentFilesAlgorithm
     return lines;
   }
 
+  /**
+   * Returns the MRSAT line.
+   *
+   * @param cui the cui
+   * @param lui the lui
+   * @param sui the sui
+   * @param metaui the metaui
+   * @param stype the stype
+   * @param code the code
+   * @param atui the atui
+   * @param satui the satui
+   * @param atn the atn
+   * @param sab the sab
+   * @param atv the atv
+   * @param obsolete the obsolete flag
+   * @param suppressible the suppressible flag
+   * @return the line
+   */
+  private static String getMrsatLine(String cui, String lui, String sui,
+    String metaui, String stype, String code, String atui, String satui,
+    String atn, String sab, String atv, boolean obsolete,
+    boolean suppressible) {
+    final StringBuilder sb = new StringBuilder(200);
+    // CUI
+    sb.append(cui).append("|");
+    // LUI
+    sb.append(lui).append("|");
+    // SUI
+    sb.append(sui).append("|");
+    // METAUI
+    sb.append(metaui).append("|");
+    // STYPE
+    sb.append(stype).append("|");
+    // CODE
+    sb.append(code).append("|");
+    // ATUI
+    sb.append(atui).append("|");
+    // SATUI
+    sb.append(satui).append("|");
+    // ATN
+    sb.append(atn).append("|");
+    // SAB
+    sb.append(sab).append("|");
+    // ATV
+    sb.append(atv).append("|");
+    // SUPPRESS
+    if (obsolete) {
+      sb.append("O");
+    } else if (suppressible) {
+      sb.append("Y");
+    } else {
+      sb.append("N");
+    }
+    // CVF
+    sb.append("||\n");
+    return sb.toString();
+  }
+
+  /**
+   * Returns the ATV of a subset member attribute: the subset id, followed by
+   * the attribute name and value if it has a name.
+   *
+   * @param subsetId the subset terminology id
+   * @param name the attribute name
+   * @param value the attribute value
+   * @return the atv
+   */
+  private static String getMemberAtv(String subsetId, String name,
+    String value) {
+    if (ConfigUtility.isEmpty(name)) {
+      return subsetId;
+    }
+    return subsetId + "~" + name + "~" + value;
+  }
+
   /**
    * Write ambig.
    *
@@ -2725,6 +3568,24 @@ public class WriteRrfContentFilesAlgorithm
     checkRequiredProperties(new String[] {
         ""
     }, p);
+    if (p.getProperty("projectionMode") != null) {
+      projectionMode = Boolean.parseBoolean(p.getProperty("projectionMode"));
+    }
+  }
+
+  /* see superclass */
+  @Override
+  public List<AlgorithmParameter> getParameters() throws Exception {
+    final List<AlgorithmParameter> params = super.getParameters();
+    final AlgorithmParameter param = new AlgorithmParameterJpa(
+        "Projection mode", "projectionMode",
+        "Stream MRCONSO, MRDEF, MRSTY, MRREL, MRSAT, MRHIER, MRMAP and "
+            + "MRSMAP from projection queries read in CUI order, and compute "
+            + "preferred atoms from projections of atom fields, instead of "
+            + "loading concepts.",
+        "e.g. false", 0, AlgorithmParameter.Type.BOOLEAN, "false");
+    params.add(param);
+    return params;
   }
 
   /**
@@ -2739,19 +3600,424 @@ public class WriteRrfContentFilesAlgorithm
   }
 
   /**
-   * Represents connected data for an object type (see maps at the top).
+   * Returns the parallelism.
+   *
+   * @return the parallelism
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Sets the parallelism.
+   *
+   * @param parallelism the parallelism
+   */
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Returns the batch size.
+   *
+   * @return the batch size
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Sets the batch size.
+   *
+   * @param batchSize the batch size
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Indicates whether projection mode is on.
+   *
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   */
+  public boolean isProjectionMode() {
+    return projectionMode;
+  }
+
+  /**
+   * Sets the projection mode.
+   *
+   * @param projectionMode the projection mode
+   */
+  public void setProjectionMode(boolean projectionMode) {
+    this.projectionMode = projectionMode;
+  }
+
+  /**
+   * Adds the lines of a file for the projection rows of one concept.
+   */
+  @FunctionalInterface
+  private interface ProjectionHandler {
+
+    /**
+     * Adds the lines for the rows of a concept.
+     *
+     * @param cui the cui
+     * @param rows the rows of the concept, by projection query
+     * @param lines the lines
+     * @throws Exception the exception
+     */
+    void addLines(String cui, List<List<Object[]>> rows, List<String> lines)
+      throws Exception;
+  }
+
+  /**
+   * Handles the atoms of one owner from a projection.
+   */
+  @FunctionalInterface
+  private interface OwnerAtomsHandler {
+
+    /**
+     * Handles the atoms of an owner.
+     *
+     * @param owner the owner row
+     * @param atoms the atoms
+     * @throws Exception the exception
+     */
+    void handle(Object[] owner, List<Atom> atoms) throws Exception;
+  }
+
+  /**
+   * Writes the lines for one file on its own thread from a bounded queue.
+   */
+  static class WriterStage extends Thread {
+
+    /** The end of input marker. */
+    private static final List<String> END = new ArrayList<>();
+
+    /** The queue. */
+    private final BlockingQueue<List<String>> queue =
+        new ArrayBlockingQueue<>(64);
+
+    /** The file name. */
+    private final String fileName;
+
+    /** The writer. */
+    private final PrintWriter writer;
+
+    /**
+     * Instantiates a {@link WriterStage} from the specified parameters.
+     *
+     * @param fileName the file name
+     * @param writer the writer
+     */
+    WriterStage(String fileName, PrintWriter writer) {
+      super("WriterStage-" + fileName);
+      this.fileName = fileName;
+      this.writer = writer;
+      setDaemon(true);
+    }
+
+    /* see superclass */
+    @Override
+    public void run() {
+      try {
+        for (List<String> lines = queue.take(); lines != END; lines =
+            queue.take()) {
+          for (final String line : lines) {
+            writer.print(line);
+          }
+        }
+        writer.flush();
+      } catch (InterruptedException e) {
+        // n/a - finish() was not reached
+      }
+    }
+
+    /**
+     * Queues lines to write, blocking while the queue is full.
+     *
+     * @param lines the lines
+     * @throws Exception the exception
+     */
+    void put(List<String> lines) throws Exception {
+      if (!isAlive()) {
+        throw new Exception("Writer for " + fileName + " has stopped");
+      }
+      queue.put(lines);
+    }
+
+    /**
+     * Signals the end of input and waits for the queue to drain.
+     *
+     * @throws Exception the exception
+     */
+    void finish() throws Exception {
+      if (isAlive()) {
+        queue.put(END);
+      }
+      join();
+    }
+
+    /**
+     * Checks that all lines were written.
+     *
+     * @throws Exception the exception
+     */
+    void checkError() throws Exception {
+      if (writer.checkError()) {
+        throw new Exception("Unexpected error writing " + fileName);
+      }
+    }
+  }
+
+  /**
+   * Map from component id to {@link Contents}, held in primitive arrays: an
+   * open-addressing table of ids pointing at entries, and per entry a byte of
+   * flags and the offset of the AUI in {@link #auiArena}. An entry takes about
+   * 30 bytes instead of the ~150 bytes of a boxed map entry and contents
+   * object. Lookups return a view of the entry.
+   *
+   * Puts and updates must not run concurrently with anything else; lookups
+   * may run concurrently with each other.
+   */
+  class ContentsMap {
+
+    /** The attributes flag. */
+    static final int ATTRIBUTES = 1;
+
+    /** The relationships flag. */
+    static final int RELATIONSHIPS = 2;
+
+    /** The tree positions flag. */
+    static final int TREE_POSITIONS = 4;
+
+    /** The members flag. */
+    static final int MEMBERS = 8;
+
+    /** The definitions flag. */
+    static final int DEFINITIONS = 16;
+
+    /** The ids, 0 for an empty slot. */
+    private long[] slots = new long[1024];
+
+    /** The entry of each slot. */
+    private int[] slotEntries = new int[1024];
+
+    /** The flags, by entry. */
+    private byte[] flags = new byte[512];
+
+    /** The AUI offsets plus one, by entry, or 0 for none. */
+    private long[] auis = new long[512];
+
+    /** The number of entries. */
+    private int size = 0;
+
+    /**
+     * Returns the contents for the id.
+     *
+     * @param id the id
+     * @return the contents, or null if the id is null or not present
+     */
+    public Contents get(Long id) {
+      final int entry = entryOf(id);
+      return entry < 0 ? null : new Contents(this, entry);
+    }
+
+    /**
+     * Indicates whether the id is present.
+     *
+     * @param id the id
+     * @return <code>true</code> if so, <code>false</code> otherwise
+     */
+    public boolean containsKey(Long id) {
+      return entryOf(id) >= 0;
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return the size
+     */
+    public int size() {
+      return size;
+    }
+
+    /**
+     * Adds an empty entry for the id, if not already present.
+     *
+     * @param id the id
+     */
+    public void init(Long id) {
+      if (id <= 0) {
+        throw new IllegalArgumentException("Unexpected id " + id);
+      }
+      final int slot = slotOf(id);
+      if (slots[slot] != 0) {
+        return;
+      }
+      if (size == flags.length) {
+        grow(size + (size >> 1));
+      }
+      slots[slot] = id;
+      slotEntries[slot] = size++;
+      if (size > slots.length / 4 * 3) {
+        rehash();
+      }
+    }
+
+    /**
+     * Grows the entry arrays.
+     *
+     * @param capacity the new capacity
+     */
+    void grow(int capacity) {
+      flags = Arrays.copyOf(flags, capacity);
+      auis = Arrays.copyOf(auis, capacity);
+    }
+
+    /**
+     * Returns the AUI of the entry.
+     *
+     * @param entry the entry
+     * @return the AUI
+     */
+    String getAui(int entry) {
+      return auis[entry] == 0 ? null : auiArena.getString(auis[entry] - 1);
+    }
+
+    /**
+     * Sets the AUI of the entry.
+     *
+     * @param entry the entry
+     * @param aui the AUI
+     */
+    void setAui(int entry, String aui) {
+      auis[entry] = aui == null ? 0 : auiArena.add(aui) + 1;
+    }
+
+    /**
+     * Indicates whether the entry has the flag.
+     *
+     * @param entry the entry
+     * @param flag the flag
+     * @return <code>true</code> if so, <code>false</code> otherwise
+     */
+    boolean hasFlag(int entry, int flag) {
+      return (flags[entry] & flag) != 0;
+    }
+
+    /**
+     * Sets the flag on the entry.
+     *
+     * @param entry the entry
+     * @param flag the flag
+     */
+    void setFlag(int entry, int flag) {
+      flags[entry] |= flag;
+    }
+
+    /**
+     * Returns the entry for the id.
+     *
+     * @param id the id
+     * @return the entry, or -1 if the id is null or not present
+     */
+    int entryOf(Long id) {
+      if (id == null) {
+        return -1;
+      }
+      final int slot = slotOf(id);
+      return slots[slot] == 0 ? -1 : slotEntries[slot];
+    }
+
+    /**
+     * Returns the slot holding the id, or the empty slot where it belongs.
+     *
+     * @param id the id
+     * @return the slot
+     */
+    private int slotOf(long id) {
+      final int mask = slots.length - 1;
+      int slot = (int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+      while (slots[slot] != 0 && slots[slot] != id) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    /**
+     * Doubles the table and reinserts the ids.
+     */
+    private void rehash() {
+      final long[] oldSlots = slots;
+      final int[] oldEntries = slotEntries;
+      slots = new long[oldSlots.length * 2];
+      slotEntries = new int[oldSlots.length * 2];
+      for (int i = 0; i < oldSlots.length; i++) {
+        if (oldSlots[i] != 0) {
+          final int slot = slotOf(oldSlots[i]);
+          slots[slot] = oldSlots[i];
+          slotEntries[slot] = oldEntries[i];
+        }
+      }
+    }
+  }
+
+  /**
+   * A {@link ContentsMap} for atoms, also holding the ids of the concept,
+   * code and descriptor each atom is the preferred atom of.
+   */
+  class AtomContentsMap extends ContentsMap {
+
+    /** The concept ids, by entry, or 0 for none. */
+    private long[] conceptIds = new long[512];
+
+    /** The code ids, by entry, or 0 for none. */
+    private long[] codeIds = new long[512];
+
+    /** The descriptor ids, by entry, or 0 for none. */
+    private long[] descriptorIds = new long[512];
+
+    /* see superclass */
+    @Override
+    public AtomContents get(Long id) {
+      final int entry = entryOf(id);
+      return entry < 0 ? null : new AtomContents(this, entry);
+    }
+
+    /* see superclass */
+    @Override
+    void grow(int capacity) {
+      super.grow(capacity);
+      conceptIds = Arrays.copyOf(conceptIds, capacity);
+      codeIds = Arrays.copyOf(codeIds, capacity);
+      descriptorIds = Arrays.copyOf(descriptorIds, capacity);
+    }
+  }
+
+  /**
+   * Represents connected data for an object type (see maps at the top), as a
+   * view of an entry of a {@link ContentsMap}.
    */
   class Contents {
-    // 0 - attributes
-    // 1 - relationships
-    // 2 - tree positions
-    // 3 - members
-    // 4 - definitions
-    /** The data. */
-    private boolean[] data = new boolean[5];
 
-    /** The aui. */
-    private String aui = null;
+    /** The map. */
+    final ContentsMap map;
+
+    /** The entry. */
+    final int entry;
+
+    /**
+     * Instantiates a {@link Contents} from the specified parameters.
+     *
+     * @param map the map
+     * @param entry the entry
+     */
+    Contents(ContentsMap map, int entry) {
+      this.map = map;
+      this.entry = entry;
+    }
 
     /**
      * Returns the aui.
@@ -2759,7 +4025,7 @@ public class WriteRrfContentFilesAlgorithm
      * @return the aui
      */
     public String getAui() {
-      return aui;
+      return map.getAui(entry);
     }
 
     /**
@@ -2768,7 +4034,7 @@ public class WriteRrfContentFilesAlgorithm
      * @param aui the aui
      */
     public void setAui(String aui) {
-      this.aui = aui;
+      map.setAui(entry, aui);
     }
 
     /**
@@ -2777,14 +4043,14 @@ public class WriteRrfContentFilesAlgorithm
      * @return true, if successful
      */
     public boolean hasAttributes() {
-      return data[0];
+      return map.hasFlag(entry, ContentsMap.ATTRIBUTES);
     }
 
     /**
      * Mark attributes.
      */
     public void markAttributes() {
-      data[0] = true;
+      map.setFlag(entry, ContentsMap.ATTRIBUTES);
     }
 
     /**
@@ -2793,14 +4059,14 @@ public class WriteRrfContentFilesAlgorithm
      * @return true, if successful
      */
     public boolean hasRelationships() {
-      return data[1];
+      return map.hasFlag(entry, ContentsMap.RELATIONSHIPS);
     }
 
     /**
      * Mark relationships.
      */
     public void markRelationships() {
-      data[1] = true;
+      map.setFlag(entry, ContentsMap.RELATIONSHIPS);
     }
 
     /**
@@ -2809,14 +4075,14 @@ public class WriteRrfContentFilesAlgorithm
      * @return true, if successful
      */
     public boolean hasTreePositions() {
-      return data[2];
+      return map.hasFlag(entry, ContentsMap.TREE_POSITIONS);
     }
 
     /**
      * Mark tre positions.
      */
     public void markTreePositions() {
-      data[2] = true;
+      map.setFlag(entry, ContentsMap.TREE_POSITIONS);
     }
 
     /**
@@ -2825,14 +4091,14 @@ public class WriteRrfContentFilesAlgorithm
      * @return true, if successful
      */
     public boolean hasMembers() {
-      return data[3];
+      return map.hasFlag(entry, ContentsMap.MEMBERS);
     }
 
     /**
      * Mark members.
      */
     public void markMembers() {
-      data[3] = true;
+      map.setFlag(entry, ContentsMap.MEMBERS);
     }
 
     /**
@@ -2841,14 +4107,14 @@ public class WriteRrfContentFilesAlgorithm
      * @return true, if successful
      */
     public boolean hasDefinitions() {
-      return data[4];
+      return map.hasFlag(entry, ContentsMap.DEFINITIONS);
     }
 
     /**
      * Mark definitions.
      */
     public void markDefinitions() {
-      data[4] = true;
+      map.setFlag(entry, ContentsMap.DEFINITIONS);
     }
   }
 
@@ -2857,14 +4123,19 @@ public class WriteRrfContentFilesAlgorithm
    */
   class AtomContents extends Contents {
 
-    /** The code id. */
-    private Long codeId;
+    /** The map. */
+    private final AtomContentsMap atomMap;
 
-    /** The concept id. */
-    private Long conceptId;
-
-    /** The descriptor id. */
-    private Long descriptorId;
+    /**
+     * Instantiates a {@link AtomContents} from the specified parameters.
+     *
+     * @param map the map
+     * @param entry the entry
+     */
+    AtomContents(AtomContentsMap map, int entry) {
+      super(map, entry);
+      this.atomMap = map;
+    }
 
     /**
      * Returns the code id.
@@ -2872,7 +4143,7 @@ public class WriteRrfContentFilesAlgorithm
      * @return the code id
      */
     public Long getCodeId() {
-      return codeId;
+      return toId(atomMap.codeIds[entry]);
     }
 
     /**
@@ -2881,7 +4152,7 @@ public class WriteRrfContentFilesAlgorithm
      * @param codeId the code id
      */
     public void setCodeId(Long codeId) {
-      this.codeId = codeId;
+      atomMap.codeIds[entry] = codeId == null ? 0 : codeId;
     }
 
     /**
@@ -2890,7 +4161,7 @@ public class WriteRrfContentFilesAlgorithm
      * @return the concept id
      */
     public Long getConceptId() {
-      return conceptId;
+      return toId(atomMap.conceptIds[entry]);
     }
 
     /**
@@ -2899,7 +4170,7 @@ public class WriteRrfContentFilesAlgorithm
      * @param conceptId the concept id
      */
     public void setConceptId(Long conceptId) {
-      this.conceptId = conceptId;
+      atomMap.conceptIds[entry] = conceptId == null ? 0 : conceptId;
     }
 
     /**
@@ -2908,7 +4179,7 @@ public class WriteRrfContentFilesAlgorithm
      * @return the descriptor id
      */
     public Long getDescriptorId() {
-      return descriptorId;
+      return toId(atomMap.descriptorIds[entry]);
     }
 
     /**
@@ -2917,9 +4188,19 @@ public class WriteRrfContentFilesAlgorithm
      * @param descriptorId the descriptor id
      */
     public void setDescriptorId(Long descriptorId) {
-      this.descriptorId = descriptorId;
+      atomMap.descriptorIds[entry] = descriptorId == null ? 0 : descriptorId;
     }
 
+    /**
+     * Returns the id, or null for 0.
+     *
+     * @param id the id
+     * @return the id
+     */
+    private Long toId(long id) {
+      return id == 0 ? null : id;
+    }
   }
 
+
 }
@@ -32,7 +32,7 @@ import com.wci.umls.server.helpers.ConfigUtility;
 import com.wci.umls.server.helpers.QueryType;
 import com.wci.umls.server.jpa.ValidationResultJpa;
 import com.wci.umls.server.jpa.algo.AbstractInsertMaintReleaseAlgorithm;
-import com.wci.umls.server.jpa.algo.FileSorter;
+import com.wci.umls.server.jpa.algo.FieldedFileSorter;
 import com.wci.umls.server.jpa.content.ComponentHistoryJpa;
 import com.wci.umls.server.jpa.content.ConceptJpa;
 import com.wci.umls.server.jpa.services.handlers.DefaultComputePreferredNameHandler;
@@ -145,8 +145,7 @@ public class WriteRrfHistoryFilesAlgorithm
         outputFile.delete();
       }
       FileUtils.removePath(outputFile.getPath());
-      FileSorter.sortFile(inputFile.getAbsolutePath(),
-          outputFile.getAbsolutePath(), ConfigUtility.getByteComparator());
+      new FieldedFileSorter('|').sortFile(inputFile, outputFile);
     }
 
     // move sorted files into orig files
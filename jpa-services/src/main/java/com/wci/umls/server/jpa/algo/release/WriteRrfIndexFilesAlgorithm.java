@@ -6,6 +6,7 @@ package com.wci.umls.server.jpa.algo.release;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -22,7 +23,7 @@ import com.wci.umls.server.helpers.ConfigUtility;
 import com.wci.umls.server.helpers.FieldedStringTokenizer;
 import com.wci.umls.server.jpa.ValidationResultJpa;
 import com.wci.umls.server.jpa.algo.AbstractInsertMaintReleaseAlgorithm;
-import com.wci.umls.server.jpa.algo.FileSorter;
+import com.wci.umls.server.jpa.algo.FieldedFileSorter;
 import com.wci.umls.server.model.content.Atom;
 import com.wci.umls.server.model.content.Concept;
 import com.wci.umls.server.model.meta.Language;
@@ -86,8 +87,20 @@ public class WriteRrfIndexFilesAlgorithm
       final Set<String> seen = new HashSet<>();
       final Set<String> wordsSeen = new HashSet<>();
 
+      // normalize the publishable atom names as one batch
+      final List<String> names = new ArrayList<>();
       for (final Atom atom : c.getAtoms()) {
         if (atom.isPublishable()) {
+          names.add(atom.getName());
+        }
+      }
+      final List<String> normalizedStrings =
+          handler.getNormalizedStrings(names);
+
+      int i = 0;
+      for (final Atom atom : c.getAtoms()) {
+        if (atom.isPublishable()) {
+          final String normalizedString = normalizedStrings.get(i++);
 
           // MRXNS_ENG.RRF
 
@@ -97,9 +110,6 @@ public class WriteRrfIndexFilesAlgorithm
           // 2 CUI Concept identifier
           // 3 LUI Term identifier
           // 4 SUI String identifier
-          final String normalizedString =
-              handler.getNormalizedString(atom.getName());
-
           if (atom.getLanguage().equals("ENG")
               && !seen.contains("MRXNS" + atom.getStringClassId())
               && !ConfigUtility.isEmpty(normalizedString)) {
@@ -239,8 +249,7 @@ public class WriteRrfIndexFilesAlgorithm
     for (String writerName : writerMap.keySet()) {
       File inputFile = new File(dir, writerName);
       File outputFile = new File(dir, writerName + ".sorted");
-      FileSorter.sortFile(inputFile.getAbsolutePath(),
-          outputFile.getAbsolutePath(), ConfigUtility.getByteComparator());
+      new FieldedFileSorter('|').sortFile(inputFile, outputFile);
     }
 
     // move sorted files into orig files
@@ -15,6 +15,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 import javax.persistence.NoResultException;
@@ -29,6 +31,10 @@ import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.search.SearchFactory;
 import org.hibernate.search.jpa.FullTextEntityManager;
 import org.hibernate.search.jpa.FullTextQuery;
@@ -122,7 +128,10 @@ import com.wci.umls.server.jpa.helpers.content.TreeJpa;
 import com.wci.umls.server.jpa.helpers.content.TreePositionListJpa;
 import com.wci.umls.server.jpa.meta.AbstractAbbreviation;
 import com.wci.umls.server.jpa.services.handlers.EclExpressionHandler;
+import com.wci.umls.server.jpa.services.helper.AutocompleteSuggester;
 import com.wci.umls.server.jpa.services.helper.IndexUtility;
+import com.wci.umls.server.jpa.services.helper.TermRestrictedPfsParameter;
+import com.wci.umls.server.jpa.services.helper.TransitiveRelationshipBulkWriter;
 import com.wci.umls.server.model.actions.AtomicAction;
 import com.wci.umls.server.model.actions.MolecularAction;
 import com.wci.umls.server.model.content.Atom;
@@ -167,6 +176,21 @@ public class ContentServiceJpa extends MetadataServiceJpa
   /** The assign identifiers flag. */
   protected boolean assignIdentifiersFlag = false;
 
+  /** The atom classes changed in the transaction, for autocomplete. */
+  private Map<Class<? extends AtomClass>, Set<Long>> autocompleteIds =
+      new HashMap<>();
+
+  /** The atoms changed in the transaction, for autocomplete. */
+  private Set<Long> autocompleteAtomIds = new HashSet<>();
+
+  /** The background builds of the autocomplete suggesters, one at a time. */
+  private static final ExecutorService autocompleteBuilder =
+      Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "autocomplete-suggester");
+        thread.setDaemon(true);
+        return thread;
+      });
+
   /** The id handler map. */
   static Map<String, IdentifierAssignmentHandler> idHandlerMap =
       new HashMap<>();
@@ -324,7 +348,10 @@ public class ContentServiceJpa extends MetadataServiceJpa
     }
 
     // Add component
-    return addComponent(concept);
+    final Concept newConcept = addComponent(concept);
+    addAutocompleteId(ConceptJpa.class, newConcept);
+    applyAutocompleteChangesPerOperation();
+    return newConcept;
 
   }
 
@@ -352,6 +379,8 @@ public class ContentServiceJpa extends MetadataServiceJpa
     }
     // update component
     updateComponent(concept);
+    addAutocompleteId(ConceptJpa.class, concept);
+    applyAutocompleteChangesPerOperation();
 
   }
 
@@ -361,7 +390,10 @@ public class ContentServiceJpa extends MetadataServiceJpa
     Logger.getLogger(getClass())
         .debug("Content Service - remove concept " + id);
     // Remove the component
+    addAutocompleteId(ConceptJpa.class,
+        getComponent(id, ConceptJpa.class));
     removeComponent(id, ConceptJpa.class);
+    applyAutocompleteChangesPerOperation();
 
   }
 
@@ -842,7 +874,10 @@ public class ContentServiceJpa extends MetadataServiceJpa
     }
 
     // Add component
-    return addComponent(descriptor);
+    final Descriptor newDescriptor = addComponent(descriptor);
+    addAutocompleteId(DescriptorJpa.class, newDescriptor);
+    applyAutocompleteChangesPerOperation();
+    return newDescriptor;
 
   }
 
@@ -870,6 +905,8 @@ public class ContentServiceJpa extends MetadataServiceJpa
     }
     // update component
     updateComponent(descriptor);
+    addAutocompleteId(DescriptorJpa.class, descriptor);
+    applyAutocompleteChangesPerOperation();
 
   }
 
@@ -879,7 +916,10 @@ public class ContentServiceJpa extends MetadataServiceJpa
     Logger.getLogger(getClass())
         .debug("Content Service - remove descriptor " + id);
     // Remove the component
+    addAutocompleteId(DescriptorJpa.class,
+        getComponent(id, DescriptorJpa.class));
     removeComponent(id, DescriptorJpa.class);
+    applyAutocompleteChangesPerOperation();
 
   }
 
@@ -936,7 +976,10 @@ public class ContentServiceJpa extends MetadataServiceJpa
     }
 
     // Add component
-    return addComponent(code);
+    final Code newCode = addComponent(code);
+    addAutocompleteId(CodeJpa.class, newCode);
+    applyAutocompleteChangesPerOperation();
+    return newCode;
 
   }
 
@@ -963,6 +1006,8 @@ public class ContentServiceJpa extends MetadataServiceJpa
     }
     // update component
     updateComponent(code);
+    addAutocompleteId(CodeJpa.class, code);
+    applyAutocompleteChangesPerOperation();
 
   }
 
@@ -971,7 +1016,10 @@ public class ContentServiceJpa extends MetadataServiceJpa
   public void removeCode(Long id) throws Exception {
     Logger.getLogger(getClass()).debug("Content Service - remove code " + id);
     // Remove the component
+    addAutocompleteId(CodeJpa.class,
+        getComponent(id, CodeJpa.class));
     removeComponent(id, CodeJpa.class);
+    applyAutocompleteChangesPerOperation();
 
   }
 
@@ -1494,7 +1542,10 @@ public class ContentServiceJpa extends MetadataServiceJpa
     }
 
     // Add component
-    return addComponent(atom);
+    final Atom newAtom = addComponent(atom);
+    addAutocompleteAtom(newAtom);
+    applyAutocompleteChangesPerOperation();
+    return newAtom;
 
   }
 
@@ -1515,6 +1566,8 @@ public class ContentServiceJpa extends MetadataServiceJpa
 
     // update component
     updateComponent(atom);
+    addAutocompleteAtom(atom);
+    applyAutocompleteChangesPerOperation();
 
   }
 
@@ -1523,7 +1576,9 @@ public class ContentServiceJpa extends MetadataServiceJpa
   public void removeAtom(Long id) throws Exception {
     Logger.getLogger(getClass()).debug("Content Service - remove atom " + id);
     // Remove the component
+    removeAutocompleteAtom(getComponent(id, AtomJpa.class));
     removeComponent(id, AtomJpa.class);
+    applyAutocompleteChangesPerOperation();
 
   }
 
@@ -1902,6 +1957,39 @@ public class ContentServiceJpa extends MetadataServiceJpa
     return newRel;
   }
 
+  /**
+   * Returns a bulk writer for loading transitive relationships of the
+   * specified id type without per-entity persists. Rows are written with JDBC
+   * batch inserts in the current transaction, so the writer must be flushed
+   * before committing. Terminology ids are left blank and no molecular actions
+   * are recorded.
+   *
+   * @param idType the id type
+   * @param terminology the terminology
+   * @param version the version
+   * @param timestamp the timestamp
+   * @return the transitive relationship bulk writer
+   * @throws Exception the exception
+   */
+  protected TransitiveRelationshipBulkWriter getTransitiveRelationshipBulkWriter(
+    IdType idType, String terminology, String version, Date timestamp)
+    throws Exception {
+    Logger.getLogger(getClass())
+        .debug("Content Service - get transitive relationship bulk writer "
+            + idType + ", " + terminology + ", " + version);
+    if (getTransactionPerOperation()) {
+      throw new Exception(
+          "Bulk loading transitive relationships requires a transaction.");
+    }
+    if (getLastModifiedBy() == null) {
+      throw new Exception(
+          "Service cannot add object, name of modifying user required");
+    }
+    return new TransitiveRelationshipBulkWriter(manager, idType, terminology,
+        version, getLastModifiedBy(), timestamp,
+        TransitiveRelationshipBulkWriter.DEFAULT_BATCH_SIZE);
+  }
+
   /* see superclass */
   @Override
   public void updateTransitiveRelationship(
@@ -2490,7 +2578,7 @@ public class ContentServiceJpa extends MetadataServiceJpa
     SearchResultList exprResults = null;
 
     // construct local pfs
-    final PfsParameter localPfs =
+    PfsParameter localPfs =
         pfs == null ? new PfsParameterJpa() : new PfsParameterJpa(pfs);
 
     // declare search handler
@@ -2504,20 +2592,15 @@ public class ContentServiceJpa extends MetadataServiceJpa
           getExpressionHandler(terminology, version);
       exprResults = exprHandler.resolve(localPfs.getExpression());
 
-      // if results found, constuct a query restriction
+      // if results found, restrict to their terminology ids (as a filter)
       if (exprResults.size() > 0) {
-        String exprQueryRestr = (localPfs.getQueryRestriction() != null
-            && !localPfs.getQueryRestriction().isEmpty() ? " AND " : "")
-            + "terminologyId:(";
+        final List<String> terminologyIds =
+            new ArrayList<>(exprResults.size());
         for (final SearchResult exprResult : exprResults.getObjects()) {
-          exprQueryRestr += exprResult.getTerminologyId() + " ";
+          terminologyIds.add(exprResult.getTerminologyId());
         }
-        // trim last space, close parenthesis and add boost based on count
-        exprQueryRestr =
-            exprQueryRestr.substring(0, exprQueryRestr.length() - 1) + ")^"
-                + exprResults.size();
-        localPfs.setQueryRestriction((localPfs.getQueryRestriction() != null
-            ? localPfs.getQueryRestriction() : "") + exprQueryRestr);
+        localPfs = new TermRestrictedPfsParameter(localPfs, "terminologyId",
+            terminologyIds);
       }
     }
 
@@ -2707,6 +2790,18 @@ public class ContentServiceJpa extends MetadataServiceJpa
     if (terminology == null || version == null || searchTerm == null) {
       return new StringList();
     }
+
+    // Use the suggester, once it is built
+    final AutocompleteSuggester suggester =
+        getAutocompleteSuggester(terminology, version, clazz);
+    if (suggester != null) {
+      try {
+        return suggester.lookup(searchTerm, 20);
+      } catch (AlreadyClosedException e) {
+        // discarded by refreshCaches, fall through
+      }
+    }
+
     final String TITLE_EDGE_NGRAM_INDEX = "atoms.edgeNGramName";
     final String TITLE_NGRAM_INDEX = "atoms.nGramName";
 
@@ -2752,6 +2847,379 @@ public class ContentServiceJpa extends MetadataServiceJpa
     return list;
   }
 
+  /**
+   * Returns the autocomplete suggester for the terminology and version. If it
+   * is not built yet, a background build is scheduled and the caller uses the
+   * autocomplete query meanwhile.
+   *
+   * @param <T> the
+   * @param terminology the terminology
+   * @param version the version
+   * @param clazz the clazz
+   * @return the suggester, or null if it is not built yet
+   */
+  private static <T extends AtomClass> AutocompleteSuggester getAutocompleteSuggester(
+    String terminology, String version, Class<T> clazz) {
+    final AutocompleteSuggester suggester =
+        AutocompleteSuggester.get(clazz, terminology, version);
+    if (suggester == null) {
+      scheduleAutocompleteSuggester(terminology, version, clazz);
+    }
+    return suggester;
+  }
+
+  /**
+   * Schedules background builds of the autocomplete suggesters of the
+   * concepts, descriptors and codes of the terminology and version, e.g. at
+   * startup or after a load, so the first lookups need not wait for them.
+   *
+   * @param terminology the terminology
+   * @param version the version
+   */
+  public static void scheduleAutocompleteSuggesters(String terminology,
+    String version) {
+    scheduleAutocompleteSuggester(terminology, version, ConceptJpa.class);
+    scheduleAutocompleteSuggester(terminology, version, DescriptorJpa.class);
+    scheduleAutocompleteSuggester(terminology, version, CodeJpa.class);
+  }
+
+  /**
+   * Schedules a background build of the autocomplete suggester for the
+   * terminology and version, unless it is built or being built.
+   *
+   * @param <T> the
+   * @param terminology the terminology
+   * @param version the version
+   * @param clazz the clazz
+   */
+  private static <T extends AtomClass> void scheduleAutocompleteSuggester(
+    String terminology, String version, Class<T> clazz) {
+    if (AutocompleteSuggester.get(clazz, terminology, version) != null
+        || !AutocompleteSuggester.startBuild(clazz, terminology, version)) {
+      return;
+    }
+    autocompleteBuilder.execute(() -> {
+      try {
+        final ContentServiceJpa service = new ContentServiceJpa();
+        try {
+          service.buildAutocompleteSuggester(terminology, version, clazz);
+        } finally {
+          service.close();
+        }
+      } catch (Exception e) {
+        Logger.getLogger(ContentServiceJpa.class)
+            .error("Unable to build autocomplete suggester "
+                + clazz.getSimpleName() + ", " + terminology + ", " + version,
+                e);
+      } finally {
+        AutocompleteSuggester.finishBuild(clazz, terminology, version);
+      }
+    });
+  }
+
+  /**
+   * Builds and registers the autocomplete suggester for the terminology and
+   * version from the atom names of the atom classes (the same entries the
+   * autocomplete query searches). Atom classes changed while it was being
+   * built are then reapplied.
+   *
+   * @param <T> the
+   * @param terminology the terminology
+   * @param version the version
+   * @param clazz the clazz
+   * @throws Exception the exception
+   */
+  @SuppressWarnings("unchecked")
+  private <T extends AtomClass> void buildAutocompleteSuggester(
+    String terminology, String version, Class<T> clazz) throws Exception {
+    Logger.getLogger(getClass())
+        .info("Content Service - build autocomplete suggester "
+            + clazz.getSimpleName() + ", " + terminology + ", " + version);
+    // Due to MySQL rounding to the second, go back one
+    final Date startDate = new Date(System.currentTimeMillis() - 1000);
+    final AutocompleteSuggester suggester = new AutocompleteSuggester(
+        AutocompleteSuggester.getIndexDirectory(clazz, terminology, version));
+    try {
+      final ScrollableResults results = manager.unwrap(Session.class)
+          .createQuery("select c.id, c.name, a.name from "
+              + clazz.getSimpleName() + " c join c.atoms a "
+              + "where c.terminology = :terminology "
+              + "and c.version = :version and c.suppressible = false "
+              + "and a.suppressible = false"
+              + (Concept.class.isAssignableFrom(clazz)
+                  ? " and c.anonymous = false" : "")
+              + " order by c.id")
+          .setParameter("terminology", terminology)
+          .setParameter("version", version).setReadOnly(true)
+          .setFetchSize(2000).scroll(ScrollMode.FORWARD_ONLY);
+      try {
+        Long id = null;
+        String name = null;
+        final Set<String> texts = new HashSet<>();
+        while (results.next()) {
+          final Object[] row = results.get();
+          if (!row[0].equals(id)) {
+            if (id != null) {
+              suggester.update(id, name, texts);
+            }
+            id = (Long) row[0];
+            name = (String) row[1];
+            texts.clear();
+          }
+          texts.add((String) row[2]);
+        }
+        if (id != null) {
+          suggester.update(id, name, texts);
+        }
+      } finally {
+        results.close();
+      }
+      AutocompleteSuggester.put(clazz, terminology, version, suggester);
+    } catch (Exception e) {
+      suggester.close();
+      throw e;
+    }
+
+    // Reapply atom classes (or their atoms) changed while building
+    final Set<Long> ids =
+        autocompleteIds.computeIfAbsent(clazz, k -> new HashSet<>());
+    for (final String query : new String[] {
+        "select c.id from " + clazz.getSimpleName() + " c "
+            + "where c.terminology = :terminology and c.version = :version "
+            + "and c.lastModified >= :date",
+        "select distinct c.id from " + clazz.getSimpleName()
+            + " c join c.atoms a where c.terminology = :terminology "
+            + "and c.version = :version and a.lastModified >= :date"
+    }) {
+      ids.addAll(manager.createQuery(query)
+          .setParameter("terminology", terminology)
+          .setParameter("version", version).setParameter("date", startDate)
+          .getResultList());
+    }
+    applyAutocompleteChanges();
+    Logger.getLogger(getClass()).info("  entries = " + suggester.size());
+  }
+
+  /**
+   * Records a changed atom class, to be reapplied to its autocomplete
+   * suggester (if built) when the transaction commits.
+   *
+   * @param clazz the clazz
+   * @param atomClass the atom class
+   */
+  private void addAutocompleteId(Class<? extends AtomClass> clazz,
+    AtomClass atomClass) {
+    if (atomClass == null || atomClass.getId() == null
+        || AutocompleteSuggester.get(clazz, atomClass.getTerminology(),
+            atomClass.getVersion()) == null) {
+      return;
+    }
+    autocompleteIds.computeIfAbsent(clazz, k -> new HashSet<>())
+        .add(atomClass.getId());
+  }
+
+  /**
+   * Records a changed atom, to be reapplied to the autocomplete suggesters (if
+   * built) of its atom classes when the transaction commits.
+   *
+   * @param atom the atom
+   */
+  private void addAutocompleteAtom(Atom atom) {
+    if (atom == null || atom.getId() == null
+        || !hasAutocompleteSuggester(atom)) {
+      return;
+    }
+    autocompleteAtomIds.add(atom.getId());
+  }
+
+  /**
+   * Records the atom classes of an atom about to be removed, to be reapplied
+   * to their autocomplete suggesters (if built) once it is removed. They are
+   * looked up now, while the atom still exists.
+   *
+   * @param atom the atom
+   * @throws Exception the exception
+   */
+  private void removeAutocompleteAtom(Atom atom) throws Exception {
+    if (atom == null || !hasAutocompleteSuggester(atom)) {
+      return;
+    }
+    addAutocompleteAtomClasses(Collections.singletonList(atom.getId()));
+  }
+
+  /**
+   * Indicates whether an atom class of the atom may have an autocomplete
+   * suggester: the code, descriptor or concept of the atom's terminology and
+   * version, or a concept of a terminology the atom has a concept id in.
+   *
+   * @param atom the atom
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   */
+  private static boolean hasAutocompleteSuggester(Atom atom) {
+    for (final Class<?> clazz : new Class<?>[] {
+        ConceptJpa.class, DescriptorJpa.class, CodeJpa.class
+    }) {
+      if (AutocompleteSuggester.get(clazz, atom.getTerminology(),
+          atom.getVersion()) != null) {
+        return true;
+      }
+    }
+    if (atom.getConceptTerminologyIds() != null) {
+      for (final String terminology : atom.getConceptTerminologyIds()
+          .keySet()) {
+        if (AutocompleteSuggester.exists(ConceptJpa.class, terminology)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Records the atom classes of the atoms that have an autocomplete
+   * suggester, to be reapplied to it when the transaction commits.
+   *
+   * @param atomIds the atom ids
+   * @throws Exception the exception
+   */
+  @SuppressWarnings("unchecked")
+  private void addAutocompleteAtomClasses(List<Long> atomIds)
+    throws Exception {
+    for (final Class<? extends AtomClass> clazz : new Class[] {
+        ConceptJpa.class, DescriptorJpa.class, CodeJpa.class
+    }) {
+      if (!AutocompleteSuggester.exists(clazz, null)) {
+        continue;
+      }
+      for (int i = 0; i < atomIds.size(); i += 1000) {
+        for (final Object[] row : (List<Object[]>) manager
+            .createQuery("select distinct c.id, c.terminology, c.version from "
+                + clazz.getSimpleName()
+                + " c join c.atoms a where a.id in (:ids)")
+            .setParameter("ids",
+                atomIds.subList(i, Math.min(i + 1000, atomIds.size())))
+            .getResultList()) {
+          if (AutocompleteSuggester.get(clazz, (String) row[1],
+              (String) row[2]) != null) {
+            autocompleteIds.computeIfAbsent(clazz, k -> new HashSet<>())
+                .add((Long) row[0]);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Reapplies the atom classes changed in the committed transaction, and the
+   * atom classes of the atoms changed, to their autocomplete suggesters.
+   *
+   * @throws Exception the exception
+   */
+  @SuppressWarnings("unchecked")
+  private void applyAutocompleteChanges() throws Exception {
+    if (!autocompleteAtomIds.isEmpty()) {
+      final List<Long> atomIds = new ArrayList<>(autocompleteAtomIds);
+      autocompleteAtomIds = new HashSet<>();
+      addAutocompleteAtomClasses(atomIds);
+    }
+    if (autocompleteIds.isEmpty()) {
+      return;
+    }
+    final Map<Class<? extends AtomClass>, Set<Long>> changed =
+        autocompleteIds;
+    autocompleteIds = new HashMap<>();
+
+    for (final Map.Entry<Class<? extends AtomClass>, Set<Long>> change : changed
+        .entrySet()) {
+      final Class<? extends AtomClass> clazz = change.getKey();
+      final List<AutocompleteSuggester> suggesters =
+          AutocompleteSuggester.getAll(clazz);
+      if (suggesters.isEmpty()) {
+        continue;
+      }
+
+      // Reload their entries, without loading the atom classes
+      final List<Long> idList = new ArrayList<>(change.getValue());
+      for (int i = 0; i < idList.size(); i += 1000) {
+        final List<Long> chunk =
+            idList.subList(i, Math.min(i + 1000, idList.size()));
+        final Map<Long, Object[]> entries = new HashMap<>();
+        final Map<Long, Set<String>> texts = new HashMap<>();
+        for (final Object[] row : (List<Object[]>) manager
+            .createQuery("select c.id, c.terminology, c.version, c.name, "
+                + "a.name from " + clazz.getSimpleName() + " c join c.atoms a "
+                + "where c.id in (:ids) and c.suppressible = false "
+                + "and a.suppressible = false"
+                + (Concept.class.isAssignableFrom(clazz)
+                    ? " and c.anonymous = false" : ""))
+            .setParameter("ids", chunk).getResultList()) {
+          entries.put((Long) row[0], row);
+          texts.computeIfAbsent((Long) row[0], k -> new HashSet<>())
+              .add((String) row[4]);
+        }
+        for (final Long id : chunk) {
+          final Object[] entry = entries.get(id);
+          if (entry == null) {
+            // removed, or no longer suggested
+            for (final AutocompleteSuggester suggester : suggesters) {
+              suggester.remove(id);
+            }
+            continue;
+          }
+          final AutocompleteSuggester suggester = AutocompleteSuggester
+              .get(clazz, (String) entry[1], (String) entry[2]);
+          if (suggester != null) {
+            suggester.update(id, (String) entry[3], texts.get(id));
+          }
+        }
+      }
+      for (final AutocompleteSuggester suggester : suggesters) {
+        suggester.refresh();
+      }
+    }
+  }
+
+  /**
+   * Reapplies the recorded changes to the autocomplete suggesters if each
+   * operation commits its own transaction, i.e. after the operation's change
+   * is committed.
+   */
+  private void applyAutocompleteChangesPerOperation() {
+    if (getTransactionPerOperation()) {
+      applyCommittedAutocompleteChanges();
+    }
+  }
+
+  /**
+   * Reapplies the recorded changes, once committed, to the autocomplete
+   * suggesters. The changes are already durable, so a suggester failure (e.g.
+   * a suggester closed meanwhile) is logged rather than thrown; the suggester
+   * is then stale until rebuilt.
+   */
+  private void applyCommittedAutocompleteChanges() {
+    try {
+      applyAutocompleteChanges();
+    } catch (Exception e) {
+      Logger.getLogger(getClass())
+          .error("Unable to apply changes to autocomplete suggesters", e);
+    }
+  }
+
+  /* see superclass */
+  @Override
+  public void commit() throws Exception {
+    super.commit();
+    applyCommittedAutocompleteChanges();
+  }
+
+  /* see superclass */
+  @Override
+  public void rollback() throws Exception {
+    super.rollback();
+    autocompleteIds.clear();
+    autocompleteAtomIds.clear();
+  }
+
   /* see superclass */
   @Override
   public SearchResultList findCodeSearchResults(String terminology,
@@ -4980,6 +5448,7 @@ public class ContentServiceJpa extends MetadataServiceJpa
   @Override
   public void refreshCaches() throws Exception {
     super.refreshCaches();
+    AutocompleteSuggester.clear();
     init();
     validateInit();
   }
@@ -22,6 +22,7 @@ import com.wci.umls.server.helpers.ProjectList;
 import com.wci.umls.server.helpers.content.ConceptList;
 import com.wci.umls.server.jpa.ProjectJpa;
 import com.wci.umls.server.jpa.helpers.ProjectListJpa;
+import com.wci.umls.server.jpa.services.helper.SessionCache;
 import com.wci.umls.server.services.ProjectService;
 
 /**
@@ -155,6 +156,7 @@ public class ProjectServiceJpa extends RootServiceJpa
     Logger.getLogger(getClass())
         .debug("Project Service - update project - " + project);
     updateHasLastModified(project);
+    SessionCache.invalidateProject(project.getId());
   }
 
   /* see superclass */
@@ -163,6 +165,7 @@ public class ProjectServiceJpa extends RootServiceJpa
     Logger.getLogger(getClass())
         .debug("Project Service - remove project " + id);
     removeHasLastModified(id, ProjectJpa.class);
+    SessionCache.invalidateProject(id);
   }
 
   /**
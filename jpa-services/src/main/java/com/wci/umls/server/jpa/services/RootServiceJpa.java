@@ -62,6 +62,7 @@ import com.wci.umls.server.jpa.helpers.PfsParameterJpa;
 import com.wci.umls.server.jpa.helpers.TypeKeyValueJpa;
 import com.wci.umls.server.jpa.helpers.TypeKeyValueListJpa;
 import com.wci.umls.server.jpa.services.helper.IndexUtility;
+import com.wci.umls.server.jpa.services.helper.PfsListUtility;
 import com.wci.umls.server.model.actions.AtomicAction;
 import com.wci.umls.server.model.actions.AtomicActionList;
 import com.wci.umls.server.model.actions.MolecularAction;
@@ -366,47 +367,6 @@ public abstract class RootServiceJpa implements RootService {
     return query;
   }
 
-  /**
-   * Retrieves the sort field value from an object.
-   *
-   * @param o the object
-   * @param sortField the period-separated X list of sequential getX methods,
-   *          e.g. a.b.c
-   * @return the value of the requested sort field
-   * @throws Exception the exception
-   */
-  @SuppressWarnings("static-method")
-  Object getSortFieldValue(final Object o, final String sortField)
-    throws Exception {
-    // split the fields for method retrieval, e.g. a.b.c. =
-    // o.getA().getB().getC()
-    final String[] splitFields = sortField.split("\\.");
-
-    int i = 0;
-    Method finalMethod = null;
-    Object finalObject = o;
-
-    while (i < splitFields.length) {
-      finalMethod = finalObject.getClass().getMethod(
-          "get" + ConfigUtility.capitalize(splitFields[i]), new Class<?>[] {});
-      finalMethod.setAccessible(true);
-      finalObject = finalMethod.invoke(finalObject, new Object[] {});
-      i++;
-    }
-
-    // verify that final object is actually a string, enum, or date
-    if (!finalMethod.getReturnType().equals(String.class)
-        && !finalMethod.getReturnType().isEnum()
-        && !finalMethod.getReturnType().equals(Long.class)
-        && !finalMethod.getReturnType().equals(Date.class)) {
-      throw new Exception(
-          "Requested sort field value is not string, enum, or date value "
-              + finalMethod.getReturnType().getName());
-    }
-    return finalObject;
-
-  }
-
   /**
    * Retrieves the sort field value from an object.
    *
@@ -482,38 +442,12 @@ public abstract class RootServiceJpa implements RootService {
             + pfs.getQueryRestriction());
       }
 
-      result = new ArrayList<>();
-      for (final T t : list) {
-        final StringBuilder sb = new StringBuilder();
-        for (final Method m : t.getClass().getMethods()) {
-          // TODO Add annotation check for @Field, @Fields...
-          if (m.getName().startsWith("get") && (m
-              .isAnnotationPresent(org.hibernate.search.annotations.Field.class)
-              || m.isAnnotationPresent(
-                  org.hibernate.search.annotations.Fields.class))) {
-            try {
-
-              Object val = m.invoke(t);
-              // Support long, string, and enum
-              if (val != null && (val instanceof String || val instanceof Long
-                  || m.getReturnType().isEnum())) {
-
-                sb.append(val.toString()).append(" ");
-              }
-            } catch (IllegalArgumentException e) {
-              // do nothing, skip field
-            }
-          }
-        }
-
-        if (sb.toString().toLowerCase()
-            .indexOf(pfs.getQueryRestriction().toLowerCase()) != -1) {
-          result.add(t);
-        }
-
-      }
+      result = PfsListUtility.filter(list, pfs.getQueryRestriction());
     }
 
+    // set the total count
+    totalCt[0] = result.size();
+
     // check if sorting required
     if (pfs != null) {
 
@@ -532,106 +466,24 @@ public abstract class RootServiceJpa implements RootService {
       // if one or more sort fields found, apply sorting
       if (!pfsSortFields.isEmpty() && !pfsSortFields.contains("RANDOM")) {
 
-        // declare the final ascending flag and sort fields for comparator
-        final boolean ascending = (pfs != null) ? pfs.isAscending() : true;
-        final List<String> sortFields = pfsSortFields;
-
-        // sort the list
-        Collections.sort(result, new Comparator<T>() {
-
-          @Override
-          public int compare(T t1, T t2) {
-            // if an exception is returned, simply pass equality
-            try {
-
-              for (final String sortField : sortFields) {
-                final Object s1 = getSortFieldValue(t1, sortField);
-                final Object s2 = getSortFieldValue(t2, sortField);
-
-                final boolean isDate = s1 instanceof Date;
-                final boolean isLong = s1 instanceof Long;
-
-                // if both values null, skip to next sort field
-                if (s1 != null || s2 != null) {
-
-                  // handle date comparison by long value
-                  if (isDate || isLong) {
-                    final Long l1 = s1 == null ? null
-                        : (isDate ? ((Date) s1).getTime() : ((Long) s1));
-                    final Long l2 = s2 == null ? null
-                        : (isDate ? ((Date) s2).getTime() : ((Long) s2));
-
-                    if (ascending) {
-                      if (l1 == null && s2 != null) {
-                        return -1;
-                      }
-                      if (l1 != null && l1.compareTo(l2) != 0) {
-                        return l1.compareTo(l2);
-                      } else {
-                        return 0;
-                      }
-                    } else {
-                      if (l2 == null && l1 != null) {
-                        return -1;
-                      }
-                      if (l2 != null && l2.compareTo(l1) != 0) {
-                        return l2.compareTo(l1);
-                      } else {
-                        return 0;
-                      }
-                    }
-                  }
-
-                  // otherwise handle via string comparison
-                  else if (ascending) {
-                    if (s1 == null && s2 != null) {
-                      return -1;
-                    }
-                    if (s1 != null
-                        && s1.toString().compareTo(s2.toString()) != 0) {
-                      return s1.toString().compareTo(s2.toString());
-                    } else {
-                      return 0;
-                    }
-                  } else {
-                    if (s2 == null && s1 != null) {
-                      return -1;
-                    }
-                    if (s2 != null
-                        && (s2.toString()).compareTo(s1.toString()) != 0) {
-                      return (s2.toString()).compareTo(s1.toString());
-                    } else {
-                      return 0;
-                    }
-                  }
-                }
-              }
-              // if no return after checking all sort fields, return equality
-              return 0;
-            } catch (Exception e) {
-              e.printStackTrace();
-              return 0;
-            }
-          }
-        });
+        // When a page is requested, only the elements through the end of
+        // that page need to be put in order
+        int limit = result.size();
+        if (pfs.getStartIndex() != -1 && pfs.getMaxResults() > -1) {
+          limit = (int) Math.min(limit,
+              (long) pfs.getStartIndex() + pfs.getMaxResults());
+        }
+        result = PfsListUtility.sort(result, pfsSortFields, pfs.isAscending(),
+            limit);
       }
 
       // support RANDOM
       else if (pfsSortFields.contains("RANDOM")) {
-        final Random random = new Random(new Date().getTime());
-        Collections.sort(result, new Comparator<T>() {
-
-          @Override
-          public int compare(T arg0, T arg1) {
-            return random.nextInt();
-          }
-        });
+        result = new ArrayList<>(result);
+        Collections.shuffle(result, new Random(new Date().getTime()));
       }
     }
 
-    // set the total count
-    totalCt[0] = result.size();
-
     // get the start and end indexes based on paging parameters
     int startIndex = 0;
 
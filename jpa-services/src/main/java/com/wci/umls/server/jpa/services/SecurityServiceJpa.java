@@ -3,9 +3,6 @@
  */
 package com.wci.umls.server.jpa.services;
 
-import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -13,6 +10,7 @@ import javax.persistence.NoResultException;
 
 import org.apache.log4j.Logger;
 
+import com.wci.umls.server.Project;
 import com.wci.umls.server.User;
 import com.wci.umls.server.UserPreferences;
 import com.wci.umls.server.UserRole;
@@ -20,10 +18,11 @@ import com.wci.umls.server.helpers.ConfigUtility;
 import com.wci.umls.server.helpers.LocalException;
 import com.wci.umls.server.helpers.PfsParameter;
 import com.wci.umls.server.helpers.UserList;
+import com.wci.umls.server.jpa.ProjectJpa;
 import com.wci.umls.server.jpa.UserJpa;
 import com.wci.umls.server.jpa.UserPreferencesJpa;
 import com.wci.umls.server.jpa.helpers.UserListJpa;
-import com.wci.umls.server.services.ProjectService;
+import com.wci.umls.server.jpa.services.helper.SessionCache;
 import com.wci.umls.server.services.SecurityService;
 import com.wci.umls.server.services.handlers.SecurityServiceHandler;
 
@@ -33,14 +32,6 @@ import com.wci.umls.server.services.handlers.SecurityServiceHandler;
 public class SecurityServiceJpa extends RootServiceJpa
     implements SecurityService {
 
-  /** The token username . */
-  private static Map<String, String> tokenUsernameMap =
-      Collections.synchronizedMap(new HashMap<String, String>());
-
-  /** The token login time . */
-  private static Map<String, Date> tokenTimeoutMap =
-      Collections.synchronizedMap(new HashMap<String, Date>());
-
   /** The handler. */
   private static SecurityServiceHandler handler = null;
 
@@ -153,8 +144,8 @@ public class SecurityServiceJpa extends RootServiceJpa
 
     // Generate application-managed token
     String token = handler.computeTokenForUser(authUser.getUserName());
-    tokenUsernameMap.put(token, authUser.getUserName());
-    tokenTimeoutMap.put(token, new Date(new Date().getTime() + timeout));
+    SessionCache.put(token, authUser.getUserName(),
+        handler.timeoutUser(authUser.getUserName()) ? timeout : 0);
 
     Logger.getLogger(getClass())
         .debug("User = " + authUser.getUserName() + ", " + authUser);
@@ -172,8 +163,7 @@ public class SecurityServiceJpa extends RootServiceJpa
   /* see superclass */
   @Override
   public void logout(String authToken) throws Exception {
-    tokenUsernameMap.remove(authToken);
-    tokenTimeoutMap.remove(authToken);
+    SessionCache.remove(authToken);
   }
 
   /* see superclass */
@@ -187,25 +177,19 @@ public class SecurityServiceJpa extends RootServiceJpa
     // Replace double quotes in auth token.
     String parsedToken = authToken.replace("\"", "");
 
-    // Check auth token against the username map
-    if (tokenUsernameMap.containsKey(parsedToken)) {
-      String username = tokenUsernameMap.get(parsedToken);
+    // Check auth token against the sessions
+    final SessionCache.Session session = SessionCache.get(parsedToken);
+    if (session != null) {
 
       // Validate that the user has not timed out.
-      if (handler.timeoutUser(username)) {
-
-        if (tokenTimeoutMap.get(parsedToken) == null) {
-          throw new Exception("No login timeout set for authToken.");
-        }
-
-        if (tokenTimeoutMap.get(parsedToken).before(new Date())) {
-          throw new LocalException(
-              "AuthToken has expired. Please reload and log in again.");
-        }
-        tokenTimeoutMap.put(parsedToken,
-            new Date(new Date().getTime() + timeout));
+      final long now = System.currentTimeMillis();
+      if (session.isExpired(now)) {
+        SessionCache.remove(parsedToken);
+        throw new LocalException(
+            "AuthToken has expired. Please reload and log in again.");
       }
-      return username;
+      session.touch(now);
+      return session.getUsername();
     } else {
 
       // handle guest user unless
@@ -239,7 +223,24 @@ public class SecurityServiceJpa extends RootServiceJpa
     if (username == null) {
       throw new LocalException("Unable to find user for the AuthToken");
     }
-    User user = getUser(username);
+
+    // Use the role memoized for the session, if any
+    final SessionCache.Session session = SessionCache.get(parsedToken);
+    if (session == null) {
+      return getApplicationRole(username);
+    }
+    return session.getApplicationRole(() -> getApplicationRole(username));
+  }
+
+  /**
+   * Returns the application role of the user.
+   *
+   * @param username the username
+   * @return the application role
+   * @throws Exception the exception
+   */
+  private UserRole getApplicationRole(String username) throws Exception {
+    final User user = getUser(username);
     if (user == null) {
       return UserRole.VIEWER;
     }
@@ -258,11 +259,43 @@ public class SecurityServiceJpa extends RootServiceJpa
       throw new Exception("Unexpected null project id");
     }
 
-    String username = getUsernameForToken(authToken);
-    ProjectService service = new ProjectServiceJpa();
-    UserRole result = service.getUserRoleForProject(username, projectId);
-    service.close();
-    return result;
+    String parsedToken = authToken.replace("\"", "");
+    String username = getUsernameForToken(parsedToken);
+
+    // Use the role memoized for the session, if any
+    final SessionCache.Session session = SessionCache.get(parsedToken);
+    if (session == null) {
+      return getProjectRole(username, projectId);
+    }
+    return session.getProjectRole(projectId,
+        () -> getProjectRole(username, projectId));
+  }
+
+  /**
+   * Returns the role of the user on the project.
+   *
+   * @param username the username
+   * @param projectId the project id
+   * @return the project role, or null if the user has none
+   * @throws Exception the exception
+   */
+  private UserRole getProjectRole(String username, Long projectId)
+    throws Exception {
+    final Project project = manager.find(ProjectJpa.class, projectId);
+    if (project == null) {
+      throw new Exception("Missing project for id" + projectId);
+    }
+    try {
+      for (final Map.Entry<User, UserRole> entry : project.getUserRoleMap()
+          .entrySet()) {
+        if (username.equals(entry.getKey().getUserName())) {
+          return entry.getValue();
+        }
+      }
+      return null;
+    } finally {
+      manager.clear();
+    }
   }
 
   /* see superclass */
@@ -341,7 +374,9 @@ public class SecurityServiceJpa extends RootServiceJpa
       }
       throw e;
     }
-
+    if (mu != null) {
+      SessionCache.invalidateUser(mu.getUserName());
+    }
   }
 
   /* see superclass */
@@ -364,6 +399,7 @@ public class SecurityServiceJpa extends RootServiceJpa
       }
       throw e;
     }
+    SessionCache.invalidateUser(user.getUserName());
   }
 
   /* see superclass */
@@ -499,6 +535,11 @@ public class SecurityServiceJpa extends RootServiceJpa
   @Override
   public void refreshCaches() throws Exception {
     super.refreshCaches();
+    Logger.getLogger(getClass())
+        .info("Security Service - sessions = " + SessionCache.size()
+            + ", role hits = " + SessionCache.getHitCount() + ", misses = "
+            + SessionCache.getMissCount());
+    SessionCache.invalidateRoles();
     init();
     validateInit();
   }
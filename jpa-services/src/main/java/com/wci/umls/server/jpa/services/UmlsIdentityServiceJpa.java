@@ -3,9 +3,9 @@
  */
 package com.wci.umls.server.jpa.services;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.persistence.NoResultException;
 
@@ -21,6 +21,7 @@ import com.wci.umls.server.jpa.meta.RelationshipIdentityJpa;
 import com.wci.umls.server.jpa.meta.SemanticTypeComponentIdentityJpa;
 import com.wci.umls.server.jpa.meta.StringClassIdentityJpa;
 import com.wci.umls.server.jpa.services.handlers.DefaultSearchHandler;
+import com.wci.umls.server.jpa.services.helper.IdentifierRangeAllocator;
 import com.wci.umls.server.model.meta.AtomIdentity;
 import com.wci.umls.server.model.meta.AttributeIdentity;
 import com.wci.umls.server.model.meta.LexicalClassIdentity;
@@ -37,10 +38,11 @@ public class UmlsIdentityServiceJpa extends MetadataServiceJpa
     implements UmlsIdentityService {
 
   /** The uncommited id map. */
-  private static Map<Object, Long> uncommitedIdMap = new HashMap<>();
+  private static Map<Object, Long> uncommitedIdMap = new ConcurrentHashMap<>();
 
-  /** The max ids. */
-  private static Map<String, Long> maxIds = new HashMap<>();
+  /** The max ids, shared by all instances. */
+  private static IdentifierRangeAllocator maxIds =
+      new IdentifierRangeAllocator();
 
   /** The handler. */
   private SearchHandler handler = new DefaultSearchHandler();
@@ -68,38 +70,7 @@ public class UmlsIdentityServiceJpa extends MetadataServiceJpa
   public long getNextAttributeId() throws Exception {
     Logger.getLogger(getClass())
         .debug("Umls Identity Service - get next attribute id");
-
-    long attId = 0L;
-    long styId = 0L;
-
-    // If this is the first time this is called, lookup max ID from the database
-    if (!maxIds.containsKey("ATUI")) {
-      try {
-        final javax.persistence.Query query = manager
-            .createQuery("select max(a.id) from AttributeIdentityJpa a ");
-        final Long attId2 = (Long) query.getSingleResult();
-        attId = attId2 != null ? attId2 : attId;
-      } catch (NoResultException e) {
-        attId = 0L;
-      }
-      try {
-        final javax.persistence.Query query = manager.createQuery(
-            "select max(a.id) from SemanticTypeComponentIdentityJpa a ");
-        final Long styId2 = (Long) query.getSingleResult();
-        styId = styId2 != null ? styId2 : styId;
-      } catch (NoResultException e) {
-        styId = 0L;
-      }
-      // Set the max attribute/semantic class Id
-      maxIds.put("ATUI", Math.max(attId, styId));
-      Logger.getLogger(getClass())
-          .info("Initializing max ATUI = " + Math.max(attId, styId));
-
-    }
-    final long result = maxIds.get("ATUI") + 1;
-    maxIds.put("ATUI", result);
-
-    return result;
+    return reserveIds("ATUI", 1);
   }
 
   /* see superclass */
@@ -178,38 +149,7 @@ public class UmlsIdentityServiceJpa extends MetadataServiceJpa
   public long getNextSemanticTypeComponentId() throws Exception {
     Logger.getLogger(getClass())
         .debug("Umls Identity Service - get next semanticTypeComponent id");
-
-    long attId = 0L;
-    long styId = 0L;
-
-    // If this is the first time this is called, lookup max ID from the database
-    if (!maxIds.containsKey("ATUI")) {
-      try {
-        final javax.persistence.Query query = manager
-            .createQuery("select max(a.id) from AttributeIdentityJpa a ");
-        final Long attId2 = (Long) query.getSingleResult();
-        attId = attId2 != null ? attId2 : attId;
-      } catch (NoResultException e) {
-        attId = 0L;
-      }
-      try {
-        final javax.persistence.Query query = manager.createQuery(
-            "select max(a.id) from SemanticTypeComponentIdentityJpa a ");
-        final Long styId2 = (Long) query.getSingleResult();
-        styId = styId2 != null ? styId2 : styId;
-      } catch (NoResultException e) {
-        styId = 0L;
-      }
-      // Set the max attribute/semantic class Id
-      maxIds.put("ATUI", Math.max(attId, styId));
-      Logger.getLogger(getClass())
-          .info("Initializing max ATUI = " + Math.max(attId, styId));
-
-    }
-    final long result = maxIds.get("ATUI") + 1;
-    maxIds.put("ATUI", result);
-
-    return result;
+    return reserveIds("ATUI", 1);
   }
 
   /* see superclass */
@@ -291,27 +231,7 @@ public class UmlsIdentityServiceJpa extends MetadataServiceJpa
   public long getNextAtomId() throws Exception {
     Logger.getLogger(getClass())
         .debug("Umls Identity Service - get next atom id");
-
-    long atomId = 0L;
-    // If this is the first time this is called, lookup max ID from the database
-    if (!maxIds.containsKey("AUI")) {
-      try {
-        final javax.persistence.Query query =
-            manager.createQuery("select max(a.id) from AtomIdentityJpa a ");
-        final Long atomId2 = (Long) query.getSingleResult();
-        atomId = atomId2 != null ? atomId2 : atomId;
-      } catch (NoResultException e) {
-        atomId = 0L;
-      }
-      // Set the max atom class Id
-      maxIds.put("AUI", atomId);
-      Logger.getLogger(getClass())
-          .info("Initializing max AUI = " + (atomId + 1));
-    }
-    final long result = maxIds.get("AUI") + 1;
-    maxIds.put("AUI", result);
-
-    return result;
+    return reserveIds("AUI", 1);
   }
 
   /* see superclass */
@@ -383,29 +303,8 @@ public class UmlsIdentityServiceJpa extends MetadataServiceJpa
   @Override
   public long getNextStringClassId() throws Exception {
     Logger.getLogger(getClass())
-        .debug("Umls Identity Service - get next string id");
-
-    long stringId = 0L;
-
-    // If this is the first time this is called, lookup max ID from the database
-    if (!maxIds.containsKey("SUI")) {
-      try {
-        final javax.persistence.Query query = manager
-            .createQuery("select max(a.id) from StringClassIdentityJpa a ");
-        final Long stringId2 = (Long) query.getSingleResult();
-        stringId = stringId2 != null ? stringId2 : stringId;
-      } catch (NoResultException e) {
-        stringId = 0L;
-      }
-      // Set the max string class Id
-      maxIds.put("SUI", stringId);
-      Logger.getLogger(getClass())
-          .info("Initializing max SUI = " + (stringId + 1));
-    }
-    final long result = maxIds.get("SUI") + 1;
-    maxIds.put("SUI", result);
-
-    return result;
+        .debug("Umls Identity Service - get next stringClass id");
+    return reserveIds("SUI", 1);
   }
 
   /* see superclass */
@@ -484,28 +383,7 @@ public class UmlsIdentityServiceJpa extends MetadataServiceJpa
   public long getNextLexicalClassId() throws Exception {
     Logger.getLogger(getClass())
         .debug("Umls Identity Service - get next lexicalClass id");
-
-    long lexicalId = 0L;
-
-    // If this is the first time this is called, lookup max ID from the database
-    if (!maxIds.containsKey("LUI")) {
-      try {
-        final javax.persistence.Query query = manager
-            .createQuery("select max(a.id) from LexicalClassIdentityJpa a ");
-        final Long lexicalId2 = (Long) query.getSingleResult();
-        lexicalId = lexicalId2 != null ? lexicalId2 : lexicalId;
-      } catch (NoResultException e) {
-        lexicalId = 0L;
-      }
-      // Set the max lexical class Id
-      maxIds.put("LUI", lexicalId);
-      Logger.getLogger(getClass())
-          .info("Initializing max LUI = " + (lexicalId + 1));
-    }
-    final long result = maxIds.get("LUI") + 1;
-    maxIds.put("LUI", result);
-
-    return result;
+    return reserveIds("LUI", 1);
   }
 
   /* see superclass */
@@ -615,29 +493,7 @@ public class UmlsIdentityServiceJpa extends MetadataServiceJpa
   public long getNextRelationshipId() throws Exception {
     Logger.getLogger(getClass())
         .debug("Umls Identity Service - get next relationship id");
-
-    long relationshipId = 0L;
-    // If this is the first time this is called, lookup max ID from the database
-    if (!maxIds.containsKey("RUI")) {
-      try {
-        final javax.persistence.Query query = manager
-            .createQuery("select max(a.id) from RelationshipIdentityJpa a ");
-        final Long relationshipId2 = (Long) query.getSingleResult();
-        relationshipId =
-            relationshipId2 != null ? relationshipId2 : relationshipId;
-      } catch (NoResultException e) {
-        relationshipId = 0L;
-      }
-      // Set the max relationship class Id
-      maxIds.put("RUI", relationshipId);
-      Logger.getLogger(getClass())
-          .info("Initializing max RUI = " + relationshipId);
-    }
-
-    final long result = maxIds.get("RUI") + 1;
-    maxIds.put("RUI", result);
-
-    return result;
+    return reserveIds("RUI", 1);
   }
 
   /* see superclass */
@@ -702,6 +558,53 @@ public class UmlsIdentityServiceJpa extends MetadataServiceJpa
     removeObject(identity);
   }
 
+  /* see superclass */
+  @Override
+  public long reserveIds(String type, int count) throws Exception {
+    // If this is the first time this is called, lookup max ID from the database
+    if (!maxIds.isInitialized(type)) {
+      final long maxId;
+      if (type.equals("ATUI")) {
+        // Attributes and semantic type components share ATUIs
+        maxId = Math.max(getMaxId("AttributeIdentityJpa"),
+            getMaxId("SemanticTypeComponentIdentityJpa"));
+      } else if (type.equals("AUI")) {
+        maxId = getMaxId("AtomIdentityJpa");
+      } else if (type.equals("SUI")) {
+        maxId = getMaxId("StringClassIdentityJpa");
+      } else if (type.equals("LUI")) {
+        maxId = getMaxId("LexicalClassIdentityJpa");
+      } else if (type.equals("RUI")) {
+        maxId = getMaxId("RelationshipIdentityJpa");
+      } else {
+        throw new Exception("Unexpected identifier type " + type);
+      }
+      if (maxIds.initialize(type, maxId)) {
+        Logger.getLogger(getClass())
+            .info("Initializing max " + type + " = " + maxId);
+      }
+    }
+    return maxIds.reserve(type, count);
+  }
+
+  /**
+   * Returns the max id of the identity entity.
+   *
+   * @param entity the entity name
+   * @return the max id, or 0 if there are none
+   * @throws Exception the exception
+   */
+  private long getMaxId(String entity) throws Exception {
+    try {
+      final javax.persistence.Query query =
+          manager.createQuery("select max(a.id) from " + entity + " a ");
+      final Long id = (Long) query.getSingleResult();
+      return id != null ? id : 0L;
+    } catch (NoResultException e) {
+      return 0L;
+    }
+  }
+
   /**
    * Returns the identity id.
    *
@@ -742,7 +645,7 @@ public class UmlsIdentityServiceJpa extends MetadataServiceJpa
   public void commit() throws Exception {
     super.commit();
     if (!getTransactionPerOperation()) {
-      uncommitedIdMap = new HashMap<>();
+      uncommitedIdMap.clear();
     }
   }
 
@@ -751,7 +654,7 @@ public class UmlsIdentityServiceJpa extends MetadataServiceJpa
   public void rollback() throws Exception {
     super.rollback();
     if (!getTransactionPerOperation()) {
-      uncommitedIdMap = new HashMap<>();
+      uncommitedIdMap.clear();
     }
   }
 
@@ -39,6 +39,7 @@ import com.wci.umls.server.jpa.helpers.PfsParameterJpa;
 import com.wci.umls.server.jpa.helpers.TrackingRecordListJpa;
 import com.wci.umls.server.jpa.helpers.WorkflowConfigListJpa;
 import com.wci.umls.server.jpa.helpers.WorklistListJpa;
+import com.wci.umls.server.jpa.services.helper.ReviewAtomSet;
 import com.wci.umls.server.jpa.workflow.ChecklistJpa;
 import com.wci.umls.server.jpa.workflow.TrackingRecordJpa;
 import com.wci.umls.server.jpa.workflow.WorkflowBinDefinitionJpa;
@@ -72,7 +73,8 @@ public class WorkflowServiceJpa extends HistoryServiceJpa
   static Map<String, WorkflowActionHandler> workflowHandlerMap =
       new HashMap<>();
 
-  private Set<Long> atomIdsForTrackingRecordNeedsReview = null;
+  /** The concepts changed in the current transaction, by review atom set. */
+  private Map<Long, ReviewAtomSet> reviewConceptIds = new HashMap<>();
 
   static {
     init();
@@ -1129,35 +1131,11 @@ public class WorkflowServiceJpa extends HistoryServiceJpa
 
     if (batch) {
 
-      // If the cache isn't populated, do so now
-      // Identify all of the concepts that would case a
-      // tracking-record to be NEEDS_REVIEW, and store all of its' atoms' ids
-      if (atomIdsForTrackingRecordNeedsReview == null) {
-        atomIdsForTrackingRecordNeedsReview = new HashSet<>();
-
-        final PfsParameter pfs = new PfsParameterJpa();
-        SearchResultList searchResults =
-            findConceptSearchResults(record.getTerminology(), null, Branch.ROOT,
-                "atoms.workflowStatus:NEEDS_REVIEW OR "
-                    + "workflowStatus:NEEDS_REVIEW OR "
-                    + "semanticTypes.workflowStatus:NEEDS_REVIEW",
-                pfs);
-
-        for (int i = 0; i < searchResults.getObjects().size(); i++) {
-          final Concept concept =
-              getConcept(searchResults.getObjects().get(i).getId());
-          final List<Long> atomIds = concept.getAtoms().stream()
-              .map(a -> a.getId()).collect(Collectors.toList());
-          atomIdsForTrackingRecordNeedsReview.addAll(atomIds);
-        }
-      }
-
-      // If tracking record contains any of the caches atom Ids, the tracking
+      // If tracking record contains any atoms under review, the tracking
       // record should be NEEDS_REVIEW
-      for (final Long atomId : record.getComponentIds()) {
-        if (atomIdsForTrackingRecordNeedsReview.contains(atomId)) {
-          return WorkflowStatus.NEEDS_REVIEW;
-        }
+      if (getReviewAtomSet(record.getTerminology())
+          .containsAny(record.getComponentIds())) {
+        return WorkflowStatus.NEEDS_REVIEW;
       }
 
       return WorkflowStatus.READY_FOR_PUBLICATION;
@@ -1193,6 +1171,192 @@ public class WorkflowServiceJpa extends HistoryServiceJpa
     return status;
   }
 
+  /**
+   * Returns the atoms under review for the terminology, building the set on
+   * first use. The set is kept current as concepts are added, updated or
+   * removed through this service (e.g. by molecular actions).
+   *
+   * @param terminology the terminology
+   * @return the review atom set
+   * @throws Exception the exception
+   */
+  @SuppressWarnings("unchecked")
+  private ReviewAtomSet getReviewAtomSet(String terminology) throws Exception {
+    ReviewAtomSet set = ReviewAtomSet.get(terminology);
+    if (set != null) {
+      return set;
+    }
+    synchronized (ReviewAtomSet.class) {
+      set = ReviewAtomSet.get(terminology);
+      if (set != null) {
+        return set;
+      }
+      Logger.getLogger(getClass())
+          .info("Workflow Service - build review atom set " + terminology);
+
+      // Identify all of the concepts that would cause a tracking record to be
+      // NEEDS_REVIEW
+      final Set<Long> conceptIds = new HashSet<>();
+      for (final String query : new String[] {
+          "select c.id from ConceptJpa c where c.terminology = :terminology "
+              + "and c.workflowStatus = :workflowStatus",
+          "select distinct c.id from ConceptJpa c join c.atoms a "
+              + "where c.terminology = :terminology "
+              + "and a.workflowStatus = :workflowStatus",
+          "select distinct c.id from ConceptJpa c join c.semanticTypes s "
+              + "where c.terminology = :terminology "
+              + "and s.workflowStatus = :workflowStatus"
+      }) {
+        conceptIds.addAll(manager.createQuery(query)
+            .setParameter("terminology", terminology)
+            .setParameter("workflowStatus", WorkflowStatus.NEEDS_REVIEW)
+            .getResultList());
+      }
+
+      // Store their atom ids, without loading the concepts
+      set = new ReviewAtomSet();
+      final List<Long> ids = new ArrayList<>(conceptIds);
+      for (int i = 0; i < ids.size(); i += 1000) {
+        final Map<Long, List<Long>> atomIds = new HashMap<>();
+        for (final Object[] entry : (List<Object[]>) manager
+            .createQuery("select c.id, a.id from ConceptJpa c join c.atoms a "
+                + "where c.id in (:ids)")
+            .setParameter("ids", ids.subList(i, Math.min(i + 1000, ids.size())))
+            .getResultList()) {
+          atomIds.computeIfAbsent((Long) entry[0], k -> new ArrayList<>())
+              .add((Long) entry[1]);
+        }
+        for (final Map.Entry<Long, List<Long>> entry : atomIds.entrySet()) {
+          set.setConcept(entry.getKey(),
+              entry.getValue().stream().mapToLong(l -> l).toArray());
+        }
+      }
+      Logger.getLogger(getClass()).info("  concepts = "
+          + set.getConceptCount() + ", atoms = " + set.size());
+      ReviewAtomSet.put(terminology, set);
+      return set;
+    }
+  }
+
+  /**
+   * Records a changed concept, to be reapplied to the review atom set of its
+   * terminology (if built) when the transaction commits.
+   *
+   * @param conceptId the concept id
+   * @param terminology the terminology
+   */
+  private void addReviewConcept(Long conceptId, String terminology) {
+    final ReviewAtomSet set = ReviewAtomSet.get(terminology);
+    if (set != null && conceptId != null) {
+      reviewConceptIds.put(conceptId, set);
+    }
+  }
+
+  /**
+   * Reapplies the concepts changed in the committed transaction to the review
+   * atom sets. The concepts are re-read with scalar queries (as when building
+   * the sets), so nothing is loaded into or cleared from the persistence
+   * context of the caller.
+   *
+   * @throws Exception the exception
+   */
+  @SuppressWarnings("unchecked")
+  private void applyReviewConcepts() throws Exception {
+    if (reviewConceptIds.isEmpty()) {
+      return;
+    }
+    final Map<Long, ReviewAtomSet> changed = reviewConceptIds;
+    reviewConceptIds = new HashMap<>();
+    final List<Long> ids = new ArrayList<>(changed.keySet());
+    for (int i = 0; i < ids.size(); i += 1000) {
+      final List<Long> batch = ids.subList(i, Math.min(i + 1000, ids.size()));
+
+      // Identify the changed concepts still under review
+      final Set<Long> conceptIds = new HashSet<>();
+      for (final String query : new String[] {
+          "select c.id from ConceptJpa c where c.id in (:ids) "
+              + "and c.workflowStatus = :workflowStatus",
+          "select distinct c.id from ConceptJpa c join c.atoms a "
+              + "where c.id in (:ids) and a.workflowStatus = :workflowStatus",
+          "select distinct c.id from ConceptJpa c join c.semanticTypes s "
+              + "where c.id in (:ids) and s.workflowStatus = :workflowStatus"
+      }) {
+        conceptIds.addAll(manager.createQuery(query)
+            .setParameter("ids", batch)
+            .setParameter("workflowStatus", WorkflowStatus.NEEDS_REVIEW)
+            .getResultList());
+      }
+
+      // Store their atom ids, and drop the others (including removed ones)
+      final Map<Long, List<Long>> atomIds = new HashMap<>();
+      if (!conceptIds.isEmpty()) {
+        for (final Object[] entry : (List<Object[]>) manager
+            .createQuery("select c.id, a.id from ConceptJpa c join c.atoms a "
+                + "where c.id in (:ids)")
+            .setParameter("ids", conceptIds).getResultList()) {
+          atomIds.computeIfAbsent((Long) entry[0], k -> new ArrayList<>())
+              .add((Long) entry[1]);
+        }
+      }
+      for (final Long id : batch) {
+        final List<Long> list = atomIds.get(id);
+        changed.get(id).setConcept(id, list == null ? null
+            : list.stream().mapToLong(l -> l).toArray());
+      }
+    }
+  }
+
+  /* see superclass */
+  @Override
+  public Concept addConcept(Concept concept) throws Exception {
+    final Concept newConcept = super.addConcept(concept);
+    addReviewConcept(newConcept.getId(), newConcept.getTerminology());
+    if (getTransactionPerOperation()) {
+      applyReviewConcepts();
+    }
+    return newConcept;
+  }
+
+  /* see superclass */
+  @Override
+  public void updateConcept(Concept concept) throws Exception {
+    super.updateConcept(concept);
+    addReviewConcept(concept.getId(), concept.getTerminology());
+    if (getTransactionPerOperation()) {
+      applyReviewConcepts();
+    }
+  }
+
+  /* see superclass */
+  @Override
+  public void removeConcept(Long id) throws Exception {
+    // the terminology is needed to find the set
+    if (!ReviewAtomSet.getAll().isEmpty()) {
+      final Concept concept = getConcept(id);
+      if (concept != null) {
+        addReviewConcept(id, concept.getTerminology());
+      }
+    }
+    super.removeConcept(id);
+    if (getTransactionPerOperation()) {
+      applyReviewConcepts();
+    }
+  }
+
+  /* see superclass */
+  @Override
+  public void commit() throws Exception {
+    super.commit();
+    applyReviewConcepts();
+  }
+
+  /* see superclass */
+  @Override
+  public void rollback() throws Exception {
+    super.rollback();
+    reviewConceptIds.clear();
+  }
+
   /* see superclass */
   @Override
   public Map<Long, String> getConceptIdWorklistNameMap(Project project)
@@ -1283,6 +1447,7 @@ public class WorkflowServiceJpa extends HistoryServiceJpa
   @Override
   public void refreshCaches() throws Exception {
     super.refreshCaches();
+    ReviewAtomSet.clear();
     init();
     validateInit();
   }
@@ -3,33 +3,29 @@
  */
 package com.wci.umls.server.jpa.services.handlers;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.persistence.EntityManager;
 
-import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
-import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParserBase;
-import org.apache.lucene.search.spell.LuceneLevenshteinDistance;
-import org.apache.lucene.search.spell.PlainTextDictionary;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TotalHitCountCollector;
 import org.apache.lucene.search.spell.SpellChecker;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.Version;
+import org.hibernate.search.SearchFactory;
 import org.hibernate.search.engine.ProjectionConstants;
 import org.hibernate.search.jpa.FullTextQuery;
+import org.hibernate.search.jpa.Search;
 
 import com.wci.umls.server.helpers.ConfigUtility;
 import com.wci.umls.server.helpers.FieldedStringTokenizer;
@@ -39,7 +35,9 @@ import com.wci.umls.server.helpers.PfsParameter;
 import com.wci.umls.server.jpa.AbstractConfigurable;
 import com.wci.umls.server.jpa.content.AbstractAtomClass;
 import com.wci.umls.server.jpa.content.AbstractComponent;
+import com.wci.umls.server.jpa.services.helper.AcronymDictionary;
 import com.wci.umls.server.jpa.services.helper.IndexUtility;
+import com.wci.umls.server.jpa.services.helper.SpellingIndex;
 import com.wci.umls.server.services.handlers.SearchHandler;
 
 /**
@@ -49,8 +47,8 @@ import com.wci.umls.server.services.handlers.SearchHandler;
 public class AtomClassSearchHandler extends AbstractConfigurable
     implements SearchHandler {
 
-  /** The acronym expansion map. */
-  private Map<String, Set<String>> acronymExpansionMap = new HashMap<>();
+  /** The acronym expansions. */
+  private AcronymDictionary acronymDictionary = null;
 
   /** The spell checker. */
   private SpellChecker spellChecker = null;
@@ -58,23 +56,49 @@ public class AtomClassSearchHandler extends AbstractConfigurable
   /** The score map. */
   private Map<Long, Float> scoreMap = new HashMap<>();
 
+  /** The single pass flag, false to run a result size query per candidate. */
+  private boolean singlePass = true;
+
+  /**
+   * A candidate query, built on demand.
+   */
+  private static class Candidate {
+
+    /** The query, returning null if the candidate does not apply. */
+    private final Callable<String> query;
+
+    /** The fallback query, used if the query does not parse. */
+    private final String fallbackQuery;
+
+    /** The skip on error flag, if the query does not parse. */
+    private final boolean skipOnError;
+
+    /**
+     * Instantiates a {@link Candidate} from the specified parameters.
+     *
+     * @param query the query
+     * @param fallbackQuery the fallback query
+     * @param skipOnError the skip on error
+     */
+    Candidate(Callable<String> query, String fallbackQuery,
+        boolean skipOnError) {
+      this.query = query;
+      this.fallbackQuery = fallbackQuery;
+      this.skipOnError = skipOnError;
+    }
+  }
+
   /* see superclass */
   @Override
   public void setProperties(Properties p) throws Exception {
 
-    // Initialize acronyms map
+    // Initialize acronyms map, from the acronyms index (by default next to
+    // the acronyms file), built beforehand by the "build-search-indexes" mojo
     if (p.containsKey("acronymsFile")) {
-      final BufferedReader in = new BufferedReader(
-          new FileReader(new File(p.getProperty("acronymsFile"))));
-      String line;
-      while ((line = in.readLine()) != null) {
-        String[] tokens = FieldedStringTokenizer.split(line, "\t");
-        if (!acronymExpansionMap.containsKey(tokens[0])) {
-          acronymExpansionMap.put(tokens[0], new HashSet<String>(2));
-        }
-        acronymExpansionMap.get(tokens[0]).add(tokens[1]);
-      }
-      in.close();
+      final String acronymsFile = p.getProperty("acronymsFile");
+      acronymDictionary = AcronymDictionary.getInstance(
+          new File(acronymsFile), new File(p.getProperty("acronymsIndex",
+              acronymsFile + ".fst")));
     } else {
       throw new Exception("Required property acronymsFile not present.");
     }
@@ -82,20 +106,27 @@ public class AtomClassSearchHandler extends AbstractConfigurable
     // Initialize spell checker
     if (p.containsKey("spellingFile") && p.containsKey("spellingIndex")) {
       // expect properties to have "spellingFile" and "spellingIndex"
-      final File dir = new File(p.getProperty("spellingIndex"));
-      final Directory directory = FSDirectory.open(dir);
       spellChecker =
-          new SpellChecker(directory, new LuceneLevenshteinDistance());
-      final IndexWriterConfig indexWriterConfig =
-          new IndexWriterConfig(Version.LATEST, new WhitespaceAnalyzer());
-      spellChecker.indexDictionary(
-          new PlainTextDictionary(new File(p.getProperty("spellingFile"))),
-          indexWriterConfig, false);
+          SpellingIndex.getInstance(new File(p.getProperty("spellingFile")),
+              new File(p.getProperty("spellingIndex")));
 
     } else {
       throw new Exception(
           "Required property spellingFile or spellingIndex not present.");
     }
+
+    if (p.getProperty("singlePass") != null) {
+      singlePass = Boolean.valueOf(p.getProperty("singlePass"));
+    }
+  }
+
+  /**
+   * Sets the single pass flag.
+   *
+   * @param singlePass the single pass flag
+   */
+  public void setSinglePass(boolean singlePass) {
+    this.singlePass = singlePass;
   }
 
   /* see superclass */
@@ -261,8 +292,8 @@ public class AtomClassSearchHandler extends AbstractConfigurable
       }
 
       // check for exact acronym expansion
-      if (acronymExpansionMap.containsKey(fixedQuery)) {
-        for (final String expansion : acronymExpansionMap.get(fixedQuery)) {
+      if (acronymDictionary.containsKey(fixedQuery)) {
+        for (final String expansion : acronymDictionary.get(fixedQuery)) {
           if (normalizedField != null) {
             parsedQuery += " OR " + normalizedField + ":\""
                 + ConfigUtility.normalize(expansion) + "\"^5.0";
@@ -344,136 +375,239 @@ public class AtomClassSearchHandler extends AbstractConfigurable
           .append(terminologyClause);
     }
 
-    // Construct the full text query and perform the search
-    FullTextQuery fullTextQuery = null;
+    // The candidate queries, in order of preference: the first one with
+    // results is used, otherwise the last one
+    final List<Candidate> candidates = new ArrayList<>();
 
-    // if fielded, try fielded query first
+    // if fielded, try fielded query first (skipped if it does not parse)
     if (fieldedQuery != null) {
-      try {
-        fullTextQuery = IndexUtility.applyPfsToLuceneQuery(clazz,
-            fieldedQuery.toString(), pfs, manager);
-      } catch (ParseException | LocalException | IllegalArgumentException e) {
-        fullTextQuery = null;
-      }
+      final String fielded = fieldedQuery.toString();
+      candidates.add(new Candidate(() -> fielded, null, true));
     }
 
-    // if not a fielded search or fielded search returned no results
-    if (fullTextQuery == null || fullTextQuery.getResultSize() == 0) {
-
-      // try the parsed query
-      try {
-        fullTextQuery = IndexUtility.applyPfsToLuceneQuery(clazz,
-            finalQuery.toString(), pfs, manager);
-      }
-
-      // If there's a parse exception, try the literal query
-      catch (ParseException | LocalException | IllegalArgumentException e) {
-        fullTextQuery = IndexUtility.applyPfsToLuceneQuery(clazz,
-            escapedQuery + terminologyClause, pfs, manager);
-      }
-    }
-
-    // Apply paging and sorting parameters for the PFSC case
-    // This is needed for the combined search with "search criteria"
-    totalCt[0] = fullTextQuery.getResultSize();
+    // then the parsed query, or the literal query if that does not parse
+    final String parsed = finalQuery.toString();
+    candidates.add(
+        new Candidate(() -> parsed, escapedQuery + terminologyClause, false));
 
     // Only look to other algorithms if this is NOT a potential fielded query
     // and the query exists
     if (fixedQuery != null && !fixedQuery.isEmpty()
         && !fixedQuery.contains(":")) {
+      final String clause = terminologyClause.toString();
+      candidates.add(new Candidate(() -> getAcronymQuery(fixedQuery, clause),
+          null, false));
+      candidates.add(new Candidate(() -> getSpellingQuery(fixedQuery, clause),
+          null, false));
+      candidates.add(new Candidate(() -> getWildcardQuery(fixedQuery, clause),
+          null, false));
+    }
 
-      // If at this point there are zero results,
-      // Run the query through acronym expansion
-      if (totalCt[0] == 0) {
-        // use wordInd tokenization
-        String[] tokens = FieldedStringTokenizer.split(fixedQuery,
-            " \t-({[)}]_!@#%&*\\:;\"',.?/~+=|<>$`^");
-        StringBuilder newQuery = new StringBuilder();
-        boolean found = false;
-        for (final String token : tokens) {
-          if (newQuery.length() != 0) {
-            newQuery.append(" ");
-          }
-          // replace with acronym or keep the same
-          if (acronymExpansionMap.containsKey(token.toUpperCase())) {
-            found = true;
-            List<String> tempList = new ArrayList<>();
-            tempList.add(
-                "\"" + acronymExpansionMap.get(token.toUpperCase()) + "\"");
-            newQuery.append(FieldedStringTokenizer.join(tempList, " "));
-          } else {
-            newQuery.append(token);
-          }
+    if (singlePass) {
+      return searchCandidates(candidates, clazz, pfs, totalCt, manager);
+    }
+    return searchCandidatesSequentially(candidates, clazz, pfs, totalCt,
+        manager);
+  }
+
+  /**
+   * Returns the full text query for the first candidate with results, counting
+   * each candidate's hits on one index reader, only as far as needed.
+   *
+   * @param candidates the candidates
+   * @param clazz the clazz
+   * @param pfs the pfs
+   * @param totalCt the total ct
+   * @param manager the manager
+   * @return the full text query
+   * @throws Exception the exception
+   */
+  private FullTextQuery searchCandidates(List<Candidate> candidates,
+    Class<?> clazz, PfsParameter pfs, int[] totalCt, EntityManager manager)
+    throws Exception {
+    final SearchFactory searchFactory =
+        Search.getFullTextEntityManager(manager).getSearchFactory();
+    final IndexReader reader =
+        searchFactory.getIndexReaderAccessor().open(clazz);
+    try {
+      final IndexSearcher searcher = new IndexSearcher(reader);
+      Query luceneQuery = null;
+      for (final Candidate candidate : candidates) {
+        final Query candidateQuery =
+            getLuceneQuery(candidate, clazz, pfs, manager);
+        if (candidateQuery == null) {
+          continue;
         }
-        // Try the query again (if at least one expansion was found)
-        if (found) {
-          fullTextQuery = IndexUtility.applyPfsToLuceneQuery(clazz,
-              newQuery.toString() + terminologyClause, pfs, manager);
-          totalCt[0] = fullTextQuery.getResultSize();
+        luceneQuery = candidateQuery;
+        final TotalHitCountCollector collector = new TotalHitCountCollector();
+        searcher.search(luceneQuery, collector);
+        totalCt[0] = collector.getTotalHits();
+        if (totalCt[0] > 0) {
+          break;
         }
       }
+      return IndexUtility.applyPfsToLuceneQuery(clazz, luceneQuery, pfs,
+          manager);
+    } finally {
+      searchFactory.getIndexReaderAccessor().close(reader);
+    }
+  }
 
-      // If at this point there are zero results,
-      // Run the query through spelling correction
-      if (totalCt[0] == 0) {
-        // use wordInd tokenization
-        String[] tokens = FieldedStringTokenizer.split(fixedQuery,
-            " \t-({[)}]_!@#%&*\\:;\"',.?/~+=|<>$`^");
-        StringBuilder newQuery = new StringBuilder();
-        newQuery.append("(");
-        boolean found = false;
-        for (final String token : tokens) {
-          if (newQuery.length() != 0) {
-            newQuery.append(" ");
-          }
-          if (spellChecker.exist(token.toLowerCase())) {
-            newQuery.append(token);
-          } else if (!token.isEmpty()) {
-            String[] suggestions =
-                spellChecker.suggestSimilar(token.toLowerCase(), 5, .8f);
-            found = suggestions.length > 0;
-            newQuery.append(FieldedStringTokenizer.join(suggestions, " "));
-          }
-        }
-        newQuery.append(")");
-
-        // Try the query again (if replacement found)
-        if (found) {
-          fullTextQuery = IndexUtility.applyPfsToLuceneQuery(clazz,
-              newQuery.toString() + terminologyClause, pfs, manager);
-          totalCt[0] = fullTextQuery.getResultSize();
-        }
+  /**
+   * Returns the full text query for the first candidate with results, running
+   * a result size query for each candidate in turn.
+   *
+   * @param candidates the candidates
+   * @param clazz the clazz
+   * @param pfs the pfs
+   * @param totalCt the total ct
+   * @param manager the manager
+   * @return the full text query
+   * @throws Exception the exception
+   */
+  private FullTextQuery searchCandidatesSequentially(List<Candidate> candidates,
+    Class<?> clazz, PfsParameter pfs, int[] totalCt, EntityManager manager)
+    throws Exception {
+    FullTextQuery fullTextQuery = null;
+    for (final Candidate candidate : candidates) {
+      final Query luceneQuery = getLuceneQuery(candidate, clazz, pfs, manager);
+      if (luceneQuery == null) {
+        continue;
+      }
+      fullTextQuery =
+          IndexUtility.applyPfsToLuceneQuery(clazz, luceneQuery, pfs, manager);
+      totalCt[0] = fullTextQuery.getResultSize();
+      if (totalCt[0] > 0) {
+        break;
       }
+    }
+    return fullTextQuery;
+  }
 
-      // if still zero, do wildcard search at the end of each term of the
-      // original query
-      // e.g. a* b* c*
-      if (totalCt[0] == 0) {
-        // use wordInd tokenization
-        String[] tokens = FieldedStringTokenizer.split(fixedQuery,
-            " \t-({[)}]_!@#%&*\\:;\"',.?/~+=|<>$`^");
-        StringBuilder newQuery = new StringBuilder();
-        newQuery.append("(");
-        for (final String token : tokens) {
-          if (newQuery.length() != 1) {
-            newQuery.append(" OR ");
-          }
-          if (token.length() > 0) {
-            newQuery.append(token).append("*");
-          }
-        }
-        newQuery.append(")");
-        // Try the query again
-        fullTextQuery = IndexUtility.applyPfsToLuceneQuery(clazz,
-            newQuery.toString() + terminologyClause, pfs, manager);
-        totalCt[0] = fullTextQuery.getResultSize();
+  /**
+   * Returns the lucene query for the candidate.
+   *
+   * @param candidate the candidate
+   * @param clazz the clazz
+   * @param pfs the pfs
+   * @param manager the manager
+   * @return the lucene query, or null if the candidate does not apply
+   * @throws Exception the exception
+   */
+  private static Query getLuceneQuery(Candidate candidate, Class<?> clazz,
+    PfsParameter pfs, EntityManager manager) throws Exception {
+    final String query = candidate.query.call();
+    if (query == null) {
+      return null;
+    }
+    try {
+      return IndexUtility.getLuceneQuery(clazz, query, pfs, manager);
+    } catch (ParseException | LocalException | IllegalArgumentException e) {
+      if (candidate.fallbackQuery != null) {
+        return IndexUtility.getLuceneQuery(clazz, candidate.fallbackQuery, pfs,
+            manager);
+      }
+      if (candidate.skipOnError) {
+        return null;
+      }
+      throw e;
+    }
+  }
 
+  /**
+   * Returns the query with acronyms expanded.
+   *
+   * @param fixedQuery the fixed query
+   * @param terminologyClause the terminology clause
+   * @return the query, or null if there are no acronyms
+   * @throws Exception the exception
+   */
+  private String getAcronymQuery(String fixedQuery, String terminologyClause)
+    throws Exception {
+    // use wordInd tokenization
+    String[] tokens = FieldedStringTokenizer.split(fixedQuery,
+        " \t-({[)}]_!@#%&*\\:;\"',.?/~+=|<>$`^");
+    StringBuilder newQuery = new StringBuilder();
+    boolean found = false;
+    for (final String token : tokens) {
+      if (newQuery.length() != 0) {
+        newQuery.append(" ");
+      }
+      // replace with acronym or keep the same
+      if (acronymDictionary.containsKey(token.toUpperCase())) {
+        found = true;
+        List<String> tempList = new ArrayList<>();
+        tempList
+            .add("\"" + acronymDictionary.get(token.toUpperCase()) + "\"");
+        newQuery.append(FieldedStringTokenizer.join(tempList, " "));
+      } else {
+        newQuery.append(token);
       }
+    }
+    // Try the query again (if at least one expansion was found)
+    return found ? newQuery.toString() + terminologyClause : null;
+  }
 
+  /**
+   * Returns the query with spelling corrected.
+   *
+   * @param fixedQuery the fixed query
+   * @param terminologyClause the terminology clause
+   * @return the query, or null if there are no corrections
+   * @throws Exception the exception
+   */
+  private String getSpellingQuery(String fixedQuery, String terminologyClause)
+    throws Exception {
+    // use wordInd tokenization
+    String[] tokens = FieldedStringTokenizer.split(fixedQuery,
+        " \t-({[)}]_!@#%&*\\:;\"',.?/~+=|<>$`^");
+    StringBuilder newQuery = new StringBuilder();
+    newQuery.append("(");
+    boolean found = false;
+    for (final String token : tokens) {
+      if (newQuery.length() != 0) {
+        newQuery.append(" ");
+      }
+      if (spellChecker.exist(token.toLowerCase())) {
+        newQuery.append(token);
+      } else if (!token.isEmpty()) {
+        String[] suggestions =
+            spellChecker.suggestSimilar(token.toLowerCase(), 5, .8f);
+        found = suggestions.length > 0;
+        newQuery.append(FieldedStringTokenizer.join(suggestions, " "));
+      }
     }
+    newQuery.append(")");
 
-    return fullTextQuery;
+    // Try the query again (if replacement found)
+    return found ? newQuery.toString() + terminologyClause : null;
+  }
 
+  /**
+   * Returns the query with a wildcard search at the end of each term of the
+   * original query, e.g. a* b* c*
+   *
+   * @param fixedQuery the fixed query
+   * @param terminologyClause the terminology clause
+   * @return the query
+   */
+  private static String getWildcardQuery(String fixedQuery,
+    String terminologyClause) {
+    // use wordInd tokenization
+    String[] tokens = FieldedStringTokenizer.split(fixedQuery,
+        " \t-({[)}]_!@#%&*\\:;\"',.?/~+=|<>$`^");
+    StringBuilder newQuery = new StringBuilder();
+    newQuery.append("(");
+    for (final String token : tokens) {
+      if (newQuery.length() != 1) {
+        newQuery.append(" OR ");
+      }
+      if (token.length() > 0) {
+        newQuery.append(token).append("*");
+      }
+    }
+    newQuery.append(")");
+    return newQuery.toString() + terminologyClause;
   }
 
   /* see superclass */
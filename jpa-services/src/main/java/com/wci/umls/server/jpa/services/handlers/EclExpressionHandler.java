@@ -1,9 +1,7 @@
 package com.wci.umls.server.jpa.services.handlers;
 
-import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TreeMap;
@@ -13,22 +11,17 @@ import java.util.regex.Pattern;
 import org.antlr.v4.runtime.RecognitionException;
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.Term;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.Sort;
-import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.NIOFSDirectory;
-
-import com.google.common.collect.Lists;
-import com.wci.umls.server.helpers.ConfigUtility;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.util.FixedBitSet;
+
 import com.wci.umls.server.helpers.LocalException;
 import com.wci.umls.server.helpers.SearchResult;
 import com.wci.umls.server.helpers.SearchResultList;
@@ -36,6 +29,8 @@ import com.wci.umls.server.jpa.AbstractConfigurable;
 import com.wci.umls.server.jpa.helpers.SearchResultJpa;
 import com.wci.umls.server.jpa.helpers.SearchResultListJpa;
 import com.wci.umls.server.jpa.services.handlers.expr.EclConceptFieldNames;
+import com.wci.umls.server.jpa.services.handlers.expr.EclConceptSets;
+import com.wci.umls.server.jpa.services.handlers.expr.EclSearcherRegistry;
 import com.wci.umls.server.jpa.services.handlers.expr.ExpressionConstraintToLuceneConverter;
 import com.wci.umls.server.services.handlers.ExpressionHandler;
 
@@ -60,9 +55,18 @@ public class EclExpressionHandler extends AbstractConfigurable
   /** The query parser. */
   private QueryParser queryParser = null;
 
-  /** The index searcher. */
+  /** The index searcher, acquired for the duration of a resolve call. */
   private IndexSearcher indexSearcher = null;
 
+  /** The concept sets of the acquired index searcher. */
+  private EclConceptSets conceptSets = null;
+
+  /** The concept sets resolved for internal functions, by placeholder. */
+  private final Map<String, FixedBitSet> resolvedSets = new HashMap<>();
+
+  /** The prefix of internal function placeholders in the query. */
+  private static final String PLACEHOLDER_PREFIX = "eclset";
+
   /** The internal function pattern map. */
   private final Map<ExpressionConstraintToLuceneConverter.InternalFunction, Pattern> internalFunctionPatternMap =
       new TreeMap<>();
@@ -77,18 +81,27 @@ public class EclExpressionHandler extends AbstractConfigurable
   public EclExpressionHandler(String terminology, String version)
       throws Exception {
 
-    // instantiate the index searcher
-    String indexDir =
-        ConfigUtility.getExpressionIndexDirectoryName(terminology, version);
-    Directory dirFile = new NIOFSDirectory(new File(indexDir));
-    indexSearcher = new IndexSearcher(DirectoryReader.open(dirFile));
+    this.terminology = terminology;
+    this.version = version;
 
     // instantiate the modified SQS lucene converter
     converter = new ExpressionConstraintToLuceneConverter();
 
     // instantiate the query parser
+    // resolving placeholders to the concept sets of internal functions
     queryParser =
-        new QueryParser(EclConceptFieldNames.ID, new StandardAnalyzer());
+        new QueryParser(EclConceptFieldNames.ID, new StandardAnalyzer()) {
+          @Override
+          protected Query getFieldQuery(String field, String queryText,
+            boolean quoted) throws ParseException {
+            final FixedBitSet concepts = resolvedSets.get(queryText);
+            if (concepts != null) {
+              return new ConstantScoreQuery(
+                  new EclConceptSets.BitSetFilter(concepts));
+            }
+            return super.getFieldQuery(field, queryText, quoted);
+          }
+        };
     queryParser.setAllowLeadingWildcard(true);
 
     // compute the internal functions from the modified SQS lucene converter
@@ -132,65 +145,94 @@ public class EclExpressionHandler extends AbstractConfigurable
     final SearchResultList results = new SearchResultListJpa();
 
     if (ecQuery != null && !ecQuery.isEmpty()) {
-      String luceneQuery;
+      final long start = System.nanoTime();
+      final SearcherManager manager =
+          EclSearcherRegistry.getSearcherManager(terminology, version);
+      indexSearcher = manager.acquire();
       try {
-        luceneQuery = parse(ecQuery);
-        Logger.getLogger(getClass())
-            .info("EC Query: " + ecQuery + " -> parsed: " + luceneQuery);
-
-      } catch (RecognitionException e) {
-        throw new LocalException(
-            "Expression cannot be parsed, must reference an id", e);
-      } catch (UnsupportedOperationException e) {
-        throw new LocalException(e.getMessage(), e);
+        return resolve(ecQuery, results);
+      } finally {
+        manager.release(indexSearcher);
+        indexSearcher = null;
+        EclSearcherRegistry.recordQuery(terminology, version,
+            System.nanoTime() - start);
       }
-      try {
-        for (final ExpressionConstraintToLuceneConverter.InternalFunction internalFunction : internalFunctionPatternMap
-            .keySet()) {
-          while (luceneQuery.contains(internalFunction.name())) {
-            luceneQuery =
-                processInternalFunction(luceneQuery, internalFunction);
-          }
-        }
-      } catch (IOException e) {
-        throw new InternalError("Error preparing internal search query.", e);
-      }
-      try {
+    }
+    return results;
+  }
 
-        // parse the revised query after internal function expansion
-        final Query query = queryParser.parse(luceneQuery);
-
-        // execute the revised query
-        final TopDocs topDocs =
-            indexSearcher.search(query, maxResults, Sort.INDEXORDER);
-        final ScoreDoc[] scoreDocs = topDocs.scoreDocs;
-
-        // construct the search results
-        results.setTotalCount(topDocs.totalHits);
-
-        for (int a = 0; a < scoreDocs.length; a++) {
-          ScoreDoc scoreDoc = scoreDocs[a];
-          Document conceptDoc = getDocument(scoreDoc);
-          SearchResult result = new SearchResultJpa();
-          result.setId(
-              Long.parseLong(conceptDoc.get(EclConceptFieldNames.INTERNAL_ID)));
-          result.setTerminology(terminology);
-          result.setVersion(version);
-          result.setTerminologyId(conceptDoc.get(EclConceptFieldNames.ID));
-          results.getObjects().add(result);
+  /**
+   * Resolves the query against the acquired index searcher.
+   *
+   * @param ecQuery the ec query
+   * @param results the results
+   * @return the search result list
+   * @throws Exception the exception
+   */
+  private SearchResultList resolve(String ecQuery, SearchResultList results)
+    throws Exception {
+    String luceneQuery;
+    try {
+      luceneQuery = parse(ecQuery);
+      Logger.getLogger(getClass())
+          .info("EC Query: " + ecQuery + " -> parsed: " + luceneQuery);
+
+    } catch (RecognitionException e) {
+      throw new LocalException(
+          "Expression cannot be parsed, must reference an id", e);
+    } catch (UnsupportedOperationException e) {
+      throw new LocalException(e.getMessage(), e);
+    }
+    conceptSets = EclConceptSets.getInstance(indexSearcher.getIndexReader());
+    resolvedSets.clear();
+    try {
+      for (final ExpressionConstraintToLuceneConverter.InternalFunction internalFunction : internalFunctionPatternMap
+          .keySet()) {
+        while (luceneQuery.contains(internalFunction.name())) {
+          luceneQuery =
+              processInternalFunction(luceneQuery, internalFunction);
         }
-        Logger.getLogger(getClass())
-            .info("  results = " + results.size() + ", query = " + luceneQuery);
-        return results;
-      } catch (ParseException e) {
-        throw new InternalError("Error parsing internal search query.", e);
       }
+    } catch (IOException e) {
+      throw new InternalError("Error preparing internal search query.", e);
+    }
+    try {
+
+      // parse the revised query after internal function expansion
+      final Query query = queryParser.parse(luceneQuery);
+
+      // collect the matching documents, then read ids from the concept sets
+      // (in index order) rather than from stored documents
+      final FixedBitSet matches = new FixedBitSet(conceptSets.getMaxDoc());
+      indexSearcher.search(query, new BitSetCollector(matches));
+
+      // construct the search results
+      results.setTotalCount(matches.cardinality());
+      int ct = 0;
+      for (int doc = EclConceptSets.nextSetBit(matches, 0); doc != -1
+          && ct < maxResults; doc = EclConceptSets.nextSetBit(matches,
+              doc + 1), ct++) {
+        final SearchResult result = new SearchResultJpa();
+        result.setId(conceptSets.getInternalId(doc));
+        result.setTerminology(terminology);
+        result.setVersion(version);
+        result.setTerminologyId(conceptSets.getTerminologyId(doc));
+        results.getObjects().add(result);
+      }
+      Logger.getLogger(getClass())
+          .info("  results = " + results.size() + ", query = " + luceneQuery);
+      return results;
+    } catch (ParseException e) {
+      throw new InternalError("Error parsing internal search query.", e);
+    } finally {
+      resolvedSets.clear();
+      conceptSets = null;
     }
-    return results;
   }
 
   /**
-   * Process internal function.
+   * Process internal function. The function is resolved to a set of concepts,
+   * which replaces it in the query as a placeholder term.
    *
    * @param luceneQuery the lucene query
    * @param internalFunction the internal function
@@ -215,98 +257,81 @@ public class EclExpressionHandler extends AbstractConfigurable
 
     // extract the terminology id
     final String terminologyId = matcher.group(2);
-    List<String> conceptRelatives;
-
-    // if ancestor function
-    if (internalFunction.isAncestorType()) {
-
-      // get the list of ancestors for this concept
-      conceptRelatives = Lists.newArrayList(getConceptDocument(terminologyId)
-          .getValues(EclConceptFieldNames.ANCESTOR));
-    }
-
-    // if not ancestor function
-    else {
 
-      // get the concepts for which this concept is an ancestor
-      final TopDocs topDocs = indexSearcher.search(
-          new TermQuery(new Term(EclConceptFieldNames.ANCESTOR, terminologyId)),
-          maxResults);
-
-      conceptRelatives = new ArrayList<>();
-      for (final ScoreDoc scoreDoc : topDocs.scoreDocs) {
-        conceptRelatives
-            .add(getDocument(scoreDoc).get(EclConceptFieldNames.ID));
+    // get the ancestors or descendants of this concept
+    final FixedBitSet conceptRelatives = internalFunction.isAncestorType()
+        ? conceptSets.getAncestors(terminologyId,
+            internalFunction.isIncludeSelf())
+        : conceptSets.getDescendants(terminologyId,
+            internalFunction.isIncludeSelf());
+
+    // for an attribute, the concepts having one of these as a value
+    String field = null;
+    if (internalFunction.isAttributeType()) {
+      final int fieldEnd = matcher.start(1) - 1;
+      if (fieldEnd < 0 || luceneQuery.charAt(fieldEnd) != ':') {
+        throw new IllegalStateException("Failed to extract the attribute for "
+            + internalFunction + " in internal query '" + luceneQuery + "'");
       }
+      int fieldStart = fieldEnd;
+      while (fieldStart > 0
+          && Character.isLetterOrDigit(luceneQuery.charAt(fieldStart - 1))) {
+        fieldStart--;
+      }
+      field = luceneQuery.substring(fieldStart, fieldEnd);
     }
-    if (internalFunction.isIncludeSelf()) {
-      conceptRelatives.add(terminologyId);
-    }
-
-    String newLuceneQuery =
-        luceneQuery.replace(matcher.group(1), buildOptionsList(conceptRelatives,
-            !internalFunction.isAttributeType()));
+    final FixedBitSet concepts = field == null ? conceptRelatives
+        : conceptSets.getAttributeMatches(field, conceptRelatives);
 
-    return newLuceneQuery;
+    final String placeholder = PLACEHOLDER_PREFIX + resolvedSets.size();
+    resolvedSets.put(placeholder, concepts);
+    return luceneQuery.substring(0, matcher.start(1)) + placeholder
+        + luceneQuery.substring(matcher.end(1));
   }
 
   /**
-   * Build options list.
-   *
-   * @param conceptRelatives the concept relatives
-   * @param includeIdFieldName the include id field name
-   * @return the string
+   * Collects matching documents into a bitset over the top-level reader.
    */
-  @SuppressWarnings("static-method")
-  private String buildOptionsList(List<String> conceptRelatives,
-    boolean includeIdFieldName) {
-    final StringBuilder relativesIdBuilder = new StringBuilder();
-    if (!conceptRelatives.isEmpty()) {
-      relativesIdBuilder.append("(");
-      boolean first = true;
-      for (final String conceptRelative : conceptRelatives) {
-        if (first) {
-          first = false;
-        } else {
-          relativesIdBuilder.append(" OR ");
-        }
-        if (includeIdFieldName) {
-          relativesIdBuilder.append(EclConceptFieldNames.ID).append(":");
-        }
-        relativesIdBuilder.append(conceptRelative);
-      }
-      relativesIdBuilder.append(")");
+  private static class BitSetCollector extends Collector {
+
+    /** The bits. */
+    private final FixedBitSet bits;
+
+    /** The doc base of the current segment. */
+    private int docBase;
+
+    /**
+     * Instantiates a {@link BitSetCollector} from the specified parameters.
+     *
+     * @param bits the bits
+     */
+    public BitSetCollector(FixedBitSet bits) {
+      this.bits = bits;
     }
-    return relativesIdBuilder.toString();
-  }
 
-  /**
-   * Gets the concept document.
-   *
-   * @param conceptId the concept id
-   * @return the concept document
-   * @throws Exception the exception
-   */
-  private Document getConceptDocument(String conceptId) throws Exception {
+    /* see superclass */
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+      // n/a - not scored
+    }
 
-    // get the top document (i.e. restrict to 1 result)
-    final TopDocs docs = indexSearcher
-        .search(new TermQuery(new Term(EclConceptFieldNames.ID, conceptId)), 1);
-    if (docs.totalHits < 1) {
-      throw new Exception(conceptId + " has no index document");
+    /* see superclass */
+    @Override
+    public void collect(int doc) throws IOException {
+      bits.set(docBase + doc);
     }
-    return indexSearcher.doc(docs.scoreDocs[0].doc);
-  }
 
-  /**
-   * Gets the full document from the scored document
-   *
-   * @param scoreDoc the score doc
-   * @return the document
-   * @throws IOException Signals that an I/O exception has occurred.
-   */
-  private Document getDocument(ScoreDoc scoreDoc) throws IOException {
-    return indexSearcher.doc(scoreDoc.doc);
+    /* see superclass */
+    @Override
+    public void setNextReader(AtomicReaderContext context) throws IOException {
+      docBase = context.docBase;
+    }
+
+    /* see superclass */
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+      return true;
+    }
   }
 
 }
@@ -4,11 +4,12 @@
 package com.wci.umls.server.jpa.services.handlers;
 
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import org.apache.lucene.analysis.TokenStream;
@@ -21,41 +22,137 @@ import com.wci.umls.server.services.handlers.NormalizedStringHandler;
 /**
  * Implements a normalized string handler based on the Lucune
  * {@link StandardAnalyzer}.
+ *
+ * The handler is shared and thread-safe. The analyzer reuses its token
+ * stream per thread, each thread has its own token buffer, and recent
+ * results are memoized in an LRU cache (property "cacheSize", 0 to disable).
  */
 public class LuceneNormalizedStringHandler extends AbstractConfigurable
     implements NormalizedStringHandler {
 
+  /** The number of cache segments, each with its own lock. */
+  private static final int SEGMENT_CT = 16;
+
+  /** The analyzer, reusing token streams per thread. */
+  private final StandardAnalyzer analyzer = new StandardAnalyzer();
+
+  /** The token buffers, per thread. */
+  private final ThreadLocal<TokenBuffer> buffers =
+      ThreadLocal.withInitial(TokenBuffer::new);
+
+  /** The cache segments. */
+  private List<Map<String, String>> cache = newCache(100000);
+
   /* see superclass */
   @Override
   public void setProperties(Properties p) throws Exception {
-    // n/a
+    if (p.getProperty("cacheSize") != null) {
+      cache = newCache(Integer.parseInt(p.getProperty("cacheSize")));
+    }
   }
 
   /* see superclass */
   @Override
   public String getNormalizedString(String string) {
-    List<String> result = new ArrayList<String>();
-    StandardAnalyzer analyzer = new StandardAnalyzer();
-    try {
-      TokenStream stream = analyzer.tokenStream(null, new StringReader(string));
+    if (string == null) {
+      return null;
+    }
+    final List<Map<String, String>> localCache = cache;
+    if (localCache == null) {
+      return normalize(string);
+    }
+    final Map<String, String> segment = localCache
+        .get((string.hashCode() & Integer.MAX_VALUE) % SEGMENT_CT);
+    synchronized (segment) {
+      final String normalizedString = segment.get(string);
+      if (normalizedString != null) {
+        return normalizedString;
+      }
+    }
+    final String normalizedString = normalize(string);
+    synchronized (segment) {
+      segment.put(string, normalizedString);
+    }
+    return normalizedString;
+  }
+
+  /* see superclass */
+  @Override
+  public List<String> getNormalizedStrings(List<String> strings) {
+    final List<String> results = new ArrayList<>(strings.size());
+    // names repeat within a batch (e.g. the atoms of a concept)
+    final Map<String, String> batch = new HashMap<>();
+    for (final String string : strings) {
+      String normalizedString = batch.get(string);
+      if (normalizedString == null && string != null) {
+        normalizedString = getNormalizedString(string);
+        batch.put(string, normalizedString);
+      }
+      results.add(normalizedString);
+    }
+    return results;
+  }
+
+  /**
+   * Returns the sorted, space-separated tokens of the string.
+   *
+   * @param string the string
+   * @return the normalized string
+   */
+  private String normalize(String string) {
+    final TokenBuffer buffer = buffers.get();
+    buffer.ct = 0;
+    try (final TokenStream stream = analyzer.tokenStream(null, string)) {
+      final CharTermAttribute term =
+          stream.addAttribute(CharTermAttribute.class);
       stream.reset();
       while (stream.incrementToken()) {
-        result.add(stream.getAttribute(CharTermAttribute.class).toString());
+        buffer.add(term.toString());
       }
+      stream.end();
     } catch (IOException e) {
       // not thrown b/c we're using a string reader...
       throw new RuntimeException(e);
-    } finally {
-      analyzer.close();
     }
-    Collections.sort(result);
-    StringBuilder normalizedString = new StringBuilder();
-    Iterator<String> iter = result.iterator();
-    while (iter.hasNext()) {
-      normalizedString.append(iter.next()).append(iter.hasNext() ? " " : "");
+    if (buffer.ct == 0) {
+      return "";
+    }
+    Arrays.sort(buffer.tokens, 0, buffer.ct);
+    final StringBuilder sb = buffer.sb;
+    sb.setLength(0);
+    for (int i = 0; i < buffer.ct; i++) {
+      if (i > 0) {
+        sb.append(' ');
+      }
+      sb.append(buffer.tokens[i]);
+      buffer.tokens[i] = null;
     }
-    return normalizedString.toString();
+    return sb.toString();
+  }
 
+  /**
+   * Returns new cache segments.
+   *
+   * @param cacheSize the total cache size, 0 for no cache
+   * @return the cache segments, or null
+   */
+  @SuppressWarnings("serial")
+  private static List<Map<String, String>> newCache(int cacheSize) {
+    if (cacheSize <= 0) {
+      return null;
+    }
+    final int segmentSize = Math.max(1, cacheSize / SEGMENT_CT);
+    final List<Map<String, String>> segments = new ArrayList<>(SEGMENT_CT);
+    for (int i = 0; i < SEGMENT_CT; i++) {
+      segments.add(new LinkedHashMap<String, String>(16, 0.75f, true) {
+        /* see superclass */
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > segmentSize;
+        }
+      });
+    }
+    return segments;
   }
 
   /* see superclass */
@@ -64,4 +161,30 @@ public class LuceneNormalizedStringHandler extends AbstractConfigurable
     return "Lucene Normalized String Handler";
   }
 
+  /**
+   * Reusable per-thread token buffer.
+   */
+  private static class TokenBuffer {
+
+    /** The tokens. */
+    private String[] tokens = new String[16];
+
+    /** The token count. */
+    private int ct = 0;
+
+    /** The string builder. */
+    private final StringBuilder sb = new StringBuilder(256);
+
+    /**
+     * Adds a token.
+     *
+     * @param token the token
+     */
+    void add(String token) {
+      if (ct == tokens.length) {
+        tokens = Arrays.copyOf(tokens, ct * 2);
+      }
+      tokens[ct++] = token;
+    }
+  }
 }
@@ -3,12 +3,13 @@
  */
 package com.wci.umls.server.jpa.services.handlers;
 
+import java.io.File;
 import java.math.BigInteger;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
+import java.util.function.Function;
 
 import javax.persistence.NoResultException;
 
@@ -29,6 +30,9 @@ import com.wci.umls.server.jpa.meta.SemanticTypeComponentIdentityJpa;
 import com.wci.umls.server.jpa.meta.StringClassIdentityJpa;
 import com.wci.umls.server.jpa.services.ContentServiceJpa;
 import com.wci.umls.server.jpa.services.UmlsIdentityServiceJpa;
+import com.wci.umls.server.jpa.services.helper.IdentityIndex;
+import com.wci.umls.server.jpa.services.helper.OffHeapIdentityIndex;
+import com.wci.umls.server.jpa.services.helper.StripedLock;
 import com.wci.umls.server.model.content.Atom;
 import com.wci.umls.server.model.content.Attribute;
 import com.wci.umls.server.model.content.Code;
@@ -67,8 +71,8 @@ public class UmlsIdentifierAssignmentHandler extends AbstractConfigurable
   /** The service. */
   private UmlsIdentityService service = null;
 
-  /** The lock. */
-  private static String LOCK = "lock";
+  /** The locks, striped by identity code. */
+  private static StripedLock LOCKS = new StripedLock(256);
 
   /** The ui prefixes. */
   private Map<String, String> prefixMap = new HashMap<>();
@@ -92,47 +96,16 @@ public class UmlsIdentifierAssignmentHandler extends AbstractConfigurable
   private boolean createFlag = true;
 
   /**
-   * String=attribute identity code, Long=id
+   * The identity indexes, keyed by identity table and scope (e.g. the
+   * terminology). Each index maps identity code to id.
    */
-  private Map<String, Long> attributeIdentityCache = new HashMap<>();
+  private Map<String, IdentityIndex> identityIndexes = new HashMap<>();
 
   /**
-   * String=atom identity code, Long=id
+   * The directory for persisting identity indexes between runs, or null to
+   * keep them in memory for the life of the handler.
    */
-  private Map<String, Long> atomIdentityCache = new HashMap<>();
-
-  /**
-   * String=string class identity code, Long=id
-   */
-  private Map<String, Long> stringClassIdentityCache = new HashMap<>();
-
-  /**
-   * String=lexical class identity code, Long=id
-   */
-  private Map<String, Long> lexicalClassIdentityCache = new HashMap<>();
-
-  /**
-   * String=relationship identity code, Long=id
-   */
-  private Map<String, Long> relationshipIdentityCache = new HashMap<>();
-
-  /**
-   * The terminologies that have already had their attributes identities loaded
-   * and cached.
-   */
-  private Set<String> attributeIdentityCachedTerms = new HashSet<>();
-
-  /**
-   * The terminologies that have already had their atom identities loaded and
-   * cached.
-   */
-  private Set<String> atomIdentityCachedTerms = new HashSet<>();
-
-  /**
-   * The terminologies that have already had their relationship identities
-   * loaded and cached.
-   */
-  private Set<String> relationshipIdentityCachedTerms = new HashSet<>();
+  private File identityIndexDir = null;
 
   /**
    * Sets the creates the flag.
@@ -187,6 +160,9 @@ public class UmlsIdentifierAssignmentHandler extends AbstractConfigurable
       if (p.containsKey("projectTerminology")) {
         projectTerminology = p.getProperty("projectTerminology");
       }
+      if (p.containsKey("identity.index.dir")) {
+        identityIndexDir = new File(p.getProperty("identity.index.dir"));
+      }
     }
   }
 
@@ -261,29 +237,19 @@ public class UmlsIdentifierAssignmentHandler extends AbstractConfigurable
 
     UmlsIdentityService localService = getService();
     try {
-      // Block between getting next id and saving the id value
-      synchronized (LOCK) {
-        // Create StringClassIdentity and populate from the stringClass.
-        final StringClassIdentity identity = new StringClassIdentityJpa();
-        identity.setName(stringClass.getName());
-        identity.setLanguage(stringClass.getLanguage());
+      // Create StringClassIdentity and populate from the stringClass.
+      final StringClassIdentity identity = new StringClassIdentityJpa();
+      identity.setName(stringClass.getName());
+      identity.setLanguage(stringClass.getLanguage());
 
+      // Block between looking up the identity and saving the new id
+      synchronized (getLock(identity.getIdentityCode())) {
         Long identityId = null;
         // If caches are enabled (e.g. insertion processes), lookup identity id
         // from cache
         if (cachesEnabled) {
-          // If this is the first time this has been called,
-          // populate the cache
-          if (stringClassIdentityCache.isEmpty()) {
-            cacheExistingStringClassIdentities();
-          }
-
-          // Check if this identity exists in cache
-          if (stringClassIdentityCache
-              .containsKey(identity.getIdentityCode())) {
-            identityId =
-                stringClassIdentityCache.get(identity.getIdentityCode());
-          }
+          identityId = getStringClassIdentityIndex()
+              .get(identity.getIdentityCode());
         }
         // If caches aren't enable (e.g. action performed by user via the UI),
         // lookup identity id via database query
@@ -306,15 +272,17 @@ public class UmlsIdentifierAssignmentHandler extends AbstractConfigurable
           if (!createFlag) {
             return null;
           }
-          // Get next id
-          final Long nextId = localService.getNextStringClassId();
-
-          // Add new identity object
-          identity.setId(nextId);
-          localService.addStringClassIdentity(identity);
+          // Get next id and add new identity object, taking turns on the
+          // service if it is shared
+          final Long nextId;
+          synchronized (localService) {
+            nextId = localService.getNextStringClassId();
+            identity.setId(nextId);
+            localService.addStringClassIdentity(identity);
+          }
           // Add identity to cache, if caches enabled
           if (cachesEnabled) {
-            stringClassIdentityCache.put(identity.getIdentityCode(),
+            getStringClassIdentityIndex().put(identity.getIdentityCode(),
                 identity.getId());
           }
           return convertId(nextId, "SUI");
@@ -346,29 +314,19 @@ public class UmlsIdentifierAssignmentHandler extends AbstractConfigurable
 
     UmlsIdentityService localService = getService();
     try {
-      // Block between getting next id and saving the id value
-      synchronized (LOCK) {
-        // Create LexicalClassIdentity and populate from the lexicalClass.
-        final LexicalClassIdentity identity = new LexicalClassIdentityJpa();
-        identity.setLanguage(lexicalClass.getLanguage());
-        identity.setNormalizedName(lexicalClass.getNormalizedName());
+      // Create LexicalClassIdentity and populate from the lexicalClass.
+      final LexicalClassIdentity identity = new LexicalClassIdentityJpa();
+      identity.setLanguage(lexicalClass.getLanguage());
+      identity.setNormalizedName(lexicalClass.getNormalizedName());
 
+      // Block between looking up the identity and saving the new id
+      synchronized (getLock(identity.getIdentityCode())) {
         Long identityId = null;
         // If caches are enabled (e.g. insertion processes), lookup identity id
         // from cache
         if (cachesEnabled) {
-          // If this is the first time this has been called,
-          // populate the cache
-          if (lexicalClassIdentityCache.isEmpty()) {
-            cacheExistingLexicalClassIdentities();
-          }
-
-          // Check if this identity exists in cache
-          if (lexicalClassIdentityCache
-              .containsKey(identity.getIdentityCode())) {
-            identityId =
-                lexicalClassIdentityCache.get(identity.getIdentityCode());
-          }
+          identityId = getLexicalClassIdentityIndex()
+              .get(identity.getIdentityCode());
         }
         // If caches aren't enable (e.g. action performed by user via the UI),
         // lookup identity id via database query
@@ -388,14 +346,19 @@ public class UmlsIdentifierAssignmentHandler extends AbstractConfigurable
         }
         // else generate a new one and add it
         else {
-          // Get next id
-          final Long nextId = localService.getNextLexicalClassId();
-          // Add new identity object
-          identity.setId(nextId);
-          localService.addLexicalClassIdentity(identity);
-          // Add identity to cache
-          lexicalClassIdentityCache.put(identity.getIdentityCode(),
-              identity.getId());
+          // Get next id and add new identity object, taking turns on the
+          // service if it is shared
+          final Long nextId;
+          synchronized (localService) {
+            nextId = localService.getNextLexicalClassId();
+            identity.setId(nextId);
+            localService.addLexicalClassIdentity(identity);
+          }
+          // Add identity to cache, if caches enabled
+          if (cachesEnabled) {
+            getLexicalClassIdentityIndex().put(identity.getIdentityCode(),
+                identity.getId());
+          }
           return convertId(nextId, "LUI");
         }
       }
@@ -422,33 +385,25 @@ public class UmlsIdentifierAssignmentHandler extends AbstractConfigurable
 
     UmlsIdentityService localService = getService();
     try {
-      // Block between getting next id and saving the id value
-      synchronized (LOCK) {
-        // Create AtomIdentity and populate from the atom.
-        final AtomIdentity identity = new AtomIdentityJpa();
-        identity.setCodeId(atom.getCodeId());
-        identity.setConceptId(atom.getConceptId());
-        identity.setDescriptorId(atom.getDescriptorId());
-        identity.setStringClassId(atom.getStringClassId());
-        identity.setTerminology(atom.getTerminology());
-        identity.setTerminologyId(atom.getTerminologyId());
-        identity.setTermType(atom.getTermType());
-
+      // Create AtomIdentity and populate from the atom.
+      final AtomIdentity identity = new AtomIdentityJpa();
+      identity.setCodeId(atom.getCodeId());
+      identity.setConceptId(atom.getConceptId());
+      identity.setDescriptorId(atom.getDescriptorId());
+      identity.setStringClassId(atom.getStringClassId());
+      identity.setTerminology(atom.getTerminology());
+      identity.setTerminologyId(atom.getTerminologyId());
+      identity.setTermType(atom.getTermType());
+
+      // Block between looking up the identity and saving the new id
+      synchronized (getLock(identity.getIdentityCode())) {
         Long identityId = null;
 
         // If caches are enabled (e.g. insertion processes), lookup identity id
         // from cache
         if (cachesEnabled) {
-          // If this is the first time this has been called for this
-          // terminology, populate the cache
-          if (!atomIdentityCachedTerms.contains(identity.getTerminology())) {
-            cacheExistingAtomIdentities(identity.getTerminology());
-          }
-
-          // Check if this identity exists in cache
-          if (atomIdentityCache.containsKey(identity.getIdentityCode())) {
-            identityId = atomIdentityCache.get(identity.getIdentityCode());
-          }
+          identityId = getAtomIdentityIndex(identity.getTerminology())
+              .get(identity.getIdentityCode());
         }
         // If caches aren't enable (e.g. action performed by user via the UI),
         // lookup identity id via database query
@@ -470,14 +425,18 @@ public class UmlsIdentifierAssignmentHandler extends AbstractConfigurable
           if (!createFlag) {
             return null;
           }
-          // Get next id
-          final Long nextId = localService.getNextAtomId();
-          // Add new identity object
-          identity.setId(nextId);
-          localService.addAtomIdentity(identity);
+          // Get next id and add new identity object, taking turns on the
+          // service if it is shared
+          final Long nextId;
+          synchronized (localService) {
+            nextId = localService.getNextAtomId();
+            identity.setId(nextId);
+            localService.addAtomIdentity(identity);
+          }
           // Add identity to cache, if caches enabled
           if (cachesEnabled) {
-            atomIdentityCache.put(identity.getIdentityCode(), identity.getId());
+            getAtomIdentityIndex(identity.getTerminology())
+                .put(identity.getIdentityCode(), identity.getId());
           }
           return convertId(nextId, "AUI");
         }
@@ -527,56 +486,47 @@ public class UmlsIdentifierAssignmentHandler extends AbstractConfigurable
       identity.setTerminology(attribute.getTerminology());
       identity.setTerminologyId(attribute.getTerminologyId());
 
-      Long identityId = null;
-      // If caches are enabled (e.g. insertion processes), lookup identity id
-      // from cache
-      if (cachesEnabled) {
-        // If this is the first time this has been called for this terminology
-        // and
-        // name,
-        // populate the cache
-        if (!attributeIdentityCachedTerms
-            .contains(identity.getTerminology() + identity.getName())) {
-          cacheExistingAttributeIdentities(identity.getTerminology(),
-              identity.getName());
-        }
-
-        // Check if this identity exists in the cache
-        if (attributeIdentityCache.containsKey(identity.getIdentityCode())) {
-          identityId = attributeIdentityCache.get(identity.getIdentityCode());
+      // Block between looking up the identity and saving the new id
+      synchronized (getLock(identity.getIdentityCode())) {
+        Long identityId = null;
+        // If caches are enabled (e.g. insertion processes), lookup identity id
+        // from cache
+        if (cachesEnabled) {
+          identityId = getAttributeIdentityIndex(identity.getTerminology(),
+              identity.getName()).get(identity.getIdentityCode());
         }
-      }
-      // If caches aren't enable (e.g. action performed by user via the UI),
-      // lookup identity id via database query
-      else {
-        final AttributeIdentity identity2 =
-            localService.getAttributeIdentity(identity);
+        // If caches aren't enable (e.g. action performed by user via the UI),
+        // lookup identity id via database query
+        else {
+          final AttributeIdentity identity2 =
+              localService.getAttributeIdentity(identity);
 
-        // Reuse existing id
-        if (identity2 != null) {
+          // Reuse existing id
+          if (identity2 != null) {
 
-          identityId = identity2.getId();
+            identityId = identity2.getId();
+          }
         }
-      }
 
-      // if id found, return
-      if (identityId != null) {
-        return convertId(identityId, "ATUI");
-      }
-      // else generate a new one and add it
-      else {
-        synchronized (LOCK) {
-          // Block between getting next id and saving the id value
-          // Get next id
-          final Long nextId = localService.getNextAttributeId();
-          // Add new identity object
-          identity.setId(nextId);
-          attributeIdentityCache.put(identity.getIdentityCode(), nextId);
-          localService.addAttributeIdentity(identity);
+        // if id found, return
+        if (identityId != null) {
+          return convertId(identityId, "ATUI");
+        }
+        // else generate a new one and add it
+        else {
+          // Get next id and add new identity object, taking turns on the
+          // service if it is shared
+          final Long nextId;
+          synchronized (localService) {
+            nextId = localService.getNextAttributeId();
+            identity.setId(nextId);
+            localService.addAttributeIdentity(identity);
+          }
           // Add identity to cache, if caches enabled
           if (cachesEnabled) {
-            attributeIdentityCache.put(identity.getIdentityCode(),
-                identity.getId());
+            getAttributeIdentityIndex(identity.getTerminology(),
+                identity.getName()).put(identity.getIdentityCode(),
+                    identity.getId());
           }
           return convertId(nextId, "ATUI");
         }
@@ -589,151 +539,208 @@ public class UmlsIdentifierAssignmentHandler extends AbstractConfigurable
     }
   }
 
-  private void cacheExistingAttributeIdentities(String terminology, String name)
-    throws Exception {
+  /**
+   * Returns the lock to hold while looking up and creating the identity with
+   * the specified code. Identities with different codes can be assigned
+   * concurrently. When all callers share one service (and so one entity
+   * manager), only the calls on the service itself take turns on it.
+   *
+   * @param identityCode the identity code
+   * @return the lock
+   */
+  @SuppressWarnings("static-method")
+  private Object getLock(String identityCode) {
+    return LOCKS.get(identityCode);
+  }
 
-    Logger.getLogger(getClass())
-        .info("Loading Attribute Identities for terminology = " + terminology
-            + ", name = " + name);
-
-    final Session session =
-        getService().getEntityManager().unwrap(Session.class);
-    final org.hibernate.Query hQuery = session.createSQLQuery(
-        "select id, componentId, componentTerminology, hashCode, terminologyId from attribute_identity "
-            + "where terminology = :terminology and name = :name");
-    hQuery.setParameter("terminology", terminology);
-    hQuery.setParameter("name", name);
-    hQuery.setReadOnly(true).setFetchSize(100000).setCacheable(false);
-    final ScrollableResults results = hQuery.scroll(ScrollMode.FORWARD_ONLY);
-    while (results.next()) {
-
-      final Long id = ((BigInteger) results.get()[0]).longValue();
-      final String componentId = (String) results.get()[1];
-      final String componentTerminology = (String) results.get()[2];
-      final String hashcode = (String) results.get()[3];
-      final String terminologyId = (String) results.get()[4];
-      final String identityCode = componentId + componentTerminology + hashcode
-          + name + terminology + terminologyId;
-      attributeIdentityCache.put(identityCode, id);
-    }
-    results.close();
+  /**
+   * Returns the locks, in acquisition order, to hold while looking up and
+   * creating two related identities (e.g. a relationship and its inverse).
+   *
+   * @param identityCode the identity code
+   * @param identityCode2 the second identity code
+   * @return the locks
+   */
+  @SuppressWarnings("static-method")
+  private Object[] getLocks(String identityCode, String identityCode2) {
+    return LOCKS.get(identityCode, identityCode2);
+  }
 
-    // Add this terminology and name to the cached set.
-    attributeIdentityCachedTerms.add(terminology + name);
+  /**
+   * Returns the attribute identity index for the terminology and name.
+   *
+   * @param terminology the terminology
+   * @param name the name
+   * @return the attribute identity index
+   * @throws Exception the exception
+   */
+  private IdentityIndex getAttributeIdentityIndex(String terminology,
+    String name) throws Exception {
+    final Map<String, String> params = new LinkedHashMap<>();
+    params.put("terminology", terminology);
+    params.put("name", name);
+    return getIdentityIndex("attribute_identity",
+        "componentId, componentTerminology, hashCode, terminologyId", params,
+        row -> (String) row[1] + row[2] + row[3] + name + terminology
+            + row[4]);
   }
 
-  private void cacheExistingAtomIdentities(String terminology)
+  /**
+   * Returns the atom identity index for the terminology.
+   *
+   * @param terminology the terminology
+   * @return the atom identity index
+   * @throws Exception the exception
+   */
+  private IdentityIndex getAtomIdentityIndex(String terminology)
     throws Exception {
-
-    Logger.getLogger(getClass())
-        .info("Loading Atom Identities for terminology = " + terminology);
-
-    final Session session =
-        getService().getEntityManager().unwrap(Session.class);
-    final org.hibernate.Query hQuery = session.createSQLQuery(
-        "select id, stringClassId, terminologyId, termType, codeId, conceptId, descriptorId from atom_identity "
-            + "where terminology = :terminology");
-    hQuery.setParameter("terminology", terminology);
-    hQuery.setReadOnly(true).setFetchSize(100000).setCacheable(false);
-    final ScrollableResults results = hQuery.scroll(ScrollMode.FORWARD_ONLY);
-    while (results.next()) {
-
-      final Long id = ((BigInteger) results.get()[0]).longValue();
-      final String stringClassId = (String) results.get()[1];
-      final String terminologyId = (String) results.get()[2];
-      final String termType = (String) results.get()[3];
-      final String codeId = (String) results.get()[4];
-      final String conceptId = (String) results.get()[5];
-      final String descriptorId = (String) results.get()[6];
-      final String identityCode = stringClassId + terminology + terminologyId
-          + termType + codeId + conceptId + descriptorId;
-      atomIdentityCache.put(identityCode, id);
-    }
-    results.close();
-
-    // Add this terminology to the cached set.
-    atomIdentityCachedTerms.add(terminology);
+    final Map<String, String> params = new LinkedHashMap<>();
+    params.put("terminology", terminology);
+    return getIdentityIndex("atom_identity",
+        "stringClassId, terminologyId, termType, codeId, conceptId, descriptorId",
+        params, row -> (String) row[1] + terminology + row[2] + row[3]
+            + row[4] + row[5] + row[6]);
   }
 
-  private void cacheExistingStringClassIdentities() throws Exception {
-
-    Logger.getLogger(getClass()).info("Loading String Class Identities");
+  /**
+   * Returns the string class identity index.
+   *
+   * @return the string class identity index
+   * @throws Exception the exception
+   */
+  private IdentityIndex getStringClassIdentityIndex() throws Exception {
+    return getIdentityIndex("string_class_identity", "name, language",
+        new LinkedHashMap<>(), row -> (String) row[1] + row[2]);
+  }
 
-    final Session session =
-        getService().getEntityManager().unwrap(Session.class);
-    final org.hibernate.Query hQuery = session
-        .createSQLQuery("select id, name, language from string_class_identity");
-    hQuery.setReadOnly(true).setFetchSize(100000).setCacheable(false);
-    final ScrollableResults results = hQuery.scroll(ScrollMode.FORWARD_ONLY);
-    while (results.next()) {
+  /**
+   * Returns the lexical class identity index.
+   *
+   * @return the lexical class identity index
+   * @throws Exception the exception
+   */
+  private IdentityIndex getLexicalClassIdentityIndex() throws Exception {
+    return getIdentityIndex("lexical_class_identity",
+        "language, normalizedName", new LinkedHashMap<>(),
+        row -> (String) row[1] + row[2]);
+  }
 
-      final Long id = ((BigInteger) results.get()[0]).longValue();
-      final String name = (String) results.get()[1];
-      final String language = (String) results.get()[2];
-      final String identityCode = name + language;
-      stringClassIdentityCache.put(identityCode, id);
-    }
-    results.close();
+  /**
+   * Returns the relationship identity index for the terminology.
+   *
+   * @param terminology the terminology
+   * @return the relationship identity index
+   * @throws Exception the exception
+   */
+  private IdentityIndex getRelationshipIdentityIndex(String terminology)
+    throws Exception {
+    final Map<String, String> params = new LinkedHashMap<>();
+    params.put("terminology", terminology);
+    return getIdentityIndex("relationship_identity",
+        "additionalRelationshipType, fromId, fromTerminology, fromType, "
+            + "relationshipType, terminologyId, toId, toTerminology, toType",
+        params, row -> (String) row[1] + row[2] + row[3] + row[4] + row[5]
+            + terminology + row[6] + row[7] + row[8] + row[9]);
   }
 
-  private void cacheExistingLexicalClassIdentities() throws Exception {
+  /**
+   * Returns the identity index for the rows of the identity table matching the
+   * parameters, opening and populating it on first use. The first column
+   * selected is always the id; the identity code function is applied to each
+   * row to compute the key.
+   *
+   * When a persisted index is reopened, only identities with ids beyond the
+   * highest id already indexed are read, and the index is rebuilt if the
+   * resulting size does not match the row count (e.g. after identities were
+   * removed or the database was reloaded).
+   *
+   * @param table the identity table
+   * @param columns the columns needed to compute the identity code
+   * @param params the column values identifying the scope of the index
+   * @param identityCode the identity code function
+   * @return the identity index
+   * @throws Exception the exception
+   */
+  private IdentityIndex getIdentityIndex(String table, String columns,
+    Map<String, String> params, Function<Object[], String> identityCode)
+    throws Exception {
 
-    Logger.getLogger(getClass()).info("Loading Lexical Class Identities");
+    final String key = table + params.values();
+    synchronized (identityIndexes) {
+      IdentityIndex index = identityIndexes.get(key);
+      if (index != null) {
+        return index;
+      }
 
-    final Session session =
-        getService().getEntityManager().unwrap(Session.class);
-    final org.hibernate.Query hQuery = session.createSQLQuery(
-        "select id, language, normalizedName from lexical_class_identity");
-    hQuery.setReadOnly(true).setFetchSize(100000).setCacheable(false);
-    final ScrollableResults results = hQuery.scroll(ScrollMode.FORWARD_ONLY);
-    while (results.next()) {
+      final StringBuilder where = new StringBuilder();
+      for (final String param : params.keySet()) {
+        where.append(param).append(" = :").append(param).append(" and ");
+      }
+      Logger.getLogger(getClass())
+          .info("Loading identities from " + table + " " + params);
+
+      index = new OffHeapIdentityIndex(identityIndexDir == null ? null
+          : new File(identityIndexDir, getIdentityIndexFileName(key)));
+      final UmlsIdentityService localService = getService();
+      final Session session =
+          localService.getEntityManager().unwrap(Session.class);
+      // Take turns on the service with identity creation
+      synchronized (localService) {
+        for (int pass = 0; pass < 2; pass++) {
+          final org.hibernate.Query hQuery = session.createSQLQuery(
+              "select id, " + columns + " from " + table + " where " + where
+                  + "id > :maxId");
+          for (final Map.Entry<String, String> entry : params.entrySet()) {
+            hQuery.setParameter(entry.getKey(), entry.getValue());
+          }
+          hQuery.setParameter("maxId", index.getMaxId());
+          hQuery.setReadOnly(true).setFetchSize(100000).setCacheable(false);
+          final ScrollableResults results =
+              hQuery.scroll(ScrollMode.FORWARD_ONLY);
+          while (results.next()) {
+            final Object[] row = results.get();
+            index.put(identityCode.apply(row),
+                ((BigInteger) row[0]).longValue());
+          }
+          results.close();
 
-      final Long id = ((BigInteger) results.get()[0]).longValue();
-      final String language = (String) results.get()[1];
-      final String normalizedName = (String) results.get()[2];
-      final String identityCode = language + normalizedName;
-      lexicalClassIdentityCache.put(identityCode, id);
-    }
-    results.close();
-  }
+          if (!index.isPersistent()) {
+            break;
+          }
 
-  private void cacheExistingRelationshipIdentities(String terminology)
-    throws Exception {
+          // Verify a reopened index against the database
+          final org.hibernate.Query countQuery =
+              session.createSQLQuery("select count(*) from " + table
+                  + " where " + where + "1 = 1");
+          for (final Map.Entry<String, String> entry : params.entrySet()) {
+            countQuery.setParameter(entry.getKey(), entry.getValue());
+          }
+          final long ct = ((Number) countQuery.uniqueResult()).longValue();
+          if (ct == index.size()) {
+            break;
+          }
+          Logger.getLogger(getClass()).warn("  Rebuilding identity index for "
+              + table + " " + params + ", size = " + index.size()
+              + ", expected = " + ct);
+          index.clear();
+        }
+      }
+      Logger.getLogger(getClass()).info("  count = " + index.size());
 
-    Logger.getLogger(getClass()).info(
-        "Loading Relationship Identities for terminology = " + terminology);
-
-    final Session session =
-        getService().getEntityManager().unwrap(Session.class);
-    final org.hibernate.Query hQuery = session.createSQLQuery(
-        "select id, additionalRelationshipType, fromId, fromTerminology, fromType, "
-            + "relationshipType, terminologyId, toId, toTerminology, "
-            + "toType from relationship_identity "
-            + "where terminology = :terminology");
-    hQuery.setParameter("terminology", terminology);
-    hQuery.setReadOnly(true).setFetchSize(100000).setCacheable(false);
-    final ScrollableResults results = hQuery.scroll(ScrollMode.FORWARD_ONLY);
-    while (results.next()) {
-
-      final Long id = ((BigInteger) results.get()[0]).longValue();
-      final String additionalRelationshipType = (String) results.get()[1];
-      final String fromId = (String) results.get()[2];
-      final String fromTerminology = (String) results.get()[3];
-      final String fromType = (String) results.get()[4];
-      final String relationshipType = (String) results.get()[5];
-      final String terminologyId = (String) results.get()[6];
-      final String toId = (String) results.get()[7];
-      final String toTerminology = (String) results.get()[8];
-      final String toType = (String) results.get()[9];
-      final String identityCode = additionalRelationshipType + fromId
-          + fromTerminology + fromType + relationshipType + terminology
-          + terminologyId + toId + toTerminology + toType;
-      relationshipIdentityCache.put(identityCode, id);
+      identityIndexes.put(key, index);
+      return index;
     }
-    results.close();
+  }
 
-    // Add this terminology to the cached set.
-    relationshipIdentityCachedTerms.add(terminology);
+  /**
+   * Returns the file name for a persisted identity index.
+   *
+   * @param key the key
+   * @return the file name
+   */
+  private static String getIdentityIndexFileName(String key) {
+    return key.replaceAll("[^A-Za-z0-9_\\-]", "_") + "."
+        + Integer.toHexString(key.hashCode()) + ".idx";
   }
 
   /* see superclass */
@@ -769,112 +776,112 @@ public class UmlsIdentifierAssignmentHandler extends AbstractConfigurable
 
     UmlsIdentityService localService = getService();
     try {
-      // Block between getting next id and saving the id value
-      synchronized (LOCK) {
-        // Create RelationshipIdentity and populate from the relationship.
-        final RelationshipIdentity identity = new RelationshipIdentityJpa();
-        identity.setId(relationship.getId());
-        identity.setTerminology(relationship.getTerminology());
-        identity.setTerminologyId(relationship.getTerminologyId());
-        identity.setRelationshipType(relationship.getRelationshipType());
-        identity.setAdditionalRelationshipType(
-            relationship.getAdditionalRelationshipType());
-        identity.setFromTerminology(relationship.getFrom().getTerminology());
-        identity.setFromType(relationship.getFrom().getType());
-        identity.setToTerminology(relationship.getTo().getTerminology());
-        identity.setToType(relationship.getTo().getType());
-        // If to/from objects are atoms, to/fromId need to be the AUI. Otherwise
-        // set to the terminologyId
-        if (relationship.getFrom() instanceof Atom) {
-          identity.setFromId(((Atom) relationship.getFrom())
-              .getAlternateTerminologyIds().get(projectTerminology));
-        } else {
-          identity.setFromId(relationship.getFrom().getTerminologyId());
-        }
-        if (relationship.getTo() instanceof Atom) {
-          identity.setToId(((Atom) relationship.getTo())
-              .getAlternateTerminologyIds().get(projectTerminology));
-        } else {
-          identity.setToId(relationship.getTo().getTerminologyId());
-        }
+      // Create RelationshipIdentity and populate from the relationship.
+      final RelationshipIdentity identity = new RelationshipIdentityJpa();
+      identity.setId(relationship.getId());
+      identity.setTerminology(relationship.getTerminology());
+      identity.setTerminologyId(relationship.getTerminologyId());
+      identity.setRelationshipType(relationship.getRelationshipType());
+      identity.setAdditionalRelationshipType(
+          relationship.getAdditionalRelationshipType());
+      identity.setFromTerminology(relationship.getFrom().getTerminology());
+      identity.setFromType(relationship.getFrom().getType());
+      identity.setToTerminology(relationship.getTo().getTerminology());
+      identity.setToType(relationship.getTo().getType());
+      // If to/from objects are atoms, to/fromId need to be the AUI. Otherwise
+      // set to the terminologyId
+      if (relationship.getFrom() instanceof Atom) {
+        identity.setFromId(((Atom) relationship.getFrom())
+            .getAlternateTerminologyIds().get(projectTerminology));
+      } else {
+        identity.setFromId(relationship.getFrom().getTerminologyId());
+      }
+      if (relationship.getTo() instanceof Atom) {
+        identity.setToId(((Atom) relationship.getTo())
+            .getAlternateTerminologyIds().get(projectTerminology));
+      } else {
+        identity.setToId(relationship.getTo().getTerminologyId());
+      }
 
-        Long identityId = null;
-        // If caches are enabled (e.g. insertion processes), lookup identity id
-        // from cache
-        if (cachesEnabled) {
-          // If this is the first time this has been called for this
-          // terminology,
-          // populate the cache
-          if (!relationshipIdentityCachedTerms
-              .contains(identity.getTerminology())) {
-            cacheExistingRelationshipIdentities(identity.getTerminology());
+      // Block between looking up the identity and saving the new ids. The
+      // inverse identity is created at the same time, so lock on its code too.
+      final Object[] locks = getLocks(identity.getIdentityCode(),
+          localService.createInverseRelationshipIdentity(identity,
+              inverseRelType, inverseAdditionalRelType).getIdentityCode());
+      synchronized (locks[0]) {
+        synchronized (locks[1]) {
+          Long identityId = null;
+          // If caches are enabled (e.g. insertion processes), lookup identity
+          // id from cache
+          if (cachesEnabled) {
+            identityId = getRelationshipIdentityIndex(identity.getTerminology())
+                .get(identity.getIdentityCode());
           }
-
-          // Check if this identity exists in cache
-          if (relationshipIdentityCache
-              .containsKey(identity.getIdentityCode())) {
-            identityId =
-                relationshipIdentityCache.get(identity.getIdentityCode());
+          // If caches aren't enable (e.g. action performed by user via the
+          // UI), lookup identity id via database query
+          else {
+            final RelationshipIdentity identity2 =
+                localService.getRelationshipIdentity(identity);
+
+            // Reuse existing id
+            if (identity2 != null) {
+              identityId = identity2.getId();
+            }
           }
-        }
-        // If caches aren't enable (e.g. action performed by user via the UI),
-        // lookup identity id via database query
-        else {
-          final RelationshipIdentity identity2 =
-              localService.getRelationshipIdentity(identity);
 
-          // Reuse existing id
-          if (identity2 != null) {
-            identityId = identity2.getId();
+          // if id found, return
+          if (identityId != null) {
+            return convertId(identityId, "RUI");
           }
-        }
-
-        // if id found, return
-        if (identityId != null) {
-          return convertId(identityId, "RUI");
-        }
-        // else generate a new one and add it
-        else {
-          // Get next id and inverse ID
-          final Long nextId = localService.getNextRelationshipId();
-
-          // Set ID for the relationship. Set inverseId to bogus number for now
-          // - it will be updated later.
-          identity.setId(nextId);
-          identity.setInverseId(0L);
-
-          // Add new identity object
-          localService.addRelationshipIdentity(identity);
-
-          // Create inverse Relationship identity
-          final RelationshipIdentity inverseIdentity =
-              localService.createInverseRelationshipIdentity(identity,
-                  inverseRelType, inverseAdditionalRelType);
-
-          // Get next id for inverse relationship
-          final Long nextIdInverse = localService.getNextRelationshipId();
-
-          // Set ID and inverse IDs for the inverse Id
-          inverseIdentity.setId(nextIdInverse);
-          inverseIdentity.setInverseId(nextId);
-
-          // Add inverse identity objects
-          localService.addRelationshipIdentity(inverseIdentity);
-
-          // Update the identity objects with the true InverseId
-          identity.setInverseId(nextIdInverse);
-          localService.updateRelationshipIdentity(identity);
-
-          // Add identities to cache, if caches enabled
-          if (cachesEnabled) {
-            relationshipIdentityCache.put(identity.getIdentityCode(),
-                identity.getId());
-            relationshipIdentityCache.put(inverseIdentity.getIdentityCode(),
-                inverseIdentity.getId());
+          // else generate a new one and add it
+          else {
+            // Reserve ids for the relationship and its inverse and add the
+            // identities, taking turns on the service if it is shared
+            final Long nextId;
+            final RelationshipIdentity inverseIdentity;
+            synchronized (localService) {
+              nextId = localService.reserveIds("RUI", 2);
+
+              // Set ID for the relationship. Set inverseId to bogus number for
+              // now - it will be updated later.
+              identity.setId(nextId);
+              identity.setInverseId(0L);
+
+              // Add new identity object
+              localService.addRelationshipIdentity(identity);
+
+              // Create inverse Relationship identity
+              inverseIdentity =
+                  localService.createInverseRelationshipIdentity(identity,
+                      inverseRelType, inverseAdditionalRelType);
+
+              // Use the second reserved id for the inverse relationship
+              final Long nextIdInverse = nextId + 1;
+
+              // Set ID and inverse IDs for the inverse Id
+              inverseIdentity.setId(nextIdInverse);
+              inverseIdentity.setInverseId(nextId);
+
+              // Add inverse identity objects
+              localService.addRelationshipIdentity(inverseIdentity);
+
+              // Update the identity objects with the true InverseId
+              identity.setInverseId(nextIdInverse);
+              localService.updateRelationshipIdentity(identity);
+            }
+
+            // Add identities to cache, if caches enabled
+            if (cachesEnabled) {
+              getRelationshipIdentityIndex(identity.getTerminology())
+                  .put(identity.getIdentityCode(), identity.getId());
+              getRelationshipIdentityIndex(inverseIdentity.getTerminology())
+                  .put(inverseIdentity.getIdentityCode(),
+                      inverseIdentity.getId());
+            }
+
+            // return ID for called relationship (inverse can get called later)
+            return convertId(nextId, "RUI");
           }
-
-          // return ID for called relationship (inverse can get called later)
-          return convertId(nextId, "RUI");
         }
       }
 
@@ -991,31 +998,34 @@ public class UmlsIdentifierAssignmentHandler extends AbstractConfigurable
 
     final UmlsIdentityService localService = getService();
     try {
-      // Block between getting next id and saving the id value
-      synchronized (LOCK) {
-
-        // Create semanticTypeIdentity and populate from the semanticType.
-        final SemanticTypeComponentIdentity identity =
-            new SemanticTypeComponentIdentityJpa();
-        identity.setConceptTerminologyId(concept.getTerminologyId());
-        identity.setSemanticType(semanticTypeComponent.getSemanticType());
-        identity.setTerminology(semanticTypeComponent.getTerminology());
-
-        final SemanticTypeComponentIdentity identity2 =
-            localService.getSemanticTypeComponentIdentity(identity);
-
-        // Reuse existing id
-        if (identity2 != null) {
-          return convertId(identity2.getId(), "ATUI");
-        }
-        // else generate a new one and add it
-        else {
-          // Get next id
-          final Long nextId = localService.getNextSemanticTypeComponentId();
-          // Add new identity object
-          identity.setId(nextId);
-          localService.addSemanticTypeComponentIdentity(identity);
-          return convertId(nextId, "ATUI");
+      // Create semanticTypeIdentity and populate from the semanticType.
+      final SemanticTypeComponentIdentity identity =
+          new SemanticTypeComponentIdentityJpa();
+      identity.setConceptTerminologyId(concept.getTerminologyId());
+      identity.setSemanticType(semanticTypeComponent.getSemanticType());
+      identity.setTerminology(semanticTypeComponent.getTerminology());
+
+      // Block between looking up the identity and saving the new id
+      // (there is no cache, so take turns on the service if it is shared)
+      synchronized (getLock(identity.getIdentityCode())) {
+        synchronized (localService) {
+          final SemanticTypeComponentIdentity identity2 =
+              localService.getSemanticTypeComponentIdentity(identity);
+
+          // Reuse existing id
+          if (identity2 != null) {
+            return convertId(identity2.getId(), "ATUI");
+          }
+          // else generate a new one and add it
+          else {
+            // Get next id
+            final Long nextId =
+                localService.getNextSemanticTypeComponentId();
+            // Add new identity object
+            identity.setId(nextId);
+            localService.addSemanticTypeComponentIdentity(identity);
+            return convertId(nextId, "ATUI");
+          }
         }
       }
 
@@ -1192,17 +1202,17 @@ public class UmlsIdentifierAssignmentHandler extends AbstractConfigurable
   }
 
   /**
-   * Clear out all of the caches.
+   * Clear out all of the caches. Persisted identity indexes are closed, not
+   * deleted, so they can be picked up by the next run.
+   *
+   * @throws Exception the exception
    */
-  @SuppressWarnings("static-method")
-  public void clearCaches() {
-    attributeIdentityCache.clear();
-    attributeIdentityCachedTerms.clear();
-    atomIdentityCache.clear();
-    atomIdentityCachedTerms.clear();
-    relationshipIdentityCache.clear();
-    relationshipIdentityCachedTerms.clear();
-    stringClassIdentityCache.clear();
-    lexicalClassIdentityCache.clear();
+  public void clearCaches() throws Exception {
+    synchronized (identityIndexes) {
+      for (final IdentityIndex index : identityIndexes.values()) {
+        index.close();
+      }
+      identityIndexes.clear();
+    }
   }
 }
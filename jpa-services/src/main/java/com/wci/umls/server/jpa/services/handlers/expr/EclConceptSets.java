@@ -0,0 +1,377 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.handlers.expr;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * Concept sets of an ECL index, as bitsets over its document ids. Computed
+ * once per index reader: the document of each concept, each document's
+ * concept and internal ids, and each document's ancestors (inverted from the
+ * ancestor postings). Hierarchy operators then resolve to bitsets without
+ * loading stored documents or building query text.
+ */
+public class EclConceptSets {
+
+  /** The number of hierarchy bitsets kept per reader. */
+  private static final int CACHE_SIZE = 256;
+
+  /** The instances, by reader. Dropped when a refreshed reader is collected. */
+  private static final Map<IndexReader, EclConceptSets> instances =
+      new WeakHashMap<>();
+
+  /** The max doc. */
+  private final int maxDoc;
+
+  /** The live docs, or null if none are deleted. */
+  private final Bits liveDocs;
+
+  /** The reader. */
+  private final IndexReader reader;
+
+  /** The document ids, by terminology id. */
+  private final Map<String, Integer> docIds = new HashMap<>();
+
+  /** The terminology ids, by document id. */
+  private final String[] terminologyIds;
+
+  /** The internal ids, by document id. */
+  private final long[] internalIds;
+
+  /** The ancestor document ids, by document id. */
+  private final int[][] ancestorDocIds;
+
+  /** The cached descendant and ancestor bitsets. */
+  private final Map<String, FixedBitSet> hierarchyCache =
+      new LinkedHashMap<String, FixedBitSet>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+          Map.Entry<String, FixedBitSet> eldest) {
+          return size() > CACHE_SIZE;
+        }
+      };
+
+  /**
+   * Returns the concept sets for the reader, computing them on first use.
+   *
+   * @param reader the reader
+   * @return the concept sets
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static synchronized EclConceptSets getInstance(IndexReader reader)
+    throws IOException {
+    EclConceptSets sets = instances.get(reader);
+    if (sets == null) {
+      sets = new EclConceptSets(reader);
+      instances.put(reader, sets);
+    }
+    return sets;
+  }
+
+  /**
+   * Instantiates a {@link EclConceptSets} from the specified parameters.
+   *
+   * @param reader the reader
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private EclConceptSets(IndexReader reader) throws IOException {
+    final long start = System.currentTimeMillis();
+    this.reader = reader;
+    maxDoc = reader.maxDoc();
+    liveDocs = MultiFields.getLiveDocs(reader);
+    terminologyIds = new String[maxDoc];
+    internalIds = new long[maxDoc];
+
+    // concept ids
+    DocsEnum docs = null;
+    TermsEnum termsEnum = getTermsEnum(EclConceptFieldNames.ID);
+    for (BytesRef term = termsEnum.next(); term != null; term =
+        termsEnum.next()) {
+      final String terminologyId = term.utf8ToString();
+      docs = termsEnum.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+      for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc =
+          docs.nextDoc()) {
+        terminologyIds[doc] = terminologyId;
+        docIds.put(terminologyId, doc);
+      }
+    }
+
+    // internal ids, from the full precision numeric terms
+    termsEnum = NumericUtils.filterPrefixCodedLongs(
+        getTermsEnum(EclConceptFieldNames.INTERNAL_ID));
+    for (BytesRef term = termsEnum.next(); term != null; term =
+        termsEnum.next()) {
+      final long internalId = NumericUtils.prefixCodedToLong(term);
+      docs = termsEnum.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+      for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc =
+          docs.nextDoc()) {
+        internalIds[doc] = internalId;
+      }
+    }
+
+    // ancestors, inverted from the postings of each ancestor term (two passes:
+    // count, then fill)
+    final int[] counts = new int[maxDoc];
+    termsEnum = getTermsEnum(EclConceptFieldNames.ANCESTOR);
+    for (BytesRef term = termsEnum.next(); term != null; term =
+        termsEnum.next()) {
+      if (docIds.containsKey(term.utf8ToString())) {
+        docs = termsEnum.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+        for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc =
+            docs.nextDoc()) {
+          counts[doc]++;
+        }
+      }
+    }
+    ancestorDocIds = new int[maxDoc][];
+    for (int i = 0; i < maxDoc; i++) {
+      ancestorDocIds[i] = new int[counts[i]];
+      counts[i] = 0;
+    }
+    termsEnum = getTermsEnum(EclConceptFieldNames.ANCESTOR);
+    for (BytesRef term = termsEnum.next(); term != null; term =
+        termsEnum.next()) {
+      final Integer ancestorDoc = docIds.get(term.utf8ToString());
+      if (ancestorDoc != null) {
+        docs = termsEnum.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+        for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc =
+            docs.nextDoc()) {
+          ancestorDocIds[doc][counts[doc]++] = ancestorDoc;
+        }
+      }
+    }
+
+    Logger.getLogger(getClass()).info("Computed ECL concept sets for "
+        + docIds.size() + " concepts, "
+        + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  /**
+   * Returns the max doc, the size of all bitsets.
+   *
+   * @return the max doc
+   */
+  public int getMaxDoc() {
+    return maxDoc;
+  }
+
+  /**
+   * Returns the document id of the concept.
+   *
+   * @param terminologyId the terminology id
+   * @return the document id, or -1 if the concept is not indexed
+   */
+  public int getDocId(String terminologyId) {
+    final Integer doc = docIds.get(terminologyId);
+    return doc == null ? -1 : doc;
+  }
+
+  /**
+   * Returns the terminology id of the document.
+   *
+   * @param doc the doc
+   * @return the terminology id
+   */
+  public String getTerminologyId(int doc) {
+    return terminologyIds[doc];
+  }
+
+  /**
+   * Returns the internal id of the document.
+   *
+   * @param doc the doc
+   * @return the internal id
+   */
+  public long getInternalId(int doc) {
+    return internalIds[doc];
+  }
+
+  /**
+   * Returns the descendants of the concept. The returned bitset is shared and
+   * must not be modified.
+   *
+   * @param terminologyId the terminology id
+   * @param includeSelf the include self flag
+   * @return the descendants, empty if the concept is not indexed
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public FixedBitSet getDescendants(String terminologyId, boolean includeSelf)
+    throws IOException {
+    final String key = "<" + (includeSelf ? "<" : "") + terminologyId;
+    synchronized (hierarchyCache) {
+      final FixedBitSet cached = hierarchyCache.get(key);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    final FixedBitSet descendants = new FixedBitSet(maxDoc);
+    final DocsEnum docs = MultiFields.getTermDocsEnum(reader, liveDocs,
+        EclConceptFieldNames.ANCESTOR, new BytesRef(terminologyId),
+        DocsEnum.FLAG_NONE);
+    if (docs != null) {
+      for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc =
+          docs.nextDoc()) {
+        descendants.set(doc);
+      }
+    }
+    final int self = getDocId(terminologyId);
+    if (includeSelf && self != -1) {
+      descendants.set(self);
+    }
+    synchronized (hierarchyCache) {
+      hierarchyCache.put(key, descendants);
+    }
+    return descendants;
+  }
+
+  /**
+   * Returns the ancestors of the concept. The returned bitset is shared and
+   * must not be modified.
+   *
+   * @param terminologyId the terminology id
+   * @param includeSelf the include self flag
+   * @return the ancestors
+   * @throws Exception if the concept is not indexed
+   */
+  public FixedBitSet getAncestors(String terminologyId, boolean includeSelf)
+    throws Exception {
+    final int self = getDocId(terminologyId);
+    if (self == -1) {
+      throw new Exception(terminologyId + " has no index document");
+    }
+    final String key = ">" + (includeSelf ? ">" : "") + terminologyId;
+    synchronized (hierarchyCache) {
+      final FixedBitSet cached = hierarchyCache.get(key);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    final FixedBitSet ancestors = new FixedBitSet(maxDoc);
+    for (final int doc : ancestorDocIds[self]) {
+      ancestors.set(doc);
+    }
+    if (includeSelf) {
+      ancestors.set(self);
+    }
+    synchronized (hierarchyCache) {
+      hierarchyCache.put(key, ancestors);
+    }
+    return ancestors;
+  }
+
+  /**
+   * Returns the concepts with a value of the attribute in the value set, e.g.
+   * for an attribute refinement whose value is a hierarchy operator. Only the
+   * distinct values of the attribute are visited, not the value set.
+   *
+   * @param attribute the attribute field name
+   * @param values the value concepts
+   * @return the matching concepts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public FixedBitSet getAttributeMatches(String attribute, FixedBitSet values)
+    throws IOException {
+    final FixedBitSet matches = new FixedBitSet(maxDoc);
+    final Terms terms = MultiFields.getTerms(reader, attribute);
+    if (terms == null) {
+      return matches;
+    }
+    final TermsEnum termsEnum = terms.iterator(null);
+    DocsEnum docs = null;
+    for (BytesRef term = termsEnum.next(); term != null; term =
+        termsEnum.next()) {
+      final int valueDoc = getDocId(term.utf8ToString());
+      if (valueDoc != -1 && values.get(valueDoc)) {
+        docs = termsEnum.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+        for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc =
+            docs.nextDoc()) {
+          matches.set(doc);
+        }
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Returns the index of the next set bit at or after the index.
+   *
+   * @param bits the bits
+   * @param index the index
+   * @return the next set bit, or -1 if none
+   */
+  public static int nextSetBit(FixedBitSet bits, int index) {
+    return index < bits.length() ? bits.nextSetBit(index) : -1;
+  }
+
+  /**
+   * Returns the terms enum for the field, empty if the field is absent.
+   *
+   * @param field the field
+   * @return the terms enum
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private TermsEnum getTermsEnum(String field) throws IOException {
+    final Terms terms = MultiFields.getTerms(reader, field);
+    return terms == null ? TermsEnum.EMPTY : terms.iterator(null);
+  }
+
+  /**
+   * A filter matching the documents of a bitset over the top-level reader.
+   */
+  public static class BitSetFilter extends Filter {
+
+    /** The bits. */
+    private final FixedBitSet bits;
+
+    /**
+     * Instantiates a {@link BitSetFilter} from the specified parameters.
+     *
+     * @param bits the bits
+     */
+    public BitSetFilter(FixedBitSet bits) {
+      this.bits = bits;
+    }
+
+    /* see superclass */
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs)
+      throws IOException {
+      // slice out this segment's documents
+      final int base = context.docBase;
+      final int ct = context.reader().maxDoc();
+      final FixedBitSet segmentBits = new FixedBitSet(ct);
+      for (int doc = nextSetBit(bits, base); doc != -1
+          && doc < base + ct; doc = nextSetBit(bits, doc + 1)) {
+        segmentBits.set(doc - base);
+      }
+      return BitsFilteredDocIdSet.wrap(segmentBits, acceptDocs);
+    }
+
+    /* see superclass */
+    @Override
+    public String toString() {
+      return "BitSetFilter(" + bits.cardinality() + ")";
+    }
+  }
+}
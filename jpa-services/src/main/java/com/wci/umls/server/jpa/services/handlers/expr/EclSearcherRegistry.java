@@ -0,0 +1,237 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.handlers.expr;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+
+import com.wci.umls.server.helpers.ConfigUtility;
+
+/**
+ * Process-wide registry of ECL index searchers, one {@link SearcherManager}
+ * per terminology and version, opened on a memory-mapped directory on first
+ * use. Searchers are shared across requests, so their caches stay warm.
+ *
+ * Writers of an ECL index call {@link #refresh(String, String)} after
+ * committing so subsequent queries see the new index, or
+ * {@link #close(String, String)} before removing it. Also tracks per-index
+ * query latency.
+ */
+public class EclSearcherRegistry {
+
+  /** The number of queries between latency log entries. */
+  private static final int LOG_INTERVAL = 1000;
+
+  /** The managers, by terminology and version. */
+  private static final Map<String, SearcherManager> managers = new HashMap<>();
+
+  /** The directories, by terminology and version. */
+  private static final Map<String, Directory> directories = new HashMap<>();
+
+  /** The query statistics, by terminology and version. */
+  private static final Map<String, QueryStatistics> statistics =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Instantiates an empty {@link EclSearcherRegistry}.
+   */
+  private EclSearcherRegistry() {
+    // n/a
+  }
+
+  /**
+   * Returns the searcher manager for the terminology and version, opening it
+   * if needed. Callers must release each acquired searcher.
+   *
+   * @param terminology the terminology
+   * @param version the version
+   * @return the searcher manager
+   * @throws Exception the exception
+   */
+  public static synchronized SearcherManager getSearcherManager(
+    String terminology, String version) throws Exception {
+    final String key = getKey(terminology, version);
+    SearcherManager manager = managers.get(key);
+    if (manager == null) {
+      final File indexDir = new File(
+          ConfigUtility.getExpressionIndexDirectoryName(terminology, version));
+      if (!indexDir.exists()) {
+        throw new Exception("Expression index does not exist for "
+            + terminology + ", " + version);
+      }
+      Logger.getLogger(EclSearcherRegistry.class)
+          .info("Open ECL index searcher for " + key);
+      final Directory directory = new MMapDirectory(indexDir);
+      try {
+        manager = new SearcherManager(directory, null);
+      } catch (Exception e) {
+        directory.close();
+        throw e;
+      }
+      managers.put(key, manager);
+      directories.put(key, directory);
+    }
+    return manager;
+  }
+
+  /**
+   * Makes a rewritten index visible to subsequent queries. Searchers already
+   * acquired keep using the previous index until released. Refreshes hold the
+   * registry lock, so they cannot overlap a {@link #close(String, String)} of
+   * the same manager.
+   *
+   * @param terminology the terminology
+   * @param version the version
+   * @throws Exception the exception
+   */
+  public static synchronized void refresh(String terminology, String version)
+    throws Exception {
+    final SearcherManager manager = managers.get(getKey(terminology, version));
+    if (manager != null) {
+      Logger.getLogger(EclSearcherRegistry.class).info(
+          "Refresh ECL index searcher for " + getKey(terminology, version));
+      manager.maybeRefreshBlocking();
+    }
+  }
+
+  /**
+   * Closes and forgets the searcher manager for the terminology and version,
+   * e.g. before its index is removed.
+   *
+   * @param terminology the terminology
+   * @param version the version
+   * @throws Exception the exception
+   */
+  public static synchronized void close(String terminology, String version)
+    throws Exception {
+    final String key = getKey(terminology, version);
+    final SearcherManager manager = managers.remove(key);
+    final Directory directory = directories.remove(key);
+    statistics.remove(key);
+    if (manager != null) {
+      Logger.getLogger(EclSearcherRegistry.class)
+          .info("Close ECL index searcher for " + key);
+      manager.close();
+    }
+    if (directory != null) {
+      directory.close();
+    }
+  }
+
+  /**
+   * Records the elapsed time of a query.
+   *
+   * @param terminology the terminology
+   * @param version the version
+   * @param nanos the elapsed nanoseconds
+   */
+  public static void recordQuery(String terminology, String version,
+    long nanos) {
+    final String key = getKey(terminology, version);
+    QueryStatistics stats = statistics.get(key);
+    if (stats == null) {
+      statistics.putIfAbsent(key, new QueryStatistics());
+      stats = statistics.get(key);
+    }
+    final long ct = stats.add(nanos);
+    if (ct % LOG_INTERVAL == 0) {
+      Logger.getLogger(EclSearcherRegistry.class)
+          .info("ECL queries for " + key + ": " + stats);
+    }
+  }
+
+  /**
+   * Returns the query statistics for the terminology and version.
+   *
+   * @param terminology the terminology
+   * @param version the version
+   * @return the query statistics, or null if no queries were recorded
+   */
+  public static QueryStatistics getQueryStatistics(String terminology,
+    String version) {
+    return statistics.get(getKey(terminology, version));
+  }
+
+  /**
+   * Returns the key.
+   *
+   * @param terminology the terminology
+   * @param version the version
+   * @return the key
+   */
+  private static String getKey(String terminology, String version) {
+    return terminology + "/" + version;
+  }
+
+  /**
+   * Query latency statistics for one index.
+   */
+  public static class QueryStatistics {
+
+    /** The count. */
+    private final AtomicLong count = new AtomicLong();
+
+    /** The total nanos. */
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    /** The max nanos. */
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Adds a query.
+     *
+     * @param nanos the nanos
+     * @return the count, including this query
+     */
+    long add(long nanos) {
+      totalNanos.addAndGet(nanos);
+      maxNanos.accumulateAndGet(nanos, Math::max);
+      return count.incrementAndGet();
+    }
+
+    /**
+     * Returns the count.
+     *
+     * @return the count
+     */
+    public long getCount() {
+      return count.get();
+    }
+
+    /**
+     * Returns the average milliseconds.
+     *
+     * @return the average milliseconds
+     */
+    public double getAverageMillis() {
+      final long ct = count.get();
+      return ct == 0 ? 0 : totalNanos.get() / 1000000.0 / ct;
+    }
+
+    /**
+     * Returns the max milliseconds.
+     *
+     * @return the max milliseconds
+     */
+    public double getMaxMillis() {
+      return maxNanos.get() / 1000000.0;
+    }
+
+    /* see superclass */
+    @Override
+    public String toString() {
+      return "count = " + getCount() + ", avg = "
+          + String.format("%.2f", getAverageMillis()) + "ms, max = "
+          + String.format("%.2f", getMaxMillis()) + "ms";
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.Util;
+
+import com.wci.umls.server.helpers.FieldedStringTokenizer;
+
+/**
+ * Acronym expansions, from a tab-delimited acronyms file (acronym, expansion),
+ * kept as an FST. The FST is built once into an index file stamped with the
+ * version of the acronyms file, and the loaded dictionary is shared by every
+ * handler using that index file.
+ */
+public class AcronymDictionary {
+
+  /** The codec name, for the index file header. */
+  private static final String CODEC = "AcronymDictionary";
+
+  /** The index file format version. */
+  private static final int VERSION = 1;
+
+  /** The expansion separator (the acronyms file is tab-delimited). */
+  private static final String SEPARATOR = "\t";
+
+  /** The loaded dictionaries, by index file. */
+  private static final Map<String, AcronymDictionary> dictionaries =
+      new ConcurrentHashMap<>();
+
+  /** The expansions by acronym, null if there are none. */
+  private final FST<BytesRef> fst;
+
+  /** The version of the acronyms file the index was built from. */
+  private final String sourceVersion;
+
+  /**
+   * Instantiates a {@link AcronymDictionary} from the specified parameters.
+   *
+   * @param fst the fst
+   * @param sourceVersion the source version
+   */
+  private AcronymDictionary(FST<BytesRef> fst, String sourceVersion) {
+    this.fst = fst;
+    this.sourceVersion = sourceVersion;
+  }
+
+  /**
+   * Returns the shared dictionary for the acronyms file, loaded from the index
+   * file. If the index file is missing or was built from another version of
+   * the acronyms file, it is rebuilt first.
+   *
+   * @param acronymsFile the acronyms file
+   * @param indexFile the index file
+   * @return the dictionary
+   * @throws Exception the exception
+   */
+  public static AcronymDictionary getInstance(File acronymsFile,
+    File indexFile) throws Exception {
+    final String version = getSourceVersion(acronymsFile);
+    final String key = indexFile.getCanonicalPath();
+    AcronymDictionary dictionary = dictionaries.get(key);
+    if (dictionary != null && dictionary.sourceVersion.equals(version)) {
+      return dictionary;
+    }
+    synchronized (dictionaries) {
+      dictionary = dictionaries.get(key);
+      if (dictionary != null && dictionary.sourceVersion.equals(version)) {
+        return dictionary;
+      }
+      try {
+        dictionary = indexFile.exists() ? read(indexFile) : null;
+      } catch (IOException e) {
+        // e.g. an older format
+        dictionary = null;
+      }
+      if (dictionary == null || !dictionary.sourceVersion.equals(version)) {
+        Logger.getLogger(AcronymDictionary.class)
+            .warn("Acronym index out of date, building " + indexFile);
+        build(acronymsFile, indexFile);
+        dictionary = read(indexFile);
+      }
+      dictionaries.put(key, dictionary);
+      return dictionary;
+    }
+  }
+
+  /**
+   * Builds the index file from the acronyms file. The file is written in
+   * full, then moved into place.
+   *
+   * @param acronymsFile the acronyms file
+   * @param indexFile the index file
+   * @throws Exception the exception
+   */
+  public static void build(File acronymsFile, File indexFile)
+    throws Exception {
+    Logger.getLogger(AcronymDictionary.class)
+        .info("Build acronym index " + acronymsFile + " => " + indexFile);
+
+    // Read the expansions, in file order, sorted by acronym bytes
+    final Map<BytesRef, Set<String>> expansions = new TreeMap<>();
+    try (final BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(acronymsFile), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        final String[] tokens = FieldedStringTokenizer.split(line, "\t");
+        expansions
+            .computeIfAbsent(new BytesRef(tokens[0]),
+                k -> new LinkedHashSet<>(2))
+            .add(tokens[1]);
+      }
+    }
+
+    // Build the FST
+    final Builder<BytesRef> builder = new Builder<>(FST.INPUT_TYPE.BYTE1,
+        ByteSequenceOutputs.getSingleton());
+    final IntsRefBuilder scratch = new IntsRefBuilder();
+    for (final Map.Entry<BytesRef, Set<String>> entry : expansions
+        .entrySet()) {
+      builder.add(Util.toIntsRef(entry.getKey(), scratch),
+          new BytesRef(String.join(SEPARATOR, entry.getValue())));
+    }
+    final FST<BytesRef> fst = builder.finish();
+
+    // Write the header, version and FST
+    indexFile.getAbsoluteFile().getParentFile().mkdirs();
+    final File tmpFile = new File(indexFile.getPath() + ".tmp");
+    try (final OutputStream os = new FileOutputStream(tmpFile)) {
+      final OutputStreamDataOutput out = new OutputStreamDataOutput(os);
+      CodecUtil.writeHeader(out, CODEC, VERSION);
+      out.writeString(getSourceVersion(acronymsFile));
+      out.writeByte((byte) (fst == null ? 0 : 1));
+      if (fst != null) {
+        fst.save(out);
+      }
+    }
+    Files.move(tmpFile.toPath(), indexFile.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+    Logger.getLogger(AcronymDictionary.class)
+        .info("  acronyms = " + expansions.size() + ", bytes = "
+            + (fst == null ? 0 : fst.ramBytesUsed()));
+  }
+
+  /**
+   * Reads the index file, through a memory-mapped directory.
+   *
+   * @param indexFile the index file
+   * @return the dictionary
+   * @throws Exception the exception
+   */
+  private static AcronymDictionary read(File indexFile) throws Exception {
+    try (final Directory directory =
+        new MMapDirectory(indexFile.getAbsoluteFile().getParentFile());
+        final IndexInput in =
+            directory.openInput(indexFile.getName(), IOContext.READONCE)) {
+      CodecUtil.checkHeader(in, CODEC, VERSION, VERSION);
+      final String version = in.readString();
+      final FST<BytesRef> fst = in.readByte() == 0 ? null
+          : new FST<>(in, ByteSequenceOutputs.getSingleton());
+      return new AcronymDictionary(fst, version);
+    }
+  }
+
+  /**
+   * Returns the version of the acronyms file.
+   *
+   * @param acronymsFile the acronyms file
+   * @return the version
+   * @throws Exception the exception
+   */
+  private static String getSourceVersion(File acronymsFile) throws Exception {
+    if (!acronymsFile.exists()) {
+      throw new Exception("Acronyms file does not exist " + acronymsFile);
+    }
+    return acronymsFile.length() + "-" + acronymsFile.lastModified();
+  }
+
+  /**
+   * Indicates whether the acronym has expansions.
+   *
+   * @param acronym the acronym
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   * @throws Exception the exception
+   */
+  public boolean containsKey(String acronym) throws Exception {
+    return fst != null && Util.get(fst, new BytesRef(acronym)) != null;
+  }
+
+  /**
+   * Returns the expansions of the acronym.
+   *
+   * @param acronym the acronym
+   * @return the expansions, or null if there are none
+   * @throws Exception the exception
+   */
+  public Set<String> get(String acronym) throws Exception {
+    final BytesRef output =
+        fst == null ? null : Util.get(fst, new BytesRef(acronym));
+    if (output == null) {
+      return null;
+    }
+    // Same set type and insertion order as when loaded into a map
+    final Set<String> expansions = new HashSet<>(2);
+    for (final String expansion : FieldedStringTokenizer
+        .split(output.utf8ToString(), SEPARATOR)) {
+      expansions.add(expansion);
+    }
+    return expansions;
+  }
+}
@@ -0,0 +1,321 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+import java.math.BigInteger;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.collection.AbstractCollectionPersister;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+
+import com.wci.umls.server.jpa.content.AtomJpa;
+import com.wci.umls.server.jpa.content.AtomRelationshipJpa;
+import com.wci.umls.server.jpa.content.CodeJpa;
+import com.wci.umls.server.jpa.content.CodeRelationshipJpa;
+import com.wci.umls.server.jpa.content.ConceptJpa;
+import com.wci.umls.server.jpa.content.ConceptRelationshipJpa;
+import com.wci.umls.server.jpa.content.DescriptorJpa;
+import com.wci.umls.server.jpa.content.DescriptorRelationshipJpa;
+
+/**
+ * Attaches persisted attributes to their owners by writing the owner
+ * attributes join-table rows with JDBC batch inserts, so owners are never
+ * loaded into the persistence context.
+ *
+ * Rows are buffered in primitive arrays and written when the buffer fills or
+ * {@link #flush()} is called. A flush first flushes the session so the
+ * attribute rows exist, and must happen before the transaction commits.
+ * Relationship owners are given by id only and are resolved in the same
+ * order as
+ * {@link com.wci.umls.server.jpa.services.ContentServiceJpa#getRelationship}
+ * with one query per relationship table per flush. Owner attribute lists are
+ * not indexed by Hibernate Search, so attaching needs no reindexing; date
+ * updates bypass the index and are reported by {@link #getUpdatedIds()} for
+ * the caller to reindex.
+ */
+public class AttributeBulkWriter {
+
+  /** The default batch size. */
+  public static final int DEFAULT_BATCH_SIZE = 10000;
+
+  /** The owner classes, by owner type index. */
+  private static final Class<?>[] OWNER_CLASSES = new Class<?>[] {
+      ConceptJpa.class, AtomJpa.class, CodeJpa.class, DescriptorJpa.class,
+      ConceptRelationshipJpa.class, AtomRelationshipJpa.class,
+      CodeRelationshipJpa.class, DescriptorRelationshipJpa.class
+  };
+
+  /** The index of the first relationship class. */
+  private static final int FIRST_RELATIONSHIP = 4;
+
+  /** The marker for relationship owners not yet resolved to a table. */
+  private static final byte UNRESOLVED = -1;
+
+  /** The session. */
+  private final Session session;
+
+  /** The factory. */
+  private final SessionFactoryImplementor factory;
+
+  /** The owner types. */
+  private final byte[] ownerTypes;
+
+  /** The owner ids. */
+  private final long[] ownerIds;
+
+  /** The attribute ids. */
+  private final long[] attributeIds;
+
+  /** The buffered row count. */
+  private int ct = 0;
+
+  /** The buffered date updates. */
+  private final List<Object[]> dateUpdates = new ArrayList<>();
+
+  /** The ids of objects whose dates were updated. */
+  private final Set<Long> updatedIds = new HashSet<>();
+
+  /** The total row count. */
+  private long totalCt = 0;
+
+  /**
+   * Instantiates a {@link AttributeBulkWriter} from the specified parameters.
+   *
+   * @param manager the manager
+   * @param batchSize the batch size
+   */
+  public AttributeBulkWriter(EntityManager manager, int batchSize) {
+    this.session = manager.unwrap(Session.class);
+    this.factory = (SessionFactoryImplementor) session.getSessionFactory();
+    this.ownerTypes = new byte[batchSize];
+    this.ownerIds = new long[batchSize];
+    this.attributeIds = new long[batchSize];
+  }
+
+  /**
+   * Attaches an attribute to a concept, atom, code, or descriptor.
+   *
+   * @param ownerClass the owner class
+   * @param ownerId the owner id
+   * @param attributeId the attribute id
+   * @throws Exception the exception
+   */
+  public void add(Class<?> ownerClass, long ownerId, long attributeId)
+    throws Exception {
+    final int type = Arrays.asList(OWNER_CLASSES).indexOf(ownerClass);
+    if (type < 0 || type >= FIRST_RELATIONSHIP) {
+      throw new Exception("Unexpected attribute owner " + ownerClass);
+    }
+    add((byte) type, ownerId, attributeId);
+  }
+
+  /**
+   * Attaches an attribute to a relationship of any type.
+   *
+   * @param relationshipId the relationship id
+   * @param attributeId the attribute id
+   * @throws Exception the exception
+   */
+  public void addRelationshipAttribute(long relationshipId, long attributeId)
+    throws Exception {
+    add(UNRESOLVED, relationshipId, attributeId);
+  }
+
+  /**
+   * Sets a date property of an object, e.g. the timestamp of a concept.
+   *
+   * @param entityClass the entity class
+   * @param property the property
+   * @param id the id
+   * @param date the date
+   * @throws Exception the exception
+   */
+  public void updateDate(Class<?> entityClass, String property, long id,
+    Date date) throws Exception {
+    dateUpdates.add(new Object[] {
+        entityClass, property, id, new Timestamp(date.getTime())
+    });
+    updatedIds.add(id);
+    if (dateUpdates.size() == ownerIds.length) {
+      flush();
+    }
+  }
+
+  /**
+   * Buffers a row.
+   *
+   * @param type the type
+   * @param ownerId the owner id
+   * @param attributeId the attribute id
+   * @throws Exception the exception
+   */
+  private void add(byte type, long ownerId, long attributeId)
+    throws Exception {
+    ownerTypes[ct] = type;
+    ownerIds[ct] = ownerId;
+    attributeIds[ct] = attributeId;
+    if (++ct == ownerIds.length) {
+      flush();
+    }
+  }
+
+  /**
+   * Writes any buffered rows and date updates as JDBC batches.
+   *
+   * @throws Exception the exception
+   */
+  public void flush() throws Exception {
+    if (ct == 0 && dateUpdates.isEmpty()) {
+      return;
+    }
+    // the attributes must be written before rows referencing them
+    session.flush();
+    resolveRelationships();
+    int written = 0;
+    for (int i = 0; i < ct; i++) {
+      if (ownerTypes[i] != UNRESOLVED) {
+        written++;
+      }
+    }
+
+    session.doWork(connection -> {
+      for (int type = 0; type < OWNER_CLASSES.length; type++) {
+        final AbstractCollectionPersister persister =
+            (AbstractCollectionPersister) factory.getCollectionPersister(
+                OWNER_CLASSES[type].getName() + ".attributes");
+        PreparedStatement ps = null;
+        try {
+          for (int i = 0; i < ct; i++) {
+            if (ownerTypes[i] != type) {
+              continue;
+            }
+            if (ps == null) {
+              ps = connection.prepareStatement("insert into "
+                  + persister.getTableName() + " ("
+                  + persister.getKeyColumnNames()[0] + ", "
+                  + persister.getElementColumnNames()[0]
+                  + ") values (?, ?)");
+            }
+            ps.setLong(1, ownerIds[i]);
+            ps.setLong(2, attributeIds[i]);
+            ps.addBatch();
+          }
+          if (ps != null) {
+            ps.executeBatch();
+          }
+        } finally {
+          if (ps != null) {
+            ps.close();
+          }
+        }
+      }
+
+      for (final Object[] update : dateUpdates) {
+        final AbstractEntityPersister persister =
+            getEntityPersister((Class<?>) update[0]);
+        try (final PreparedStatement ps =
+            connection.prepareStatement("update " + persister.getTableName()
+                + " set "
+                + persister.getPropertyColumnNames((String) update[1])[0]
+                + " = ? where " + persister.getIdentifierColumnNames()[0]
+                + " = ?")) {
+          ps.setTimestamp(1, (Timestamp) update[3]);
+          ps.setLong(2, (Long) update[2]);
+          ps.executeUpdate();
+        }
+      }
+    });
+
+    totalCt += written;
+    Logger.getLogger(getClass()).debug(
+        "  bulk attach attributes = " + written + ", total = " + totalCt);
+    ct = 0;
+    dateUpdates.clear();
+  }
+
+  /**
+   * Resolves the table of each buffered relationship owner. Owners that are
+   * not found are dropped with an error.
+   *
+   * @throws Exception the exception
+   */
+  private void resolveRelationships() throws Exception {
+    final Set<Long> unresolved = new HashSet<>();
+    for (int i = 0; i < ct; i++) {
+      if (ownerTypes[i] == UNRESOLVED) {
+        unresolved.add(ownerIds[i]);
+      }
+    }
+    if (unresolved.isEmpty()) {
+      return;
+    }
+    final Set<Long> found = new HashSet<>();
+    for (int type = FIRST_RELATIONSHIP; type < OWNER_CLASSES.length
+        && !unresolved.isEmpty(); type++) {
+      final AbstractEntityPersister persister =
+          getEntityPersister(OWNER_CLASSES[type]);
+      final String idColumn = persister.getIdentifierColumnNames()[0];
+      found.clear();
+      for (final Object id : session
+          .createSQLQuery("select " + idColumn + " from "
+              + persister.getTableName() + " where " + idColumn
+              + " in (:ids)")
+          .setParameterList("ids", unresolved).list()) {
+        found.add(id instanceof BigInteger ? ((BigInteger) id).longValue()
+            : ((Number) id).longValue());
+      }
+      for (int i = 0; i < ct; i++) {
+        if (ownerTypes[i] == UNRESOLVED && found.contains(ownerIds[i])) {
+          ownerTypes[i] = (byte) type;
+        }
+      }
+      unresolved.removeAll(found);
+    }
+    for (final Long id : unresolved) {
+      Logger.getLogger(getClass())
+          .error("Attribute references missing relationship " + id);
+    }
+  }
+
+  /**
+   * Returns the entity persister.
+   *
+   * @param entityClass the entity class
+   * @return the entity persister
+   */
+  private AbstractEntityPersister getEntityPersister(Class<?> entityClass) {
+    return (AbstractEntityPersister) factory
+        .getEntityPersister(entityClass.getName());
+  }
+
+  /**
+   * Returns the ids of objects whose dates were updated.
+   *
+   * @return the updated ids
+   */
+  public Set<Long> getUpdatedIds() {
+    return updatedIds;
+  }
+
+  /**
+   * Returns the total number of attributes attached.
+   *
+   * @return the total count
+   */
+  public long getTotalCount() {
+    return totalCt;
+  }
+}
@@ -0,0 +1,518 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.ngram.EdgeNGramTokenFilter;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.index.sorter.EarlyTerminatingSortingCollector;
+import org.apache.lucene.index.sorter.SortingMergePolicy;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+import com.wci.umls.server.helpers.ConfigUtility;
+import com.wci.umls.server.helpers.StringList;
+
+/**
+ * Autocomplete suggestions for the atom classes (concepts, descriptors or
+ * codes) of one terminology and version. Each atom class is one entry, found
+ * by word prefixes of its atom names and suggested by its own name, in the
+ * manner of an analyzing infix suggester. Entries are kept in a small index
+ * on disk (memory mapped where available), apart from the main index, so
+ * lookups do not touch JPA and the entries are not held on the heap.
+ *
+ * Entries are keyed by atom class id, so an edited atom class replaces its
+ * entry (see {@link #update(Long, String, Collection)}). Suggesters are
+ * shared, one per class, terminology and version, and are thread-safe.
+ */
+public class AutocompleteSuggester implements Closeable {
+
+  /** The id field. */
+  private static final String ID_FIELD = "id";
+
+  /** The name field, stored for the results. */
+  private static final String NAME_FIELD = "name";
+
+  /** The text field, the words of the atom names. */
+  private static final String TEXT_FIELD = "text";
+
+  /** The grams field, the short prefixes of the words of the atom names. */
+  private static final String GRAMS_FIELD = "textgrams";
+
+  /** The weight field, shorter names are suggested first. */
+  private static final String WEIGHT_FIELD = "weight";
+
+  /**
+   * The minimum prefix length looked up by prefix query, shorter prefixes are
+   * looked up in the grams field.
+   */
+  private static final int MIN_PREFIX_CHARS = 4;
+
+  /** The suggesters, by class, terminology and version. */
+  private static final Map<String, AutocompleteSuggester> suggesters =
+      new ConcurrentHashMap<>();
+
+  /** The keys of the suggesters being built. */
+  private static final Set<String> building = ConcurrentHashMap.newKeySet();
+
+  /** The sort, by weight then name. */
+  private static final Sort sort =
+      new Sort(new SortField(WEIGHT_FIELD, SortField.Type.LONG),
+          new SortField(NAME_FIELD, SortField.Type.STRING));
+
+  /** The query analyzer. */
+  private static final Analyzer queryAnalyzer = new Analyzer() {
+    /* see superclass */
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName,
+      Reader reader) {
+      final Tokenizer tokenizer = new StandardTokenizer(reader);
+      return new TokenStreamComponents(tokenizer,
+          new LowerCaseFilter(tokenizer));
+    }
+  };
+
+  /** The index analyzer, which also indexes the short prefixes. */
+  private static final Analyzer indexAnalyzer =
+      new Analyzer(Analyzer.PER_FIELD_REUSE_STRATEGY) {
+    /* see superclass */
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName,
+      Reader reader) {
+      final Tokenizer tokenizer = new StandardTokenizer(reader);
+      TokenStream stream = new LowerCaseFilter(tokenizer);
+      if (fieldName.equals(GRAMS_FIELD)) {
+        stream = new EdgeNGramTokenFilter(stream, 1, MIN_PREFIX_CHARS - 1);
+      }
+      return new TokenStreamComponents(tokenizer, stream);
+    }
+  };
+
+  /** The directory. */
+  private final Directory directory;
+
+  /** The writer. */
+  private final IndexWriter writer;
+
+  /** The searcher manager. */
+  private final SearcherManager searcherManager;
+
+  /**
+   * Instantiates an empty {@link AutocompleteSuggester} from the specified
+   * parameters. Any index already in the directory is replaced.
+   *
+   * @param indexDir the index directory
+   * @throws Exception the exception
+   */
+  public AutocompleteSuggester(File indexDir) throws Exception {
+    indexDir.mkdirs();
+    directory = FSDirectory.open(indexDir);
+    writer = new IndexWriter(directory,
+        new IndexWriterConfig(Version.LATEST, indexAnalyzer)
+            .setOpenMode(IndexWriterConfig.OpenMode.CREATE)
+            // merged segments are in suggestion order, see lookup
+            .setMergePolicy(
+                new SortingMergePolicy(new TieredMergePolicy(), sort)));
+    searcherManager = new SearcherManager(writer, true, null);
+  }
+
+  /**
+   * Returns the suggester for the class, terminology and version.
+   *
+   * @param clazz the class
+   * @param terminology the terminology
+   * @param version the version
+   * @return the suggester, or null if not yet built
+   */
+  public static AutocompleteSuggester get(Class<?> clazz, String terminology,
+    String version) {
+    return suggesters.get(getKey(clazz, terminology, version));
+  }
+
+  /**
+   * Returns the index directory for the class, terminology and version, under
+   * the "autocomplete.indexBase" config property (by default, "autocomplete"
+   * under the base index directory).
+   *
+   * @param clazz the class
+   * @param terminology the terminology
+   * @param version the version
+   * @return the index directory
+   * @throws Exception the exception
+   */
+  public static File getIndexDirectory(Class<?> clazz, String terminology,
+    String version) throws Exception {
+    return new File(getIndexBase(),
+        clazz.getSimpleName() + "/" + terminology + "/" + version);
+  }
+
+  /**
+   * Removes the suggesters and index directories of all classes for the
+   * terminology and version.
+   *
+   * @param terminology the terminology
+   * @param version the version
+   * @throws Exception the exception
+   */
+  public static void removeIndexes(String terminology, String version)
+    throws Exception {
+    final String suffix = "/" + terminology + "/" + version;
+    for (final String key : new ArrayList<>(suggesters.keySet())) {
+      if (key.endsWith(suffix)) {
+        final AutocompleteSuggester suggester = suggesters.remove(key);
+        if (suggester != null) {
+          suggester.close();
+        }
+      }
+    }
+    final File[] classDirs = getIndexBase().listFiles();
+    if (classDirs != null) {
+      for (final File classDir : classDirs) {
+        ConfigUtility.deleteDirectory(
+            new File(classDir, terminology + "/" + version));
+      }
+    }
+  }
+
+  /**
+   * Returns the base directory of the suggester indexes.
+   *
+   * @return the index base
+   * @throws Exception the exception
+   */
+  private static File getIndexBase() throws Exception {
+    final String indexBase = ConfigUtility.getConfigProperties()
+        .getProperty("autocomplete.indexBase");
+    return indexBase != null ? new File(indexBase)
+        : new File(ConfigUtility.getBaseIndexDirectory(), "autocomplete");
+  }
+
+  /**
+   * Marks the suggester for the class, terminology and version as being
+   * built.
+   *
+   * @param clazz the class
+   * @param terminology the terminology
+   * @param version the version
+   * @return <code>true</code> if the caller should build it,
+   *         <code>false</code> if it is already being built
+   */
+  public static boolean startBuild(Class<?> clazz, String terminology,
+    String version) {
+    return building.add(getKey(clazz, terminology, version));
+  }
+
+  /**
+   * Marks the build of the suggester for the class, terminology and version
+   * as finished (whether or not it succeeded).
+   *
+   * @param clazz the class
+   * @param terminology the terminology
+   * @param version the version
+   */
+  public static void finishBuild(Class<?> clazz, String terminology,
+    String version) {
+    building.remove(getKey(clazz, terminology, version));
+  }
+
+  /**
+   * Registers the suggester for the class, terminology and version. The
+   * entries so far are merged into suggestion order first.
+   *
+   * @param clazz the class
+   * @param terminology the terminology
+   * @param version the version
+   * @param suggester the suggester
+   * @throws Exception the exception
+   */
+  public static void put(Class<?> clazz, String terminology, String version,
+    AutocompleteSuggester suggester) throws Exception {
+    suggester.writer.forceMerge(1);
+    suggester.refresh();
+    final AutocompleteSuggester previous =
+        suggesters.put(getKey(clazz, terminology, version), suggester);
+    if (previous != null) {
+      previous.close();
+    }
+  }
+
+  /**
+   * Returns the suggesters for the class, of all terminologies and versions.
+   *
+   * @param clazz the class
+   * @return the suggesters
+   */
+  public static List<AutocompleteSuggester> getAll(Class<?> clazz) {
+    final String prefix = clazz.getName() + "/";
+    final List<AutocompleteSuggester> list = new ArrayList<>();
+    for (final Map.Entry<String, AutocompleteSuggester> entry : suggesters
+        .entrySet()) {
+      if (entry.getKey().startsWith(prefix)) {
+        list.add(entry.getValue());
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Indicates whether a suggester is built for the class and terminology, of
+   * any version.
+   *
+   * @param clazz the class
+   * @param terminology the terminology, or null for any terminology
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   */
+  public static boolean exists(Class<?> clazz, String terminology) {
+    final String prefix = clazz.getName() + "/"
+        + (terminology == null ? "" : terminology + "/");
+    for (final String key : suggesters.keySet()) {
+      if (key.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Indicates whether no suggesters are built.
+   *
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   */
+  public static boolean isEmpty() {
+    return suggesters.isEmpty();
+  }
+
+  /**
+   * Discards all suggesters, e.g. after changes made outside the services.
+   */
+  public static void clear() {
+    for (final String key : new ArrayList<>(suggesters.keySet())) {
+      final AutocompleteSuggester suggester = suggesters.remove(key);
+      try {
+        suggester.close();
+      } catch (IOException e) {
+        Logger.getLogger(AutocompleteSuggester.class)
+            .warn("Unable to close autocomplete suggester " + key, e);
+      }
+    }
+  }
+
+  /**
+   * Returns the key.
+   *
+   * @param clazz the class
+   * @param terminology the terminology
+   * @param version the version
+   * @return the key
+   */
+  private static String getKey(Class<?> clazz, String terminology,
+    String version) {
+    return clazz.getName() + "/" + terminology + "/" + version;
+  }
+
+  /**
+   * Adds or replaces the entry of an atom class. Changes are visible after
+   * {@link #refresh()}.
+   *
+   * @param id the atom class id
+   * @param name the atom class name
+   * @param texts the atom names, or none to remove the entry
+   * @throws Exception the exception
+   */
+  public void update(Long id, String name, Collection<String> texts)
+    throws Exception {
+    if (name == null || texts == null || texts.isEmpty()) {
+      remove(id);
+      return;
+    }
+    final Document doc = new Document();
+    doc.add(new StringField(ID_FIELD, id.toString(), Field.Store.NO));
+    doc.add(new StoredField(NAME_FIELD, name));
+    doc.add(new SortedDocValuesField(NAME_FIELD, new BytesRef(name)));
+    doc.add(new NumericDocValuesField(WEIGHT_FIELD, name.length()));
+    for (final String text : texts) {
+      doc.add(new TextField(TEXT_FIELD, text, Field.Store.NO));
+      doc.add(new TextField(GRAMS_FIELD, text, Field.Store.NO));
+    }
+    writer.updateDocument(new Term(ID_FIELD, id.toString()), doc);
+  }
+
+  /**
+   * Removes the entry of an atom class. Changes are visible after
+   * {@link #refresh()}.
+   *
+   * @param id the atom class id
+   * @throws Exception the exception
+   */
+  public void remove(Long id) throws Exception {
+    writer.deleteDocuments(new Term(ID_FIELD, id.toString()));
+  }
+
+  /**
+   * Makes the changes so far visible to lookups.
+   *
+   * @throws Exception the exception
+   */
+  public void refresh() throws Exception {
+    searcherManager.maybeRefreshBlocking();
+  }
+
+  /**
+   * Returns the distinct names of the atom classes with an atom name having a
+   * word starting with each word of the search term. The last word is taken as
+   * a prefix, unless the search term ends with a space.
+   *
+   * @param searchTerm the search term
+   * @param maxResults the max results
+   * @return the names, with the number of matching atom classes as the total
+   *         count
+   * @throws Exception the exception
+   */
+  public StringList lookup(String searchTerm, int maxResults)
+    throws Exception {
+    final StringList list = new StringList();
+    final List<String> tokens = getTokens(searchTerm);
+    if (tokens.isEmpty()) {
+      return list;
+    }
+    final boolean prefix =
+        !Character.isWhitespace(searchTerm.charAt(searchTerm.length() - 1));
+    final BooleanQuery query = new BooleanQuery();
+    for (int i = 0; i < tokens.size(); i++) {
+      final String token = tokens.get(i);
+      if (!prefix || i < tokens.size() - 1) {
+        query.add(new TermQuery(new Term(TEXT_FIELD, token)), Occur.MUST);
+      } else if (token.length() < MIN_PREFIX_CHARS) {
+        query.add(new TermQuery(new Term(GRAMS_FIELD, token)), Occur.MUST);
+      } else {
+        query.add(new PrefixQuery(new Term(TEXT_FIELD, token)), Occur.MUST);
+      }
+    }
+
+    final IndexSearcher searcher = searcherManager.acquire();
+    try {
+      // Names are not unique, so read on until there are enough
+      final Set<String> names = new LinkedHashSet<>();
+      int n = maxResults * 2;
+      while (true) {
+        final TopFieldCollector collector =
+            TopFieldCollector.create(sort, n, false, false, false, false);
+        searcher.search(query,
+            new EarlyTerminatingSortingCollector(collector, sort, n));
+        final TopDocs docs = collector.topDocs();
+        names.clear();
+        for (final ScoreDoc scoreDoc : docs.scoreDocs) {
+          names.add(searcher.doc(scoreDoc.doc).get(NAME_FIELD));
+          if (names.size() == maxResults) {
+            break;
+          }
+        }
+        // Fewer hits than asked for means no segment stopped early, so all
+        // matches were collected and counted
+        if (docs.totalHits < n) {
+          list.setTotalCount(docs.totalHits);
+          break;
+        }
+        if (names.size() == maxResults) {
+          final TotalHitCountCollector counter = new TotalHitCountCollector();
+          searcher.search(query, counter);
+          list.setTotalCount(counter.getTotalHits());
+          break;
+        }
+        n *= 4;
+      }
+      list.getObjects().addAll(names);
+      return list;
+    } finally {
+      searcherManager.release(searcher);
+    }
+  }
+
+  /**
+   * Returns the number of entries.
+   *
+   * @return the size
+   * @throws Exception the exception
+   */
+  public int size() throws Exception {
+    final IndexSearcher searcher = searcherManager.acquire();
+    try {
+      return searcher.getIndexReader().numDocs();
+    } finally {
+      searcherManager.release(searcher);
+    }
+  }
+
+  /**
+   * Returns the words of the search term, as analyzed for lookup.
+   *
+   * @param searchTerm the search term
+   * @return the tokens
+   * @throws Exception the exception
+   */
+  private static List<String> getTokens(String searchTerm) throws Exception {
+    final List<String> tokens = new ArrayList<>();
+    try (final TokenStream stream =
+        queryAnalyzer.tokenStream(TEXT_FIELD, new StringReader(searchTerm))) {
+      final CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+      stream.reset();
+      while (stream.incrementToken()) {
+        tokens.add(term.toString());
+      }
+      stream.end();
+    }
+    return tokens;
+  }
+
+  /* see superclass */
+  @Override
+  public void close() throws IOException {
+    searcherManager.close();
+    writer.close();
+    directory.close();
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only store of short byte strings (e.g. UTF-8 terminology ids),
+ * addressed by offset. Each entry is a varint length followed by the bytes.
+ * Pages are heap buffers, or regions of a memory-mapped temporary file when a
+ * spill directory is given, so the bytes live outside the Java heap and are
+ * paged by the operating system.
+ *
+ * Appends must not run concurrently with each other or with reads; reads may
+ * run concurrently with each other.
+ */
+public class ByteArena implements Closeable {
+
+  /** The page size. */
+  private static final int PAGE_SIZE = 1 << 24;
+
+  /** The initial size of a heap page. */
+  private static final int INITIAL_HEAP_PAGE_SIZE = 1 << 16;
+
+  /** The pages. */
+  private final List<ByteBuffer> pages = new ArrayList<>();
+
+  /** The spill file, or null for heap pages. */
+  private final File file;
+
+  /** The spill file. */
+  private final RandomAccessFile raf;
+
+  /** The offset of the next entry. */
+  private long size = 0;
+
+  /**
+   * Instantiates an empty heap {@link ByteArena}.
+   */
+  public ByteArena() {
+    file = null;
+    raf = null;
+  }
+
+  /**
+   * Instantiates an empty {@link ByteArena} spilling to a memory-mapped file
+   * in the specified directory.
+   *
+   * @param spillDir the spill directory, or null for heap pages
+   * @throws Exception the exception
+   */
+  public ByteArena(File spillDir) throws Exception {
+    if (spillDir == null) {
+      file = null;
+      raf = null;
+    } else {
+      if (!spillDir.exists() && !spillDir.mkdirs()) {
+        throw new Exception("Unable to create spill directory " + spillDir);
+      }
+      file = File.createTempFile("arena", ".bin", spillDir);
+      file.deleteOnExit();
+      raf = new RandomAccessFile(file, "rw");
+    }
+  }
+
+  /**
+   * Appends the bytes.
+   *
+   * @param bytes the bytes
+   * @return the offset of the entry
+   */
+  public long add(byte[] bytes) {
+    final int headerLength = bytes.length < 0x80 ? 1 : bytes.length < 0x4000
+        ? 2 : bytes.length < 0x200000 ? 3 : bytes.length < 0x10000000 ? 4 : 5;
+    final int length = headerLength + bytes.length;
+    if (length > PAGE_SIZE) {
+      throw new IllegalArgumentException(
+          "Entry too large for arena, " + bytes.length);
+    }
+    // entries do not span pages
+    if ((size % PAGE_SIZE) + length > PAGE_SIZE) {
+      size = (size / PAGE_SIZE + 1) * PAGE_SIZE;
+    }
+    final int pageIndex = (int) (size / PAGE_SIZE);
+    while (pages.size() <= pageIndex) {
+      pages.add(newPage(pages.size()));
+    }
+    ByteBuffer page = pages.get(pageIndex);
+    int pos = (int) (size % PAGE_SIZE);
+    // heap pages start small and grow
+    if (pos + length > page.capacity()) {
+      page = ByteBuffer.wrap(Arrays.copyOf(page.array(),
+          Math.min(PAGE_SIZE, Math.max(pos + length, page.capacity() * 2))));
+      pages.set(pageIndex, page);
+    }
+    int value = bytes.length;
+    while (value >= 0x80) {
+      page.put(pos++, (byte) (value | 0x80));
+      value >>>= 7;
+    }
+    page.put(pos++, (byte) value);
+    for (final byte b : bytes) {
+      page.put(pos++, b);
+    }
+    final long offset = size;
+    size += length;
+    return offset;
+  }
+
+  /**
+   * Appends the string as UTF-8.
+   *
+   * @param value the value
+   * @return the offset of the entry
+   */
+  public long add(String value) {
+    return add(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Returns the bytes at the offset.
+   *
+   * @param offset the offset
+   * @return the bytes
+   */
+  public byte[] getBytes(long offset) {
+    final ByteBuffer page = pages.get((int) (offset / PAGE_SIZE));
+    int pos = (int) (offset % PAGE_SIZE);
+    int length = 0;
+    for (int shift = 0;; shift += 7) {
+      final byte b = page.get(pos++);
+      length |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        break;
+      }
+    }
+    final byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = page.get(pos + i);
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the UTF-8 string at the offset.
+   *
+   * @param offset the offset
+   * @return the string
+   */
+  public String getString(long offset) {
+    return new String(getBytes(offset), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Indicates whether the entry at the offset equals the bytes.
+   *
+   * @param offset the offset
+   * @param bytes the bytes
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   */
+  public boolean equals(long offset, byte[] bytes) {
+    final ByteBuffer page = pages.get((int) (offset / PAGE_SIZE));
+    int pos = (int) (offset % PAGE_SIZE);
+    int length = 0;
+    for (int shift = 0;; shift += 7) {
+      final byte b = page.get(pos++);
+      length |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        break;
+      }
+    }
+    if (length != bytes.length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (page.get(pos + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of bytes used, including page padding.
+   *
+   * @return the size
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Returns the number of bytes allocated on the Java heap.
+   *
+   * @return the heap size
+   */
+  public long getHeapSize() {
+    long heapSize = 0;
+    if (file == null) {
+      for (final ByteBuffer page : pages) {
+        heapSize += page.capacity();
+      }
+    }
+    return heapSize;
+  }
+
+  /**
+   * Returns a new page.
+   *
+   * @param pageIndex the page index
+   * @return the page
+   */
+  private ByteBuffer newPage(int pageIndex) {
+    if (file == null) {
+      return ByteBuffer.wrap(new byte[INITIAL_HEAP_PAGE_SIZE]);
+    }
+    try {
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+          (long) pageIndex * PAGE_SIZE, PAGE_SIZE);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to map arena page " + file, e);
+    }
+  }
+
+  /* see superclass */
+  @Override
+  public void close() throws IOException {
+    pages.clear();
+    if (raf != null) {
+      raf.close();
+      if (!file.delete()) {
+        Logger.getLogger(getClass()).warn("Unable to delete " + file);
+      }
+    }
+  }
+}
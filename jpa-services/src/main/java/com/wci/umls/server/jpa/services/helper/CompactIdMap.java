@@ -0,0 +1,248 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Map from string keys (e.g. terminology ids like AUIs or SCTIDs) to long
+ * values (e.g. object ids) for loaders that track millions of entries. Keys
+ * are stored once as UTF-8 bytes in a {@link ByteArena} and found through an
+ * open-addressing table of longs, each holding a key offset and a hash tag,
+ * with a parallel table of values. An entry takes the key bytes plus 21 to 43
+ * bytes of table (depending on how full it is), instead of the ~110 bytes of
+ * a boxed {@link java.util.HashMap} entry, and the key bytes may be spilled
+ * to a memory-mapped file.
+ *
+ * Puts must not run concurrently with each other or with lookups; lookups
+ * may run concurrently with each other. Entries cannot be removed.
+ */
+public class CompactIdMap implements Closeable {
+
+  /** The bits of a slot holding the key offset (plus one). */
+  private static final int OFFSET_BITS = 40;
+
+  /** The offset mask. */
+  private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+  /** The maximum load factor, as a fraction of 8. */
+  private static final int LOAD_EIGHTHS = 6;
+
+  /** The keys. */
+  private final ByteArena arena;
+
+  /** The slots, 0 for empty, otherwise hash tag and key offset plus one. */
+  private long[] slots;
+
+  /** The values, parallel to the slots. */
+  private long[] values;
+
+  /** The number of entries. */
+  private int size = 0;
+
+  /**
+   * Instantiates an empty heap {@link CompactIdMap}.
+   */
+  public CompactIdMap() {
+    this(new ByteArena(), 1024);
+  }
+
+  /**
+   * Instantiates an empty {@link CompactIdMap} from the specified parameters.
+   *
+   * @param spillDir the directory for the memory-mapped key file, or null to
+   *          keep keys on the heap
+   * @param capacity the expected number of entries
+   * @throws Exception the exception
+   */
+  public CompactIdMap(File spillDir, int capacity) throws Exception {
+    this(new ByteArena(spillDir), capacity);
+  }
+
+  /**
+   * Instantiates an empty {@link CompactIdMap} from the specified parameters.
+   *
+   * @param arena the arena for keys
+   * @param capacity the expected number of entries
+   */
+  private CompactIdMap(ByteArena arena, int capacity) {
+    this.arena = arena;
+    int tableSize = 16;
+    while (tableSize * LOAD_EIGHTHS / 8 < capacity) {
+      tableSize <<= 1;
+    }
+    slots = new long[tableSize];
+    values = new long[tableSize];
+  }
+
+  /**
+   * Adds or replaces an entry.
+   *
+   * @param key the key
+   * @param value the value
+   */
+  public void put(String key, long value) {
+    final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+    final long hash = hash(bytes);
+    final int index = indexOf(bytes, hash);
+    if (slots[index] != 0) {
+      values[index] = value;
+      return;
+    }
+    if (arena.size() >= OFFSET_MASK) {
+      throw new IllegalStateException("Map keys exceed " + OFFSET_MASK);
+    }
+    slots[index] = (tag(hash) << OFFSET_BITS) | (arena.add(bytes) + 1);
+    values[index] = value;
+    if (++size > slots.length / 8 * LOAD_EIGHTHS) {
+      resize();
+    }
+  }
+
+  /**
+   * Returns the value for the key.
+   *
+   * @param key the key
+   * @return the value, or null if the key is null or not present
+   */
+  public Long get(String key) {
+    if (key == null) {
+      return null;
+    }
+    final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+    final int index = indexOf(bytes, hash(bytes));
+    return slots[index] == 0 ? null : values[index];
+  }
+
+  /**
+   * Returns the value for the key.
+   *
+   * @param key the key
+   * @param defaultValue the value if the key is not present
+   * @return the value
+   */
+  public long get(String key, long defaultValue) {
+    if (key == null) {
+      return defaultValue;
+    }
+    final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+    final int index = indexOf(bytes, hash(bytes));
+    return slots[index] == 0 ? defaultValue : values[index];
+  }
+
+  /**
+   * Indicates whether the key is present.
+   *
+   * @param key the key
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   */
+  public boolean containsKey(String key) {
+    if (key == null) {
+      return false;
+    }
+    final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+    return slots[indexOf(bytes, hash(bytes))] != 0;
+  }
+
+  /**
+   * Returns the number of entries.
+   *
+   * @return the size
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the approximate number of bytes used on the Java heap.
+   *
+   * @return the heap size
+   */
+  public long getHeapSize() {
+    return 16L * slots.length + arena.getHeapSize();
+  }
+
+  /**
+   * Returns the slot index holding the key, or the empty slot where it
+   * belongs.
+   *
+   * @param bytes the key bytes
+   * @param hash the hash
+   * @return the index
+   */
+  private int indexOf(byte[] bytes, long hash) {
+    final int mask = slots.length - 1;
+    final long tag = tag(hash);
+    int index = (int) hash & mask;
+    while (true) {
+      final long slot = slots[index];
+      if (slot == 0 || ((slot >>> OFFSET_BITS) == tag
+          && arena.equals((slot & OFFSET_MASK) - 1, bytes))) {
+        return index;
+      }
+      index = (index + 1) & mask;
+    }
+  }
+
+  /**
+   * Doubles the table, rehashing keys from the arena.
+   */
+  private void resize() {
+    final long[] oldSlots = slots;
+    final long[] oldValues = values;
+    slots = new long[oldSlots.length * 2];
+    values = new long[oldValues.length * 2];
+    final int mask = slots.length - 1;
+    for (int i = 0; i < oldSlots.length; i++) {
+      if (oldSlots[i] == 0) {
+        continue;
+      }
+      final long hash =
+          hash(arena.getBytes((oldSlots[i] & OFFSET_MASK) - 1));
+      int index = (int) hash & mask;
+      while (slots[index] != 0) {
+        index = (index + 1) & mask;
+      }
+      slots[index] = oldSlots[i];
+      values[index] = oldValues[i];
+    }
+  }
+
+  /**
+   * Returns the hash tag stored in a slot.
+   *
+   * @param hash the hash
+   * @return the tag
+   */
+  private static long tag(long hash) {
+    return hash >>> OFFSET_BITS;
+  }
+
+  /**
+   * Returns a 64-bit hash of the bytes (FNV-1a with a final mix).
+   *
+   * @param bytes the bytes
+   * @return the hash
+   */
+  private static long hash(byte[] bytes) {
+    long hash = 0xcbf29ce484222325L;
+    for (final byte b : bytes) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /* see superclass */
+  @Override
+  public void close() throws IOException {
+    arena.close();
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Map from string keys to string values (e.g. AUI to CUI or AUI to
+ * terminology) built on {@link CompactIdMap}. Values are dictionary encoded:
+ * each distinct value is stored once and keys map to its code. The most
+ * frequent kind of value, a small set like terminologies or term types, is
+ * interned and returned without decoding.
+ *
+ * Puts must not run concurrently with each other or with lookups; lookups
+ * may run concurrently with each other. Entries cannot be removed.
+ */
+public class CompactStringMap implements Closeable {
+
+  /** The number of values kept as interned strings. */
+  private static final int INTERNED_CT = 4096;
+
+  /** The code for a null value. */
+  private static final long NULL_CODE = -1L;
+
+  /** The keys, mapped to value codes. */
+  private final CompactIdMap keys;
+
+  /** The value dictionary, mapped to value codes. */
+  private final CompactIdMap dictionary;
+
+  /** The values. */
+  private final ByteArena valueArena;
+
+  /** The value offsets into the arena, by code. */
+  private long[] valueOffsets = new long[1024];
+
+  /** The interned values, by code. */
+  private final String[] interned = new String[INTERNED_CT];
+
+  /**
+   * Instantiates an empty heap {@link CompactStringMap}.
+   *
+   * @throws Exception the exception
+   */
+  public CompactStringMap() throws Exception {
+    this(null, 1024);
+  }
+
+  /**
+   * Instantiates an empty {@link CompactStringMap} from the specified
+   * parameters.
+   *
+   * @param spillDir the directory for memory-mapped key and value files, or
+   *          null to keep them on the heap
+   * @param capacity the expected number of entries
+   * @throws Exception the exception
+   */
+  public CompactStringMap(File spillDir, int capacity) throws Exception {
+    keys = new CompactIdMap(spillDir, capacity);
+    dictionary = new CompactIdMap(spillDir, 1024);
+    valueArena = new ByteArena(spillDir);
+  }
+
+  /**
+   * Adds or replaces an entry.
+   *
+   * @param key the key
+   * @param value the value, may be null
+   */
+  public void put(String key, String value) {
+    keys.put(key, encode(value));
+  }
+
+  /**
+   * Returns the value for the key.
+   *
+   * @param key the key
+   * @return the value, or null if the key is not present or its value is
+   *         null
+   */
+  public String get(String key) {
+    final long code = keys.get(key, NULL_CODE);
+    if (code == NULL_CODE) {
+      return null;
+    }
+    if (code < INTERNED_CT) {
+      return interned[(int) code];
+    }
+    return valueArena.getString(valueOffsets[(int) code]);
+  }
+
+  /**
+   * Indicates whether the key is present.
+   *
+   * @param key the key
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   */
+  public boolean containsKey(String key) {
+    return keys.containsKey(key);
+  }
+
+  /**
+   * Returns the number of entries.
+   *
+   * @return the size
+   */
+  public int size() {
+    return keys.size();
+  }
+
+  /**
+   * Returns the number of distinct values.
+   *
+   * @return the value count
+   */
+  public int getValueCount() {
+    return dictionary.size();
+  }
+
+  /**
+   * Returns the approximate number of bytes used on the Java heap.
+   *
+   * @return the heap size
+   */
+  public long getHeapSize() {
+    return keys.getHeapSize() + dictionary.getHeapSize()
+        + valueArena.getHeapSize() + 8L * valueOffsets.length;
+  }
+
+  /**
+   * Returns the code for the value, adding it to the dictionary if needed.
+   *
+   * @param value the value
+   * @return the code
+   */
+  private long encode(String value) {
+    if (value == null) {
+      return NULL_CODE;
+    }
+    final long existing = dictionary.get(value, NULL_CODE);
+    if (existing != NULL_CODE) {
+      return existing;
+    }
+    final int code = dictionary.size();
+    if (code == valueOffsets.length) {
+      valueOffsets = Arrays.copyOf(valueOffsets, code * 2);
+    }
+    valueOffsets[code] = valueArena.add(value);
+    if (code < INTERNED_CT) {
+      interned[code] = value;
+    }
+    dictionary.put(value, code);
+    return code;
+  }
+
+  /* see superclass */
+  @Override
+  public void close() throws IOException {
+    keys.close();
+    dictionary.close();
+    valueArena.close();
+  }
+}
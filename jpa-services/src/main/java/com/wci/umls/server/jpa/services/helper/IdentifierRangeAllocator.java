@@ -0,0 +1,82 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out contiguous ranges of ids per identifier type (e.g. "AUI", "ATUI",
+ * "RUI") from an atomic counter, so callers never block one another. Each
+ * type must be initialized with the current max id (typically read from the
+ * database) before ranges are reserved; concurrent initializations are
+ * harmless, the first one wins.
+ */
+public class IdentifierRangeAllocator {
+
+  /** The counters, holding the last id handed out per type. */
+  private final ConcurrentMap<String, AtomicLong> counters =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Indicates whether or not the type has been initialized.
+   *
+   * @param type the type
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   */
+  public boolean isInitialized(String type) {
+    return counters.containsKey(type);
+  }
+
+  /**
+   * Initializes the type with the max id already in use. Has no effect if the
+   * type was already initialized.
+   *
+   * @param type the type
+   * @param maxId the max id
+   * @return <code>true</code> if this call initialized the type
+   */
+  public boolean initialize(String type, long maxId) {
+    return counters.putIfAbsent(type, new AtomicLong(maxId)) == null;
+  }
+
+  /**
+   * Reserves a contiguous range of ids and returns the first one. The caller
+   * owns ids <code>first</code> through <code>first + count - 1</code>.
+   *
+   * @param type the type
+   * @param count the count
+   * @return the first id of the range
+   * @throws Exception the exception
+   */
+  public long reserve(String type, int count) throws Exception {
+    if (count < 1) {
+      throw new Exception("Illegal id range size " + count);
+    }
+    final AtomicLong counter = counters.get(type);
+    if (counter == null) {
+      throw new Exception("Id allocation not initialized for " + type);
+    }
+    return counter.addAndGet(count) - count + 1;
+  }
+
+  /**
+   * Returns the last id handed out for the type.
+   *
+   * @param type the type
+   * @return the max id, or -1 if not initialized
+   */
+  public long getMaxId(String type) {
+    final AtomicLong counter = counters.get(type);
+    return counter == null ? -1L : counter.get();
+  }
+
+  /**
+   * Forgets all types, forcing re-initialization.
+   */
+  public void clear() {
+    counters.clear();
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+/**
+ * Generically represents a lookup from an identity code (e.g. the value of
+ * {@link com.wci.umls.server.model.meta.AtomIdentity#getIdentityCode()}) to
+ * the id of the identity. Implementations may key on a hash of the code rather
+ * than the code itself.
+ */
+public interface IdentityIndex extends AutoCloseable {
+
+  /**
+   * Returns the id for the identity code, or null if not present.
+   *
+   * @param identityCode the identity code
+   * @return the id
+   * @throws Exception the exception
+   */
+  public Long get(String identityCode) throws Exception;
+
+  /**
+   * Puts the id for the identity code.
+   *
+   * @param identityCode the identity code
+   * @param id the id
+   * @throws Exception the exception
+   */
+  public void put(String identityCode, long id) throws Exception;
+
+  /**
+   * Returns the number of entries.
+   *
+   * @return the size
+   */
+  public long size();
+
+  /**
+   * Returns the highest id put into the index.
+   *
+   * @return the max id
+   */
+  public long getMaxId();
+
+  /**
+   * Removes all entries.
+   *
+   * @throws Exception the exception
+   */
+  public void clear() throws Exception;
+
+  /**
+   * Indicates whether or not the index survives {@link #close()}.
+   *
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   */
+  public boolean isPersistent();
+
+  /* see superclass */
+  @Override
+  public void close() throws Exception;
+}
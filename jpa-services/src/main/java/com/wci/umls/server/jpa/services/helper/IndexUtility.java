@@ -8,9 +8,11 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.persistence.Column;
 import javax.persistence.EntityManager;
@@ -22,15 +24,21 @@ import javax.persistence.OneToOne;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.TermsFilter;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.FieldComparator;
 import org.apache.lucene.search.FieldComparatorSource;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
 import org.hibernate.search.SearchFactory;
 import org.hibernate.search.annotations.Analyze;
 import org.hibernate.search.annotations.Field;
@@ -78,6 +86,36 @@ public class IndexUtility {
   private static Map<Class<?>, List<Method>> allOneToManyGetMethods =
       new HashMap<>();
 
+  /** The max number of parsed queries to keep. */
+  private static final int PARSED_QUERY_CACHE_SIZE = 1000;
+
+  /**
+   * The parsed and validated queries, by class and query text, least recently
+   * used first. Queries are kept unrewritten, so they stay valid as the index
+   * changes.
+   */
+  private static final Map<String, Query> parsedQueries =
+      new LinkedHashMap<String, Query>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+          return size() > PARSED_QUERY_CACHE_SIZE;
+        }
+      };
+
+  /** The string field names, as parser default fields, per class. */
+  private static final Map<Class<?>, String[]> defaultFields =
+      new ConcurrentHashMap<>();
+
+  /** The query parsers, per thread and class (parsers are not thread-safe). */
+  private static final ThreadLocal<Map<Class<?>, QueryParser>> queryParsers =
+      ThreadLocal.withInitial(HashMap::new);
+
+  /** The resolved sort fields (in ascending order), per class and name. */
+  private static final Map<String, SortField> resolvedSortFields =
+      new ConcurrentHashMap<>();
+
   // Initialize the field names maps
   static {
     try {
@@ -544,71 +582,29 @@ public class IndexUtility {
    */
   public static FullTextQuery applyPfsToLuceneQuery(final Class<?> clazz,
     final String query, final PfsParameter pfs, final EntityManager manager) throws Exception {
+    return applyPfsToLuceneQuery(clazz,
+        getLuceneQuery(clazz, query, pfs, manager), pfs, manager);
+  }
 
-    FullTextQuery fullTextQuery = null;
-
-    // Build up the query
-    final StringBuilder pfsQuery = new StringBuilder();
-    pfsQuery.append(query);
-    if (pfs != null) {
-      if (pfs.getActiveOnly()) {
-        pfsQuery.append(" AND obsolete:false");
-      }
-      if (pfs.getInactiveOnly()) {
-        pfsQuery.append(" AND obsolete:true");
-      }
-      if (pfs.getQueryRestriction() != null
-          && !pfs.getQueryRestriction().isEmpty()) {
-        pfsQuery.append(" AND " + pfs.getQueryRestriction());
-      }
-    }
+  /**
+   * Apply pfs paging and sorting to a lucene query from
+   * {@link #getLuceneQuery(Class, String, PfsParameter, EntityManager)}.
+   *
+   * @param clazz the clazz
+   * @param luceneQuery the lucene query
+   * @param pfs the pfs
+   * @param manager the manager
+   * @return the full text query
+   * @throws Exception the exception
+   */
+  public static FullTextQuery applyPfsToLuceneQuery(final Class<?> clazz,
+    final Query luceneQuery, final PfsParameter pfs,
+    final EntityManager manager) throws Exception {
 
     // Set up the "full text query"
     final FullTextEntityManager fullTextEntityManager =
         Search.getFullTextEntityManager(manager);
-    final SearchFactory searchFactory =
-        fullTextEntityManager.getSearchFactory();
-
-    Query luceneQuery;
-    final QueryParser queryParser = new MultiFieldQueryParser(
-        IndexUtility.getIndexedFieldNames(clazz, true).toArray(new String[] {}),
-        searchFactory.getAnalyzer(clazz));
-
-    // preserve capitalization from incoming query (in order to correctly match
-    // capitalized terms)
-    queryParser.setLowercaseExpandedTerms(false);
-
-    // construct the query
-    final String finalQuery = (pfsQuery.toString().startsWith(" AND "))
-        ? pfsQuery.toString().substring(5) : pfsQuery.toString();
-
-    // ONLY log this if in dev mode
-    if ("DEV".equals(
-        ConfigUtility.getConfigProperties().getProperty("deploy.mode"))) {
-      Logger.getLogger(IndexUtility.class)
-          .info("  query = " + finalQuery + ", " + pfs);
-    }
-    try {
-      luceneQuery = queryParser.parse(finalQuery);
-    } catch (ParseException e) {
-      throw new LocalException("Unable to parse query");
-    }
-
-    // Validate query terms
-    luceneQuery = luceneQuery.rewrite(fullTextEntityManager.getSearchFactory()
-        .getIndexReaderAccessor().open(clazz));
-    final Set<Term> terms = new HashSet<>();
-    luceneQuery.extractTerms(terms);
-    for (final Term t : terms) {
-      if (t.field() != null && !t.field().isEmpty() && !IndexUtility
-          .getIndexedFieldNames(clazz, false).contains(t.field())) {
-        throw new ParseException(
-            "Query references invalid field name " + t.field() + ", "
-                + IndexUtility.getIndexedFieldNames(clazz, false));
-      }
-    }
-
-    fullTextQuery =
+    final FullTextQuery fullTextQuery =
         fullTextEntityManager.createFullTextQuery(luceneQuery, clazz);
 
     if (pfs != null) {
@@ -655,82 +651,239 @@ public class IndexUtility {
         final List<SortField> sortFields = new ArrayList<>();
 
         for (final String sortFieldName : sortFieldNames) {
+          final SortField sortField = getSortField(clazz, sortFieldName);
+          sortFields.add(new SortField(sortField.getField(),
+              sortField.getType(), !pfs.isAscending()));
+        }
 
-          // the computed string name of the indexed field to sort by
-          String sortFieldStr = null;
+        final SortField[] sfs = sortFields.toArray(new SortField[] {});
+        fullTextQuery.setSort(new Sort(sfs));
 
-          // if a subfield search (e.g. FIELD1.FIELD2) skip preconditions
-          if (sortFieldName.contains(".")) {
-            sortFieldStr = sortFieldName;
-          }
+      }
 
-          // otherwise, check preconditions
-          else {
+    }
+    return fullTextQuery;
+  }
 
-            final Map<String, Boolean> nameToAnalyzedMap = IndexUtility
-                .getNameAnalyzedPairsFromAnnotation(clazz, sortFieldName);
+  /**
+   * Returns the Lucene query for the query text and pfs (active/inactive only,
+   * query restriction and term restriction). Paging and sorting are not
+   * applied.
+   *
+   * @param clazz the clazz
+   * @param query the query
+   * @param pfs the pfs
+   * @param manager the manager
+   * @return the lucene query
+   * @throws Exception the exception
+   */
+  public static Query getLuceneQuery(final Class<?> clazz, final String query,
+    final PfsParameter pfs, final EntityManager manager) throws Exception {
 
-            // check existence of the annotated get[SortFieldName]() method
-            if (nameToAnalyzedMap.size() == 0) {
-              throw new Exception(clazz.getName()
-                  + " does not have declared, annotated method for field "
-                  + sortFieldName);
-            }
+    // Build up the query
+    final StringBuilder pfsQuery = new StringBuilder();
+    pfsQuery.append(query);
+    if (pfs != null) {
+      if (pfs.getActiveOnly()) {
+        pfsQuery.append(" AND obsolete:false");
+      }
+      if (pfs.getInactiveOnly()) {
+        pfsQuery.append(" AND obsolete:true");
+      }
+      if (pfs.getQueryRestriction() != null
+          && !pfs.getQueryRestriction().isEmpty()) {
+        pfsQuery.append(" AND " + pfs.getQueryRestriction());
+      }
+    }
 
-            // first, check explicit [SortFieldName]Sort index
-            if (nameToAnalyzedMap.get(sortFieldName + "Sort") != null
-                && !nameToAnalyzedMap.get(sortFieldName + "Sort")) {
-              sortFieldStr = sortFieldName + "Sort";
-            }
+    final SearchFactory searchFactory =
+        Search.getFullTextEntityManager(manager).getSearchFactory();
 
-            // next check the default name (rendered as ""), if not analyzed,
-            // use
-            // this as sort
-            else if (nameToAnalyzedMap.get("") != null
-                && nameToAnalyzedMap.get("").equals(false)) {
-              sortFieldStr = sortFieldName;
-            }
+    // construct the query
+    final String finalQuery = (pfsQuery.toString().startsWith(" AND "))
+        ? pfsQuery.toString().substring(5) : pfsQuery.toString();
+
+    // ONLY log this if in dev mode
+    if ("DEV".equals(
+        ConfigUtility.getConfigProperties().getProperty("deploy.mode"))) {
+      Logger.getLogger(IndexUtility.class)
+          .info("  query = " + finalQuery + ", " + pfs);
+    }
 
-            // if an indexed sort field could not be found, throw exception
-            if (sortFieldStr == null) {
-              throw new Exception(
-                  "Could not retrieve a non-analyzed Field annotation for get method for variable name "
-                      + sortFieldName);
+    // a term restriction alone matches all, then filters
+    Query luceneQuery =
+        finalQuery.isEmpty() && pfs instanceof TermRestrictedPfsParameter
+            ? new MatchAllDocsQuery()
+            : getParsedQuery(clazz, finalQuery, searchFactory);
+
+    // Restrict to the terms (e.g. of an expression) with a terms filter
+    if (pfs instanceof TermRestrictedPfsParameter) {
+      final TermRestrictedPfsParameter restriction =
+          (TermRestrictedPfsParameter) pfs;
+      final List<BytesRef> values = new ArrayList<>();
+      for (final String value : restriction.getValues()) {
+        values.add(new BytesRef(value));
+      }
+      luceneQuery = new FilteredQuery(luceneQuery,
+          new TermsFilter(restriction.getField(), values));
+    }
+
+    return luceneQuery;
+  }
+
+  /**
+   * Returns the parsed and validated query, from the cache if possible.
+   *
+   * @param clazz the clazz
+   * @param query the query
+   * @param searchFactory the search factory
+   * @return the parsed query
+   * @throws Exception the exception
+   */
+  private static Query getParsedQuery(Class<?> clazz, String query,
+    SearchFactory searchFactory) throws Exception {
+    final String key = clazz.getName() + ":" + query;
+    synchronized (parsedQueries) {
+      final Query luceneQuery = parsedQueries.get(key);
+      if (luceneQuery != null) {
+        return luceneQuery;
+      }
+    }
+
+    // Reuse this thread's parser, unless the analyzer changed
+    final Analyzer analyzer = searchFactory.getAnalyzer(clazz);
+    QueryParser queryParser = queryParsers.get().get(clazz);
+    if (queryParser == null || queryParser.getAnalyzer() != analyzer) {
+      queryParser = new MultiFieldQueryParser(
+          defaultFields.computeIfAbsent(clazz, k -> {
+            try {
+              return IndexUtility.getIndexedFieldNames(k, true)
+                  .toArray(new String[] {});
+            } catch (Exception e) {
+              throw new RuntimeException(e);
             }
-          }
-
-          // construct the sort field object
-          SortField sortField = null;
-
-          // check for LONG fields
-          if (sortFieldStr.equals("lastModified")
-              || sortFieldStr.equals("effectiveTime")
-              || sortFieldStr.equals("timestamp")
-              || (sortFieldStr.toLowerCase().endsWith("id")
-                  && !sortFieldStr.toLowerCase().endsWith("terminologyid"))
-              || sortFieldStr.toLowerCase().endsWith("idsort") && !sortFieldStr
-                  .toLowerCase().endsWith("terminologyidsort")) {
-            sortField = new SortField(sortFieldStr, SortField.Type.LONG,
-                !pfs.isAscending());
-          }
-
-          // otherwise, sort by STRING value
-          else {
-            sortField = new SortField(sortFieldStr, SortField.Type.STRING,
-                !pfs.isAscending());
-          }
-
-          // add the field
-          sortFields.add(sortField);
-        }
+          }), analyzer);
 
-        final SortField[] sfs = sortFields.toArray(new SortField[] {});
-        fullTextQuery.setSort(new Sort(sfs));
+      // preserve capitalization from incoming query (in order to correctly
+      // match capitalized terms)
+      queryParser.setLowercaseExpandedTerms(false);
+      queryParsers.get().put(clazz, queryParser);
+    }
 
+    Query luceneQuery;
+    try {
+      luceneQuery = queryParser.parse(query);
+    } catch (ParseException e) {
+      throw new LocalException("Unable to parse query");
+    }
+
+    // Validate query terms. Multi-term queries (e.g. wildcards) only have
+    // terms once rewritten against the index.
+    final Set<Term> terms = new HashSet<>();
+    try {
+      luceneQuery.extractTerms(terms);
+    } catch (UnsupportedOperationException e) {
+      terms.clear();
+      final IndexReader reader =
+          searchFactory.getIndexReaderAccessor().open(clazz);
+      try {
+        luceneQuery.rewrite(reader).extractTerms(terms);
+      } finally {
+        searchFactory.getIndexReaderAccessor().close(reader);
+      }
+    }
+    for (final Term t : terms) {
+      if (t.field() != null && !t.field().isEmpty() && !IndexUtility
+          .getIndexedFieldNames(clazz, false).contains(t.field())) {
+        throw new ParseException(
+            "Query references invalid field name " + t.field() + ", "
+                + IndexUtility.getIndexedFieldNames(clazz, false));
       }
+    }
 
+    synchronized (parsedQueries) {
+      parsedQueries.put(key, luceneQuery);
     }
-    return fullTextQuery;
+    return luceneQuery;
+  }
+
+  /**
+   * Returns the resolved sort field for the field name, in ascending order.
+   *
+   * @param clazz the clazz
+   * @param sortFieldName the sort field name
+   * @return the sort field
+   * @throws Exception the exception
+   */
+  private static SortField getSortField(Class<?> clazz, String sortFieldName)
+    throws Exception {
+    final String key = clazz.getName() + "." + sortFieldName;
+    SortField sortField = resolvedSortFields.get(key);
+    if (sortField != null) {
+      return sortField;
+    }
+
+    // the computed string name of the indexed field to sort by
+    String sortFieldStr = null;
+
+    // if a subfield search (e.g. FIELD1.FIELD2) skip preconditions
+    if (sortFieldName.contains(".")) {
+      sortFieldStr = sortFieldName;
+    }
+
+    // otherwise, check preconditions
+    else {
+
+      final Map<String, Boolean> nameToAnalyzedMap = IndexUtility
+          .getNameAnalyzedPairsFromAnnotation(clazz, sortFieldName);
+
+      // check existence of the annotated get[SortFieldName]() method
+      if (nameToAnalyzedMap.size() == 0) {
+        throw new Exception(clazz.getName()
+            + " does not have declared, annotated method for field "
+            + sortFieldName);
+      }
+
+      // first, check explicit [SortFieldName]Sort index
+      if (nameToAnalyzedMap.get(sortFieldName + "Sort") != null
+          && !nameToAnalyzedMap.get(sortFieldName + "Sort")) {
+        sortFieldStr = sortFieldName + "Sort";
+      }
+
+      // next check the default name (rendered as ""), if not analyzed,
+      // use
+      // this as sort
+      else if (nameToAnalyzedMap.get("") != null
+          && nameToAnalyzedMap.get("").equals(false)) {
+        sortFieldStr = sortFieldName;
+      }
+
+      // if an indexed sort field could not be found, throw exception
+      if (sortFieldStr == null) {
+        throw new Exception(
+            "Could not retrieve a non-analyzed Field annotation for get method for variable name "
+                + sortFieldName);
+      }
+    }
+
+    // check for LONG fields
+    if (sortFieldStr.equals("lastModified")
+        || sortFieldStr.equals("effectiveTime")
+        || sortFieldStr.equals("timestamp")
+        || (sortFieldStr.toLowerCase().endsWith("id")
+            && !sortFieldStr.toLowerCase().endsWith("terminologyid"))
+        || sortFieldStr.toLowerCase().endsWith("idsort") && !sortFieldStr
+            .toLowerCase().endsWith("terminologyidsort")) {
+      sortField = new SortField(sortFieldStr, SortField.Type.LONG);
+    }
+
+    // otherwise, sort by STRING value
+    else {
+      sortField = new SortField(sortFieldStr, SortField.Type.STRING);
+    }
+
+    resolvedSortFields.put(key, sortField);
+    return sortField;
   }
 
   /**
@@ -0,0 +1,405 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * {@link IdentityIndex} implementation storing 128-bit murmur3 hashes of the
+ * identity codes in an open-addressing (linear probing) table held outside the
+ * Java heap. Each entry takes 24 bytes regardless of the identity code length.
+ *
+ * When constructed with a file, the table is memory-mapped and persists
+ * between runs; otherwise it lives in direct buffers and is discarded on
+ * close. The table starts small, since there is one index per identity scope,
+ * and doubles when it is more than 70% full. A new table is always built in a
+ * new file or buffer and then swapped in, so buffers mapped from the previous
+ * table are never truncated under it.
+ */
+public class OffHeapIdentityIndex implements IdentityIndex {
+
+  /** The file magic number. */
+  private static final long MAGIC = 0x4944454e54495459L;
+
+  /** The header size in bytes: magic, capacity, size, max id. */
+  private static final int HEADER_SIZE = 32;
+
+  /** The entry size in bytes: hash high, hash low, id + 1. */
+  private static final int ENTRY_SIZE = 24;
+
+  /** The log2 of the number of entries per buffer segment. */
+  private static final int SEGMENT_BITS = 22;
+
+  /** The entries per segment. */
+  private static final int SEGMENT_ENTRIES = 1 << SEGMENT_BITS;
+
+  /** The initial capacity. */
+  private static final long INITIAL_CAPACITY = 1 << 6;
+
+  /** The file, or null for an in-memory index. */
+  private final File file;
+
+  /** The header. */
+  private ByteBuffer header;
+
+  /** The segments. */
+  private ByteBuffer[] segments;
+
+  /** The capacity, a power of two. */
+  private long capacity;
+
+  /** The size. */
+  private long size;
+
+  /** The max id. */
+  private long maxId;
+
+  /**
+   * Instantiates an in-memory {@link OffHeapIdentityIndex}.
+   *
+   * @throws Exception the exception
+   */
+  public OffHeapIdentityIndex() throws Exception {
+    this(null);
+  }
+
+  /**
+   * Instantiates an {@link OffHeapIdentityIndex} backed by the specified file.
+   * If the file already exists, its contents are reused.
+   *
+   * @param file the file, or null for an in-memory index
+   * @throws Exception the exception
+   */
+  public OffHeapIdentityIndex(File file) throws Exception {
+    this.file = file;
+    if (file != null && file.exists() && file.length() >= HEADER_SIZE) {
+      open();
+    } else {
+      allocate(INITIAL_CAPACITY);
+      swap();
+    }
+  }
+
+  /**
+   * Opens an existing file.
+   *
+   * @throws Exception the exception
+   */
+  private void open() throws Exception {
+    try (final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final FileChannel channel = raf.getChannel()) {
+      final MappedByteBuffer h =
+          channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      h.order(ByteOrder.LITTLE_ENDIAN);
+      final long fileCapacity = h.getLong(8);
+      if (h.getLong(0) != MAGIC || Long.bitCount(fileCapacity) != 1
+          || file.length() < HEADER_SIZE + fileCapacity * ENTRY_SIZE) {
+        Logger.getLogger(getClass())
+            .warn("  Ignoring invalid identity index file " + file);
+        allocate(INITIAL_CAPACITY);
+        swap();
+        return;
+      }
+      header = h;
+      capacity = fileCapacity;
+      size = h.getLong(16);
+      maxId = h.getLong(24);
+      segments = mapSegments(channel, capacity);
+    }
+    Logger.getLogger(getClass()).info("  Opened identity index " + file
+        + ", size = " + size + ", max id = " + maxId);
+  }
+
+  /**
+   * Allocates an empty table of the specified capacity, replacing any current
+   * contents. A file-backed table is written to a new file, which
+   * {@link #swap()} then moves over the index file, so the current mapping
+   * stays valid.
+   *
+   * @param newCapacity the new capacity
+   * @throws Exception the exception
+   */
+  private void allocate(long newCapacity) throws Exception {
+    capacity = newCapacity;
+    size = 0;
+    maxId = 0;
+    if (file == null) {
+      header = ByteBuffer.allocateDirect(HEADER_SIZE)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      final int segmentCt = segmentCount(capacity);
+      segments = new ByteBuffer[segmentCt];
+      for (int i = 0; i < segmentCt; i++) {
+        segments[i] =
+            ByteBuffer.allocateDirect(segmentEntries(capacity) * ENTRY_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+      }
+    } else {
+      if (file.getParentFile() != null) {
+        file.getParentFile().mkdirs();
+      }
+      final File tmpFile = new File(file.getPath() + ".tmp");
+      Files.deleteIfExists(tmpFile.toPath());
+      try (final RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+          final FileChannel channel = raf.getChannel()) {
+        // A new file is zero filled, so there are no stale entries
+        raf.setLength(HEADER_SIZE + capacity * ENTRY_SIZE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        segments = mapSegments(channel, capacity);
+      }
+    }
+    header.putLong(0, MAGIC);
+    header.putLong(8, capacity);
+    writeHeader();
+  }
+
+  /**
+   * Moves a newly allocated table file over the index file. The mappings
+   * follow the file.
+   *
+   * @throws Exception the exception
+   */
+  private void swap() throws Exception {
+    if (file != null) {
+      Files.move(new File(file.getPath() + ".tmp").toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  /**
+   * Map segments.
+   *
+   * @param channel the channel
+   * @param cap the capacity
+   * @return the byte buffer[]
+   * @throws Exception the exception
+   */
+  private static ByteBuffer[] mapSegments(FileChannel channel, long cap)
+    throws Exception {
+    final int segmentCt = segmentCount(cap);
+    final long segmentBytes = (long) segmentEntries(cap) * ENTRY_SIZE;
+    final ByteBuffer[] result = new ByteBuffer[segmentCt];
+    for (int i = 0; i < segmentCt; i++) {
+      result[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+          HEADER_SIZE + i * segmentBytes, segmentBytes)
+          .order(ByteOrder.LITTLE_ENDIAN);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the segment count.
+   *
+   * @param cap the capacity
+   * @return the segment count
+   */
+  private static int segmentCount(long cap) {
+    return (int) Math.max(1, cap >>> SEGMENT_BITS);
+  }
+
+  /**
+   * Returns the entries per segment.
+   *
+   * @param cap the capacity
+   * @return the entries per segment
+   */
+  private static int segmentEntries(long cap) {
+    return (int) Math.min(cap, SEGMENT_ENTRIES);
+  }
+
+  /**
+   * Write header.
+   */
+  private void writeHeader() {
+    header.putLong(16, size);
+    header.putLong(24, maxId);
+  }
+
+  /**
+   * Returns the 128-bit hash of the identity code as two longs.
+   *
+   * @param identityCode the identity code
+   * @return the hash
+   */
+  static long[] hash(String identityCode) {
+    final ByteBuffer bytes = ByteBuffer
+        .wrap(Hashing.murmur3_128()
+            .hashString(identityCode, Charsets.UTF_8).asBytes())
+        .order(ByteOrder.LITTLE_ENDIAN);
+    return new long[] {
+        bytes.getLong(0), bytes.getLong(8)
+    };
+  }
+
+  /**
+   * Finds the slot for the hash: either the slot holding it or the first empty
+   * slot of its probe sequence.
+   *
+   * @param hi the hi
+   * @param lo the lo
+   * @return the slot
+   */
+  private long findSlot(long hi, long lo) {
+    final long mask = capacity - 1;
+    long slot = (hi ^ (lo * 0x9E3779B97F4A7C15L)) & mask;
+    while (true) {
+      final ByteBuffer segment = segments[(int) (slot >>> SEGMENT_BITS)];
+      final int offset = (int) (slot & (SEGMENT_ENTRIES - 1)) * ENTRY_SIZE;
+      if (segment.getLong(offset + 16) == 0L
+          || (segment.getLong(offset) == hi
+              && segment.getLong(offset + 8) == lo)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Returns the buffer offset of the slot within its segment.
+   *
+   * @param slot the slot
+   * @return the offset
+   */
+  private static int offset(long slot) {
+    return (int) (slot & (SEGMENT_ENTRIES - 1)) * ENTRY_SIZE;
+  }
+
+  /**
+   * Returns the segment holding the slot.
+   *
+   * @param slot the slot
+   * @return the segment
+   */
+  private ByteBuffer segment(long slot) {
+    return segments[(int) (slot >>> SEGMENT_BITS)];
+  }
+
+  /* see superclass */
+  @Override
+  public synchronized Long get(String identityCode) throws Exception {
+    final long[] h = hash(identityCode);
+    final long slot = findSlot(h[0], h[1]);
+    final long value = segment(slot).getLong(offset(slot) + 16);
+    return value == 0L ? null : value - 1;
+  }
+
+  /* see superclass */
+  @Override
+  public synchronized void put(String identityCode, long id) throws Exception {
+    final long[] h = hash(identityCode);
+    insert(h[0], h[1], id);
+    if (size > capacity * 7 / 10) {
+      resize(capacity * 2);
+    }
+  }
+
+  /**
+   * Inserts or replaces an entry.
+   *
+   * @param hi the hi
+   * @param lo the lo
+   * @param id the id
+   */
+  private void insert(long hi, long lo, long id) {
+    final long slot = findSlot(hi, lo);
+    final ByteBuffer segment = segment(slot);
+    final int offset = offset(slot);
+    if (segment.getLong(offset + 16) == 0L) {
+      size++;
+    }
+    segment.putLong(offset, hi);
+    segment.putLong(offset + 8, lo);
+    segment.putLong(offset + 16, id + 1);
+    if (id > maxId) {
+      maxId = id;
+    }
+    writeHeader();
+  }
+
+  /**
+   * Rehashes into a table of the new capacity.
+   *
+   * @param newCapacity the new capacity
+   * @throws Exception the exception
+   */
+  private void resize(long newCapacity) throws Exception {
+    Logger.getLogger(getClass())
+        .debug("  Resize identity index to " + newCapacity);
+    // Allocate the new table, rehash the old one (still mapped) into it, then
+    // swap it in
+    final ByteBuffer[] oldSegments = segments;
+    final long oldCapacity = capacity;
+    final long oldMaxId = maxId;
+    allocate(newCapacity);
+    for (long slot = 0; slot < oldCapacity; slot++) {
+      final ByteBuffer segment = oldSegments[(int) (slot >>> SEGMENT_BITS)];
+      final int offset = offset(slot);
+      final long value = segment.getLong(offset + 16);
+      if (value != 0L) {
+        insert(segment.getLong(offset), segment.getLong(offset + 8),
+            value - 1);
+      }
+    }
+    maxId = oldMaxId;
+    writeHeader();
+    if (file != null) {
+      ((MappedByteBuffer) header).force();
+      for (final ByteBuffer segment : segments) {
+        ((MappedByteBuffer) segment).force();
+      }
+    }
+    swap();
+  }
+
+  /* see superclass */
+  @Override
+  public synchronized long size() {
+    return size;
+  }
+
+  /* see superclass */
+  @Override
+  public synchronized long getMaxId() {
+    return maxId;
+  }
+
+  /* see superclass */
+  @Override
+  public synchronized void clear() throws Exception {
+    allocate(INITIAL_CAPACITY);
+    swap();
+  }
+
+  /* see superclass */
+  @Override
+  public boolean isPersistent() {
+    return file != null;
+  }
+
+  /* see superclass */
+  @Override
+  public synchronized void close() throws Exception {
+    if (file != null) {
+      writeHeader();
+      ((MappedByteBuffer) header).force();
+      for (final ByteBuffer segment : segments) {
+        ((MappedByteBuffer) segment).force();
+      }
+    }
+    segments = new ByteBuffer[0];
+  }
+}
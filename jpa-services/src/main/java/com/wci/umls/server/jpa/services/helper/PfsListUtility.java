@@ -0,0 +1,354 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.Fields;
+
+import com.wci.umls.server.helpers.ConfigUtility;
+
+/**
+ * Filtering and sorting support for applying a pfs parameter to an in-memory
+ * list. Getters are resolved once per class and compiled to method handles;
+ * sort keys are extracted once per element rather than once per comparison.
+ */
+public class PfsListUtility {
+
+  /** The generic getter type, (Object)Object. */
+  private static final MethodType GETTER_TYPE =
+      MethodType.methodType(Object.class, Object.class);
+
+  /** The filterable getters by class. */
+  private static final Map<Class<?>, MethodHandle[]> filterGetters =
+      new ConcurrentHashMap<>();
+
+  /** The sort getters by class and property name. */
+  private static final Map<Class<?>, Map<String, MethodHandle>> sortGetters =
+      new ConcurrentHashMap<>();
+
+  /** Marker for a property that does not exist on a class. */
+  private static final MethodHandle MISSING =
+      MethodHandles.constant(Object.class, null);
+
+  /**
+   * Instantiates an empty {@link PfsListUtility}.
+   */
+  private PfsListUtility() {
+    // n/a
+  }
+
+  /**
+   * Returns the elements whose indexed (@Field or @Fields annotated) string,
+   * long, or enum values, joined by spaces, contain the query restriction
+   * ignoring case.
+   *
+   * @param <T> the type
+   * @param list the list
+   * @param queryRestriction the query restriction
+   * @return the filtered list
+   * @throws Exception the exception
+   */
+  public static <T> List<T> filter(List<T> list, String queryRestriction)
+    throws Exception {
+    final List<T> result = new ArrayList<>();
+    final StringBuilder sb = new StringBuilder();
+    for (final T t : list) {
+      sb.setLength(0);
+      for (final MethodHandle getter : getFilterGetters(t.getClass())) {
+        final Object val = invoke(getter, t);
+        // Support long, string, and enum
+        if (val instanceof String || val instanceof Long
+            || val instanceof Enum) {
+          sb.append(val.toString()).append(" ");
+        }
+      }
+      if (containsIgnoreCase(sb.toString(), queryRestriction)) {
+        result.add(t);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Sorts the list by the sort fields. Each sort field is a period-separated
+   * list of sequential getX methods (e.g. a.b.c), whose final value is a
+   * string, enum, number, or date. Null values (including missing fields)
+   * sort first when ascending. Elements with equal values keep their original
+   * order.
+   *
+   * If limit is less than the list size, only the first limit elements of the
+   * sorted order are selected and returned, without sorting the rest.
+   *
+   * @param <T> the type
+   * @param list the list
+   * @param sortFields the sort fields
+   * @param ascending the ascending flag
+   * @param limit the number of leading elements needed
+   * @return the sorted list, a new list
+   * @throws Exception the exception
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> List<T> sort(List<T> list, List<String> sortFields,
+    boolean ascending, int limit) throws Exception {
+
+    final String[][] paths = new String[sortFields.size()][];
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = sortFields.get(i).split("\\.");
+    }
+
+    // Extract keys once per element
+    final int n = list.size();
+    final SortEntry[] entries = new SortEntry[n];
+    for (int i = 0; i < n; i++) {
+      final Object t = list.get(i);
+      final Object[] keys = new Object[paths.length];
+      for (int j = 0; j < paths.length; j++) {
+        keys[j] = getSortKey(t, paths[j]);
+      }
+      entries[i] = new SortEntry(t, keys, i);
+    }
+
+    final Comparator<SortEntry> comparator = (e1, e2) -> {
+      for (int j = 0; j < paths.length; j++) {
+        final int diff = compareKeys(e1.keys[j], e2.keys[j]);
+        if (diff != 0) {
+          return ascending ? diff : -diff;
+        }
+      }
+      // Keep the original order of otherwise equal elements
+      return Integer.compare(e1.index, e2.index);
+    };
+
+    final List<T> result = new ArrayList<>(Math.min(n, Math.max(limit, 0)));
+    if (limit >= 0 && limit < n) {
+      // bounded top-k selection: keep the k smallest in a max-heap
+      if (limit > 0) {
+        final PriorityQueue<SortEntry> heap =
+            new PriorityQueue<>(limit, comparator.reversed());
+        for (final SortEntry entry : entries) {
+          if (heap.size() < limit) {
+            heap.add(entry);
+          } else if (comparator.compare(entry, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(entry);
+          }
+        }
+        final SortEntry[] top = heap.toArray(new SortEntry[heap.size()]);
+        Arrays.sort(top, comparator);
+        for (final SortEntry entry : top) {
+          result.add((T) entry.object);
+        }
+      }
+    } else {
+      Arrays.sort(entries, comparator);
+      for (final SortEntry entry : entries) {
+        result.add((T) entry.object);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the sort key for the object: a Long for dates and whole numbers,
+   * a Double for other numbers, otherwise the string value.
+   *
+   * @param o the object
+   * @param path the path
+   * @return the sort key
+   * @throws Exception the exception
+   */
+  private static Object getSortKey(Object o, String[] path) throws Exception {
+    Object value = o;
+    for (final String property : path) {
+      if (value == null) {
+        return null;
+      }
+      final MethodHandle getter = getSortGetter(value.getClass(), property);
+      if (getter == MISSING) {
+        // e.g. a list of mixed types, not all having the field
+        return null;
+      }
+      value = invoke(getter, value);
+    }
+    if (value == null || value instanceof String) {
+      return value;
+    } else if (value instanceof Date) {
+      return ((Date) value).getTime();
+    } else if (value instanceof Long || value instanceof Integer
+        || value instanceof Short || value instanceof Byte) {
+      return ((Number) value).longValue();
+    } else if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    return value.toString();
+  }
+
+  /**
+   * Compares sort keys, nulls first.
+   *
+   * @param k1 the k 1
+   * @param k2 the k 2
+   * @return the comparison
+   */
+  @SuppressWarnings({
+      "unchecked", "rawtypes"
+  })
+  private static int compareKeys(Object k1, Object k2) {
+    if (k1 == null || k2 == null) {
+      return k1 == null ? (k2 == null ? 0 : -1) : 1;
+    }
+    if (k1.getClass() != k2.getClass()) {
+      // mixed types (e.g. different subclasses), fall back to strings
+      return k1.toString().compareTo(k2.toString());
+    }
+    return ((Comparable) k1).compareTo(k2);
+  }
+
+  /**
+   * Returns the filterable getters of the class: public "get" methods
+   * annotated with @Field or @Fields that can return a string, long, or enum.
+   *
+   * @param clazz the clazz
+   * @return the filter getters
+   * @throws Exception the exception
+   */
+  private static MethodHandle[] getFilterGetters(Class<?> clazz)
+    throws Exception {
+    MethodHandle[] getters = filterGetters.get(clazz);
+    if (getters == null) {
+      final List<MethodHandle> list = new ArrayList<>();
+      for (final Method m : clazz.getMethods()) {
+        if (m.getName().startsWith("get") && m.getParameterCount() == 0
+            && (m.isAnnotationPresent(Field.class)
+                || m.isAnnotationPresent(Fields.class))) {
+          final Class<?> type = m.getReturnType();
+          if (type.isEnum() || type.isAssignableFrom(String.class)
+              || type.isAssignableFrom(Long.class) || type == long.class) {
+            list.add(unreflect(m));
+          }
+        }
+      }
+      getters = list.toArray(new MethodHandle[list.size()]);
+      filterGetters.put(clazz, getters);
+    }
+    return getters;
+  }
+
+  /**
+   * Returns the getter for the property of the class, or {@link #MISSING}.
+   *
+   * @param clazz the clazz
+   * @param property the property
+   * @return the sort getter
+   * @throws Exception the exception
+   */
+  private static MethodHandle getSortGetter(Class<?> clazz, String property)
+    throws Exception {
+    Map<String, MethodHandle> getters = sortGetters.get(clazz);
+    if (getters == null) {
+      getters = new ConcurrentHashMap<>();
+      sortGetters.put(clazz, getters);
+    }
+    MethodHandle getter = getters.get(property);
+    if (getter == null) {
+      try {
+        getter = unreflect(
+            clazz.getMethod("get" + ConfigUtility.capitalize(property)));
+      } catch (NoSuchMethodException e) {
+        getter = MISSING;
+      }
+      getters.put(property, getter);
+    }
+    return getter;
+  }
+
+  /**
+   * Returns a handle for the method adapted to (Object)Object.
+   *
+   * @param m the method
+   * @return the method handle
+   * @throws Exception the exception
+   */
+  private static MethodHandle unreflect(Method m) throws Exception {
+    m.setAccessible(true);
+    return MethodHandles.lookup().unreflect(m).asType(GETTER_TYPE);
+  }
+
+  /**
+   * Invokes the getter.
+   *
+   * @param getter the getter
+   * @param o the object
+   * @return the value
+   * @throws Exception the exception
+   */
+  private static Object invoke(MethodHandle getter, Object o)
+    throws Exception {
+    try {
+      return getter.invokeExact(o);
+    } catch (Exception | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new Exception(t);
+    }
+  }
+
+  /**
+   * Indicates whether the string contains the value, ignoring case.
+   *
+   * @param s the string
+   * @param value the value
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   */
+  private static boolean containsIgnoreCase(String s, String value) {
+    final int len = value.length();
+    for (int i = 0; i <= s.length() - len; i++) {
+      if (s.regionMatches(true, i, value, 0, len)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * An element with its extracted sort keys and original position.
+   */
+  private static class SortEntry {
+
+    /** The object. */
+    final Object object;
+
+    /** The keys. */
+    final Object[] keys;
+
+    /** The index. */
+    final int index;
+
+    /**
+     * Instantiates a {@link SortEntry} from the specified parameters.
+     *
+     * @param object the object
+     * @param keys the keys
+     * @param index the index
+     */
+    SortEntry(Object object, Object[] keys, int index) {
+      this.object = object;
+      this.keys = keys;
+      this.index = index;
+    }
+  }
+}
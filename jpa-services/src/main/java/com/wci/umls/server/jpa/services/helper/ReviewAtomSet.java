@@ -0,0 +1,277 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The atoms of a terminology's concepts that are under review (the concept,
+ * one of its atoms, or one of its semantic types is NEEDS_REVIEW), for
+ * computing tracking record status. Atom ids are kept in a primitive hash set
+ * so lookups are constant time without boxing, and the set is maintained per
+ * concept as concepts change, instead of being rebuilt.
+ *
+ * Sets are shared, one per terminology, and are thread-safe.
+ */
+public class ReviewAtomSet {
+
+  /** The sets, by terminology. */
+  private static final Map<String, ReviewAtomSet> sets =
+      new ConcurrentHashMap<>();
+
+  /** The atom ids under review, per concept under review. */
+  private final Map<Long, long[]> conceptAtomIds = new HashMap<>();
+
+  /** The atom ids under review, counted per concept. */
+  private final LongCountSet atomIds = new LongCountSet();
+
+  /**
+   * Returns the set for the terminology.
+   *
+   * @param terminology the terminology
+   * @return the set, or null if not yet built
+   */
+  public static ReviewAtomSet get(String terminology) {
+    return terminology == null ? null : sets.get(terminology);
+  }
+
+  /**
+   * Registers the set for the terminology.
+   *
+   * @param terminology the terminology
+   * @param set the set
+   */
+  public static void put(String terminology, ReviewAtomSet set) {
+    sets.put(terminology, set);
+  }
+
+  /**
+   * Returns all sets.
+   *
+   * @return the sets
+   */
+  public static Collection<ReviewAtomSet> getAll() {
+    return sets.values();
+  }
+
+  /**
+   * Discards all sets, e.g. after changes made outside the services.
+   */
+  public static void clear() {
+    sets.clear();
+  }
+
+  /**
+   * Sets the atoms of a concept.
+   *
+   * @param conceptId the concept id
+   * @param ids the atom ids if the concept is under review, otherwise null
+   */
+  public synchronized void setConcept(long conceptId, long[] ids) {
+    final long[] previous = ids == null || ids.length == 0
+        ? conceptAtomIds.remove(conceptId) : conceptAtomIds.put(conceptId, ids);
+    if (previous != null) {
+      for (final long id : previous) {
+        atomIds.remove(id);
+      }
+    }
+    if (ids != null) {
+      for (final long id : ids) {
+        atomIds.add(id);
+      }
+    }
+  }
+
+  /**
+   * Indicates whether the atom is under review.
+   *
+   * @param atomId the atom id
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   */
+  public synchronized boolean contains(long atomId) {
+    return atomIds.contains(atomId);
+  }
+
+  /**
+   * Indicates whether any of the atoms is under review.
+   *
+   * @param ids the atom ids
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   */
+  public synchronized boolean containsAny(Collection<Long> ids) {
+    for (final Long id : ids) {
+      if (atomIds.contains(id)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of atoms under review.
+   *
+   * @return the size
+   */
+  public synchronized int size() {
+    return atomIds.size();
+  }
+
+  /**
+   * Returns the number of concepts under review.
+   *
+   * @return the concept count
+   */
+  public synchronized int getConceptCount() {
+    return conceptAtomIds.size();
+  }
+
+  /**
+   * Open-addressing set of long keys, each with a count, so a key shared by
+   * two concepts (e.g. in the middle of a move) stays until both let go.
+   */
+  private static class LongCountSet {
+
+    /** The keys, 0 for empty. */
+    private long[] keys = new long[1024];
+
+    /** The counts, parallel to the keys. */
+    private int[] counts = new int[1024];
+
+    /** The count of the 0 key. */
+    private int zeroCount = 0;
+
+    /** The number of keys. */
+    private int size = 0;
+
+    /**
+     * Adds one to the key's count.
+     *
+     * @param key the key
+     */
+    void add(long key) {
+      if (key == 0) {
+        if (zeroCount++ == 0) {
+          size++;
+        }
+        return;
+      }
+      final int index = indexOf(key);
+      if (keys[index] == 0) {
+        keys[index] = key;
+        if (++size > keys.length * 3 / 4) {
+          resize();
+        }
+        // resize moves the key
+        counts[indexOf(key)]++;
+        return;
+      }
+      counts[index]++;
+    }
+
+    /**
+     * Subtracts one from the key's count, removing it at zero.
+     *
+     * @param key the key
+     */
+    void remove(long key) {
+      if (key == 0) {
+        if (zeroCount > 0 && --zeroCount == 0) {
+          size--;
+        }
+        return;
+      }
+      int index = indexOf(key);
+      if (keys[index] == 0 || --counts[index] > 0) {
+        return;
+      }
+      // backward shift deletion, keeps probe sequences intact
+      final int mask = keys.length - 1;
+      int next = index;
+      while (true) {
+        next = (next + 1) & mask;
+        if (keys[next] == 0) {
+          break;
+        }
+        final int home = slot(keys[next]);
+        if (((next - home) & mask) >= ((next - index) & mask)) {
+          keys[index] = keys[next];
+          counts[index] = counts[next];
+          index = next;
+        }
+      }
+      keys[index] = 0;
+      counts[index] = 0;
+      size--;
+    }
+
+    /**
+     * Indicates whether the key is present.
+     *
+     * @param key the key
+     * @return <code>true</code> if so, <code>false</code> otherwise
+     */
+    boolean contains(long key) {
+      if (key == 0) {
+        return zeroCount > 0;
+      }
+      return keys[indexOf(key)] != 0;
+    }
+
+    /**
+     * Returns the number of keys.
+     *
+     * @return the size
+     */
+    int size() {
+      return size;
+    }
+
+    /**
+     * Returns the index holding the key, or the empty index where it belongs.
+     *
+     * @param key the key
+     * @return the index
+     */
+    private int indexOf(long key) {
+      final int mask = keys.length - 1;
+      int index = slot(key);
+      while (keys[index] != 0 && keys[index] != key) {
+        index = (index + 1) & mask;
+      }
+      return index;
+    }
+
+    /**
+     * Returns the home slot of the key.
+     *
+     * @param key the key
+     * @return the slot
+     */
+    private int slot(long key) {
+      long hash = key * 0x9E3779B97F4A7C15L;
+      hash ^= hash >>> 32;
+      return (int) hash & (keys.length - 1);
+    }
+
+    /**
+     * Doubles the table.
+     */
+    private void resize() {
+      final long[] oldKeys = keys;
+      final int[] oldCounts = counts;
+      keys = new long[oldKeys.length * 2];
+      counts = new int[oldCounts.length * 2];
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != 0) {
+          final int index = indexOf(oldKeys[i]);
+          keys[index] = oldKeys[i];
+          counts[index] = oldCounts[i];
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,270 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.wci.umls.server.UserRole;
+
+/**
+ * Cache of logged in sessions, by auth token. A session holds the username,
+ * its expiry, and the application and project roles once looked up, so that
+ * authorizing a REST call does not need to go to the database.
+ *
+ * Roles are memoized until the user or project changes (see
+ * {@link #invalidateUser(String)} and {@link #invalidateProject(Long)}).
+ */
+public class SessionCache {
+
+  /** The sessions, by auth token. */
+  private static final Map<String, Session> sessions =
+      new ConcurrentHashMap<>();
+
+  /** The generation, advanced on every invalidation. */
+  private static final AtomicLong generation = new AtomicLong();
+
+  /** The role lookups answered from the cache. */
+  private static final AtomicLong hitCt = new AtomicLong();
+
+  /** The role lookups that went to the database. */
+  private static final AtomicLong missCt = new AtomicLong();
+
+  /**
+   * Loads a role on a cache miss.
+   */
+  @FunctionalInterface
+  public interface RoleLoader {
+
+    /**
+     * Returns the role.
+     *
+     * @return the role, or null if there is none
+     * @throws Exception the exception
+     */
+    public UserRole load() throws Exception;
+  }
+
+  /**
+   * Returns the session for the auth token.
+   *
+   * @param authToken the auth token
+   * @return the session, or null if not logged in
+   */
+  public static Session get(String authToken) {
+    return sessions.get(authToken);
+  }
+
+  /**
+   * Starts a session for the auth token, and discards expired sessions.
+   *
+   * @param authToken the auth token
+   * @param username the username
+   * @param timeout the timeout in ms, or 0 if the session does not time out
+   * @return the session
+   */
+  public static Session put(String authToken, String username, long timeout) {
+    final long now = System.currentTimeMillis();
+    sessions.values().removeIf(s -> s.isExpired(now));
+    final Session session = new Session(username, timeout);
+    session.touch(now);
+    sessions.put(authToken, session);
+    return session;
+  }
+
+  /**
+   * Ends the session for the auth token.
+   *
+   * @param authToken the auth token
+   */
+  public static void remove(String authToken) {
+    sessions.remove(authToken);
+  }
+
+  /**
+   * Forgets the roles of the user, e.g. after the user changes.
+   *
+   * @param username the username
+   */
+  public static void invalidateUser(String username) {
+    generation.incrementAndGet();
+    for (final Session session : sessions.values()) {
+      if (session.username.equals(username)) {
+        session.applicationRole = null;
+        session.projectRoles.clear();
+      }
+    }
+  }
+
+  /**
+   * Forgets all roles on the project, e.g. after the project changes.
+   *
+   * @param projectId the project id
+   */
+  public static void invalidateProject(Long projectId) {
+    generation.incrementAndGet();
+    for (final Session session : sessions.values()) {
+      session.projectRoles.remove(projectId);
+    }
+  }
+
+  /**
+   * Forgets the roles of all sessions, keeping the sessions.
+   */
+  public static void invalidateRoles() {
+    generation.incrementAndGet();
+    for (final Session session : sessions.values()) {
+      session.applicationRole = null;
+      session.projectRoles.clear();
+    }
+  }
+
+  /**
+   * Returns the number of sessions.
+   *
+   * @return the size
+   */
+  public static int size() {
+    return sessions.size();
+  }
+
+  /**
+   * Returns the number of role lookups answered from the cache.
+   *
+   * @return the hit count
+   */
+  public static long getHitCount() {
+    return hitCt.get();
+  }
+
+  /**
+   * Returns the number of role lookups that went to the database.
+   *
+   * @return the miss count
+   */
+  public static long getMissCount() {
+    return missCt.get();
+  }
+
+  /**
+   * Returns the fraction of role lookups answered from the cache.
+   *
+   * @return the hit rate
+   */
+  public static double getHitRate() {
+    final long hits = hitCt.get();
+    final long total = hits + missCt.get();
+    return total == 0 ? 0.0 : (double) hits / total;
+  }
+
+  /**
+   * A logged in session.
+   */
+  public static class Session {
+
+    /** The username. */
+    private final String username;
+
+    /** The timeout in ms, 0 if none. */
+    private final long timeout;
+
+    /** The expiry time in ms. */
+    private volatile long expires;
+
+    /** The application role, null if not yet looked up. */
+    private volatile UserRole applicationRole;
+
+    /** The project roles, empty if the user has none on the project. */
+    private final Map<Long, Optional<UserRole>> projectRoles =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Instantiates a {@link Session} from the specified parameters.
+     *
+     * @param username the username
+     * @param timeout the timeout
+     */
+    Session(String username, long timeout) {
+      this.username = username;
+      this.timeout = timeout;
+    }
+
+    /**
+     * Returns the username.
+     *
+     * @return the username
+     */
+    public String getUsername() {
+      return username;
+    }
+
+    /**
+     * Indicates whether the session has expired.
+     *
+     * @param now the current time in ms
+     * @return <code>true</code> if so, <code>false</code> otherwise
+     */
+    public boolean isExpired(long now) {
+      return timeout > 0 && expires < now;
+    }
+
+    /**
+     * Extends the session by the timeout.
+     *
+     * @param now the current time in ms
+     */
+    public void touch(long now) {
+      expires = now + timeout;
+    }
+
+    /**
+     * Returns the application role, loading it on first use.
+     *
+     * @param loader the loader
+     * @return the application role
+     * @throws Exception the exception
+     */
+    public UserRole getApplicationRole(RoleLoader loader) throws Exception {
+      UserRole role = applicationRole;
+      if (role != null) {
+        hitCt.incrementAndGet();
+        return role;
+      }
+      missCt.incrementAndGet();
+      final long start = generation.get();
+      role = loader.load();
+      // don't keep a role loaded across an invalidation
+      if (generation.get() == start) {
+        applicationRole = role;
+      }
+      return role;
+    }
+
+    /**
+     * Returns the project role, loading it on first use.
+     *
+     * @param projectId the project id
+     * @param loader the loader
+     * @return the project role, or null if there is none
+     * @throws Exception the exception
+     */
+    public UserRole getProjectRole(Long projectId, RoleLoader loader)
+      throws Exception {
+      final Optional<UserRole> role = projectRoles.get(projectId);
+      if (role != null) {
+        hitCt.incrementAndGet();
+        return role.orElse(null);
+      }
+      missCt.incrementAndGet();
+      final long start = generation.get();
+      final UserRole result = loader.load();
+      if (generation.get() == start) {
+        projectRoles.put(projectId, Optional.ofNullable(result));
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Map from long ids to short string identifiers (e.g. RUIs and ATUIs) held in
+ * sorted primitive arrays. Values are stored as UTF-8 bytes in a single
+ * array, so each entry takes the key, two offsets and the value bytes (about
+ * 25 bytes for an ATUI) instead of the ~100 bytes of a boxed
+ * {@link java.util.HashMap} entry.
+ *
+ * Entries are appended in any order and sorted by {@link #sort()}, or on the
+ * first lookup. If a key is put more than once, the last value wins. Lookups
+ * are a binary search and are safe from multiple threads once sorted.
+ */
+public class SortedIdMap {
+
+  /** The keys. */
+  private long[] keys;
+
+  /** The value start offsets into the data. */
+  private int[] starts;
+
+  /** The value end offsets into the data. */
+  private int[] ends;
+
+  /** The value bytes. */
+  private byte[] data;
+
+  /** The number of entries. */
+  private int size;
+
+  /** The number of value bytes used. */
+  private int dataSize;
+
+  /** Indicates whether the keys are sorted and unique. */
+  private volatile boolean sorted = true;
+
+  /**
+   * Instantiates an empty {@link SortedIdMap}.
+   */
+  public SortedIdMap() {
+    this(1024);
+  }
+
+  /**
+   * Instantiates an empty {@link SortedIdMap} with the specified capacity.
+   *
+   * @param capacity the expected number of entries
+   */
+  public SortedIdMap(int capacity) {
+    final int ct = Math.max(16, capacity);
+    keys = new long[ct];
+    starts = new int[ct];
+    ends = new int[ct];
+    data = new byte[ct * 12];
+  }
+
+  /**
+   * Adds an entry. Null values are not stored.
+   *
+   * @param key the key
+   * @param value the value
+   */
+  public synchronized void put(long key, String value) {
+    if (value == null) {
+      return;
+    }
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    if (size == keys.length) {
+      final int capacity = size + (size >> 1);
+      keys = Arrays.copyOf(keys, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      ends = Arrays.copyOf(ends, capacity);
+    }
+    if (dataSize + bytes.length > data.length) {
+      data = Arrays.copyOf(data, Math.max(dataSize + bytes.length,
+          dataSize + (dataSize >> 1)));
+    }
+    if (size > 0 && key <= keys[size - 1]) {
+      sorted = false;
+    }
+    keys[size] = key;
+    starts[size] = dataSize;
+    System.arraycopy(bytes, 0, data, dataSize, bytes.length);
+    dataSize += bytes.length;
+    ends[size] = dataSize;
+    size++;
+  }
+
+  /**
+   * Returns the value for the key.
+   *
+   * @param key the key
+   * @return the value, or null if the key is not present
+   */
+  public String get(long key) {
+    final int index = indexOf(key);
+    if (index < 0) {
+      return null;
+    }
+    return new String(data, starts[index], ends[index] - starts[index],
+        StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns the value for the key, accepting a null key.
+   *
+   * @param key the key
+   * @return the value, or null if the key is null or not present
+   */
+  public String get(Long key) {
+    return key == null ? null : get(key.longValue());
+  }
+
+  /**
+   * Indicates whether the key is present.
+   *
+   * @param key the key
+   * @return <code>true</code> if so, <code>false</code> otherwise
+   */
+  public boolean containsKey(long key) {
+    return indexOf(key) >= 0;
+  }
+
+  /**
+   * Returns the number of entries.
+   *
+   * @return the size
+   */
+  public int size() {
+    sort();
+    return size;
+  }
+
+  /**
+   * Sorts the entries by key, dropping all but the last value for repeated
+   * keys, and trims the arrays.
+   */
+  public void sort() {
+    if (sorted) {
+      return;
+    }
+    synchronized (this) {
+      if (sorted) {
+        return;
+      }
+      final int[] order = new int[size];
+      for (int i = 0; i < size; i++) {
+        order[i] = i;
+      }
+      // stable, so the last of equal keys stays last
+      mergeSort(order, new int[size], 0, size);
+
+      final long[] sortedKeys = new long[size];
+      final int[] sortedStarts = new int[size];
+      final int[] sortedEnds = new int[size];
+      int ct = 0;
+      for (int i = 0; i < size; i++) {
+        final int j = order[i];
+        if (ct > 0 && sortedKeys[ct - 1] == keys[j]) {
+          ct--;
+        }
+        sortedKeys[ct] = keys[j];
+        sortedStarts[ct] = starts[j];
+        sortedEnds[ct] = ends[j];
+        ct++;
+      }
+      keys = Arrays.copyOf(sortedKeys, ct);
+      starts = Arrays.copyOf(sortedStarts, ct);
+      ends = Arrays.copyOf(sortedEnds, ct);
+      data = Arrays.copyOf(data, dataSize);
+      size = ct;
+      sorted = true;
+    }
+  }
+
+  /**
+   * Returns the index of the key.
+   *
+   * @param key the key
+   * @return the index, or a negative number if not present
+   */
+  private int indexOf(long key) {
+    sort();
+    return Arrays.binarySearch(keys, 0, size, key);
+  }
+
+  /**
+   * Stable merge sort of entry indexes by key.
+   *
+   * @param order the entry indexes
+   * @param tmp the scratch space
+   * @param from the start, inclusive
+   * @param to the end, exclusive
+   */
+  private void mergeSort(int[] order, int[] tmp, int from, int to) {
+    if (to - from < 2) {
+      return;
+    }
+    final int mid = (from + to) >>> 1;
+    mergeSort(order, tmp, from, mid);
+    mergeSort(order, tmp, mid, to);
+    if (keys[order[mid - 1]] <= keys[order[mid]]) {
+      return;
+    }
+    System.arraycopy(order, from, tmp, from, to - from);
+    int i = from;
+    int j = mid;
+    for (int k = from; k < to; k++) {
+      if (j >= to || (i < mid && keys[tmp[i]] <= keys[tmp[j]])) {
+        order[k] = tmp[i++];
+      } else {
+        order[k] = tmp[j++];
+      }
+    }
+  }
+}
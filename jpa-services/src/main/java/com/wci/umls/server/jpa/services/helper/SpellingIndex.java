@@ -0,0 +1,147 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.spell.LuceneLevenshteinDistance;
+import org.apache.lucene.search.spell.PlainTextDictionary;
+import org.apache.lucene.search.spell.SpellChecker;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Spell checker over a spelling index built from a spelling file (one word per
+ * line). The index is built once and stamped with the version of the spelling
+ * file; the spell checker is opened on a memory-mapped directory and shared
+ * by every handler using that index.
+ */
+public class SpellingIndex {
+
+  /** The version file, written into the index directory once built. */
+  private static final String VERSION_FILE = "spelling.version";
+
+  /** The index format version, part of the stamp. */
+  private static final int VERSION = 1;
+
+  /** The open spell checkers, by index directory. */
+  private static final Map<String, SpellingIndex> indexes =
+      new ConcurrentHashMap<>();
+
+  /** The spell checker. */
+  private final SpellChecker spellChecker;
+
+  /** The version of the spelling file the index was built from. */
+  private final String sourceVersion;
+
+  /**
+   * Instantiates a {@link SpellingIndex} from the specified parameters.
+   *
+   * @param spellChecker the spell checker
+   * @param sourceVersion the source version
+   */
+  private SpellingIndex(SpellChecker spellChecker, String sourceVersion) {
+    this.spellChecker = spellChecker;
+    this.sourceVersion = sourceVersion;
+  }
+
+  /**
+   * Returns the shared spell checker for the spelling file, opened on the
+   * index directory. If the index is missing or was built from another
+   * version of the spelling file, it is rebuilt first.
+   *
+   * @param spellingFile the spelling file
+   * @param indexDir the index dir
+   * @return the spell checker
+   * @throws Exception the exception
+   */
+  public static SpellChecker getInstance(File spellingFile, File indexDir)
+    throws Exception {
+    final String version = getSourceVersion(spellingFile);
+    final String key = indexDir.getCanonicalPath();
+    SpellingIndex index = indexes.get(key);
+    if (index != null && index.sourceVersion.equals(version)) {
+      return index.spellChecker;
+    }
+    synchronized (indexes) {
+      index = indexes.get(key);
+      if (index != null && index.sourceVersion.equals(version)) {
+        return index.spellChecker;
+      }
+      if (!version.equals(getIndexVersion(indexDir))) {
+        Logger.getLogger(SpellingIndex.class)
+            .warn("Spelling index out of date, building " + indexDir);
+        build(spellingFile, indexDir);
+      }
+      // a replaced spell checker is left open for handlers still using it
+      index = new SpellingIndex(new SpellChecker(new MMapDirectory(indexDir),
+          new LuceneLevenshteinDistance()), version);
+      indexes.put(key, index);
+      return index.spellChecker;
+    }
+  }
+
+  /**
+   * Builds the spelling index from the spelling file, replacing any prior
+   * contents, and stamps it with the version of the spelling file.
+   *
+   * @param spellingFile the spelling file
+   * @param indexDir the index dir
+   * @throws Exception the exception
+   */
+  public static void build(File spellingFile, File indexDir) throws Exception {
+    Logger.getLogger(SpellingIndex.class)
+        .info("Build spelling index " + spellingFile + " => " + indexDir);
+    final File versionFile = new File(indexDir, VERSION_FILE);
+    Files.deleteIfExists(versionFile.toPath());
+    try (final SpellChecker spellChecker = new SpellChecker(
+        FSDirectory.open(indexDir), new LuceneLevenshteinDistance())) {
+      spellChecker.clearIndex();
+      spellChecker.indexDictionary(new PlainTextDictionary(spellingFile),
+          new IndexWriterConfig(Version.LATEST, new WhitespaceAnalyzer()),
+          false);
+    }
+    Files.write(versionFile.toPath(),
+        getSourceVersion(spellingFile).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Returns the version of the spelling file.
+   *
+   * @param spellingFile the spelling file
+   * @return the version
+   * @throws Exception the exception
+   */
+  private static String getSourceVersion(File spellingFile) throws Exception {
+    if (!spellingFile.exists()) {
+      throw new Exception("Spelling file does not exist " + spellingFile);
+    }
+    return VERSION + "-" + spellingFile.length() + "-"
+        + spellingFile.lastModified();
+  }
+
+  /**
+   * Returns the version the index was built from.
+   *
+   * @param indexDir the index dir
+   * @return the version, or null if the index was not built
+   * @throws Exception the exception
+   */
+  private static String getIndexVersion(File indexDir) throws Exception {
+    final File versionFile = new File(indexDir, VERSION_FILE);
+    if (!versionFile.exists()) {
+      return null;
+    }
+    return new String(Files.readAllBytes(versionFile.toPath()),
+        StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+/**
+ * A fixed set of monitor objects selected by key hash. Callers synchronizing
+ * on the stripe for a key are serialized with other callers using an equal
+ * key, but usually not with callers using different keys.
+ */
+public class StripedLock {
+
+  /** The locks. */
+  private final Object[] locks;
+
+  /**
+   * Instantiates a {@link StripedLock} with at least the specified number of
+   * stripes (rounded up to a power of two).
+   *
+   * @param stripes the stripes
+   */
+  public StripedLock(int stripes) {
+    int size = 1;
+    while (size < stripes) {
+      size <<= 1;
+    }
+    locks = new Object[size];
+    for (int i = 0; i < size; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /**
+   * Returns the lock for the key.
+   *
+   * @param key the key
+   * @return the lock
+   */
+  public Object get(Object key) {
+    return locks[index(key)];
+  }
+
+  /**
+   * Returns the locks for two keys in a consistent acquisition order, so that
+   * callers nesting <code>synchronized</code> blocks on them cannot deadlock.
+   * Both entries are the same object if the keys share a stripe.
+   *
+   * @param key1 the key 1
+   * @param key2 the key 2
+   * @return the locks
+   */
+  public Object[] get(Object key1, Object key2) {
+    final int i = index(key1);
+    final int j = index(key2);
+    return new Object[] {
+        locks[Math.min(i, j)], locks[Math.max(i, j)]
+    };
+  }
+
+  /**
+   * Returns the stripe index for the key.
+   *
+   * @param key the key
+   * @return the index
+   */
+  private int index(Object key) {
+    final int h = key == null ? 0 : key.hashCode();
+    return (h ^ (h >>> 16)) & (locks.length - 1);
+  }
+}
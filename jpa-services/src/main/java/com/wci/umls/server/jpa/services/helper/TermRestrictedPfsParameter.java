@@ -0,0 +1,58 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+import java.util.Collection;
+
+import com.wci.umls.server.helpers.PfsParameter;
+import com.wci.umls.server.jpa.helpers.PfsParameterJpa;
+
+/**
+ * A pfs parameter that also restricts results to those with one of a set of
+ * values in an indexed (not analyzed) field, e.g. the terminology ids resolved
+ * from an expression. {@link IndexUtility} applies the values as a terms
+ * filter rather than as query text, so the set size is not bounded by the
+ * boolean clause limit.
+ */
+public class TermRestrictedPfsParameter extends PfsParameterJpa {
+
+  /** The field. */
+  private final String field;
+
+  /** The values. */
+  private final Collection<String> values;
+
+  /**
+   * Instantiates a {@link TermRestrictedPfsParameter} from the specified
+   * parameters.
+   *
+   * @param pfs the pfs
+   * @param field the field
+   * @param values the values
+   */
+  public TermRestrictedPfsParameter(PfsParameter pfs, String field,
+      Collection<String> values) {
+    super(pfs);
+    this.field = field;
+    this.values = values;
+  }
+
+  /**
+   * Returns the field.
+   *
+   * @return the field
+   */
+  public String getField() {
+    return field;
+  }
+
+  /**
+   * Returns the values.
+   *
+   * @return the values
+   */
+  public Collection<String> getValues() {
+    return values;
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ *    Copyright 2016 West Coast Informatics, LLC
+ */
+package com.wci.umls.server.jpa.services.helper;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+
+import com.wci.umls.server.helpers.Branch;
+import com.wci.umls.server.jpa.content.AtomTransitiveRelationshipJpa;
+import com.wci.umls.server.jpa.content.CodeTransitiveRelationshipJpa;
+import com.wci.umls.server.jpa.content.ConceptTransitiveRelationshipJpa;
+import com.wci.umls.server.jpa.content.DescriptorTransitiveRelationshipJpa;
+import com.wci.umls.server.model.content.TransitiveRelationship;
+import com.wci.umls.server.model.meta.IdType;
+
+/**
+ * Streams transitive relationship rows directly into the
+ * *TransitiveRelationshipJpa tables with JDBC batch inserts, bypassing entity
+ * instantiation, the persistence context, and per-entity flushes.
+ *
+ * Rows are buffered in primitive arrays and written when the buffer fills or
+ * {@link #flush()} is called. Each flush runs in the current transaction on
+ * the session's connection and does not hold a statement open afterwards, so
+ * callers must flush before committing. Ids come from the entity's own
+ * identifier generator, so rows written this way do not collide with
+ * subsequently persisted entities. Transitive relationships are not indexed
+ * by Hibernate Search, so there is no index to maintain.
+ */
+public class TransitiveRelationshipBulkWriter {
+
+  /** The default batch size. */
+  public static final int DEFAULT_BATCH_SIZE = 10000;
+
+  /** The session. */
+  private final Session session;
+
+  /** The persister. */
+  private final AbstractEntityPersister persister;
+
+  /** The id generator. */
+  private final IdentifierGenerator generator;
+
+  /** The insert statement. */
+  private final String sql;
+
+  /** The terminology. */
+  private final String terminology;
+
+  /** The version. */
+  private final String version;
+
+  /** The last modified by. */
+  private final String lastModifiedBy;
+
+  /** The timestamp. */
+  private final Timestamp timestamp;
+
+  /** The super type ids. */
+  private final long[] superTypeIds;
+
+  /** The sub type ids. */
+  private final long[] subTypeIds;
+
+  /** The depths. */
+  private final int[] depths;
+
+  /** The buffered row count. */
+  private int ct = 0;
+
+  /** The total row count. */
+  private long totalCt = 0;
+
+  /**
+   * Instantiates a {@link TransitiveRelationshipBulkWriter} from the specified
+   * parameters.
+   *
+   * @param manager the manager
+   * @param idType the id type
+   * @param terminology the terminology
+   * @param version the version
+   * @param lastModifiedBy the last modified by
+   * @param timestamp the timestamp
+   * @param batchSize the batch size
+   * @throws Exception the exception
+   */
+  public TransitiveRelationshipBulkWriter(EntityManager manager, IdType idType,
+      String terminology, String version, String lastModifiedBy,
+      Date timestamp, int batchSize) throws Exception {
+    this.session = manager.unwrap(Session.class);
+    final SessionFactoryImplementor factory =
+        (SessionFactoryImplementor) session.getSessionFactory();
+    this.persister = (AbstractEntityPersister) factory
+        .getEntityPersister(getEntityClass(idType).getName());
+    this.generator = persister.getIdentifierGenerator();
+    this.terminology = terminology;
+    this.version = version;
+    this.lastModifiedBy = lastModifiedBy;
+    this.timestamp = new Timestamp(timestamp.getTime());
+    this.superTypeIds = new long[batchSize];
+    this.subTypeIds = new long[batchSize];
+    this.depths = new int[batchSize];
+
+    this.sql = "insert into " + persister.getTableName() + " ("
+        + persister.getIdentifierColumnNames()[0] + ", "
+        + column("superType") + ", " + column("subType") + ", "
+        + column("depth") + ", " + column("terminology") + ", "
+        + column("version") + ", " + column("terminologyId") + ", "
+        + column("branch") + ", " + column("obsolete") + ", "
+        + column("suppressible") + ", " + column("published") + ", "
+        + column("publishable") + ", " + column("timestamp") + ", "
+        + column("lastModified") + ", " + column("lastModifiedBy")
+        + ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  }
+
+  /**
+   * Returns the entity class for the id type.
+   *
+   * @param idType the id type
+   * @return the entity class
+   * @throws Exception the exception
+   */
+  public static Class<? extends TransitiveRelationship<?>> getEntityClass(
+    IdType idType) throws Exception {
+    if (idType == IdType.CONCEPT) {
+      return ConceptTransitiveRelationshipJpa.class;
+    } else if (idType == IdType.DESCRIPTOR) {
+      return DescriptorTransitiveRelationshipJpa.class;
+    } else if (idType == IdType.CODE) {
+      return CodeTransitiveRelationshipJpa.class;
+    } else if (idType == IdType.ATOM) {
+      return AtomTransitiveRelationshipJpa.class;
+    }
+    throw new Exception("Illegal id type: " + idType);
+  }
+
+  /**
+   * Returns the column name for the property.
+   *
+   * @param property the property
+   * @return the column name
+   */
+  private String column(String property) {
+    return persister.getPropertyColumnNames(property)[0];
+  }
+
+  /**
+   * Adds a row.
+   *
+   * @param superTypeId the super type id
+   * @param subTypeId the sub type id
+   * @param depth the depth
+   * @throws Exception the exception
+   */
+  public void add(long superTypeId, long subTypeId, int depth)
+    throws Exception {
+    superTypeIds[ct] = superTypeId;
+    subTypeIds[ct] = subTypeId;
+    depths[ct] = depth;
+    if (++ct == superTypeIds.length) {
+      flush();
+    }
+  }
+
+  /**
+   * Writes any buffered rows as a single JDBC batch.
+   *
+   * @throws Exception the exception
+   */
+  public void flush() throws Exception {
+    if (ct == 0) {
+      return;
+    }
+    // generate ids up front, outside the JDBC work
+    final SessionImplementor sessionImpl = (SessionImplementor) session;
+    final long[] ids = new long[ct];
+    final Object stub = persister.instantiate(null, sessionImpl);
+    for (int i = 0; i < ct; i++) {
+      ids[i] = ((Number) generator.generate(sessionImpl, stub)).longValue();
+    }
+
+    session.doWork(connection -> {
+      try (final PreparedStatement ps = connection.prepareStatement(sql)) {
+        for (int i = 0; i < ct; i++) {
+          ps.setLong(1, ids[i]);
+          ps.setLong(2, superTypeIds[i]);
+          ps.setLong(3, subTypeIds[i]);
+          ps.setInt(4, depths[i]);
+          ps.setString(5, terminology);
+          ps.setString(6, version);
+          ps.setString(7, "");
+          ps.setString(8, Branch.ROOT);
+          ps.setBoolean(9, false);
+          ps.setBoolean(10, false);
+          ps.setBoolean(11, false);
+          ps.setBoolean(12, true);
+          ps.setTimestamp(13, timestamp);
+          ps.setTimestamp(14, timestamp);
+          ps.setString(15, lastModifiedBy);
+          ps.addBatch();
+        }
+        ps.executeBatch();
+      }
+    });
+    totalCt += ct;
+    Logger.getLogger(getClass()).debug("  bulk insert "
+        + persister.getTableName() + " rows = " + ct + ", total = " + totalCt);
+    ct = 0;
+  }
+
+  /**
+   * Returns the total number of rows written.
+   *
+   * @return the total count
+   */
+  public long getTotalCount() {
+    return totalCt;
+  }
+}
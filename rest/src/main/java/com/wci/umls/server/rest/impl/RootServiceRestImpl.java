@@ -127,12 +127,9 @@ public class RootServiceRestImpl {
     }
 
     // Verify that user project role has privileges of required role
-    final Project project = projectService.getProject(projectId);
-    if (project == null) {
-      throw new Exception("Missing project for id" + projectId);
-    }
+    // (memoized for the session by the security service)
     final UserRole role =
-        project.getUserRoleMap().get(securityService.getUser(userName));
+        securityService.getProjectRoleForToken(authToken, projectId);
     final UserRole projectRole = (role == null) ? UserRole.VIEWER : role;
     if (!projectRole.hasPrivilegesOf(requiredProjectRole))
       throw new WebApplicationException(Response.status(401)
@@ -17,7 +17,9 @@ import org.glassfish.jersey.server.ResourceConfig;
 import com.fasterxml.jackson.module.jaxb.JaxbAnnotationModule;
 import com.ibm.icu.util.Calendar;
 import com.wci.umls.server.helpers.ConfigUtility;
+import com.wci.umls.server.jpa.services.ContentServiceJpa;
 import com.wci.umls.server.jpa.services.MetadataServiceJpa;
+import com.wci.umls.server.model.meta.Terminology;
 import com.wci.umls.server.services.MetadataService;
 
 import io.swagger.jaxrs.config.BeanConfig;
@@ -112,6 +114,22 @@ public class TermServerApplication extends ResourceConfig {
     today.set(Calendar.SECOND, 0);
     timer.scheduleAtFixedRate(task, today.getTime(), 6 * 60 * 60 * 1000);
 
+    // Build the autocomplete suggesters in the background, if configured
+    if ("true".equals(ConfigUtility.getConfigProperties()
+        .getProperty("autocomplete.preload"))
+        && new ConfigureServiceRestImpl().isConfigured()) {
+      final MetadataService service = new MetadataServiceJpa();
+      try {
+        for (final Terminology terminology : service.getCurrentTerminologies()
+            .getObjects()) {
+          ContentServiceJpa.scheduleAutocompleteSuggesters(
+              terminology.getTerminology(), terminology.getVersion());
+        }
+      } finally {
+        service.close();
+      }
+    }
+
   }
 
   /**
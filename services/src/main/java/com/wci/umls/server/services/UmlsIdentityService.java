@@ -318,6 +318,17 @@ public interface UmlsIdentityService extends MetadataService {
    */
   public long getNextRelationshipId() throws Exception;
 
+  /**
+   * Reserves a contiguous range of ids for the identifier type (e.g. "AUI",
+   * "ATUI", "RUI") without blocking other callers, and returns the first id.
+   *
+   * @param type the identifier type
+   * @param count the number of ids to reserve
+   * @return the first id of the range
+   * @throws Exception the exception
+   */
+  public long reserveIds(String type, int count) throws Exception;
+
   /**
    * Returns the relationship identity.
    *
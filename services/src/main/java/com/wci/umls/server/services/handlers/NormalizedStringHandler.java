@@ -3,6 +3,8 @@
  */
 package com.wci.umls.server.services.handlers;
 
+import java.util.List;
+
 import com.wci.umls.server.helpers.Configurable;
 
 /**
@@ -19,4 +21,15 @@ public interface NormalizedStringHandler extends Configurable {
    */
   public String getNormalizedString(String string) throws Exception;
 
+  /**
+   * Returns the normalized strings for a batch of strings, e.g. the atom names
+   * of a concept.
+   *
+   * @param strings the strings
+   * @return the normalized strings, in the same order
+   * @throws Exception the exception
+   */
+  public List<String> getNormalizedStrings(List<String> strings)
+    throws Exception;
+
 }